@@ -1,9 +1,18 @@
 import Identity.Database.Database;
+import Identity.Database.DatabaseChange;
 import Identity.Server.User;
 import org.junit.Test;
 import Identity.Generator.UserGenerator;
 
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 
 import static org.junit.Assert.*;
 
@@ -56,6 +65,157 @@ public class DatabaseTest {
         db.close();
     }
 
+    @Test
+    public void testApplyChangesBatch() throws IOException {
+        File file = File.createTempFile("identity-batch",".db");
+        file.delete();
+        Database db = new Database("jdbc:sqlite:" + file.getPath());
+        db.setUp();
+        UserGenerator.Initialize();
+
+        ArrayList<DatabaseChange> changes = new ArrayList<>();
+        User renamed = UserGenerator.randomUser();
+        User deleted = UserGenerator.randomUser();
+        changes.add(new DatabaseChange(renamed));
+        changes.add(new DatabaseChange(deleted));
+        changes.add(new DatabaseChange(renamed.getUuid(),"renamed user",3));
+        changes.add(new DatabaseChange(deleted.getUuid(),4));
+        assertEquals(4,db.applyChanges(changes));
+
+        assertEquals(renamed.getUuid(),db.getUserByName("renamed user").getUuid());
+        assertNull(db.getUserByName(renamed.getName()));
+        assertNull(db.getUserByUUID(deleted.getUuid()));
+        assertEquals(1,db.getUsers().size());
+        db.close();
+        file.delete();
+    }
+
+    @Test
+    public void testReadersSeeLatestWrites() throws IOException {
+        File file = File.createTempFile("identity-readers",".db");
+        file.delete();
+        Database db = new Database("jdbc:sqlite:" + file.getPath());
+        db.setUp();
+        for(int state = 1; state <= 5; state++) {
+            db.setCommitState(state);
+            assertEquals(state,db.getCommitState());
+        }
+        db.setServerID(7);
+        assertEquals(7,db.getServerID());
+        db.close();
+        file.delete();
+    }
+
+    @Test
+    public void testMigrateFromVersion1() throws IOException, SQLException {
+        File file = File.createTempFile("identity-v1",".db");
+        file.delete();
+        String url = "jdbc:sqlite:" + file.getPath();
+        String live = UUID.randomUUID().toString();
+        String deleted = UUID.randomUUID().toString();
+        Connection conn = DriverManager.getConnection(url);
+        Statement stmt = conn.createStatement();
+        stmt.execute("CREATE TABLE users (uuid text, name string, date date, passHash varChar(512), realName string, ipAddress string, stamp integer, deleted int, primary key (uuid));");
+        stmt.execute("CREATE TABLE serverinfo (serverID integer, commitstate int, primary key (serverID));");
+        stmt.execute("Insert into serverinfo values (-1,0);");
+        stmt.execute("insert into users values ('" + live + "','alice',0,'hash','Alice','127.0.0.1',1,0);");
+        stmt.execute("insert into users values ('" + deleted + "','bob',0,'hash','Bob','127.0.0.1',2,1);");
+        stmt.close();
+        conn.close();
+
+        Database db = new Database(url);
+        assertEquals("alice",db.getUserByUUID(live).getName());
+        assertEquals("hash",db.getUserByName("alice").getPassHash());
+        assertNull(db.getUserByUUID(deleted));
+        assertNull(db.getUserByName("bob"));
+        assertEquals(2,db.getLogicalStamp());
+        User bob = new User(UUID.randomUUID().toString(),"bob","Bob");
+        assertEquals(1,db.createNewUser(bob)); //The tombstone no longer holds the name
+        assertEquals(-2,db.createNewUser(new User(UUID.randomUUID().toString(),"alice","Alice")));
+        db.close();
+
+        conn = DriverManager.getConnection(url);
+        stmt = conn.createStatement();
+        assertEquals(Database.schemaVersion,stmt.executeQuery("PRAGMA user_version;").getInt(1));
+        assertEquals("blob",stmt.executeQuery("select typeof(uuid) from users where name = 'alice';").getString(1));
+        stmt.close();
+        conn.close();
+        file.delete();
+    }
+
+    @Test
+    public void testSwapNamesAndPurgeTombstones() throws IOException {
+        File file = File.createTempFile("identity-swap",".db");
+        file.delete();
+        Database db = new Database("jdbc:sqlite:" + file.getPath());
+        db.setUp();
+        User a = new User(UUID.randomUUID().toString(),"a","A");
+        User b = new User(UUID.randomUUID().toString(),"b","B");
+        User c = new User(UUID.randomUUID().toString(),"c","C");
+        a.setLstamp(1);
+        b.setLstamp(2);
+        c.setLstamp(3);
+        ArrayList<DatabaseChange> changes = new ArrayList<>();
+        changes.add(new DatabaseChange(a));
+        changes.add(new DatabaseChange(b));
+        changes.add(new DatabaseChange(c));
+        assertEquals(3,db.applyChanges(changes));
+
+        //a and b swap names, c is deleted and its name taken by a new user
+        changes.clear();
+        changes.add(new DatabaseChange(a.getUuid(),"tmp",4));
+        changes.add(new DatabaseChange(b.getUuid(),"a",5));
+        changes.add(new DatabaseChange(a.getUuid(),"b",6));
+        changes.add(new DatabaseChange(c.getUuid(),7));
+        User d = new User(UUID.randomUUID().toString(),"c","D");
+        d.setLstamp(8);
+        changes.add(new DatabaseChange(d));
+        List<DatabaseChange> ordered = DatabaseChange.orderForUniqueNames(DatabaseChange.coalesce(changes));
+        assertEquals(ordered.size(),db.applyChanges(ordered));
+        assertEquals(b.getUuid(),db.getUserByName("a").getUuid());
+        assertEquals(a.getUuid(),db.getUserByName("b").getUuid());
+        assertEquals(d.getUuid(),db.getUserByName("c").getUuid());
+
+        ArrayList<String> deleted = new ArrayList<>();
+        db.getUsersChangedSince(6,deleted);
+        assertEquals(1,deleted.size());
+        assertEquals(0,db.purgeTombstones(6));
+        assertEquals(1,db.purgeTombstones(7));
+        deleted.clear();
+        db.getUsersChangedSince(0,deleted);
+        assertEquals(0,deleted.size());
+        assertEquals(3,db.getUsers().size());
+        db.close();
+        file.delete();
+    }
+
+    @Test
+    public void testChunksKeepRenamesTogether() {
+        ArrayList<DatabaseChange> changes = new ArrayList<>();
+        changes.add(new DatabaseChange(UUID.randomUUID().toString(),1));
+        for(int i = 0; i < 3; i++) {
+            changes.add(new DatabaseChange(UUID.randomUUID().toString(),"name" + i,2 + i));
+            changes.add(new DatabaseChange(new User(UUID.randomUUID().toString(),"new" + i,"N")));
+        }
+        List<DatabaseChange> ordered = DatabaseChange.orderForUniqueNames(changes);
+        List<List<DatabaseChange>> chunks = DatabaseChange.chunk(ordered,2);
+
+        ArrayList<DatabaseChange> joined = new ArrayList<>();
+        int withRenames = 0;
+        for(List<DatabaseChange> chunk : chunks) {
+            joined.addAll(chunk);
+            long renames = chunk.stream().filter(change -> change.getType() == DatabaseChange.Type.RENAME).count();
+            if(renames > 0) {
+                withRenames++;
+                assertTrue(renames == 6); //Every user gives up its name and takes the new one in one transaction
+            } else {
+                assertTrue(chunk.size() <= 2);
+            }
+        }
+        assertEquals(1,withRenames);
+        assertEquals(ordered,joined);
+    }
+
 //    @Test
 //    public void testTimeStampTable() {
 //        Database db = new Database("jdbc:sqlite:identity.db");
@@ -0,0 +1,64 @@
+import Identity.Server.Action;
+import Identity.Server.ActionHistory;
+import Identity.Server.HistoryTruncatedException;
+import Identity.Server.User;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
+
+/**
+ * Checks the actions the history gives lagging servers, and that dropped actions are reported
+ */
+public class TestActionHistory {
+
+    private static Action action(int stamp) {
+        return new Action(stamp,Action.Type.CREATE,new User("uuid" + stamp,"user" + stamp,"Real Name"));
+    }
+
+    @Test
+    public void testSince() throws HistoryTruncatedException {
+        ActionHistory history = new ActionHistory(100,0);
+        for(int stamp = 1; stamp <= 50; stamp += 2) { //Stamps of aborted actions are never added
+            assertTrue(history.add(action(stamp)));
+        }
+        assertFalse(history.add(action(49))); //Already there
+        assertEquals(25,history.since(0).size());
+        ArrayList<Action> after = history.since(10);
+        assertEquals(11,after.get(0).getStamp());
+        assertEquals(49,after.get(after.size() - 1).getStamp()); //The newest action is included
+        assertEquals(20,history.since(9).size());
+        assertEquals(0,history.since(49).size());
+        assertEquals(0,history.since(100).size());
+        assertEquals(49,history.getNewestStamp());
+    }
+
+    @Test
+    public void testTruncated() throws HistoryTruncatedException {
+        ActionHistory history = new ActionHistory(10,5);
+        try {
+            history.since(4);
+            fail("Action 5 is not kept");
+        } catch (HistoryTruncatedException e) {
+            assertEquals(5,e.getTruncatedUpTo());
+        }
+        assertFalse(history.add(action(5)));
+        for(int stamp = 6; stamp <= 30; stamp++) {
+            history.add(action(stamp));
+        }
+        assertEquals(10,history.size());
+        assertEquals(20,history.getTruncatedUpTo());
+        assertEquals(10,history.since(20).size());
+        assertEquals(21,history.since(20).get(0).getStamp());
+        try {
+            history.since(19);
+            fail("Action 20 was dropped");
+        } catch (HistoryTruncatedException e) {
+            assertEquals(20,e.getTruncatedUpTo());
+        }
+    }
+}
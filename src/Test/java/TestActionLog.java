@@ -0,0 +1,167 @@
+import Identity.Database.DatabaseConfig;
+import Identity.Database.DatabaseManager;
+import Identity.Database.MemoryEngine;
+import Identity.Server.Action;
+import Identity.Server.ActionLog;
+import Identity.Server.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Checks the actions read back from the action log after a restart, a torn append and truncation
+ */
+public class TestActionLog {
+    private File dir;
+
+    @Before
+    public void open() throws IOException {
+        dir = File.createTempFile("identity-actions","");
+        dir.delete();
+    }
+
+    @After
+    public void close() {
+        File[] segments = dir.listFiles();
+        if(segments != null) {
+            for(File segment : segments) {
+                segment.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static Action create(int i, int stamp) {
+        User user = new User(String.format("00000000-0000-0000-0000-%012d",i),"user" + i,"Real Name " + i,"ABC","127.0.0.1");
+        user.setDate(new Date(1000000 + i));
+        return new Action(stamp,Action.Type.CREATE,user);
+    }
+
+    @Test
+    public void testBatch() throws IOException {
+        ActionLog log = new ActionLog(dir,4096,0);
+        Action[] batch = new Action[100];
+        for(int i = 0; i < batch.length; i++) {
+            batch[i] = create(i,i + 1);
+        }
+        log.append(Arrays.asList(batch));
+        assertEquals(1,log.getSyncCount()); //One force for the whole batch, across segments
+        log.close();
+
+        log = new ActionLog(dir,4096,0);
+        List<Action> actions = log.recoveredActions();
+        assertEquals(100,actions.size());
+        for(int i = 0; i < actions.size(); i++) {
+            assertEquals(i + 1,actions.get(i).getStamp());
+        }
+        log.close();
+    }
+
+    @Test
+    public void testRestart() throws IOException {
+        ActionLog log = new ActionLog(dir,4096,0);
+        for(int i = 0; i < 100; i++) {
+            log.append(create(i,i + 1));
+        }
+        log.append(new Action(101,Action.Type.UPDATE,new User(null,"user0",null,"ABC",null),"renamed"));
+        log.append(new Action(102,Action.Type.DELETE,new User(null,"user1",null,"ABC",null)));
+        log.close();
+
+        log = new ActionLog(dir,4096,0);
+        assertTrue(log.getSegmentCount() > 1);
+        List<Action> actions = log.recoveredActions();
+        assertEquals(102,actions.size());
+        assertEquals(1,actions.get(0).getStamp());
+        assertEquals("user0",actions.get(0).getUser().getName());
+        assertEquals("ABC",actions.get(0).getUser().getPassHash());
+        assertEquals(1000000,actions.get(0).getUser().getDate().getTime());
+        assertEquals("renamed",actions.get(100).getNewName());
+        assertEquals(Action.Type.DELETE,actions.get(101).getType());
+        assertTrue(log.recoveredActions().isEmpty());
+        log.close();
+    }
+
+    @Test
+    public void testTornAppend() throws IOException {
+        ActionLog log = new ActionLog(dir,4096,0);
+        for(int i = 0; i < 10; i++) {
+            log.append(create(i,i + 1));
+        }
+        log.close();
+        File segment = dir.listFiles()[0];
+        int end = 0;
+        try(RandomAccessFile file = new RandomAccessFile(segment,"rw")) {
+            while(file.readInt() != 0) { //Segments are preallocated with zeros, walk the records to the end
+                int length = file.readInt();
+                end = (int) file.getFilePointer() + length;
+                file.seek(end);
+            }
+            file.seek(end - 3);
+            file.write(new byte[] {1,2,3}); //The last action was cut short by a crash
+        }
+
+        log = new ActionLog(dir,4096,0);
+        assertEquals(9,log.recoveredActions().size());
+        log.append(create(9,10)); //Written over the torn action
+        log.close();
+        log = new ActionLog(dir,4096,0);
+        assertEquals(10,log.recoveredActions().size());
+        log.close();
+    }
+
+    @Test
+    public void testTruncate() throws IOException {
+        ActionLog log = new ActionLog(dir,4096,0);
+        for(int i = 0; i < 100; i++) {
+            log.append(create(i,i + 1));
+        }
+        int segments = log.getSegmentCount();
+        assertEquals(0,log.truncate(0));
+        assertTrue(log.truncate(50) > 0);
+        assertTrue(log.getSegmentCount() < segments);
+        assertTrue(log.getFirstStamp() <= 51);
+        assertTrue(log.getFirstStamp() > 1);
+        log.truncate(100);
+        assertEquals(1,log.getSegmentCount()); //The newest segment is always kept
+        log.close();
+    }
+
+    @Test
+    public void testReplay() throws IOException {
+        DatabaseConfig config = new DatabaseConfig();
+        config.snapshotInterval = 0;
+        DatabaseManager dm = new DatabaseManager(MemoryEngine.urlPrefix,config);
+        dm.setUp();
+        List<Action> actions = Arrays.asList(create(0,1),create(1,2),
+                new Action(3,Action.Type.UPDATE,new User(null,"user0",null,"ABC",null),"renamed"),
+                new Action(4,Action.Type.DELETE,new User(null,"user1",null,"ABC",null)),
+                create(2,5));
+        for(Action action : actions.subList(0,3)) { //The database has the first three, the server crashed before the rest
+            action.execute(dm);
+        }
+        for(Action action : actions) {
+            if(!action.isAppliedIn(dm)) action.execute(dm);
+        }
+        assertEquals("renamed",dm.getUserByUUID(create(0,0).getUser().getUuid()).getName());
+        assertNull(dm.getUserByName("user0"));
+        assertNull(dm.getUserByName("user1"));
+        assertEquals(5,dm.getUserByName("user2").getLstamp());
+        for(Action action : actions.subList(2,5)) {
+            assertTrue(action.isAppliedIn(dm));
+        }
+        assertFalse(actions.get(1).isAppliedIn(dm)); //Deleted since, replaying it is undone by replaying the delete
+        assertFalse(create(3,6).isAppliedIn(dm));
+    }
+}
@@ -1,13 +1,37 @@
 import Identity.Generator.TestUser;
 import Identity.Generator.UserGenerator;
 import Identity.Database.Database;
+import Identity.Database.DatabaseConfig;
 import Identity.Database.DatabaseManager;
+import Identity.Database.MemoryEngine;
+import Identity.Server.Action;
+import Identity.Server.ActionLog;
 import Identity.Server.User;
+import Identity.Server.UserPage;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
 
 import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNotSame;
+import static junit.framework.TestCase.assertSame;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
 
 public class TestDatabaseManager {
 
@@ -63,6 +87,317 @@ public class TestDatabaseManager {
         db.close();
     }
 
+    @Test
+    public void testSnapshotAndReplay() throws IOException {
+        UserGenerator.Initialize();
+        File file = File.createTempFile("identity-snapshot",".db");
+        file.delete();
+        String url = "jdbc:sqlite:" + file.getPath();
+        DatabaseManager dm = new DatabaseManager(url);
+        dm.setUp();
+        ArrayList<TestUser> users = new ArrayList<>();
+        int stamp = 0;
+        for(int i = 0; i < 50; i++) {
+            TestUser user = UserGenerator.randomUser();
+            user.setLstamp(++stamp);
+            users.add(user);
+            assertEquals(1,dm.createUser(user));
+        }
+        assertTrue(dm.writeSnapshot());
+        assertTrue(new File(file.getPath() + ".snapshot").exists());
+
+        //Changes after the snapshot are only in the sql database
+        TestUser created = UserGenerator.randomUser();
+        created.setLstamp(++stamp);
+        assertEquals(1,dm.createUser(created));
+        TestUser renamed = users.get(0);
+        TestUser deleted = users.get(1);
+        assertEquals(1,dm.changeUserName(renamed.getName(),"renamed user",renamed.getPassHash(),++stamp));
+        assertEquals(1,dm.deleteUser(deleted.getName(),deleted.getPassHash(),++stamp));
+        dm.updateDatabase();
+
+        DatabaseManager restarted = new DatabaseManager(url);
+        assertEquals(50,restarted.getUsers().size());
+        assertEquals(created.getUuid(),restarted.getUserByName(created.getName()).getUuid());
+        assertEquals(renamed.getUuid(),restarted.getUserByName("renamed user").getUuid());
+        assertNull(restarted.getUserByName(renamed.getName()));
+        assertNull(restarted.getUserByUUID(deleted.getUuid()));
+        for(int i = 2; i < users.size(); i++) {
+            User u = restarted.getUserByUUID(users.get(i).getUuid());
+            assertEquals(users.get(i).getName(),u.getName());
+            assertEquals(users.get(i).getRealname(),u.getRealname());
+        }
+
+        new File(file.getPath() + ".snapshot").delete();
+        file.delete();
+    }
+
+    @Test
+    public void testLazyLoad() throws IOException, InterruptedException {
+        UserGenerator.Initialize();
+        File file = File.createTempFile("identity-lazy",".db");
+        file.delete();
+        String url = "jdbc:sqlite:" + file.getPath();
+        DatabaseManager dm = new DatabaseManager(url);
+        dm.setUp();
+        ArrayList<TestUser> users = new ArrayList<>();
+        for(int i = 0; i < 2000; i++) {
+            TestUser user = UserGenerator.randomUser();
+            users.add(user);
+            assertEquals(1,dm.createUser(user));
+        }
+        dm.updateDatabase();
+
+        DatabaseConfig config = new DatabaseConfig();
+        config.lazyLoad = true;
+        DatabaseManager lazy = new DatabaseManager(url,config);
+        //Whether or not these users are loaded yet, the answers must be the same
+        TestUser renamed = users.get(0);
+        TestUser deleted = users.get(1);
+        assertEquals(users.get(2).getUuid(),lazy.getUserByName(users.get(2).getName()).getUuid());
+        assertEquals(users.get(3).getName(),lazy.getUserByUUID(users.get(3).getUuid()).getName());
+        assertEquals(-1,lazy.createUser(users.get(4))); //Already stored, even if not loaded
+        assertEquals(1,lazy.changeUserName(renamed.getName(),"renamed user",renamed.getPassHash(),1));
+        assertEquals(1,lazy.deleteUser(deleted.getName(),deleted.getPassHash(),2));
+        assertNull(lazy.getUserByName(deleted.getName()));
+        assertNull(lazy.getUserByName(renamed.getName()));
+
+        for(int i = 0; i < 1000 && !lazy.getLoadMetrics().warm; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(lazy.getLoadMetrics().warm);
+        int total = lazy.getLoadMetrics().total; //The delete is stored if the first dump runs before the users are read
+        assertTrue("Read " + total + " stored users",total == 2000 || total == 1999);
+        assertEquals(total,lazy.getLoadMetrics().loaded);
+        assertEquals(1999,lazy.getUsers().size());
+        assertNull(lazy.getUserByUUID(deleted.getUuid()));
+        assertEquals(renamed.getUuid(),lazy.getUserByName("renamed user").getUuid());
+        assertNull(lazy.getUserByName(renamed.getName()));
+
+        file.delete();
+    }
+
+    @Test
+    public void testListingsBetweenWrites() throws IOException {
+        File file = File.createTempFile("identity-listing",".db");
+        file.delete();
+        DatabaseConfig config = new DatabaseConfig();
+        config.snapshotInterval = 0;
+        DatabaseManager dm = new DatabaseManager("jdbc:sqlite:" + file.getPath(),config);
+        for(int i = 0; i < 10; i++) {
+            assertEquals(1,dm.createUser(new User("00000000-0000-0000-0000-00000000000" + i,"user" + i,"Real Name",null,"127.0.0.1")));
+        }
+        List<String> names = dm.getListing(DatabaseManager.Listing.NAMES);
+        assertEquals(10,names.size());
+        assertSame(names,dm.getListing(DatabaseManager.Listing.NAMES)); //No write in between, so nothing is rebuilt
+
+        assertEquals(1,dm.changeUserName("user3","renamed",null,20));
+        List<String> renamed = dm.getListing(DatabaseManager.Listing.NAMES);
+        assertNotSame(names,renamed);
+        assertTrue(renamed.contains("renamed"));
+        assertFalse(renamed.contains("user3"));
+        assertTrue(names.contains("user3")); //An old listing is never changed
+        assertTrue(dm.getListing(DatabaseManager.Listing.ALL).contains("[Login name: renamed UUID: 00000000-0000-0000-0000-000000000003]"));
+
+        assertEquals(1,dm.deleteUser("user4",null,21));
+        assertEquals(9,dm.getListing(DatabaseManager.Listing.UUIDS).size());
+        assertFalse(dm.getListing(DatabaseManager.Listing.UUIDS).contains("00000000-0000-0000-0000-000000000004"));
+        file.delete();
+    }
+
+    @Test
+    public void testPagesDuringWrites() throws IOException {
+        File file = File.createTempFile("identity-pages",".db");
+        file.delete();
+        DatabaseConfig config = new DatabaseConfig();
+        config.snapshotInterval = 0;
+        config.pageOrderMaxAge = 0; //Sort again after every write
+        DatabaseManager dm = new DatabaseManager("jdbc:sqlite:" + file.getPath(),config);
+        int numUsers = 1000;
+        for(int i = 0; i < numUsers; i++) {
+            assertEquals(1,dm.createUser(new User(UUID.randomUUID().toString(),"user" + i,"Real Name",null,"127.0.0.1")));
+        }
+
+        Set<String> seen = new HashSet<>();
+        String last = null;
+        String cursor = null;
+        int pages = 0;
+        do {
+            UserPage page = dm.getPage(DatabaseManager.Listing.UUIDS,cursor,64);
+            for(String uuid : page.getEntries()) {
+                assertTrue(seen.add(uuid)); //Never listed twice
+                if(last != null) assertTrue(last.compareTo(uuid) < 0);
+                last = uuid;
+            }
+            cursor = page.getCursor();
+            dm.createUser(new User(UUID.randomUUID().toString(),"new" + pages,"Real Name",null,"127.0.0.1"));
+            dm.changeUserName("user" + pages,"renamed" + pages,null,++pages);
+        } while(cursor != null);
+        assertTrue(seen.size() >= numUsers); //Every user from before the listing, and maybe some of the new ones
+
+        List<String> names = new ArrayList<>();
+        cursor = null;
+        do {
+            UserPage page = dm.getPage(DatabaseManager.Listing.NAMES,cursor,300);
+            names.addAll(page.getEntries());
+            cursor = page.getCursor();
+        } while(cursor != null);
+        assertEquals(numUsers + pages,names.size()); //One user was made per page
+        assertTrue(names.contains("renamed0"));
+        assertFalse(names.contains("user0"));
+        file.delete();
+    }
+
+    @Test
+    public void testNameSearch() throws IOException {
+        File file = File.createTempFile("identity-search",".db");
+        file.delete();
+        DatabaseConfig config = new DatabaseConfig();
+        config.snapshotInterval = 0;
+        DatabaseManager dm = new DatabaseManager("jdbc:sqlite:" + file.getPath(),config);
+        String[] names = {"alice","alicia","al","bob","bobby","carol","dave"};
+        for(int i = 0; i < names.length; i++) {
+            assertEquals(1,dm.createUser(new User(UUID.randomUUID().toString(),names[i],"Real Name",null,"127.0.0.1")));
+        }
+        assertEquals(Arrays.asList("al","alice","alicia"),dm.searchNamePrefix("al",10));
+        assertEquals(Arrays.asList("alice","alicia"),dm.searchNamePrefix("ali",10));
+        assertEquals(Arrays.asList("al","alice"),dm.searchNamePrefix("al",2));
+        assertEquals(Arrays.asList("bob","bobby","carol"),dm.searchNames("b","d",10));
+        assertEquals(Arrays.asList("carol","dave"),dm.searchNames("c",null,10));
+        assertTrue(dm.searchNames("d","b",10).isEmpty()); //Reversed
+        assertTrue(dm.searchNames("b","b",10).isEmpty());
+        assertTrue(dm.searchNamePrefix("z",10).isEmpty());
+
+        assertEquals(1,dm.changeUserName("alice","zed",null,10));
+        assertEquals(1,dm.changeUserName("bob","bob",null,11));
+        assertEquals(1,dm.deleteUser("alicia",null,12));
+        assertEquals(Arrays.asList("al"),dm.searchNamePrefix("al",10));
+        assertEquals(Arrays.asList("bob","bobby"),dm.searchNamePrefix("bob",10));
+        assertEquals(Arrays.asList("zed"),dm.searchNamePrefix("z",10));
+        assertEquals(names.length - 1,dm.searchRealNames("real NAME",100).size());
+        assertEquals(names.length - 1,dm.searchRealNames("re* nam*",100).size());
+        file.delete();
+    }
+
+    @Test
+    public void testCreatedRange() throws IOException {
+        File file = File.createTempFile("identity-created",".db");
+        file.delete();
+        DatabaseConfig config = new DatabaseConfig();
+        config.snapshotInterval = 0;
+        DatabaseManager dm = new DatabaseManager("jdbc:sqlite:" + file.getPath(),config);
+        dm.setUp();
+        long day = 24L * 60 * 60 * 1000;
+        for(int i = 0; i < 100; i++) {
+            User user = new User(UUID.randomUUID().toString(),"user" + i,"Real Name",null,"127.0.0.1");
+            user.setDate(new Date(1000 * day + (i / 2) * day)); //Two users a day
+            assertEquals(1,dm.createUser(user));
+        }
+        User undated = new User(UUID.randomUUID().toString(),"undated","Real Name",null,"127.0.0.1");
+        assertEquals(1,dm.createUser(undated));
+        assertTrue(undated.getDate() != null); //Dated when created
+
+        ArrayList<String> found = new ArrayList<>();
+        String cursor = null;
+        do {
+            UserPage page = dm.getCreated(1010 * day,1020 * day,cursor,3);
+            assertTrue(page.getEntries().size() <= 3);
+            found.addAll(page.getEntries());
+            cursor = page.getCursor();
+            if(found.size() == 6) assertEquals(1,dm.deleteUser("user30",null,200)); //Not scanned yet
+            if(found.size() == 6) assertEquals(1,dm.deleteUser("user20",null,201)); //Already scanned
+        } while(cursor != null);
+        assertEquals(19,found.size());
+        assertTrue(found.get(0).matches("\\[Login name: user2[01] .*")); //Created on the first day, same date so in UUID order
+        assertTrue(found.get(0).contains("Created: " + new Date(1010 * day).toInstant()));
+        for(String entry : found) {
+            assertFalse(entry.startsWith("[Login name: user30 "));
+        }
+        assertEquals(1,dm.getCreated(undated.getDate().getTime(),Long.MAX_VALUE,null,10).getEntries().size());
+
+        dm.updateDatabase();
+        DatabaseManager restarted = new DatabaseManager("jdbc:sqlite:" + file.getPath(),config);
+        assertEquals(18,restarted.getCreated(1010 * day,1020 * day,null,100).getEntries().size()); //Dates are stored
+        try {
+            restarted.getCreated(0,1,"not a cursor",10);
+            fail();
+        } catch(IllegalArgumentException e) {
+        }
+        file.delete();
+    }
+
+    @Test
+    public void testFailedDumpKeepsActionLog() throws IOException, SQLException {
+        File file = File.createTempFile("identity-faileddump",".db");
+        file.delete();
+        String url = "jdbc:sqlite:" + file.getPath();
+        DatabaseConfig config = new DatabaseConfig();
+        config.snapshotInterval = 0;
+        config.busyTimeout = 100;
+        DatabaseManager dm = new DatabaseManager(url,config);
+        dm.setUp();
+        ActionLog actionLog = new ActionLog(Files.createTempDirectory("identity-faileddump").toFile(),1024,0);
+
+        Connection other = DriverManager.getConnection(url);
+        Statement lock = other.createStatement();
+        lock.execute("BEGIN IMMEDIATE;"); //Every write fails until it is rolled back
+        for(int stamp = 1; stamp <= 20; stamp++) {
+            User user = new User(UUID.randomUUID().toString(),"user" + stamp,"Real Name",null,"127.0.0.1");
+            user.setLstamp(stamp);
+            actionLog.append(new Action(stamp,Action.Type.CREATE,user));
+            assertEquals(1,dm.createUser(user));
+        }
+        dm.updateDatabase();
+        assertEquals(0,dm.getDurableStamp());
+        assertEquals(0,actionLog.truncate(dm.getDurableStamp())); //The action log is the only copy on disk
+        assertEquals(1,actionLog.getFirstStamp());
+
+        lock.execute("ROLLBACK;");
+        other.close();
+        dm.updateDatabase(); //The changes kept from the failed dump are written
+        assertEquals(20,dm.getDurableStamp());
+        assertTrue(actionLog.truncate(dm.getDurableStamp()) > 0);
+        actionLog.close();
+        assertEquals(20,new DatabaseManager(url,config).getUsers().size());
+        file.delete();
+    }
+
+    @Test
+    public void testDumperSurvivesExceptions() throws InterruptedException {
+        DatabaseConfig config = new DatabaseConfig();
+        config.queueCapacity = 10;
+        config.tombstonePurgeInterval = 10;
+        DatabaseManager dm = new DatabaseManager(MemoryEngine.urlPrefix,config);
+        dm.setUp();
+        dm.setReplicationHorizon(() -> {
+            throw new IllegalStateException("Broken horizon"); //Thrown on the dump timer
+        });
+        Thread.sleep(100);
+        int[] created = new int[1];
+        Thread writer = new Thread(() -> {
+            for(int i = 0; i < 100; i++) { //Fills the queue many times over, the early dumps empty it
+                created[0] += dm.createUser(new User(UUID.randomUUID().toString(),"user" + i,"Real Name",null,"127.0.0.1"));
+            }
+        });
+        writer.start();
+        writer.join(10000);
+        assertFalse(writer.isAlive());
+        assertEquals(100,created[0]);
+    }
+
+    @Test
+    public void testMemoryEngine() {
+        DatabaseManager dm = new DatabaseManager(MemoryEngine.urlPrefix);
+        dm.setUp();
+        User user = new User(UUID.randomUUID().toString(),"alice","Real Name",null,"127.0.0.1");
+        user.setLstamp(3);
+        assertEquals(1,dm.createUser(user));
+        dm.updateDatabase();
+        assertEquals(3,dm.getLogicalStamp());
+        assertEquals(1,dm.setServerID(4));
+        assertEquals(4,dm.getServerID());
+    }
+
 //    @Test
 //    public void testCreateModifyLookupName() {
 //        UserGenerator.Initialize();
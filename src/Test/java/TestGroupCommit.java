@@ -0,0 +1,145 @@
+import Identity.Server.Action;
+import Identity.Server.GroupCommit;
+import Identity.Server.PartitionedException;
+import Identity.Server.User;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
+
+/**
+ * Checks that concurrent writes are committed in batches of consecutive stamps, that each writer gets
+ * its own result, and that the staged pipeline replicates a batch while the one before it is applied
+ */
+public class TestGroupCommit {
+
+    private static Action action(int stamp) {
+        return new Action(stamp,Action.Type.DELETE,new User(null,"user" + stamp,null,null,null));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis); //A round trip to the other servers, or applying a batch
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Submits writes from many threads at once
+     * @return errors seen by the writers
+     */
+    private static List<String> write(GroupCommit groupCommit, int writers) throws InterruptedException {
+        List<String> errors = Collections.synchronizedList(new ArrayList<>());
+        ArrayList<Thread> threads = new ArrayList<>();
+        for(int i = 0; i < writers; i++) {
+            Thread thread = new Thread(() -> {
+                int[] stamp = new int[1];
+                try {
+                    int result = groupCommit.submit(s -> {
+                        stamp[0] = s;
+                        return action(s);
+                    });
+                    if(result != stamp[0] * 10) errors.add("Write " + stamp[0] + " got " + result);
+                } catch (PartitionedException e) {
+                    errors.add(e.getMessage());
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        return errors;
+    }
+
+    @Test
+    public void testBatches() throws InterruptedException {
+        for(boolean staged : new boolean[] {true,false}) {
+            AtomicInteger stamps = new AtomicInteger();
+            List<List<Integer>> rounds = Collections.synchronizedList(new ArrayList<>());
+            List<Integer> applied = Collections.synchronizedList(new ArrayList<>());
+            GroupCommit groupCommit = new GroupCommit(16,0,staged,stamps::incrementAndGet,actions -> {
+                ArrayList<Integer> round = new ArrayList<>();
+                for(Action action : actions) {
+                    round.add(action.getStamp());
+                }
+                rounds.add(round);
+                sleep(20);
+            },actions -> {
+                int[] results = new int[actions.size()];
+                for(int i = 0; i < actions.size(); i++) {
+                    applied.add(actions.get(i).getStamp());
+                    results[i] = actions.get(i).getStamp() * 10; //Each writer gets the result of its own action
+                }
+                return results;
+            });
+
+            int writers = 64;
+            List<String> errors = write(groupCommit,writers);
+            assertTrue(errors.toString(),errors.isEmpty());
+            assertEquals(writers,groupCommit.getCommitted());
+            assertEquals(rounds.size(),groupCommit.getRounds());
+            assertTrue("Rounds: " + rounds.size(),rounds.size() < writers);
+            int expected = 1;
+            for(List<Integer> round : rounds) { //Consecutive stamps, in order, at most 16 a round
+                assertTrue(round.size() <= 16);
+                for(int stamp : round) {
+                    assertEquals(expected++,stamp);
+                }
+            }
+            for(int i = 0; i < applied.size(); i++) {
+                assertEquals(i + 1,(int) applied.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testStagesOverlap() throws InterruptedException {
+        long[] elapsed = new long[2];
+        for(int run = 0; run < 2; run++) {
+            AtomicInteger stamps = new AtomicInteger();
+            GroupCommit groupCommit = new GroupCommit(8,0,run == 0,stamps::incrementAndGet,actions -> sleep(40),actions -> {
+                sleep(40);
+                int[] results = new int[actions.size()];
+                for(int i = 0; i < actions.size(); i++) {
+                    results[i] = actions.get(i).getStamp() * 10;
+                }
+                return results;
+            });
+            long start = System.currentTimeMillis();
+            assertTrue(write(groupCommit,64).isEmpty());
+            elapsed[run] = System.currentTimeMillis() - start;
+        }
+        //At least 8 batches: about 8 * 40ms staged, 8 * 80ms one stage after the other
+        assertTrue("Staged " + elapsed[0] + "ms, serial " + elapsed[1] + "ms",elapsed[0] < elapsed[1] * 0.8);
+    }
+
+    @Test
+    public void testFailedRound() {
+        AtomicInteger stamps = new AtomicInteger();
+        GroupCommit groupCommit = new GroupCommit(16,0,true,stamps::incrementAndGet,actions -> {
+            if(actions.get(0).getStamp() == 1) throw new PartitionedException("partitioned");
+        },actions -> new int[actions.size()]);
+        try {
+            groupCommit.submit(TestGroupCommit::action);
+            fail("The round failed");
+        } catch (PartitionedException e) {
+            assertEquals("partitioned",e.getMessage());
+        }
+        try {
+            assertEquals(0,groupCommit.submit(TestGroupCommit::action)); //The next round is not affected
+        } catch (PartitionedException e) {
+            fail(e.getMessage());
+        }
+        assertEquals(2,groupCommit.getRounds());
+        assertEquals(1,groupCommit.getCommitted());
+    }
+}
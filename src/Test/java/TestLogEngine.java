@@ -0,0 +1,139 @@
+import Identity.Database.DatabaseConfig;
+import Identity.Database.LogEngine;
+import Identity.Server.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Checks what the log engine rebuilds from its segment files after a restart, a torn write and merges
+ */
+public class TestLogEngine {
+    private File dir;
+    private DatabaseConfig config;
+
+    @Before
+    public void open() throws IOException {
+        dir = File.createTempFile("identity-log","");
+        dir.delete();
+        config = new DatabaseConfig();
+        config.logSegmentSize = 4096;
+        config.logMergeInterval = 0;
+    }
+
+    @After
+    public void close() {
+        File[] segments = dir.listFiles();
+        if(segments != null) {
+            for(File segment : segments) {
+                segment.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static User user(int i, int stamp) {
+        User user = new User(String.format("00000000-0000-0000-0000-%012d",i),"user" + i,"Real Name " + i,"ABC","127.0.0.1");
+        user.setLstamp(stamp);
+        user.setDate(new Date(1000000 + i));
+        return user;
+    }
+
+    @Test
+    public void testRestart() {
+        LogEngine db = new LogEngine(dir,config);
+        for(int i = 0; i < 100; i++) {
+            assertEquals(1,db.createNewUser(user(i,i + 1)));
+        }
+        db.changeUserName(user(0,0).getUuid(),"renamed",101);
+        db.deleteUserByUUID(user(1,0).getUuid(),102);
+        db.setServerID(3);
+        db.close();
+        assertTrue(dir.listFiles().length > 1); //Rolled over to new segments
+
+        db = new LogEngine(dir,config);
+        assertEquals(99,db.getUsers().size());
+        assertEquals(102,db.getLogicalStamp());
+        assertEquals(3,db.getServerID());
+        assertEquals(user(0,0).getUuid(),db.getUserByName("renamed").getUuid());
+        assertNull(db.getUserByName("user0"));
+        assertNull(db.getUserByUUID(user(1,0).getUuid()));
+        assertEquals(1000002,db.getUserByName("user2").getDate().getTime());
+        ArrayList<String> deleted = new ArrayList<>();
+        db.getUsersChangedSince(100,deleted);
+        assertEquals(Arrays.asList(user(1,0).getUuid()),deleted);
+        db.close();
+    }
+
+    @Test
+    public void testTornWrite() throws IOException {
+        LogEngine db = new LogEngine(dir,config);
+        for(int i = 0; i < 10; i++) {
+            db.createNewUser(user(i,i + 1));
+        }
+        db.close();
+        File[] segments = dir.listFiles();
+        Arrays.sort(segments);
+        File newest = segments[segments.length - 1];
+        try(RandomAccessFile file = new RandomAccessFile(newest,"rw")) {
+            file.setLength(file.length() - 3); //The last user was cut short by a crash
+        }
+
+        db = new LogEngine(dir,config);
+        assertTrue(db.getTruncatedBytes() > 0);
+        assertEquals(9,db.getUsers().size());
+        assertNull(db.getUserByName("user9"));
+        assertEquals(9,db.getLogicalStamp());
+        assertEquals(1,db.createNewUser(user(9,10))); //Written after the good records
+        db.close();
+
+        db = new LogEngine(dir,config);
+        assertEquals(0,db.getTruncatedBytes());
+        assertEquals(10,db.getUsers().size());
+        db.close();
+    }
+
+    @Test
+    public void testMerge() {
+        LogEngine db = new LogEngine(dir,config);
+        for(int i = 0; i < 50; i++) {
+            db.createNewUser(user(i,i + 1));
+        }
+        int stamp = 50;
+        for(int round = 0; round < 5; round++) { //Old versions fill the early segments
+            for(int i = 0; i < 50; i++) {
+                db.changeUserName(user(i,0).getUuid(),"user" + i + "-" + round,++stamp);
+            }
+        }
+        for(int i = 40; i < 50; i++) {
+            db.deleteUserByUUID(user(i,0).getUuid(),++stamp);
+        }
+        assertEquals(10,db.purgeTombstones(stamp));
+        long size = db.getSize();
+        int segments = db.getSegmentCount();
+        assertTrue(db.merge() > 0);
+        assertTrue(db.getSize() < size);
+        assertTrue(db.getSegmentCount() < segments);
+        assertEquals(40,db.getUsers().size());
+        assertEquals("user5-4",db.getUserByUUID(user(5,0).getUuid()).getName());
+        db.close();
+
+        db = new LogEngine(dir,config); //Only the latest versions were kept, and no deleted user came back
+        assertEquals(40,db.getUsers().size());
+        assertEquals(user(5,0).getUuid(),db.getUserByName("user5-4").getUuid());
+        assertNull(db.getUserByName("user5-3"));
+        assertNull(db.getUserByUUID(user(45,0).getUuid()));
+        db.close();
+    }
+}
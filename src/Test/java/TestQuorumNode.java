@@ -0,0 +1,307 @@
+import Identity.Server.Action;
+import Identity.Server.PartitionedException;
+import Identity.Server.QuorumLog;
+import Identity.Server.QuorumNode;
+import Identity.Server.User;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
+
+/**
+ * Checks majority quorum replication on servers in one process: writes commit on every server in the same order,
+ * a slow server does not hold them up, a new leader keeps every committed write after the old one is cut off,
+ * and the old leader's uncommitted writes are dropped when it rejoins
+ */
+public class TestQuorumNode {
+    private Cluster cluster;
+
+    /**
+     * Servers 1 to n, calling each other directly. A server that is down neither sends nor answers.
+     */
+    private static class Cluster {
+        final HashMap<Integer,QuorumNode> nodes = new HashMap<>();
+        final HashMap<Integer,List<Integer>> applied = new HashMap<>();     //Stamps applied by each server, in order
+        final Set<Integer> down = ConcurrentHashMap.newKeySet();
+        final ConcurrentHashMap<Integer,Long> delays = new ConcurrentHashMap<>();
+
+        Cluster(int servers, QuorumNode.Config config) throws IOException {
+            for(int id = 1; id <= servers; id++) {
+                HashMap<Integer,QuorumNode.Peer> peers = new HashMap<>();
+                for(int other = 1; other <= servers; other++) {
+                    if(other != id) peers.put(other,peer(id,other));
+                }
+                List<Integer> stamps = Collections.synchronizedList(new ArrayList<>());
+                applied.put(id,stamps);
+                nodes.put(id,new QuorumNode(id,peers,new QuorumNode.MemoryStorage(),0,actions -> {
+                    int[] results = new int[actions.size()];
+                    for(int i = 0; i < actions.size(); i++) {
+                        stamps.add(actions.get(i).getStamp());
+                        results[i] = actions.get(i).getStamp() * 10;
+                    }
+                    return results;
+                },null,config));
+            }
+            for(QuorumNode node : nodes.values()) {
+                node.start();
+            }
+        }
+
+        private QuorumNode.Peer peer(int from, int to) {
+            return new QuorumNode.Peer() {
+                @Override
+                public QuorumNode.AppendResult appendEntries(QuorumNode.AppendRequest request) throws IOException {
+                    connect(from,to);
+                    return nodes.get(to).appendEntries(request);
+                }
+
+                @Override
+                public QuorumNode.VoteResult requestVote(QuorumNode.VoteRequest request) throws IOException {
+                    connect(from,to);
+                    return nodes.get(to).requestVote(request);
+                }
+            };
+        }
+
+        private void connect(int from, int to) throws IOException {
+            if(down.contains(from) || down.contains(to)) throw new IOException("Unreachable");
+            long delay = delays.getOrDefault(to,0L);
+            if(delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+
+        /**
+         * @return the leader among the servers that are up, once there is exactly one
+         */
+        int leader() {
+            int[] leader = new int[1];
+            waitFor(() -> {
+                int leaders = 0;
+                for(int id : nodes.keySet()) {
+                    if(!down.contains(id) && nodes.get(id).isLeader()) {
+                        leader[0] = id;
+                        leaders++;
+                    }
+                }
+                return leaders == 1;
+            },5000);
+            return leader[0];
+        }
+
+        void close() {
+            for(QuorumNode node : nodes.values()) {
+                node.close();
+            }
+        }
+    }
+
+    private static QuorumNode.Config config() {
+        QuorumNode.Config config = new QuorumNode.Config();
+        config.electionTimeout = 150;
+        config.heartbeatInterval = 30;
+        config.proposalTimeout = 1000;
+        return config;
+    }
+
+    private static void waitFor(BooleanSupplier condition, long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        while(!condition.getAsBoolean()) {
+            if(System.currentTimeMillis() > deadline) fail("Timed out");
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static Action action(int stamp) {
+        return new Action(stamp,Action.Type.DELETE,new User(null,"user" + stamp,null,null,null));
+    }
+
+    /**
+     * @return the stamp of the write, after checking its result
+     */
+    private static int write(QuorumNode node) throws PartitionedException {
+        int[] stamp = new int[1];
+        int result = node.propose(s -> {
+            stamp[0] = s;
+            return action(s);
+        });
+        assertEquals(stamp[0] * 10,result);
+        return stamp[0];
+    }
+
+    @After
+    public void tearDown() {
+        if(cluster != null) cluster.close();
+    }
+
+    @Test
+    public void testCommits() throws Exception {
+        QuorumNode.Config config = config();
+        config.compactAfter = 50;
+        cluster = new Cluster(3,config);
+        QuorumNode leader = cluster.nodes.get(cluster.leader());
+        List<String> errors = Collections.synchronizedList(new ArrayList<>());
+        ArrayList<Thread> threads = new ArrayList<>();
+        for(int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for(int i = 0; i < 25; i++) {
+                    try {
+                        write(leader);
+                    } catch (PartitionedException | AssertionError e) {
+                        errors.add(e.getMessage());
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(),errors.isEmpty());
+        waitFor(() -> cluster.applied.values().stream().allMatch(stamps -> stamps.size() == 200),5000);
+        List<Integer> expected = new ArrayList<>(cluster.applied.get(1));
+        for(int i = 1; i < expected.size(); i++) {
+            assertTrue(expected.get(i) > expected.get(i - 1)); //Stamps increase in log order
+        }
+        for(List<Integer> stamps : cluster.applied.values()) {
+            assertEquals(expected,stamps);
+        }
+        for(QuorumNode node : cluster.nodes.values()) { //Every server holds them, so they are dropped from the logs
+            waitFor(() -> node.getBaseIndex() > 0,5000);
+        }
+        try {
+            cluster.nodes.get(leader == cluster.nodes.get(1) ? 2 : 1).propose(TestQuorumNode::action);
+            fail("Only the leader takes writes");
+        } catch (PartitionedException e) {
+            //Forwarded to the leader by IdServer
+        }
+    }
+
+    @Test
+    public void testSlowReplica() throws Exception {
+        cluster = new Cluster(5,config());
+        int leaderId = cluster.leader();
+        QuorumNode leader = cluster.nodes.get(leaderId);
+        write(leader);
+        int slow = (leaderId == 1) ? 2 : 1;
+        cluster.delays.put(slow,500L);
+        long start = System.currentTimeMillis();
+        for(int i = 0; i < 20; i++) {
+            write(leader);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("20 writes took " + elapsed + "ms",elapsed < 2000); //Waiting for the slow server takes 10s
+        cluster.delays.remove(slow);
+        waitFor(() -> cluster.applied.get(slow).size() == 21,5000); //It catches up
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        cluster = new Cluster(5,config());
+        int oldId = cluster.leader();
+        QuorumNode old = cluster.nodes.get(oldId);
+        ArrayList<Integer> committed = new ArrayList<>();
+        for(int i = 0; i < 20; i++) {
+            committed.add(write(old));
+        }
+        int oldTerm = old.getTerm();
+
+        cluster.down.add(oldId);
+        int[] lost = new int[1];
+        try { //A minority can not commit
+            old.propose(s -> {
+                lost[0] = s;
+                return action(s);
+            });
+            fail("Committed without a majority");
+        } catch (PartitionedException e) {
+            //Timed out, or the old leader stepped down
+        }
+        int newId = cluster.leader();
+        QuorumNode leader = cluster.nodes.get(newId);
+        assertFalse(newId == oldId);
+        assertTrue(leader.getTerm() > oldTerm);
+        for(int i = 0; i < 20; i++) {
+            committed.add(write(leader));
+        }
+
+        cluster.down.remove(oldId);
+        waitFor(() -> !old.isLeader() && old.getLeaderId() == newId,5000);
+        waitFor(() -> cluster.applied.values().stream().allMatch(stamps -> stamps.size() == 40),5000);
+        for(List<Integer> stamps : cluster.applied.values()) { //The old leader's write was dropped from its log
+            assertEquals(committed,stamps);
+        }
+        ArrayList<Integer> log = new ArrayList<>();
+        for(Action action : old.getActions(1)) {
+            log.add(action.getStamp());
+        }
+        assertEquals(committed,log);
+        assertTrue(lost[0] > 0);
+    }
+
+    @Test
+    public void testLogFile() throws Exception {
+        File dir = Files.createTempDirectory("quorumlog").toFile();
+        File file = new File(dir,"quorum.log");
+        QuorumLog log = new QuorumLog(file);
+        assertEquals(0,log.load().entries.size());
+        log.saveTerm(3,2);
+        ArrayList<QuorumNode.Entry> entries = new ArrayList<>();
+        for(int i = 1; i <= 5; i++) {
+            entries.add(new QuorumNode.Entry(3,(i == 1) ? null : action(i)));
+        }
+        log.append(1,entries);
+        log.append(4,Collections.singletonList(new QuorumNode.Entry(4,action(9)))); //Replaces entries 4 and 5
+        log.close();
+        try(FileOutputStream out = new FileOutputStream(file,true)) {
+            out.write(new byte[] {1,2,3,4,5,6,7,8,9}); //Torn by a crash
+        }
+
+        log = new QuorumLog(file);
+        QuorumNode.Saved saved = log.load();
+        assertEquals(3,saved.term);
+        assertEquals(2,saved.votedFor);
+        assertEquals(4,saved.entries.size());
+        assertNull(saved.entries.get(0).action);
+        assertEquals(3,saved.entries.get(2).action.getStamp());
+        assertEquals(4,saved.entries.get(3).term);
+        assertEquals(9,saved.entries.get(3).action.getStamp());
+        assertEquals("user9",saved.entries.get(3).action.getUser().getName());
+
+        log.compact(2,3,saved.entries.subList(2,4));
+        log.append(5,Collections.singletonList(new QuorumNode.Entry(4,action(10))));
+        log.close();
+        saved = new QuorumLog(file).load();
+        assertEquals(3,saved.term);
+        assertEquals(2,saved.baseIndex);
+        assertEquals(3,saved.baseTerm);
+        assertEquals(3,saved.entries.size());
+        assertEquals(10,saved.entries.get(2).action.getStamp());
+    }
+}
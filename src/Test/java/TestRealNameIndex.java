@@ -0,0 +1,72 @@
+import Identity.Database.HeapUserStore;
+import Identity.Database.RealNameIndex;
+import Identity.Database.UserRecord;
+import Identity.Database.UserStore;
+import Identity.Server.User;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class TestRealNameIndex {
+
+    private UserStore store = new HeapUserStore();
+    private RealNameIndex index = new RealNameIndex(id -> store.getById(id.toString()));
+
+    private UserRecord add(String name, String realname) {
+        UserRecord user = new UserRecord(new User(UUID.randomUUID().toString(),name,realname,null,"127.0.0.1"));
+        store.add(user);
+        index.add(user);
+        return user;
+    }
+
+    private List<String> find(String query) {
+        ArrayList<String> names = new ArrayList<>();
+        for(UserRecord user : index.search(query,100)) {
+            names.add(user.getName());
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    @Test
+    public void testWordsAndPrefixes() {
+        add("jose","José O'Brien");
+        add("john","John Smith");
+        add("johnny","Johnny  Smithers");
+        add("jane","Jane Smith-Jones");
+        add("nobody",null);
+
+        assertEquals(Collections.singletonList("jose"),find("jose"));
+        assertEquals(Collections.singletonList("jose"),find("o'brien"));
+        assertEquals(Collections.singletonList("jose"),find("bri*"));
+        assertEquals(Arrays.asList("jane","john"),find("smith"));
+        assertEquals(Arrays.asList("jane","john","johnny"),find("smith*"));
+        assertEquals(Arrays.asList("john","johnny"),find("joh* smith*"));
+        assertEquals(Collections.singletonList("john"),find("john AND smith"));
+        assertEquals(Collections.singletonList("jane"),find("smith jones"));
+        assertTrue(find("smith zed").isEmpty());
+        assertTrue(find("").isEmpty());
+        assertEquals(2,index.search("smith*",2).size());
+    }
+
+    @Test
+    public void testRemove() {
+        UserRecord john = add("john","John Smith");
+        add("jane","Jane Smith");
+        index.remove(john);
+        store.remove(john);
+        assertEquals(Collections.singletonList("jane"),find("smith"));
+        assertTrue(find("john").isEmpty());
+
+        UserRecord jane = store.getByName("jane");
+        store.remove(jane); //Removed from the store first, the index never returns a user that is not stored
+        assertTrue(find("jane").isEmpty());
+    }
+}
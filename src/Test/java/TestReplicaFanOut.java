@@ -0,0 +1,77 @@
+import Identity.Server.IdentityServerClusterInterface;
+import Identity.Server.ReplicaFanOut;
+import Identity.Server.ServerInfo;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Checks that vote and commit rounds call every server at once, give up on slow servers at the deadline,
+ * and still make the calls to one server in order
+ */
+public class TestReplicaFanOut {
+
+    /**
+     * A server that answers getLastSynchronizedTime with its port after a delay, and records the calls it answered
+     */
+    private static ServerInfo server(int port, long delayMillis, List<Integer> answered) {
+        IdentityServerClusterInterface remObj = (IdentityServerClusterInterface) Proxy.newProxyInstance(
+                IdentityServerClusterInterface.class.getClassLoader(),new Class<?>[] {IdentityServerClusterInterface.class},
+                (proxy,method,args) -> {
+                    Thread.sleep(delayMillis);
+                    answered.add(port);
+                    return port;
+                });
+        return new ServerInfo("127.0.0.1",port,remObj);
+    }
+
+    @Test
+    public void testParallel() {
+        List<Integer> answered = Collections.synchronizedList(new ArrayList<>());
+        List<ServerInfo> servers = new ArrayList<>();
+        for(int port = 1; port <= 5; port++) {
+            servers.add(server(port,200,answered));
+        }
+        ReplicaFanOut fanOut = new ReplicaFanOut(true);
+        long start = System.currentTimeMillis();
+        List<Integer> answers = fanOut.call(servers,IdentityServerClusterInterface::getLastSynchronizedTime,5000);
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals(Arrays.asList(1,2,3,4,5),answers);
+        assertTrue("Round took " + elapsed + "ms",elapsed < 700); //One at a time would take 1000ms
+
+        answers = new ReplicaFanOut(false).call(servers,IdentityServerClusterInterface::getLastSynchronizedTime,5000);
+        assertEquals(Arrays.asList(1,2,3,4,5),answers);
+    }
+
+    @Test
+    public void testDeadline() throws InterruptedException {
+        List<Integer> answered = Collections.synchronizedList(new ArrayList<>());
+        ServerInfo slow = server(1,1000,answered);
+        List<ServerInfo> servers = Arrays.asList(slow,server(2,0,answered),new ServerInfo("127.0.0.1",3));
+        ReplicaFanOut fanOut = new ReplicaFanOut(true);
+        long start = System.currentTimeMillis();
+        List<Integer> answers = fanOut.call(servers,IdentityServerClusterInterface::getLastSynchronizedTime,200);
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Round took " + elapsed + "ms",elapsed < 800);
+        assertNull(answers.get(0));                 //Too slow
+        assertEquals(2,(int) answers.get(1));
+        assertNull(answers.get(2));                 //Not connected
+
+        //The late call is still made, and the next call to the same server waits for it
+        answers = fanOut.call(Collections.singletonList(slow),server -> {
+            answered.add(-1);
+            return 0;
+        },5000);
+        assertEquals(0,(int) answers.get(0));
+        assertEquals(Arrays.asList(2,1,-1),answered);
+    }
+}
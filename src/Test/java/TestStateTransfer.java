@@ -0,0 +1,109 @@
+import Identity.Database.DatabaseConfig;
+import Identity.Database.DatabaseManager;
+import Identity.Database.MemoryEngine;
+import Identity.Server.StateTransfer;
+import Identity.Server.StateTransferServer;
+import Identity.Server.User;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Date;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
+
+/**
+ * Checks that a server copying another server's users over the side channel ends up with the same users,
+ * in memory and in its storage engine. The side channel uses TLS with the keystores in Security, like RMI.
+ */
+public class TestStateTransfer {
+
+    @BeforeClass
+    public static void setUpKeystores() {
+        System.setProperty("javax.net.ssl.keyStore","Security/Server_Keystore");
+        System.setProperty("javax.net.ssl.keyStorePassword","test123");
+        System.setProperty("javax.net.ssl.trustStore","Security/Client_Truststore");
+    }
+
+    private static DatabaseConfig config() {
+        DatabaseConfig config = new DatabaseConfig();
+        config.snapshotInterval = 0;
+        return config;
+    }
+
+    private static User user(int i, String name, int stamp) {
+        User user = new User(String.format("00000000-0000-0000-0000-%012d",i),name,"Real Name " + i,"ABC","127.0.0.1");
+        user.setLstamp(stamp);
+        user.setDate(new Date(1000000 + i));
+        return user;
+    }
+
+    @Test
+    public void testTransfer() throws IOException {
+        DatabaseManager source = new DatabaseManager(MemoryEngine.urlPrefix,config());
+        for(int i = 0; i < 1000; i++) {
+            source.createUser(user(i,"user" + i,i + 1));
+        }
+        source.changeUserName("user1","renamed","ABC",1001);
+        source.deleteUser("user2","ABC",1002);
+
+        File dbFile = File.createTempFile("identity-transfer",".db");
+        dbFile.delete();
+        DatabaseManager replica = new DatabaseManager("jdbc:sqlite:" + dbFile.getPath(),config());
+        replica.setUp();
+        replica.createUser(user(0,"user0",1));              //Already the same
+        replica.createUser(user(1,"user1",2));              //Renamed since
+        replica.createUser(user(2,"user2",3));              //Deleted since
+        replica.createUser(user(5000,"gone",4));            //Never made it to the source
+
+        StateTransferServer server = new StateTransferServer(source,"127.0.0.1");
+        StateTransfer transfer = server.offer();
+        assertEquals(1002,transfer.getStamp());
+        try(Socket plain = new Socket("127.0.0.1",transfer.getPort())) { //Without TLS the token is never read
+            plain.setSoTimeout(5000);
+            new DataOutputStream(plain.getOutputStream()).writeLong(transfer.getToken());
+            while(plain.getInputStream().read() >= 0) {
+                //Handshake alert, then closed
+            }
+        } catch (IOException e) {
+            //Reset by the server
+        }
+        File file = File.createTempFile("identity-transfer",".snapshot");
+        transfer.fetch("127.0.0.1",file);
+        assertEquals(transfer.getLength(),file.length());
+        assertEquals(transfer.getLength(),server.getBytesSent());
+        File again = File.createTempFile("identity-transfer",".snapshot");
+        try {
+            transfer.fetch("127.0.0.1",again); //Each snapshot is sent once
+            fail("The snapshot was sent twice");
+        } catch (IOException e) {
+            //Expected
+        } finally {
+            again.delete();
+        }
+        assertEquals(1002,replica.installSnapshot(file));
+        file.delete();
+        server.close();
+
+        assertEquals(999,replica.getUsers().size());
+        assertEquals(user(1,null,0).getUuid(),replica.getUserByName("renamed").getUuid());
+        assertNull(replica.getUserByName("user1"));
+        assertNull(replica.getUserByName("user2"));
+        assertNull(replica.getUserByName("gone"));
+        assertEquals(1000999,replica.getUserByName("user999").getDate().getTime());
+        assertTrue(replica.searchRealNames("name 999",10).size() == 1);
+
+        replica.updateDatabase(); //The storage engine gets the same users
+        DatabaseManager restarted = new DatabaseManager("jdbc:sqlite:" + dbFile.getPath(),config());
+        assertEquals(999,restarted.getUsers().size());
+        assertEquals(user(1,null,0).getUuid(),restarted.getUserByName("renamed").getUuid());
+        assertNull(restarted.getUserByName("gone"));
+        dbFile.delete();
+    }
+}
@@ -0,0 +1,130 @@
+import Identity.Database.DatabaseChange;
+import Identity.Database.DatabaseConfig;
+import Identity.Database.LogEngine;
+import Identity.Database.MemoryEngine;
+import Identity.Database.StorageEngine;
+import Identity.Server.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Checks that every storage engine behaves the same way
+ */
+@RunWith(Parameterized.class)
+public class TestStorageEngine {
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> engines() {
+        return Arrays.asList(new Object[][] {{"sqlite"},{"memory"},{"log"}});
+    }
+
+    private String engine;
+    private File file;
+    private StorageEngine db;
+
+    public TestStorageEngine(String engine) {
+        this.engine = engine;
+    }
+
+    @Before
+    public void open() throws IOException {
+        file = File.createTempFile("identity-engine",".db");
+        file.delete();
+        String url = engine.equals("memory") ? MemoryEngine.urlPrefix
+                : engine.equals("log") ? LogEngine.urlPrefix + file.getPath() : "jdbc:sqlite:" + file.getPath();
+        db = StorageEngine.open(url,new DatabaseConfig());
+        db.setUp();
+    }
+
+    @After
+    public void close() {
+        db.close();
+        File[] segments = file.listFiles();
+        if(segments != null) {
+            for(File segment : segments) {
+                segment.delete();
+            }
+        }
+        file.delete();
+    }
+
+    private static User user(String uuid, String name, int stamp) {
+        User user = new User(uuid,name,"Real Name","ABC","127.0.0.1");
+        user.setLstamp(stamp);
+        user.setDate(new Date(1000000));
+        return user;
+    }
+
+    @Test
+    public void testUsers() {
+        String a = "00000000-0000-0000-0000-00000000000a", b = "00000000-0000-0000-0000-00000000000b";
+        assertEquals(1,db.createNewUser(user(a,"alice",1)));
+        assertEquals(-2,db.createNewUser(user(b,"alice",2))); //Name taken
+        assertEquals(1,db.createNewUser(user(b,"bob",3)));
+        assertEquals(b,db.getUserByName("bob").getUuid());
+        assertEquals("alice",db.getUserByUUID(a).getName());
+        assertEquals("Real Name",db.getUserByUUID(a).getRealname());
+        assertEquals(1000000,db.getUserByUUID(a).getDate().getTime());
+
+        assertEquals(1,db.changeUserName(a,"carol",4));
+        assertNull(db.getUserByName("alice"));
+        assertEquals(a,db.getUserByName("carol").getUuid());
+        assertEquals(4,db.getUserByUUID(a).getLstamp());
+
+        assertEquals(1,db.deleteUserByUUID(b,5));
+        assertNull(db.getUserByName("bob"));
+        assertNull(db.getUserByUUID(b));
+        assertEquals(1,db.getUsers().size());
+        assertEquals(5,db.getLogicalStamp());
+
+        ArrayList<String> deleted = new ArrayList<>();
+        ArrayList<User> changed = db.getUsersChangedSince(3,deleted);
+        assertEquals(Arrays.asList(b),deleted);
+        assertEquals(1,changed.size());
+        assertEquals("carol",changed.get(0).getName());
+
+        assertEquals(0,db.purgeTombstones(4));
+        assertEquals(1,db.purgeTombstones(5));
+        deleted.clear();
+        db.getUsersChangedSince(0,deleted);
+        assertTrue(deleted.isEmpty());
+    }
+
+    @Test
+    public void testApplyChanges() {
+        String a = "00000000-0000-0000-0000-00000000000a", b = "00000000-0000-0000-0000-00000000000b";
+        assertEquals(2,db.applyChanges(Arrays.asList(new DatabaseChange(user(a,"alice",1)),new DatabaseChange(user(b,"bob",2)))));
+        ArrayList<DatabaseChange> swap = new ArrayList<>(); //Release a name, take it, then take the other
+        swap.add(new DatabaseChange(a,null,3));
+        swap.add(new DatabaseChange(b,"alice",4));
+        swap.add(new DatabaseChange(a,"bob",5));
+        assertEquals(3,db.applyChanges(swap));
+        assertEquals(b,db.getUserByName("alice").getUuid());
+        assertEquals(a,db.getUserByName("bob").getUuid());
+        assertEquals(1,db.applyChanges(Arrays.asList(new DatabaseChange(a,6))));
+        assertNull(db.getUserByName("bob"));
+        assertEquals(6,db.getLogicalStamp());
+    }
+
+    @Test
+    public void testServerInfo() {
+        assertEquals(1,db.setServerID(7));
+        assertEquals(7,db.getServerID());
+        assertEquals(1,db.setCommitState(2));
+        assertEquals(2,db.getCommitState());
+    }
+}
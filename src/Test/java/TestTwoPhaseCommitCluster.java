@@ -0,0 +1,106 @@
+import Identity.Database.Database;
+import Identity.Server.IdServer;
+import Identity.Server.IdentityServerInterface;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.rmi.registry.LocateRegistry;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.function.BooleanSupplier;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNotNull;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
+
+/**
+ * Runs a coordinator and two replicas in this process, replicating writes by two phase commit, and checks that the
+ * rounds the coordinator commits move the horizons the servers clean up to. Needs the Security directory and
+ * KnownServers.txt in the working directory, and nothing else running on the ports in it.
+ */
+public class TestTwoPhaseCommitCluster {
+    private static final int[] ports = {5156,5157,5158};   //Every server in KnownServers.txt, the first is the coordinator
+    private static final int replicaPort = 5157;
+    private static File dir;
+    private static IdentityServerInterface coordinator;
+
+    @BeforeClass
+    public static void startCluster() throws Exception {
+        System.setProperty("javax.net.ssl.keyStore","Security/Server_Keystore");
+        System.setProperty("javax.net.ssl.keyStorePassword","test123");
+        System.setProperty("javax.net.ssl.trustStore","Security/Client_Truststore");
+        System.setProperty("java.rmi.server.hostname","127.0.0.1");
+        dir = Files.createTempDirectory("twophasecommit").toFile();
+        for(int port : ports) {
+            start(port);
+        }
+        coordinator = (IdentityServerInterface) LocateRegistry.getRegistry("127.0.0.1",ports[0]).lookup("IdServer");
+    }
+
+    private static void start(int port) {
+        File db = new File(dir,"identity-" + port + ".db");
+        Database setUp = new Database("jdbc:sqlite:" + db.getPath());
+        setUp.setUp();
+        setUp.close();
+        new IdServer(new String[] {"--numport",String.valueOf(port),"--dbfile",db.getPath(),"--snapshotinterval","0",
+                "--actionlogsegment","4096","--actionlogretention","200","--tombstonepurge","200"});
+    }
+
+    private static int segments(int port) {
+        File[] files = new File(dir,"identity-" + port + ".db.actions").listFiles((d, name) -> name.endsWith(".alog"));
+        return (files == null) ? 0 : files.length;
+    }
+
+    /**
+     * @return the number of users stored by a server's database with the deleted flag given
+     */
+    private static int stored(int port, int deleted) {
+        try(Connection conn = DriverManager.getConnection("jdbc:sqlite:" + new File(dir,"identity-" + port + ".db").getPath());
+            Statement stmt = conn.createStatement()) {
+            return stmt.executeQuery("select count(*) from users where deleted = " + deleted + ";").getInt(1);
+        } catch (SQLException e) {
+            return -1;
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition, long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        while(!condition.getAsBoolean()) {
+            if(System.currentTimeMillis() > deadline) fail("Timed out");
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @Test
+    public void testReplicaTruncatesActionLog() throws Exception {
+        for(int i = 0; i < 200; i++) {
+            assertNotNull(coordinator.create("retained" + i,"Real Name","password"));
+        }
+        assertTrue(segments(replicaPort) > 1);
+        waitFor(() -> segments(replicaPort) == 1,20000); //Once stored, and the coordinator has committed the rounds
+    }
+
+    @Test
+    public void testCoordinatorPurgesTombstones() throws Exception {
+        int live = stored(ports[0],0);
+        for(int i = 0; i < 20; i++) {
+            assertNotNull(coordinator.create("purged" + i,"Real Name","password"));
+        }
+        waitFor(() -> stored(ports[0],0) == live + 20,20000);
+        for(int i = 0; i < 20; i++) {
+            assertEquals(1,coordinator.delete("purged" + i,"password"));
+        }
+        waitFor(() -> stored(ports[0],0) == live,20000);        //The deletes are stored as tombstones
+        waitFor(() -> stored(ports[0],1) == 0,20000);           //Every server has applied them, so they are purged
+    }
+}
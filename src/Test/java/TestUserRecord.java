@@ -0,0 +1,109 @@
+import Identity.Client.SHA2;
+import Identity.Database.HeapUserStore;
+import Identity.Database.UserRecord;
+import Identity.Database.UserStore;
+import Identity.Server.User;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+public class TestUserRecord {
+
+    @Test
+    public void testPasswordHashRoundTrip() {
+        String single = SHA2.trySHA("password");
+        String[] hashes = {single, SHA2.trySHA(single), "ABC", "abc", "null", "", "päss"};
+        for(String hash : hashes) {
+            UserRecord record = new UserRecord(new User(UUID.randomUUID().toString(),"alice","Alice",hash,"127.0.0.1"));
+            assertEquals(hash,record.getPassHash());
+            assertEquals(hash,record.toUser().getPassHash());
+            assertTrue(record.passwordMatches(hash));
+        }
+        UserRecord record = new UserRecord(new User(UUID.randomUUID().toString(),"alice","Alice",single,"127.0.0.1"));
+        assertFalse(record.passwordMatches(SHA2.trySHA("wrong")));
+        assertFalse(record.passwordMatches(null));
+        assertFalse(record.passwordMatches(single.toLowerCase()));
+        assertTrue(new UserRecord(new User(UUID.randomUUID().toString(),"bob","Bob",null,null)).passwordMatches("anything"));
+        assertTrue(new UserRecord(new User(UUID.randomUUID().toString(),"bob","Bob","null",null)).passwordMatches("anything"));
+    }
+
+    @Test
+    public void testToUserKeepsEveryValue() {
+        User user = new User(UUID.randomUUID().toString(),"alice","Alice",SHA2.trySHA("password"),"10.0.0.1");
+        user.setDate(new Date(1500000000000L));
+        user.setLstamp(42);
+        User copy = new UserRecord(user).toUser();
+        assertEquals(user.getUuid(),copy.getUuid());
+        assertEquals(user.getName(),copy.getName());
+        assertEquals(user.getRealname(),copy.getRealname());
+        assertEquals(user.getPassHash(),copy.getPassHash());
+        assertEquals(user.getIpAddress(),copy.getIpAddress());
+        assertEquals(user.getDate(),copy.getDate());
+        assertEquals(42,copy.getLstamp());
+
+        User other = new User("not-a-standard-uuid","bob","Bob",null,new String("10.0.0.1"));
+        UserRecord record = new UserRecord(other);
+        assertEquals("not-a-standard-uuid",record.getUuid());
+        assertNull(record.toUser().getDate());
+        assertSame(new UserRecord(user).getIpAddress(),record.getIpAddress()); //Addresses are shared
+    }
+
+    /**
+     * Reports the heap used per user by the user store, against the full User objects it used to keep
+     */
+    @Test
+    public void testHeapFootprint() {
+        int numUsers = 200000;
+        String[] names = new String[numUsers];
+        String[] realnames = new String[numUsers];
+        String hash = SHA2.trySHA("password");
+        for(int i = 0; i < numUsers; i++) { //Names are shared by both forms, so they are made up front
+            names[i] = "user" + i;
+            realnames[i] = "Real Name " + i;
+        }
+
+        //Every hash is its own copy, like one received from a client
+        long before = usedMemory();
+        ConcurrentHashMap<String,User> byId = new ConcurrentHashMap<>();
+        ConcurrentHashMap<String,User> byName = new ConcurrentHashMap<>();
+        for(int i = 0; i < numUsers; i++) {
+            User user = new User(UUID.randomUUID().toString(),names[i],realnames[i],new String(hash.toCharArray()),"192.168.0." + (i % 256));
+            user.setDate(new Date());
+            byId.put(user.getUuid(),user);
+            byName.put(user.getName(),user);
+        }
+        long userBytes = (usedMemory() - before) / numUsers;
+        byId = null;
+        byName = null;
+
+        before = usedMemory();
+        UserStore store = new HeapUserStore();
+        for(int i = 0; i < numUsers; i++) {
+            User user = new User(UUID.randomUUID().toString(),names[i],realnames[i],new String(hash.toCharArray()),"192.168.0." + (i % 256));
+            user.setDate(new Date());
+            store.add(new UserRecord(user));
+        }
+        long recordBytes = (usedMemory() - before) / numUsers;
+        assertEquals(numUsers,store.size());
+
+        assertTrue("Heap per user, not counting names: User " + userBytes + " bytes, UserRecord " + recordBytes + " bytes",
+                recordBytes < userBytes);
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,155 @@
+import Identity.Database.HeapUserStore;
+import Identity.Database.OffHeapUserStore;
+import Identity.Database.UserRecord;
+import Identity.Database.UserStore;
+import Identity.Server.User;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.function.Supplier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+@RunWith(Parameterized.class)
+public class TestUserStore {
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> stores() {
+        return Arrays.asList(new Object[][] {
+                {"heap", (Supplier<UserStore>) HeapUserStore::new},
+                {"off heap", (Supplier<UserStore>) () -> new OffHeapUserStore(4096,16)} //Small, so segments and indexes fill up
+        });
+    }
+
+    private Supplier<UserStore> stores;
+
+    public TestUserStore(String name, Supplier<UserStore> stores) {
+        this.stores = stores;
+    }
+
+    @Test
+    public void testRenameReplacesUser() {
+        UserStore store = stores.get();
+        UserRecord user = new UserRecord(new User(UUID.randomUUID().toString(),"alice","Alice"));
+        store.add(user);
+
+        UserRecord renamed = user.renamed("bob",1);
+        store.replace(user,renamed);
+
+        assertNull(store.getByName("alice"));
+        assertEquals("bob",store.getByName("bob").getName());
+        assertEquals("bob",store.getById(user.getUuid()).getName());
+        assertEquals("alice",user.getName()); //The old copy is never modified
+        assertFalse(store.replace(user,user.renamed("carol",2))); //user is no longer the stored copy
+        assertEquals(1,store.size());
+    }
+
+    @Test
+    public void testNameAndUuidAreUnique() {
+        UserStore store = stores.get();
+        UserRecord user = new UserRecord(new User(UUID.randomUUID().toString(),"alice","Alice"));
+        assertTrue(store.add(user));
+        assertFalse(store.add(new UserRecord(new User(UUID.randomUUID().toString(),"alice","Other Alice"))));
+        assertFalse(store.add(new UserRecord(new User(user.getUuid(),"carol","Carol"))));
+        assertNull(store.getByName("carol"));
+        assertEquals(1,store.size());
+    }
+
+    @Test
+    public void testRenameOntoTakenName() {
+        UserStore store = stores.get();
+        UserRecord alice = new UserRecord(new User(UUID.randomUUID().toString(),"alice","Alice"));
+        UserRecord bob = new UserRecord(new User(UUID.randomUUID().toString(),"bob","Bob"));
+        store.add(alice);
+        store.add(bob);
+
+        UserRecord renamed = alice.renamed("bob",1);
+        assertFalse(store.replace(alice,renamed));
+        assertEquals(alice.getUuid(),store.getByName("alice").getUuid());
+        assertEquals(bob.getUuid(),store.getByName("bob").getUuid());
+    }
+
+    @Test
+    public void testRemove() {
+        UserStore store = stores.get();
+        UserRecord user = new UserRecord(new User(UUID.randomUUID().toString(),"alice","Alice"));
+        store.add(user);
+        store.remove(user);
+        assertNull(store.getByName("alice"));
+        assertNull(store.getById(user.getUuid()));
+        assertEquals(0,store.size());
+    }
+
+    /**
+     * A reader that sees the new name must never afterwards see the old name
+     */
+    @Test
+    public void testRenameIsAtomicForReaders() throws InterruptedException {
+        UserStore store = stores.get();
+        String uuid = UUID.randomUUID().toString();
+        store.add(new UserRecord(new User(uuid,"name0","Real")));
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger violations = new AtomicInteger();
+
+        Thread reader = new Thread(() -> {
+            int highestSeen = 0;
+            while(running.get()) {
+                UserRecord byId = store.getById(uuid);
+                int current = Integer.parseInt(byId.getName().substring(4));
+                if(current < highestSeen) violations.incrementAndGet();
+                highestSeen = current;
+                if(store.getByName("name" + (current - 1)) != null) violations.incrementAndGet();
+            }
+        });
+        reader.start();
+        for(int i = 1; i < 20000; i++) {
+            UserRecord old = store.getById(uuid);
+            UserRecord renamed = old.renamed("name" + i,i);
+            store.replace(old,renamed);
+        }
+        running.set(false);
+        reader.join();
+        assertEquals(0,violations.get());
+    }
+
+    @Test
+    public void testManyUsersWithRenamesAndDeletes() {
+        UserStore store = stores.get();
+        int numUsers = 5000;
+        UserRecord[] users = new UserRecord[numUsers];
+        for(int i = 0; i < numUsers; i++) {
+            users[i] = new UserRecord(new User(UUID.randomUUID().toString(),"user" + i,"Real Name " + i,"ABC" + i,"10.0.0." + (i % 8)));
+            assertTrue(store.add(users[i]));
+        }
+        for(int round = 1; round <= 3; round++) { //Enough dead records that segments get compacted
+            for(int i = 0; i < numUsers; i += 2) {
+                UserRecord renamed = users[i].renamed("user" + i + "-" + round,round);
+                assertTrue(store.replace(users[i],renamed));
+                users[i] = renamed;
+            }
+        }
+        for(int i = 1; i < numUsers; i += 4) {
+            store.remove(users[i]);
+            users[i] = null;
+        }
+        assertEquals(numUsers - numUsers / 4,store.size());
+        assertEquals(store.size(),store.values().size());
+        for(int i = 0; i < numUsers; i++) {
+            if(users[i] == null) {
+                assertNull(store.getByName("user" + i));
+                continue;
+            }
+            UserRecord byName = store.getByName(users[i].getName());
+            assertEquals(users[i].getUuid(),byName.getUuid());
+            assertEquals("ABC" + i,byName.getPassHash());
+            assertEquals(users[i].getName(),store.getById(users[i].getUuid()).getName());
+            if(i % 2 == 0) assertNull(store.getByName("user" + i));
+        }
+    }
+}
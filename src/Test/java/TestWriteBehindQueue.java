@@ -0,0 +1,108 @@
+import Identity.Database.DatabaseChange;
+import Identity.Database.WriteBehindQueue;
+import Identity.Server.User;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TestWriteBehindQueue {
+
+    @Test
+    public void testFullQueueBlocksUntilDrained() throws InterruptedException {
+        AtomicInteger earlyDumps = new AtomicInteger();
+        WriteBehindQueue queue = new WriteBehindQueue(4,WriteBehindQueue.FullPolicy.BLOCK,earlyDumps::incrementAndGet);
+        for(int i = 0; i < 4; i++) queue.add(new DatabaseChange("uuid" + i,i));
+        assertTrue(earlyDumps.get() > 0);
+
+        Thread writer = new Thread(() -> queue.add(new DatabaseChange("uuid4",4)));
+        writer.start();
+        Thread.sleep(100);
+        assertTrue(writer.isAlive()); //Still blocked on the full queue
+
+        ArrayList<DatabaseChange> drained = new ArrayList<>();
+        assertEquals(4,queue.drainTo(drained));
+        writer.join(1000);
+        assertFalse(writer.isAlive());
+        assertEquals(1,queue.size());
+        assertEquals("uuid0",drained.get(0).getUuid());
+
+        WriteBehindQueue.Metrics metrics = queue.getMetrics();
+        assertEquals(5,metrics.enqueued);
+        assertEquals(4,metrics.drained);
+        assertTrue(metrics.maxEnqueueWaitMillis > 0);
+    }
+
+    @Test
+    public void testInterruptedWriterWaitsWithoutSpinning() throws InterruptedException {
+        WriteBehindQueue queue = new WriteBehindQueue(4,WriteBehindQueue.FullPolicy.BLOCK,() -> {});
+        for(int i = 0; i < 4; i++) queue.add(new DatabaseChange("uuid" + i,i));
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long[] cpuNanos = new long[1];
+        boolean[] stillInterrupted = new boolean[1];
+        Thread writer = new Thread(() -> {
+            long start = threads.getCurrentThreadCpuTime();
+            queue.add(new DatabaseChange("uuid4",4));
+            cpuNanos[0] = threads.getCurrentThreadCpuTime() - start;
+            stillInterrupted[0] = Thread.currentThread().isInterrupted();
+        });
+        writer.start();
+        Thread.sleep(50);
+        writer.interrupt();
+        Thread.sleep(300);
+        assertTrue(writer.isAlive()); //The change is kept, the writer still waits for room
+
+        queue.drainTo(new ArrayList<>());
+        writer.join(1000);
+        assertFalse(writer.isAlive());
+        assertEquals(1,queue.size());
+        assertTrue(stillInterrupted[0]); //Given back once the change is queued
+        assertTrue("Writer used " + cpuNanos[0] / 1000000 + "ms of cpu while blocked",cpuNanos[0] < 150000000L);
+    }
+
+    @Test
+    public void testCoalesceKeepsFinalState() {
+        User churn = new User("uuid-churn","churn","Churn");
+        User renamed = new User("uuid-renamed","first","Renamed");
+        ArrayList<DatabaseChange> changes = new ArrayList<>();
+        changes.add(new DatabaseChange(churn));
+        changes.add(new DatabaseChange(renamed));
+        changes.add(new DatabaseChange("uuid-churn","churn2",3));
+        changes.add(new DatabaseChange("uuid-renamed","second",4));
+        changes.add(new DatabaseChange("uuid-churn","churn3",5));
+        changes.add(new DatabaseChange("uuid-renamed","third",6));
+        changes.add(new DatabaseChange("uuid-churn",7));
+        changes.add(new DatabaseChange("uuid-existing","moved",8));
+        changes.add(new DatabaseChange("uuid-existing",9));
+
+        List<DatabaseChange> coalesced = DatabaseChange.coalesce(changes);
+        assertEquals(2,coalesced.size());
+        assertEquals(DatabaseChange.Type.CREATE,coalesced.get(0).getType());
+        assertEquals("third",coalesced.get(0).getUser().getName());
+        assertEquals(6,coalesced.get(0).getUser().getLstamp());
+        assertEquals("first",renamed.getName()); //The in memory user is not modified
+        assertEquals(DatabaseChange.Type.DELETE,coalesced.get(1).getType());
+        assertEquals(9,coalesced.get(1).getLstamp());
+    }
+
+    @Test
+    public void testThrottleDelayGrowsWithDepth() {
+        WriteBehindQueue queue = new WriteBehindQueue(10,WriteBehindQueue.FullPolicy.THROTTLE,null);
+        assertEquals(0,queue.admissionDelayMillis());
+        for(int i = 0; i < 7; i++) queue.add(new DatabaseChange("uuid" + i,i));
+        long halfWay = queue.admissionDelayMillis();
+        for(int i = 7; i < 10; i++) queue.add(new DatabaseChange("uuid" + i,i));
+        assertTrue(halfWay > 0);
+        assertTrue(queue.admissionDelayMillis() > halfWay);
+
+        WriteBehindQueue blocking = new WriteBehindQueue(10,WriteBehindQueue.FullPolicy.BLOCK,null);
+        for(int i = 0; i < 10; i++) blocking.add(new DatabaseChange("uuid" + i,i));
+        assertEquals(0,blocking.admissionDelayMillis());
+    }
+}
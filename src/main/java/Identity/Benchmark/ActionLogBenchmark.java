@@ -0,0 +1,78 @@
+package Identity.Benchmark;
+
+import Identity.Server.Action;
+import Identity.Server.ActionLog;
+import Identity.Server.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Commit throughput of the action log, forcing to disk before each append returns (sync interval 0) with a growing
+ * number of committing threads, and forcing in the background. Then the time to open the log and read it back.
+ *
+ * java Identity.Benchmark.ActionLogBenchmark [actions per run] [sync intervals in ms, comma separated]
+ */
+public class ActionLogBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int numActions = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        String[] intervals = (args.length > 1 ? args[1] : "0,10").split(",");
+
+        System.out.println("actions per run: " + numActions);
+        System.out.println("sync ms\tthreads\tactions/sec\tforces");
+        for(String interval : intervals) {
+            for(int threads : new int[] {1,4,16}) {
+                run(Long.parseLong(interval),threads,numActions);
+            }
+        }
+    }
+
+    private static void run(long syncInterval, int threads, int numActions) throws Exception {
+        File dir = File.createTempFile("actionlogbenchmark","");
+        dir.delete();
+        ActionLog log = new ActionLog(dir,ActionLog.defaultSegmentSize,syncInterval);
+        AtomicInteger stamp = new AtomicInteger();
+        ArrayList<Thread> committers = new ArrayList<>();
+        long start = System.nanoTime();
+        for(int t = 0; t < threads; t++) {
+            Thread committer = new Thread(() -> {
+                int i;
+                while((i = stamp.incrementAndGet()) <= numActions) {
+                    User user = new User(UUID.randomUUID().toString(),"user" + i,"Real Name " + i,"5E884898DA28047151D0E56F8DC6292773603D0D6AABBDD62A11EF721D1542D8","127.0.0.1");
+                    user.setDate(new Date());
+                    try {
+                        log.append(new Action(i,Action.Type.CREATE,user));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            committer.start();
+            committers.add(committer);
+        }
+        for(Thread committer : committers) {
+            committer.join();
+        }
+        double ms = (System.nanoTime() - start) / 1e6;
+        long forces = log.getSyncCount();
+        log.close();
+        System.out.println(syncInterval + "\t" + threads + "\t" + (long) (numActions / ms * 1000) + "\t\t" + forces);
+
+        if(syncInterval == 0 && threads == 1) {
+            start = System.nanoTime();
+            ActionLog reopened = new ActionLog(dir,ActionLog.defaultSegmentSize,syncInterval);
+            int read = reopened.recoveredActions().size();
+            reopened.close();
+            System.out.println("\treopened and read " + read + " actions in " + (System.nanoTime() - start) / 1000000 + "ms");
+        }
+        for(File segment : dir.listFiles()) {
+            segment.delete();
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,74 @@
+package Identity.Benchmark;
+
+import Identity.Server.Action;
+import Identity.Server.ActionHistory;
+import Identity.Server.HistoryTruncatedException;
+import Identity.Server.User;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Time for a lagging server to get the actions it is missing from a history of retained actions, by how far
+ * behind it is. Compares the ActionHistory ring buffer against the synchronized list scan it replaced.
+ *
+ * java Identity.Benchmark.CatchUpBenchmark [retained actions]
+ */
+public class CatchUpBenchmark {
+    private static final int repeats = 20;
+
+    public static void main(String[] args) throws HistoryTruncatedException {
+        int retained = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        System.gc();
+        long heapBefore = usedHeap();
+        ActionHistory history = new ActionHistory(retained,0);
+        List<Action> list = Collections.synchronizedList(new ArrayList<>());
+        for(int stamp = 1; stamp <= retained; stamp++) {
+            User user = new User(UUID.randomUUID().toString(),"user" + stamp,"Real Name " + stamp,
+                    "5E884898DA28047151D0E56F8DC6292773603D0D6AABBDD62A11EF721D1542D8","127.0.0.1");
+            Action action = new Action(stamp,Action.Type.CREATE,user);
+            history.add(action);
+            list.add(action);
+        }
+        System.gc();
+        System.out.println("retained actions: " + retained + ", heap for the actions: ~" + (usedHeap() - heapBefore) / retained + " bytes each");
+        System.out.println("behind\tactions\tlist scan us\thistory us");
+        for(int behind : new int[] {1,100,10000,retained / 2}) {
+            int since = retained - behind;
+            long start = System.nanoTime();
+            for(int i = 0; i < repeats; i++) {
+                listScan(list,since);
+            }
+            long listUs = (System.nanoTime() - start) / 1000 / repeats;
+            start = System.nanoTime();
+            int found = 0;
+            for(int i = 0; i < repeats; i++) {
+                found = history.since(since).size();
+            }
+            long historyUs = (System.nanoTime() - start) / 1000 / repeats;
+            System.out.println(behind + "\t" + found + "\t" + listUs + "\t\t" + historyUs);
+        }
+    }
+
+    /**
+     * The old IdServer.getActions. It starts at the action the caller already has and leaves out the newest one.
+     */
+    private static ArrayList<Action> listScan(List<Action> actionHistory, int lastSyncTime) {
+        int lastSyncIndex = -1;
+        for(Action action : actionHistory){
+            if(action.getStamp() == lastSyncTime){
+                lastSyncIndex = actionHistory.indexOf(action);
+            }
+        }
+        int lastIndex = actionHistory.size() - 1;
+        return new ArrayList<Action>(actionHistory.subList(lastSyncIndex, lastIndex));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,153 @@
+package Identity.Benchmark;
+
+import Identity.Server.IdServer;
+import Identity.Server.IdentityServerClusterInterface;
+import Identity.Server.PartitionedException;
+import Identity.Server.ServerInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Write latency against the number of servers, with vote requests and commits sent to every server at once
+ * and one server after another. Each server is its own java process on localhost, using the memory engine.
+ * Run from the project directory, the servers use the keystores in Security.
+ *
+ * java Identity.Benchmark.ClusterWriteBenchmark [writes per run] [commit timeout ms]
+ */
+public class ClusterWriteBenchmark {
+    private static final int warmUp = 200;
+
+    public static void main(String[] args) throws Exception {
+        int writes = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        String commitTimeout = args.length > 1 ? args[1] : "3000";
+        System.setProperty("javax.net.ssl.trustStore", "Security/Client_Truststore");
+
+        System.out.println("servers\tfan-out\t\tmean ms\tp50 ms\tp99 ms\tfailed");
+        for(int servers : new int[] {3,5,7,9}) {
+            for(String fanOut : new String[] {"serial","parallel"}) {
+                run(servers,fanOut,commitTimeout,writes);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void run(int servers, String fanOut, String commitTimeout, int writes) throws Exception {
+        Cluster cluster = Cluster.start(servers,"--fanout",fanOut,"--committimeout",commitTimeout);
+        try {
+            long[] latencies = new long[writes];
+            int failed = 0;
+            for(int i = 0; i < warmUp + writes; i++) {
+                long start = System.nanoTime();
+                try {
+                    if(cluster.coordinator.create("user" + i,"Real Name " + i,"password") == null) failed++;
+                } catch (PartitionedException e) {
+                    failed++;
+                }
+                if(i >= warmUp) latencies[i - warmUp] = System.nanoTime() - start;
+            }
+            Arrays.sort(latencies);
+            long total = 0;
+            for(long latency : latencies) total += latency;
+            System.out.printf("%d\t%s\t%.2f\t%.2f\t%.2f\t%d%n",servers,fanOut + (fanOut.length() < 8 ? "\t" : ""),
+                    total / (double) writes / 1e6,latencies[writes / 2] / 1e6,latencies[writes * 99 / 100] / 1e6,failed);
+        } finally {
+            cluster.stop();
+        }
+    }
+
+    /**
+     * Servers on localhost, each in its own java process and working directory, using the memory engine
+     */
+    static class Cluster {
+        private static final int basePort = 6150;
+
+        final IdentityServerClusterInterface coordinator;
+        private final ArrayList<Process> processes;
+
+        private Cluster(IdentityServerClusterInterface coordinator, ArrayList<Process> processes) {
+            this.coordinator = coordinator;
+            this.processes = processes;
+        }
+
+        /**
+         * Starts the servers one at a time, each joining the cluster before the next one starts
+         * @param servers
+         * @param options - command line options for every server
+         * @return the cluster, once every server has joined
+         */
+        static Cluster start(int servers, String... options) throws Exception {
+            File dir = Files.createTempDirectory("clusterwritebenchmark").toFile();
+            try(PrintWriter known = new PrintWriter(new File(dir,"KnownServers.txt"))) {
+                for(int i = 0; i < servers; i++) {
+                    known.println("127.0.0.1 " + (basePort + i));
+                }
+            }
+            Files.createSymbolicLink(new File(dir,"Security").toPath(),new File("Security").getAbsoluteFile().toPath());
+
+            StringBuilder classPath = new StringBuilder(); //The servers run in the temporary directory
+            for(String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+                if(classPath.length() > 0) classPath.append(File.pathSeparator);
+                classPath.append(new File(entry).getAbsolutePath());
+            }
+            ArrayList<Process> processes = new ArrayList<>();
+            IdentityServerClusterInterface coordinator = null;
+            try {
+                for(int i = 0; i < servers; i++) {
+                    ArrayList<String> command = new ArrayList<>(Arrays.asList(new File(System.getProperty("java.home"),"bin/java").getPath(),
+                            "-Xmx256m","-cp",classPath.toString(),IdServer.class.getName(),"--numport",Integer.toString(basePort + i),"--engine","memory"));
+                    command.addAll(Arrays.asList(options));
+                    processes.add(new ProcessBuilder(command).directory(dir).redirectErrorStream(true)
+                            .redirectOutput(new File(dir,"server-" + i + ".log")).start());
+                    if(coordinator == null) coordinator = connect(basePort);
+                    while(joined(coordinator) < i + 1) Thread.sleep(100);
+                }
+            } catch (Exception e) {
+                new Cluster(coordinator,processes).stop();
+                throw e;
+            }
+            return new Cluster(coordinator,processes);
+        }
+
+        void stop() throws InterruptedException {
+            for(Process process : processes) {
+                process.destroy();
+            }
+            for(Process process : processes) {
+                process.waitFor();
+            }
+        }
+
+        /**
+         * The coordinator's live servers start as every server in KnownServers.txt, a server that joined has an id
+         */
+        private static int joined(IdentityServerClusterInterface coordinator) throws RemoteException {
+            int joined = 0;
+            for(ServerInfo server : coordinator.getLiveServers()) {
+                if(server.getServerId() > 0) joined++;
+            }
+            return joined;
+        }
+
+        /**
+         * Waits for a server to bind, and gets its remote object
+         */
+        private static IdentityServerClusterInterface connect(int port) throws InterruptedException, IOException {
+            for(int attempt = 0; ; attempt++) {
+                try {
+                    return (IdentityServerClusterInterface) LocateRegistry.getRegistry("127.0.0.1",port).lookup("IdServer");
+                } catch (RemoteException | NotBoundException e) {
+                    if(attempt == 300) throw new IOException("Server on port " + port + " did not start",e);
+                    Thread.sleep(100);
+                }
+            }
+        }
+    }
+}
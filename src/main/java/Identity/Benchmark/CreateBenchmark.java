@@ -0,0 +1,66 @@
+package Identity.Benchmark;
+
+import Identity.Database.HeapUserStore;
+import Identity.Database.UserRecord;
+import Identity.Database.UserStore;
+import Identity.Server.User;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+/**
+ * Measures user creation throughput against the number of users that already exist.
+ * Compares the reservation index in UserStore with the old check, which scanned every user.
+ *
+ * java Identity.Benchmark.CreateBenchmark [existingUsers...]   (default 10000 1000000 10000000)
+ */
+public class CreateBenchmark {
+
+    private static final int creates = 100000;      //Creates timed at each size
+    private static final int scanCreates = 20;      //Creates timed with the old scanning check
+
+    public static void main(String[] args) {
+        ArrayList<Integer> sizes = new ArrayList<>();
+        for(String arg : args) sizes.add(Integer.parseInt(arg));
+        if(sizes.isEmpty()) {
+            sizes.add(10000);
+            sizes.add(1000000);
+            sizes.add(10000000);
+        }
+
+        System.out.println("existing\tindexed creates/sec\tscanning creates/sec");
+        for(int size : sizes) {
+            UserStore store = new HeapUserStore();
+            for(int i = 0; i < size; i++) {
+                store.add(new UserRecord(new User(UUID.randomUUID().toString(),"existing" + i,null)));
+            }
+
+            long start = System.nanoTime();
+            for(int i = 0; i < creates; i++) {
+                store.add(new UserRecord(new User(UUID.randomUUID().toString(),"new" + i,null)));
+            }
+            double indexed = creates / ((System.nanoTime() - start) / 1e9);
+
+            start = System.nanoTime();
+            for(int i = 0; i < scanCreates; i++) {
+                UserRecord user = new UserRecord(new User(UUID.randomUUID().toString(),"scanned" + i,null));
+                if(scanIsValid(store,user)) store.add(user);
+            }
+            double scanning = scanCreates / ((System.nanoTime() - start) / 1e9);
+
+            System.out.println(size + "\t" + (long)indexed + "\t" + (long)scanning);
+        }
+    }
+
+    /**
+     * The uniqueness check DatabaseManager used to run before every create
+     */
+    private static boolean scanIsValid(UserStore store, UserRecord user) {
+        for(UserRecord u : store.values()) {
+            if(u.getUuid().equals(user.getUuid()) || u.getName().equals(user.getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
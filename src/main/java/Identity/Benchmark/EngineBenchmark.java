@@ -0,0 +1,145 @@
+package Identity.Benchmark;
+
+import Identity.Database.DatabaseChange;
+import Identity.Database.DatabaseConfig;
+import Identity.Database.LogEngine;
+import Identity.Database.MemoryEngine;
+import Identity.Database.StorageEngine;
+import Identity.Server.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Runs the same workload against each storage engine: the writes a DatabaseManager dumps, the reads it makes
+ * while loading or when a lookup misses memory, and the server's commit state updates.
+ *
+ * java Identity.Benchmark.EngineBenchmark [numUsers] [engines, comma separated: sqlite,memory,log]
+ */
+public class EngineBenchmark {
+    private static final int changesPerDump = 1000;
+
+    public static void main(String[] args) throws IOException {
+        int numUsers = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        String[] engines = (args.length > 1 ? args[1] : "sqlite,memory,log").split(",");
+
+        System.out.println("users: " + numUsers);
+        System.out.println("engine\tphase\t\tops\tms\tops/sec");
+        for(String engine : engines) {
+            run(engine,numUsers);
+        }
+    }
+
+    private static void run(String engine, int numUsers) throws IOException {
+        File file = File.createTempFile("enginebenchmark",".db");
+        file.delete();
+        String url = engine.equals("memory") ? MemoryEngine.urlPrefix
+                : engine.equals("log") ? LogEngine.urlPrefix + file.getPath() : "jdbc:sqlite:" + file.getPath();
+        StorageEngine db = StorageEngine.open(url,new DatabaseConfig());
+        db.setUp();
+
+        String[] uuids = new String[numUsers];
+        String[] names = new String[numUsers];
+        int stamp = 0;
+        ArrayList<DatabaseChange> changes = new ArrayList<>();
+        for(int i = 0; i < numUsers; i++) {
+            uuids[i] = UUID.randomUUID().toString();
+            names[i] = "user" + i;
+            User user = new User(uuids[i],names[i],"Real Name " + i,"5E884898DA28047151D0E56F8DC6292773603D0D6AABBDD62A11EF721D1542D8","127.0.0.1");
+            user.setLstamp(++stamp);
+            changes.add(new DatabaseChange(user));
+        }
+        long start = System.nanoTime();
+        dump(db,changes);
+        report(engine,"create",numUsers,start);
+
+        int some = Math.max(1,numUsers / 10);
+        changes.clear();
+        for(int i = 0; i < some; i++) {
+            names[i] = "renamed" + i;
+            changes.add(new DatabaseChange(uuids[i],names[i],++stamp));
+        }
+        start = System.nanoTime();
+        dump(db,changes);
+        report(engine,"rename",some,start);
+
+        changes.clear();
+        for(int i = numUsers - some; i < numUsers; i++) {
+            changes.add(new DatabaseChange(uuids[i],++stamp));
+        }
+        start = System.nanoTime();
+        dump(db,changes);
+        report(engine,"delete",some,start);
+
+        Random rand = new Random(1);
+        start = System.nanoTime();
+        for(int i = 0; i < some; i++) {
+            db.getUserByName(names[rand.nextInt(numUsers - some)]);
+        }
+        report(engine,"name lookup",some,start);
+
+        start = System.nanoTime();
+        for(int i = 0; i < some; i++) {
+            db.getUserByUUID(uuids[rand.nextInt(numUsers)]);
+        }
+        report(engine,"uuid lookup",some,start);
+
+        start = System.nanoTime();
+        int scanned = db.getUsers().size();
+        report(engine,"full scan",scanned,start);
+
+        start = System.nanoTime();
+        ArrayList<String> deleted = new ArrayList<>();
+        int changed = db.getUsersChangedSince(numUsers,deleted).size() + deleted.size();
+        report(engine,"changed since",changed,start);
+
+        start = System.nanoTime();
+        for(int i = 0; i < 1000; i++) {
+            db.getLogicalStamp();
+        }
+        report(engine,"logical stamp",1000,start);
+
+        start = System.nanoTime();
+        for(int i = 0; i < 1000; i++) {
+            db.setCommitState(i % 2);
+        }
+        report(engine,"commit state",1000,start);
+
+        start = System.nanoTime();
+        int purged = db.purgeTombstones(stamp);
+        report(engine,"purge",purged,start);
+
+        if(db instanceof LogEngine) {
+            start = System.nanoTime();
+            int merged = ((LogEngine) db).merge();
+            report(engine,"merge",merged,start);
+        }
+
+        db.close();
+        File[] segments = file.listFiles();
+        if(segments != null) {
+            for(File segment : segments) {
+                segment.delete();
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Writes the changes in dumps, the way the DatabaseManager does
+     */
+    private static void dump(StorageEngine db, List<DatabaseChange> changes) {
+        for(int i = 0; i < changes.size(); i += changesPerDump) {
+            db.applyChanges(new ArrayList<>(changes.subList(i,Math.min(changes.size(),i + changesPerDump))));
+        }
+    }
+
+    private static void report(String engine, String phase, int ops, long start) {
+        double ms = (System.nanoTime() - start) / 1e6;
+        System.out.println(String.format("%s\t%-13s\t%d\t%d\t%d",engine,phase,ops,(long) ms,(long) (ops / Math.max(ms,0.001) * 1000)));
+    }
+}
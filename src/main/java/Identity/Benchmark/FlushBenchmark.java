@@ -0,0 +1,58 @@
+package Identity.Benchmark;
+
+import Identity.Database.Database;
+import Identity.Database.DatabaseChange;
+import Identity.Server.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.UUID;
+
+/**
+ * Measures how long it takes to write one dump of a bulk create workload to the sql database,
+ * one transaction per change against one batched transaction per dump.
+ *
+ * java Identity.Benchmark.FlushBenchmark [changesPerDump] [dumps]
+ */
+public class FlushBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int changesPerDump = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int dumps = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        System.out.println("mode\tchanges/dump\tms/dump\trows/sec");
+        run("single",false,changesPerDump,dumps);
+        run("batch",true,changesPerDump,dumps);
+    }
+
+    private static void run(String mode, boolean batched, int changesPerDump, int dumps) throws IOException {
+        File file = File.createTempFile("flushbenchmark",".db");
+        file.delete();
+        Database db = new Database("jdbc:sqlite:" + file.getPath());
+        db.setUp();
+
+        long totalNanos = 0;
+        int stamp = 0;
+        for(int d = 0; d < dumps; d++) {
+            ArrayList<DatabaseChange> changes = new ArrayList<>();
+            for(int i = 0; i < changesPerDump; i++) {
+                User user = new User(UUID.randomUUID().toString(),"user" + stamp,"Real Name","hash","127.0.0.1");
+                user.setLstamp(++stamp);
+                changes.add(new DatabaseChange(user));
+            }
+            long start = System.nanoTime();
+            if(batched) {
+                db.applyChanges(changes);
+            } else {
+                for(DatabaseChange change : changes) change.apply(db);
+            }
+            totalNanos += System.nanoTime() - start;
+        }
+
+        double msPerDump = totalNanos / 1e6 / dumps;
+        System.out.println(mode + "\t" + changesPerDump + "\t" + (long)msPerDump + "\t" + (long)(changesPerDump / (msPerDump / 1000)));
+        db.close();
+        file.delete();
+    }
+}
@@ -0,0 +1,88 @@
+package Identity.Benchmark;
+
+import Identity.Database.HeapUserStore;
+import Identity.Database.OffHeapUserStore;
+import Identity.Database.UserRecord;
+import Identity.Database.UserStore;
+import Identity.Server.User;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures garbage collection pauses while a full user store serves lookups and renames, with the
+ * short lived garbage a server makes for each request. Run it once per store type with the same heap settings.
+ *
+ * java -Xmx4g -XX:MaxDirectMemorySize=3g Identity.Benchmark.GcPauseBenchmark [numUsers] [heap|offheap] [seconds]
+ */
+public class GcPauseBenchmark {
+    private static final AtomicLong pauses = new AtomicLong();
+    private static final AtomicLong totalPause = new AtomicLong();
+    private static final AtomicLong maxPause = new AtomicLong();
+
+    public static void main(String[] args) throws InterruptedException {
+        int numUsers = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        boolean offHeap = args.length > 1 && args[1].equals("offheap");
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+        UserStore store = offHeap ? new OffHeapUserStore(16 * 1024 * 1024,numUsers) : new HeapUserStore();
+        long start = System.nanoTime();
+        for(int i = 0; i < numUsers; i++) {
+            store.add(new UserRecord(new User(new UUID(0,i).toString(),"user" + i,"Real Name " + i,
+                    "5E884898DA28047151D0E56F8DC6292773603D0D6AABBDD62A11EF721D1542D8","10.0." + (i % 256) + ".1")));
+        }
+        long fillMillis = (System.nanoTime() - start) / 1000000;
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+
+        listenForPauses();
+        Random rand = new Random(1);
+        long lookups = 0, renames = 0;
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        while(System.currentTimeMillis() < end) {
+            for(int n = 0; n < 1000; n++) {
+                int i = rand.nextInt(numUsers);
+                UserRecord user = store.getById(new UUID(0,i).toString());
+                user.toUser(); //What a lookup sends back to the client
+                if(n % 10 == 0) {
+                    String name = user.getName().equals("user" + i) ? "user" + i + "-renamed" : "user" + i;
+                    store.replace(user,user.renamed(name,user.getLstamp() + 1));
+                    renames++;
+                } else {
+                    store.getByName("user" + i);
+                    lookups++;
+                }
+            }
+        }
+
+        System.out.println("store: " + (offHeap ? "offheap" : "heap") + " users: " + numUsers + " fill: " + fillMillis + "ms"
+                + " heap used: " + heapUsed / (1024 * 1024) + "MB"
+                + (offHeap ? " off heap: " + ((OffHeapUserStore) store).getOffHeapBytes() / (1024 * 1024) + "MB" : ""));
+        System.out.println("lookups/sec: " + lookups / seconds + " renames/sec: " + renames / seconds);
+        System.out.println("gc pauses: " + pauses.get() + " total: " + totalPause.get() + "ms max: " + maxPause.get() + "ms");
+    }
+
+    /**
+     * Adds every collection's duration to the pause counters
+     */
+    private static void listenForPauses() {
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+                if(!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) return;
+                GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                if(info.getGcAction().contains("concurrent") || info.getGcName().contains("Cycles")) return; //Not a pause
+                long duration = info.getGcInfo().getDuration();
+                pauses.incrementAndGet();
+                totalPause.addAndGet(duration);
+                maxPause.accumulateAndGet(duration,Math::max);
+            },null,null);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package Identity.Benchmark;
+
+import Identity.Server.PartitionedException;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write throughput and latency under concurrent clients, with one two phase commit round per write
+ * (batch size 1, like the synchronized write methods before group commit) against batches of the writes
+ * that arrive while a round runs, and with replicating and applying batches one after the other against
+ * the staged pipeline. Uses a cluster of servers on localhost like ClusterWriteBenchmark, run it from the
+ * project directory.
+ *
+ * java Identity.Benchmark.GroupCommitBenchmark [servers] [seconds per run] [linger ms]
+ */
+public class GroupCommitBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int servers = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        String linger = args.length > 2 ? args[2] : "0";
+        System.setProperty("javax.net.ssl.trustStore", "Security/Client_Truststore");
+
+        System.out.println(servers + " servers, " + seconds + "s per run, linger " + linger + "ms");
+        System.out.println("batch\tpipeline\tclients\twrites/s\tp50 ms\tp99 ms\tfailed");
+        String[][] configurations = {{"1","serial"},{"256","serial"},{"256","staged"}};
+        for(String[] configuration : configurations) {
+            String batchSize = configuration[0];
+            String pipeline = configuration[1];
+            ClusterWriteBenchmark.Cluster cluster = ClusterWriteBenchmark.Cluster.start(servers,"--batchsize",batchSize,
+                    "--batchlinger",linger,"--pipeline",pipeline);
+            try {
+                for(int clients : new int[] {1,8,32,64}) {
+                    run(cluster,batchSize,pipeline,clients,seconds);
+                }
+            } finally {
+                cluster.stop();
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void run(ClusterWriteBenchmark.Cluster cluster, String batchSize, String pipeline, int clients, int seconds) throws InterruptedException {
+        long end = System.nanoTime() + seconds * 1000000000L;
+        AtomicInteger failed = new AtomicInteger();
+        ArrayList<long[]> latencies = new ArrayList<>();
+        int[] counts = new int[clients];
+        ArrayList<Thread> threads = new ArrayList<>();
+        for(int c = 0; c < clients; c++) {
+            int client = c;
+            long[] mine = new long[1000000];
+            latencies.add(mine);
+            Thread thread = new Thread(() -> {
+                int i = 0;
+                while(System.nanoTime() < end && i < mine.length) {
+                    String name = "b" + batchSize + pipeline + "c" + clients + "t" + client + "u" + i;
+                    long start = System.nanoTime();
+                    try {
+                        if(cluster.coordinator.create(name,"Real Name " + i,"password") == null) failed.incrementAndGet();
+                    } catch (RemoteException | PartitionedException e) {
+                        failed.incrementAndGet();
+                    }
+                    mine[i++] = System.nanoTime() - start;
+                }
+                counts[client] = i;
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        int writes = 0;
+        for(int count : counts) writes += count;
+        long[] all = new long[writes];
+        int n = 0;
+        for(int c = 0; c < clients; c++) {
+            System.arraycopy(latencies.get(c),0,all,n,counts[c]);
+            n += counts[c];
+        }
+        Arrays.sort(all);
+        System.out.printf("%s\t%s\t\t%d\t%d\t\t%.2f\t%.2f\t%d%n",batchSize,pipeline,clients,writes / seconds,
+                all[writes / 2] / 1e6,all[Math.min(writes - 1,writes * 99 / 100)] / 1e6,failed.get());
+    }
+}
@@ -0,0 +1,117 @@
+package Identity.Benchmark;
+
+import Identity.Database.DatabaseChange;
+import Identity.Database.DatabaseConfig;
+import Identity.Database.LogEngine;
+import Identity.Server.User;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Sustained write throughput of the log engine, and how long it takes to open again after the writer is killed.
+ *
+ * A child JVM writes users to the log as fast as it can, in dumps the size the DatabaseManager writes, with one
+ * rename for every four creates so old versions pile up and get merged. It prints how many changes it has written
+ * every second. The child is then killed with SIGKILL (kill -9) in the middle of its writes, and the log is opened
+ * again and checked.
+ *
+ * java Identity.Benchmark.LogRecoveryBenchmark [seconds of writes] [synchronous: normal|full]
+ */
+public class LogRecoveryBenchmark {
+    private static final int changesPerDump = 1000;
+
+    public static void main(String[] args) throws Exception {
+        if(args.length > 0 && args[0].equals("writer")) {
+            write(new File(args[1]),config(args[2]));
+            return;
+        }
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        String synchronous = args.length > 1 ? args[1] : "normal";
+        File dir = File.createTempFile("logrecoverybenchmark","");
+        dir.delete();
+
+        Process writer = new ProcessBuilder(new File(System.getProperty("java.home"),"bin/java").getPath(),
+                "-cp",System.getProperty("java.class.path"),LogRecoveryBenchmark.class.getName(),"writer",dir.getPath(),synchronous)
+                .redirectErrorStream(true).start();
+        BufferedReader out = new BufferedReader(new InputStreamReader(writer.getInputStream()));
+        System.out.println("second\tchanges\tchanges/sec");
+        long last = 0, written = 0;
+        for(int second = 1; second <= seconds; second++) {
+            String line = out.readLine();
+            if(line == null) throw new IOException("Writer exited");
+            written = Long.parseLong(line.trim());
+            System.out.println(second + "\t" + written + "\t" + (written - last));
+            last = written;
+        }
+        writer.destroyForcibly(); //SIGKILL, nothing is flushed or closed
+        writer.waitFor();
+
+        long size = 0;
+        File[] segments = dir.listFiles();
+        for(File segment : segments) {
+            size += segment.length();
+        }
+        System.out.println("sustained changes/sec: " + written / seconds);
+        System.out.println("segments: " + segments.length + ", MB: " + size / (1024 * 1024));
+
+        long start = System.nanoTime();
+        LogEngine log = new LogEngine(dir,config(synchronous));
+        long recoveryMs = (System.nanoTime() - start) / 1000000;
+        int users = log.getUsers().size();
+        System.out.println("recovery ms: " + recoveryMs + ", torn bytes truncated: " + log.getTruncatedBytes());
+        System.out.println("users recovered: " + users + ", logical stamp: " + log.getLogicalStamp() + ", changes reported written: " + written);
+        log.close();
+
+        for(File segment : dir.listFiles()) {
+            segment.delete();
+        }
+        dir.delete();
+    }
+
+    private static DatabaseConfig config(String synchronous) {
+        DatabaseConfig config = new DatabaseConfig();
+        config.synchronous = synchronous.toUpperCase();
+        config.logSegmentSize = 16 * 1024 * 1024;
+        config.logMergeInterval = 5000;
+        return config;
+    }
+
+    /**
+     * Writes until killed, printing the number of changes written each second
+     */
+    private static void write(File dir, DatabaseConfig config) {
+        LogEngine log = new LogEngine(dir,config);
+        Random rand = new Random(1);
+        ArrayList<String> uuids = new ArrayList<>();
+        ArrayList<DatabaseChange> changes = new ArrayList<>();
+        int stamp = 0;
+        long written = 0;
+        long nextReport = System.currentTimeMillis() + 1000;
+        while(true) {
+            changes.clear();
+            for(int i = 0; i < changesPerDump; i++) {
+                if(i % 5 == 4) {
+                    changes.add(new DatabaseChange(uuids.get(rand.nextInt(uuids.size())),"renamed" + stamp,++stamp));
+                } else {
+                    String uuid = UUID.randomUUID().toString();
+                    User user = new User(uuid,"user" + stamp,"Real Name " + stamp,"5E884898DA28047151D0E56F8DC6292773603D0D6AABBDD62A11EF721D1542D8","127.0.0.1");
+                    user.setLstamp(++stamp);
+                    changes.add(new DatabaseChange(user));
+                    uuids.add(uuid);
+                }
+            }
+            log.applyChanges(changes);
+            written += changes.size();
+            if(System.currentTimeMillis() >= nextReport) {
+                System.out.println(written);
+                nextReport += 1000;
+            }
+        }
+    }
+}
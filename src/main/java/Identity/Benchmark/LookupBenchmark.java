@@ -0,0 +1,89 @@
+package Identity.Benchmark;
+
+import Identity.Database.HeapUserStore;
+import Identity.Database.UserRecord;
+import Identity.Database.UserStore;
+import Identity.Server.User;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures lookup throughput of the in memory user store as the number of reader threads grows,
+ * while one writer thread keeps renaming users.
+ *
+ * java Identity.Benchmark.LookupBenchmark [numUsers] [secondsPerRun] [maxThreads]
+ */
+public class LookupBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int numUsers = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : 2 * Runtime.getRuntime().availableProcessors();
+
+        UserStore store = new HeapUserStore();
+        String[] names = new String[numUsers];
+        String[] uuids = new String[numUsers];
+        for(int i = 0; i < numUsers; i++) {
+            names[i] = "user" + i;
+            uuids[i] = UUID.randomUUID().toString();
+            store.add(new UserRecord(new User(uuids[i],names[i],"Real Name " + i,null,"127.0.0.1")));
+        }
+
+        System.out.println("users: " + numUsers + " cores: " + Runtime.getRuntime().availableProcessors());
+        System.out.println("threads\tlookups/sec\trenames/sec");
+        for(int threads = 1; threads <= maxThreads; threads *= 2) {
+            run(store,names,uuids,threads,seconds);
+        }
+    }
+
+    /**
+     * Runs readers doing name and UUID lookups against a writer that renames users back and forth
+     */
+    private static void run(UserStore store, String[] names, String[] uuids, int threads, int seconds) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder lookups = new LongAdder();
+        LongAdder renames = new LongAdder();
+        Object writeLock = new Object(); //Writes are serialized the same way DatabaseManager serializes them
+
+        Thread writer = new Thread(() -> {
+            Random rand = new Random();
+            while(running.get()) {
+                int i = rand.nextInt(uuids.length);
+                synchronized (writeLock) {
+                    UserRecord old = store.getById(uuids[i]);
+                    UserRecord renamed = old.renamed(old.getName().equals(names[i]) ? names[i] + "-renamed" : names[i],0);
+                    store.replace(old,renamed);
+                }
+                renames.increment();
+            }
+        });
+
+        ArrayList<Thread> readers = new ArrayList<>();
+        for(int t = 0; t < threads; t++) {
+            readers.add(new Thread(() -> {
+                Random rand = new Random();
+                long count = 0;
+                while(running.get()) {
+                    int i = rand.nextInt(names.length);
+                    store.getByName(names[i]);
+                    store.getById(uuids[i]);
+                    count += 2;
+                }
+                lookups.add(count);
+            }));
+        }
+
+        writer.start();
+        for(Thread reader : readers) reader.start();
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        writer.join();
+        for(Thread reader : readers) reader.join();
+
+        System.out.println(threads + "\t" + lookups.sum() / seconds + "\t" + renames.sum() / seconds);
+    }
+}
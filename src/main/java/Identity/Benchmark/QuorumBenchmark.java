@@ -0,0 +1,131 @@
+package Identity.Benchmark;
+
+import Identity.Server.Action;
+import Identity.Server.PartitionedException;
+import Identity.Server.QuorumLog;
+import Identity.Server.QuorumNode;
+import Identity.Server.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Write latency with one deliberately slow server, when a write commits once a majority of the servers hold it
+ * against when it waits for every server, as a two phase commit round does. The servers run in this process,
+ * call each other directly after a simulated round trip, and keep their logs in temporary files.
+ *
+ * java Identity.Benchmark.QuorumBenchmark [servers] [writes per client] [slow server delay ms]
+ */
+public class QuorumBenchmark {
+    private static final long roundTripNanos = 200000;
+
+    public static void main(String[] args) throws Exception {
+        int servers = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int writes = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        long slowMillis = args.length > 2 ? Long.parseLong(args[2]) : 50;
+
+        System.out.println(servers + " servers, one " + slowMillis + "ms slower than the rest");
+        System.out.println("commit\t\tclients\twrites/s\tp50 ms\tp99 ms\tfailed");
+        for(int acks : new int[] {0,servers}) {
+            for(int clients : new int[] {1,16}) {
+                run(servers,acks,clients,writes,slowMillis);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void run(int servers, int acks, int clients, int writes, long slowMillis) throws Exception {
+        File dir = Files.createTempDirectory("quorumbenchmark").toFile();
+        QuorumNode.Config config = new QuorumNode.Config();
+        config.electionTimeout = 300;
+        config.heartbeatInterval = 50;
+        config.requiredAcks = acks;
+        HashMap<Integer,QuorumNode> nodes = new HashMap<>();
+        for(int id = 1; id <= servers; id++) {
+            HashMap<Integer,QuorumNode.Peer> peers = new HashMap<>();
+            for(int other = 1; other <= servers; other++) {
+                if(other != id) peers.put(other,peer(nodes,other,(other == servers) ? slowMillis : 0));
+            }
+            nodes.put(id,new QuorumNode(id,peers,new QuorumLog(new File(dir,"quorum-" + id + ".log")),0,
+                    actions -> new int[actions.size()],null,config));
+        }
+        for(QuorumNode node : nodes.values()) {
+            node.start();
+        }
+        QuorumNode leader = null;
+        while(leader == null) {
+            Thread.sleep(50);
+            for(QuorumNode node : nodes.values()) {
+                if(node.isLeader()) leader = node;
+            }
+        }
+        if(leader == nodes.get(servers)) throw new IllegalStateException("The slow server won the election, run again");
+
+        QuorumNode writeTo = leader;
+        AtomicInteger failed = new AtomicInteger();
+        long[][] latencies = new long[clients][writes];
+        ArrayList<Thread> threads = new ArrayList<>();
+        long start = System.nanoTime();
+        for(int c = 0; c < clients; c++) {
+            long[] mine = latencies[c];
+            Thread thread = new Thread(() -> {
+                for(int i = 0; i < writes; i++) {
+                    long began = System.nanoTime();
+                    try {
+                        writeTo.propose(stamp -> new Action(stamp,Action.Type.CREATE,
+                                new User("uuid" + stamp,"user" + stamp,"Real Name","hash","127.0.0.1")));
+                    } catch (PartitionedException e) {
+                        failed.incrementAndGet();
+                    }
+                    mine[i] = System.nanoTime() - began;
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        for(QuorumNode node : nodes.values()) {
+            node.close();
+        }
+
+        long[] all = new long[clients * writes];
+        for(int c = 0; c < clients; c++) {
+            System.arraycopy(latencies[c],0,all,c * writes,writes);
+        }
+        Arrays.sort(all);
+        System.out.printf("%s\t%d\t%.0f\t\t%.2f\t%.2f\t%d%n",(acks == 0) ? "majority" : "all " + acks + "\t",clients,
+                all.length / seconds,all[all.length / 2] / 1e6,all[all.length * 99 / 100] / 1e6,failed.get());
+    }
+
+    /**
+     * Calls a server in this process after a round trip, and the extra delay of a slow server
+     */
+    private static QuorumNode.Peer peer(HashMap<Integer,QuorumNode> nodes, int id, long delayMillis) {
+        return new QuorumNode.Peer() {
+            @Override
+            public QuorumNode.AppendResult appendEntries(QuorumNode.AppendRequest request) throws IOException {
+                delay();
+                return nodes.get(id).appendEntries(request);
+            }
+
+            @Override
+            public QuorumNode.VoteResult requestVote(QuorumNode.VoteRequest request) throws IOException {
+                delay();
+                return nodes.get(id).requestVote(request);
+            }
+
+            private void delay() {
+                LockSupport.parkNanos(roundTripNanos + delayMillis * 1000000);
+            }
+        };
+    }
+}
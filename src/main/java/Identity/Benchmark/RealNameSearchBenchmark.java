@@ -0,0 +1,97 @@
+package Identity.Benchmark;
+
+import Identity.Database.OffHeapUserStore;
+import Identity.Database.RealNameIndex;
+import Identity.Database.UserRecord;
+import Identity.Database.UserStore;
+import Identity.Server.User;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.UUID;
+
+/**
+ * Measures real name search latency. Users get real names of a random adjective and noun from GeneratorWords,
+ * and are kept in an off heap store so the heap holds little more than the index.
+ *
+ * java -Xmx3g -XX:MaxDirectMemorySize=2g Identity.Benchmark.RealNameSearchBenchmark [numUsers] [queriesPerKind] [limit]
+ */
+public class RealNameSearchBenchmark {
+
+    public static void main(String[] args) throws FileNotFoundException {
+        int numUsers = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int limit = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        List<String> adjectives = readWords("GeneratorWords/adjectives.txt");
+        List<String> nouns = readWords("GeneratorWords/nouns.txt");
+
+        UserStore store = new OffHeapUserStore(16 * 1024 * 1024,numUsers);
+        RealNameIndex index = new RealNameIndex(id -> store.getById(id.toString()));
+        String[] realnames = new String[1000]; //Some real names that exist, to make queries from
+        Random rand = new Random(1);
+        long start = System.nanoTime();
+        for(int i = 0; i < numUsers; i++) {
+            String realname = adjectives.get(rand.nextInt(adjectives.size())) + " " + nouns.get(rand.nextInt(nouns.size()));
+            UserRecord user = new UserRecord(new User(new UUID(0,i).toString(),"user" + i,realname,null,"127.0.0.1"));
+            store.add(user);
+            index.add(user);
+            if(i < realnames.length) realnames[i] = realname;
+        }
+        long buildMillis = (System.nanoTime() - start) / 1000000;
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        System.out.println("users: " + numUsers + " words: " + index.size() + " build: " + buildMillis + "ms"
+                + " heap used: " + (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024) + "MB");
+
+        System.out.println("query\t\t\tp50 us\tp99 us\tmax us\tresults/query");
+        run("one word",index,queries,limit,rand,i -> word(realnames[i],1));
+        run("two words",index,queries,limit,rand,i -> realnames[i]);
+        run("word prefix*",index,queries,limit,rand,i -> word(realnames[i],1) + " " + prefix(word(realnames[i],0),3));
+        run("prefix*",index,queries,limit,rand,i -> prefix(word(realnames[i],1),4));
+        run("short prefix*",index,queries,limit,rand,i -> prefix(word(realnames[i],0),1));
+    }
+
+    private interface QueryMaker {
+        String make(int i);
+    }
+
+    private static void run(String name, RealNameIndex index, int queries, int limit, Random rand, QueryMaker maker) {
+        for(int i = 0; i < queries; i++) { //Warm up
+            index.search(maker.make(rand.nextInt(1000)),limit);
+        }
+        long[] micros = new long[queries];
+        long results = 0;
+        for(int i = 0; i < queries; i++) {
+            String query = maker.make(rand.nextInt(1000));
+            long start = System.nanoTime();
+            results += index.search(query,limit).size();
+            micros[i] = (System.nanoTime() - start) / 1000;
+        }
+        Arrays.sort(micros);
+        System.out.println(String.format("%-16s\t%d\t%d\t%d\t%d",name,micros[queries / 2],micros[queries * 99 / 100],
+                micros[queries - 1],results / queries));
+    }
+
+    private static String word(String realname, int i) {
+        return realname.split(" ")[i];
+    }
+
+    private static String prefix(String word, int length) {
+        return word.substring(0,Math.min(length,word.length())) + "*";
+    }
+
+    private static List<String> readWords(String file) throws FileNotFoundException {
+        ArrayList<String> words = new ArrayList<>();
+        Scanner sc = new Scanner(new File(file));
+        while(sc.hasNext()) {
+            words.add(sc.next());
+        }
+        sc.close();
+        return words;
+    }
+}
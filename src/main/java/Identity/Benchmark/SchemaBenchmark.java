@@ -0,0 +1,121 @@
+package Identity.Benchmark;
+
+import Identity.Database.Database;
+import Identity.Server.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.*;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Measures the size of the database file and the latency of the name lookup, the duplicate
+ * name check and the logical stamp query, on a schema version 1 database and again after it is
+ * migrated to the current schema and its tombstones are purged.
+ *
+ * java Identity.Benchmark.SchemaBenchmark [users] [tombstones]
+ */
+public class SchemaBenchmark {
+    private static final int lookups = 200;
+
+    public static void main(String[] args) throws IOException, SQLException {
+        int numUsers = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int numTombstones = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+        File file = File.createTempFile("schemabenchmark",".db");
+        file.delete();
+        String url = "jdbc:sqlite:" + file.getPath();
+        populateVersion1(url,numUsers,numTombstones);
+        Random random = new Random(1);
+
+        System.out.println("schema\tMB\tname lookup us\tduplicate check us\tstamp query us");
+        Connection conn = DriverManager.getConnection(url);
+        PreparedStatement byName = conn.prepareStatement("select * from users where name = ? ;");
+        long nameNanos = 0;
+        long duplicateNanos = 0;
+        for(int i = 0; i < lookups; i++) {
+            byName.setString(1,"user" + random.nextInt(numUsers));
+            long start = System.nanoTime();
+            ResultSet rs = byName.executeQuery();
+            while(rs.next()) rs.getString("uuid");
+            nameNanos += System.nanoTime() - start;
+
+            byName.setString(1,"user" + random.nextInt(numUsers)); //The old createNewUser ran the same query first
+            start = System.nanoTime();
+            byName.executeQuery().next();
+            duplicateNanos += System.nanoTime() - start;
+        }
+        Statement stmt = conn.createStatement();
+        long start = System.nanoTime();
+        for(int i = 0; i < lookups; i++) stmt.executeQuery("select max(stamp) from users;").getInt(1);
+        long stampNanos = System.nanoTime() - start;
+        stmt.close();
+        byName.close();
+        conn.close();
+        report("v1",file.length(),nameNanos,duplicateNanos,stampNanos);
+
+        long migrateStart = System.nanoTime();
+        Database db = new Database(url);
+        long migrateMillis = (System.nanoTime() - migrateStart) / 1000000;
+        long migratedSize = db.getSize();
+        int purged = db.purgeTombstones(Integer.MAX_VALUE);
+
+        nameNanos = 0;
+        duplicateNanos = 0;
+        for(int i = 0; i < lookups; i++) {
+            String name = "user" + random.nextInt(numUsers);
+            start = System.nanoTime();
+            db.getUserByName(name);
+            nameNanos += System.nanoTime() - start;
+
+            User duplicate = new User(UUID.randomUUID().toString(),"user" + random.nextInt(numUsers),"Real Name");
+            start = System.nanoTime();
+            db.createNewUser(duplicate); //Rejected, the name is taken
+            duplicateNanos += System.nanoTime() - start;
+        }
+        start = System.nanoTime();
+        for(int i = 0; i < lookups; i++) db.getLogicalStamp();
+        stampNanos = System.nanoTime() - start;
+        report("v" + Database.schemaVersion,db.getSize(),nameNanos,duplicateNanos,stampNanos);
+        System.out.println("migration took " + migrateMillis + "ms, " + migratedSize / (1024 * 1024) + "MB before purging " + purged + " tombstones");
+        db.close();
+        file.delete();
+    }
+
+    private static void report(String schema, long bytes, long nameNanos, long duplicateNanos, long stampNanos) {
+        System.out.println(schema + "\t" + bytes / (1024 * 1024) + "\t" + nameNanos / 1000 / lookups + "\t" + duplicateNanos / 1000 / lookups + "\t" + stampNanos / 1000 / lookups);
+    }
+
+    /**
+     * Makes a database with the version 1 schema, with live users and tombstones
+     */
+    private static void populateVersion1(String url, int numUsers, int numTombstones) throws SQLException {
+        Connection conn = DriverManager.getConnection(url);
+        Statement stmt = conn.createStatement();
+        stmt.execute("CREATE TABLE users (uuid text, name string, date date, passHash varChar(512), realName string, ipAddress string, stamp integer, deleted int, primary key (uuid));");
+        stmt.execute("CREATE TABLE serverinfo (serverID integer, commitstate int, primary key (serverID));");
+        stmt.execute("Insert into serverinfo values (-1,0);");
+        stmt.close();
+        conn.setAutoCommit(false);
+        PreparedStatement insert = conn.prepareStatement("insert into users values (?,?,?,?,?,?,?,?);");
+        long now = System.currentTimeMillis();
+        for(int i = 0; i < numUsers + numTombstones; i++) {
+            boolean deleted = i >= numUsers;
+            insert.setString(1,UUID.randomUUID().toString());
+            insert.setString(2,deleted ? "deleted" + i : "user" + i);
+            insert.setDate(3,new java.sql.Date(now));
+            insert.setString(4,"5E884898DA28047151D0E56F8DC629");
+            insert.setString(5,"Real Name " + i);
+            insert.setString(6,"127.0.0.1");
+            insert.setInt(7,i + 1);
+            insert.setInt(8,deleted ? 1 : 0);
+            insert.addBatch();
+            if(i % 10000 == 9999) insert.executeBatch();
+        }
+        insert.executeBatch();
+        conn.commit();
+        insert.close();
+        conn.close();
+    }
+}
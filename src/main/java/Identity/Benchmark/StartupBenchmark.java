@@ -0,0 +1,91 @@
+package Identity.Benchmark;
+
+import Identity.Database.Database;
+import Identity.Database.DatabaseManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.UUID;
+
+/**
+ * Measures how long a database manager takes to start, reading every user from the sql database
+ * against loading a snapshot and replaying the changes made after it.
+ *
+ * java Identity.Benchmark.StartupBenchmark [users...]
+ */
+public class StartupBenchmark {
+
+    public static void main(String[] args) throws IOException, SQLException {
+        int[] sizes = {100000, 1000000};
+        if(args.length > 0) {
+            sizes = new int[args.length];
+            for(int i = 0; i < args.length; i++) sizes[i] = Integer.parseInt(args[i]);
+        }
+
+        System.out.println("users\tsql ms\tsnapshot ms\tsnapshot MB");
+        for(int size : sizes) {
+            run(size);
+        }
+        System.exit(0); //The managers' dump timers would keep the vm running
+    }
+
+    private static void run(int size) throws IOException, SQLException {
+        File file = File.createTempFile("startupbenchmark",".db");
+        file.delete();
+        File snapshot = new File(file.getPath() + ".snapshot");
+        String url = "jdbc:sqlite:" + file.getPath();
+
+        Database db = new Database(url);
+        db.setUp();
+        db.close();
+        populate(url,size);
+
+        long start = System.nanoTime();
+        DatabaseManager dm = new DatabaseManager(url);
+        long sqlNanos = System.nanoTime() - start;
+        dm.writeSnapshot();
+        dm = null;
+        System.gc();
+
+        start = System.nanoTime();
+        dm = new DatabaseManager(url);
+        long snapshotNanos = System.nanoTime() - start;
+        if(dm.getUsers().size() != size) {
+            System.err.println("Snapshot start up loaded " + dm.getUsers().size() + " of " + size + " users");
+        }
+
+        System.out.println(size + "\t" + sqlNanos / 1000000 + "\t" + snapshotNanos / 1000000 + "\t" + snapshot.length() / (1024 * 1024));
+        snapshot.delete();
+        file.delete();
+    }
+
+    /**
+     * Inserts the users straight into the users table, in one transaction
+     */
+    private static void populate(String url, int size) throws SQLException {
+        Connection conn = DriverManager.getConnection(url);
+        conn.setAutoCommit(false);
+        PreparedStatement stmt = conn.prepareStatement("insert into users values (?,?,?,?,?,?,?,?);");
+        java.sql.Date date = new java.sql.Date(System.currentTimeMillis());
+        for(int i = 0; i < size; i++) {
+            stmt.setString(1,UUID.randomUUID().toString());
+            stmt.setString(2,"user" + i);
+            stmt.setDate(3,date);
+            stmt.setString(4,"5E884898DA28047151D0E56F8DC629");
+            stmt.setString(5,"Real Name " + i);
+            stmt.setString(6,"127.0.0.1");
+            stmt.setInt(7,i + 1);
+            stmt.setInt(8,0);
+            stmt.addBatch();
+            if(i % 10000 == 9999) stmt.executeBatch();
+        }
+        stmt.executeBatch();
+        conn.commit();
+        stmt.close();
+        conn.close();
+    }
+}
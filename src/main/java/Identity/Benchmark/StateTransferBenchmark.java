@@ -0,0 +1,116 @@
+package Identity.Benchmark;
+
+import Identity.Database.Database;
+import Identity.Database.DatabaseConfig;
+import Identity.Database.DatabaseManager;
+import Identity.Database.LogEngine;
+import Identity.Database.MemoryEngine;
+import Identity.Database.SnapshotFile;
+import Identity.Database.UserRecord;
+import Identity.Server.StateTransfer;
+import Identity.Server.StateTransferServer;
+import Identity.Server.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Time to bring up a new replica from a server holding many users: the source writes a snapshot, the replica
+ * fetches it over the side channel and installs it in memory, then its storage engine is brought up to date.
+ *
+ * The source is started from a snapshot file so it holds the users without writing them to sqlite first.
+ *
+ * java Identity.Benchmark.StateTransferBenchmark [users] [replica engine: sqlite|log|memory]
+ */
+public class StateTransferBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int numUsers = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+        String engine = args.length > 1 ? args[1] : "log";
+        System.setProperty("javax.net.ssl.keyStore","Security/Server_Keystore"); //The side channel uses TLS like RMI
+        System.setProperty("javax.net.ssl.keyStorePassword","test123");
+        System.setProperty("javax.net.ssl.trustStore","Security/Client_Truststore");
+
+        File sourceFile = File.createTempFile("statetransferbenchmark",".db");
+        sourceFile.delete();
+        String sourceUrl = "jdbc:sqlite:" + sourceFile.getPath();
+        Database db = new Database(sourceUrl);
+        db.setUp();
+        db.close();
+        ArrayList<UserRecord> users = new ArrayList<>(numUsers);
+        long date = new Date().getTime();
+        for(int i = 0; i < numUsers; i++) {
+            User user = new User(UUID.randomUUID().toString(),"user" + i,"Real Name " + i,"5E884898DA28047151D0E56F8DC6292773603D0D6AABBDD62A11EF721D1542D8","127.0.0.1");
+            user.setLstamp(i + 1);
+            user.setDate(new Date(date + i));
+            users.add(new UserRecord(user));
+        }
+        new SnapshotFile(new File(sourceFile.getPath() + ".snapshot")).write(users,numUsers);
+        users = null;
+        DatabaseManager source = new DatabaseManager(sourceUrl,new DatabaseConfig());
+        System.out.println("source users: " + source.getUsers().size() + ", replica engine: " + engine);
+
+        File replicaFile = File.createTempFile("statetransferbenchmark-replica",".db");
+        replicaFile.delete();
+        String replicaUrl = engine.equals("memory") ? MemoryEngine.urlPrefix
+                : engine.equals("log") ? LogEngine.urlPrefix + replicaFile.getPath() : "jdbc:sqlite:" + replicaFile.getPath();
+        DatabaseConfig replicaConfig = new DatabaseConfig();
+        replicaConfig.snapshotInterval = 0;
+        DatabaseManager replica = new DatabaseManager(replicaUrl,replicaConfig);
+        replica.setUp();
+
+        long start = System.nanoTime();
+        StateTransferServer server = new StateTransferServer(source,"127.0.0.1");
+        StateTransfer transfer = server.offer();
+        long snapshotMs = (System.nanoTime() - start) / 1000000;
+
+        start = System.nanoTime();
+        File received = File.createTempFile("statetransferbenchmark",".snapshot");
+        transfer.fetch("127.0.0.1",received);
+        long fetchMs = (System.nanoTime() - start) / 1000000;
+
+        long installStart = System.nanoTime();
+        long[] servingAt = new long[1];
+        Thread poller = new Thread(() -> { //Lookups see the users before their changes reach the storage engine
+            try {
+                while(replica.getUserByName("user" + (numUsers - 1)) == null) Thread.sleep(1);
+            } catch (InterruptedException e) {
+                return;
+            }
+            servingAt[0] = System.nanoTime();
+        });
+        poller.start();
+        int stamp = replica.installSnapshot(received);
+        long installMs = (System.nanoTime() - installStart) / 1000000;
+        try {
+            poller.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long servingMs = (servingAt[0] - installStart) / 1000000;
+
+        start = System.nanoTime();
+        replica.updateDatabase();
+        long storeMs = (System.nanoTime() - start) / 1000000;
+
+        long mb = transfer.getLength() / (1024 * 1024);
+        System.out.println("snapshot MB: " + mb + ", stamp: " + stamp + ", replica users: " + replica.getUsers().size());
+        System.out.println("phase\t\tms");
+        System.out.println("write snapshot\t" + snapshotMs);
+        System.out.println("fetch\t\t" + fetchMs + "\t(" + (mb * 1000 / Math.max(1,fetchMs)) + " MB/s)");
+        System.out.println("install\t\t" + servingMs + "\t(serving lookups after this)");
+        System.out.println("store changes\t" + (installMs - servingMs) + "\t(batch written to the storage engine)");
+        System.out.println("storage\t\t" + storeMs + "\t(left in the write-behind queue)");
+        System.out.println("serving after\t" + (snapshotMs + fetchMs + servingMs));
+        System.out.println("stored after\t" + (snapshotMs + fetchMs + installMs + storeMs));
+
+        server.close();
+        received.delete();
+        new File(sourceFile.getPath() + ".snapshot").delete();
+        sourceFile.delete();
+        System.exit(0); //The managers' dump timers would keep the vm running
+    }
+}
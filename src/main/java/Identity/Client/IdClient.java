@@ -17,6 +17,10 @@ import java.rmi.RemoteException;
 import java.rmi.registry.*;
 import java.rmi.Remote;
 import java.rmi.server.RMISocketFactory;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
@@ -53,6 +57,16 @@ public class IdClient{
     private boolean delete;
     @Option(name="--get",aliases="-g",usage="--get users|uuids|all")
     private boolean get;
+    @Option(name="--pagesize",usage="--pagesize <n> (users fetched per request by --get, default 1000)")
+    private int pageSize = 1000;
+    @Option(name="--search",usage="--search <prefix> | --search <from> <to> [--limit <n>]")
+    private boolean search;
+    @Option(name="--find",aliases="-f",usage="--find <words of the real name> [--limit <n>]")
+    private boolean find;
+    @Option(name="--created",usage="--created <from> <to> (users created from, up to but not including to. Dates are yyyy-mm-dd or ISO-8601 UTC times)")
+    private boolean created;
+    @Option(name="--limit",usage="--limit <n> (most results of --search or --find, default 100)")
+    private int limit = 100;
     @Option(name="--dbsh",usage="--dbsh")
     private String debugServerHost = null;
     @Option(name="--dbsp",usage="--dbsp")
@@ -136,7 +150,7 @@ public class IdClient{
                     }
                 };
                 Future<Object> future = executor.submit(task);
-                Object result = future.get(5, TimeUnit.SECONDS);
+                Object result = (get || created) ? future.get() : future.get(5, TimeUnit.SECONDS); //Every page of a listing has its own rmi timeout
                 System.exit(1); //The execution has not completed within the specified amount of time at this point
             }
             catch (InterruptedException e) {
@@ -162,6 +176,9 @@ public class IdClient{
         if(modify) return modify();
         if(delete) return delete();
         if(get) return get();
+        if(search) return search();
+        if(find) return find();
+        if(created) return created();
 
         return -1; //A command was not executed so return -1
     }
@@ -315,6 +332,8 @@ public class IdClient{
                 log.logClient(debugServerChannel,"Thats not the right password...");
             } else if (r == -1){
                 log.logClient(debugServerChannel,"There was no user with that login name");
+            } else if (r == -3){
+                log.logClient(debugServerChannel,newLoginName + " is already taken");
             }else{
                 log.logClient(debugServerChannel,oldLoginName + " has been changed to  " + newLoginName);
             }
@@ -361,26 +380,123 @@ public class IdClient{
      */
     public int get() throws RemoteException {
         System.out.println(arguments.get(0));
-        List<String> result = null;
+        int count = 0;
+        String cursor = null;
+        do { //Each page is printed as it arrives, so the whole listing is never held at once
+            UserPage page;
+            try{
+                page = remObj.get(arguments.get(0),cursor,pageSize);
+            } catch(RemoteException e){
+                System.out.println("Unable to fulfill request at this moment.");
+                return -1;
+            }
+            if(page == null) {
+                if (!testing) log.logClient(debugServerChannel,"Oops. What are you trying to do? Did you read the instructions?");
+                return -1;
+            }
+            if (!testing){
+                if(cursor == null) log.logClient(debugServerChannel,"Results:");
+                for(String res : page.getEntries())
+                    log.logClient(debugServerChannel,res);
+            }
+            count += page.getEntries().size();
+            cursor = page.getCursor();
+        } while(cursor != null);
+        return count;
+    }
+
+    /**
+     * Finds login names starting with a prefix, or in a range of names
+     * @return the number of names found, -1 on an error
+     * @throws RemoteException
+     */
+    public int search() throws RemoteException {
+        String from = arguments.get(0);
+        String to = (arguments.size() > 1) ? arguments.get(1) : null;
+        List<String> result;
         try{
-            result = remObj.get(arguments.get(0));
+            result = remObj.search(from,to,limit);
         } catch(RemoteException e){
             System.out.println("Unable to fulfill request at this moment.");
+            return -1;
         }
 
         if (!testing){
-            if( result != null){
-                log.logClient(debugServerChannel,"Results:");
-                for(String res : result)
-                    log.logClient(debugServerChannel,res);
-            } else{
-                log.logClient(debugServerChannel,"Oops. What are you trying to do? Did you read the instructions?");
-                return -1;
-            }
+            log.logClient(debugServerChannel,"Found " + result.size() + " login names:");
+            for(String res : result)
+                log.logClient(debugServerChannel,res);
+        }
+        return result.size();
+    }
+
+    /**
+     * Finds users by the words of their real names
+     * @return the number of users found, -1 on an error
+     * @throws RemoteException
+     */
+    public int find() throws RemoteException {
+        String query = String.join(" ",arguments);
+        List<User> result;
+        try{
+            result = remObj.searchRealNames(query,limit);
+        } catch(RemoteException e){
+            System.out.println("Unable to fulfill request at this moment.");
+            return -1;
+        }
+
+        if (!testing){
+            log.logClient(debugServerChannel,"Found " + result.size() + " users:");
+            for(User u : result)
+                log.logClient(debugServerChannel,u.publicString() + " " + u.getRealname());
         }
         return result.size();
     }
 
+    /**
+     * Lists the users created in a range of dates, printing each chunk as it arrives
+     * @return the number of users listed, -1 on an error
+     * @throws RemoteException
+     */
+    public int created() throws RemoteException {
+        long from, to;
+        try {
+            from = parseDate(arguments.get(0));
+            to = parseDate(arguments.get(1));
+        } catch(DateTimeParseException | IndexOutOfBoundsException e) {
+            System.out.println("Dates must be yyyy-mm-dd or ISO-8601 UTC times like 2020-01-31T12:00:00Z");
+            return -1;
+        }
+        int count = 0;
+        String cursor = null;
+        do {
+            UserPage page;
+            try{
+                page = remObj.getCreated(from,to,cursor,pageSize);
+            } catch(RemoteException e){
+                System.out.println("Unable to fulfill request at this moment.");
+                return -1;
+            }
+            if(page == null) return -1;
+            if (!testing){
+                for(String res : page.getEntries())
+                    log.logClient(debugServerChannel,res);
+            }
+            count += page.getEntries().size();
+            cursor = page.getCursor();
+        } while(cursor != null);
+        if (!testing) log.logClient(debugServerChannel,count + " users created");
+        return count;
+    }
+
+    /**
+     * @param date - yyyy-mm-dd (start of the day in UTC) or an ISO-8601 instant
+     * @return the date in epoch milliseconds
+     */
+    private static long parseDate(String date) {
+        if(date.length() == 10) return LocalDate.parse(date).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        return Instant.parse(date).toEpochMilli();
+    }
+
     /**
      * Used for testing the client
      * @param args - The arguments to pass to the client
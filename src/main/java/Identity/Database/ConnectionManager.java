@@ -0,0 +1,142 @@
+package Identity.Database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Owns the connections to a sqlite database. The database is put in WAL mode, so the pool of
+ * reader connections can read while the single writer connection is writing.
+ *
+ * Every write goes through the writer connection while holding the writer lock. The lock is fair,
+ * so a small write (like a commit state update) waits at most for the write in progress,
+ * and the dumper takes the lock once per chunk instead of once per dump.
+ */
+public class ConnectionManager {
+    private String url;
+    private DatabaseConfig config;
+    private Connection writer = null;
+    private ReentrantLock writeLock = new ReentrantLock(true);
+    private ArrayBlockingQueue<Connection> readers;              //Idle reader connections
+    private ArrayList<Connection> allReaders = new ArrayList<>();
+    private Logger log;
+
+    public ConnectionManager(String url, DatabaseConfig config) {
+        this.url = url;
+        this.config = config;
+        log = Logger.getLogger("logger");
+        log.setUseParentHandlers(false);
+        connect();
+    }
+
+    /**
+     * Opens the writer and reader connections and sets their pragmas
+     */
+    private void connect() {
+        try {
+            Class.forName("org.sqlite.JDBC");
+            writer = DriverManager.getConnection(url);
+            boolean inMemory = url.contains(":memory:");
+            Statement stmt = writer.createStatement();
+            stmt.execute("PRAGMA auto_vacuum=INCREMENTAL;"); //Only takes effect on a new database, older ones get it when migrated
+            if(!inMemory) stmt.execute("PRAGMA journal_mode=WAL;");
+            stmt.execute("PRAGMA synchronous=" + config.synchronous + ";");
+            setCommonPragmas(stmt);
+            stmt.close();
+
+            int numReaders = inMemory ? 0 : config.readerConnections; //Every in memory connection is a different database
+            readers = new ArrayBlockingQueue<>(Math.max(1,numReaders));
+            for(int i = 0; i < numReaders; i++) {
+                Connection reader = DriverManager.getConnection(url);
+                stmt = reader.createStatement();
+                setCommonPragmas(stmt);
+                stmt.close();
+                readers.add(reader);
+                allReaders.add(reader);
+            }
+        } catch (SQLException e) {
+            log.severe("Error in connect:\n" + e.toString());
+        } catch (ClassNotFoundException e) {
+            log.severe("Error in connect:\n" + e.toString());
+        }
+    }
+
+    private void setCommonPragmas(Statement stmt) throws SQLException {
+        stmt.execute("PRAGMA busy_timeout=" + config.busyTimeout + ";");
+        stmt.execute("PRAGMA cache_size=" + config.cacheSize + ";");
+        stmt.execute("PRAGMA mmap_size=" + config.mmapSize + ";");
+    }
+
+    /**
+     * Takes the writer lock. Must be held while using the writer connection.
+     */
+    public void lockWriter() {
+        writeLock.lock();
+    }
+
+    public void unlockWriter() {
+        writeLock.unlock();
+    }
+
+    /**
+     * @return the writer connection, only use it while holding the writer lock
+     */
+    public Connection getWriter() {
+        return writer;
+    }
+
+    /**
+     * Takes a reader connection out of the pool, waiting for one if they are all in use.
+     * If there are no reader connections the writer connection is used (and locked) instead.
+     * Every borrowed connection must be given back with returnReader.
+     * @return a connection to read with
+     */
+    public Connection borrowReader() {
+        if(allReaders.isEmpty()) {
+            lockWriter();
+            return writer;
+        }
+        while(true) {
+            try {
+                return readers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                lockWriter(); //Do not leave the caller without a connection
+                return writer;
+            }
+        }
+    }
+
+    /**
+     * Gives a connection from borrowReader back
+     * @param reader
+     */
+    public void returnReader(Connection reader) {
+        if(reader == writer) {
+            unlockWriter();
+        } else {
+            readers.add(reader);
+        }
+    }
+
+    /**
+     * Closes every connection
+     */
+    public void close() {
+        try {
+            for(Connection reader : allReaders) {
+                reader.close();
+            }
+            if(writer != null) {
+                writer.close();
+            }
+        } catch (SQLException e) {
+            log.severe("Error in close:\n" + e.toString());
+        }
+    }
+}
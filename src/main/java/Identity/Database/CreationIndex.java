@@ -0,0 +1,112 @@
+package Identity.Database;
+
+import Identity.Server.UserPage;
+
+import java.util.ArrayList;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Function;
+
+/**
+ * Index of users in order of creation date. Users created in the same millisecond are in UUID order.
+ *
+ * A range of creation dates is scanned a chunk at a time. Each chunk ends with a cursor, the date and UUID
+ * of its last user, and the next chunk starts right after it. A scan never takes a lock and never lists a user
+ * twice, however many users are created or deleted while it runs.
+ *
+ * Reads may run at any time. Writes must be serialized by the caller (DatabaseManager does this).
+ */
+public class CreationIndex {
+    private final ConcurrentSkipListSet<Created> created = new ConcurrentSkipListSet<>();
+    private final Function<Object,UserRecord> users;
+
+    /**
+     * @param users - gets the stored user with an ID, so a scan lists the current values of each user
+     */
+    public CreationIndex(Function<Object,UserRecord> users) {
+        this.users = users;
+    }
+
+    /**
+     * Indexes a user. A user without a creation date is not indexed.
+     * @param user
+     */
+    public void add(UserRecord user) {
+        if(user.getDate() != Long.MIN_VALUE) created.add(new Created(user.getDate(),user.getId()));
+    }
+
+    /**
+     * Removes a user from the index
+     * @param user
+     */
+    public void remove(UserRecord user) {
+        created.remove(new Created(user.getDate(),user.getId()));
+    }
+
+    /**
+     * Gets one chunk of the users created in a range of dates, oldest first
+     * @param from - first creation date in epoch milliseconds, inclusive
+     * @param to - last creation date in epoch milliseconds, exclusive
+     * @param cursor - the cursor of the previous chunk, null for the first chunk
+     * @param limit - most users in the chunk
+     * @return audit strings of the users, see UserRecord.auditString, and the cursor of the next chunk
+     * @throws IllegalArgumentException if the cursor was not made by this index
+     */
+    public UserPage scan(long from, long to, String cursor, int limit) {
+        ArrayList<String> entries = new ArrayList<>();
+        Created start = (cursor == null) ? new Created(from,null) : parseCursor(cursor);
+        Created end = new Created(to,null); //Before every user created at to
+        if(start.compareTo(end) >= 0) return new UserPage(entries,null);
+        NavigableSet<Created> range = created.subSet(start,cursor == null,end,false);
+        limit = Math.max(1,limit);
+        Created last = null;
+        for(Created c : range) {
+            if(entries.size() >= limit) return new UserPage(entries,last.toCursor());
+            last = c;
+            UserRecord user = users.apply(c.id);
+            if(user != null) entries.add(user.auditString()); //Null if deleted since the index was read
+        }
+        return new UserPage(entries,null);
+    }
+
+    /**
+     * @return number of users indexed
+     */
+    public int size() {
+        return created.size();
+    }
+
+    private static Created parseCursor(String cursor) {
+        int split = cursor.indexOf('/');
+        if(split < 0) throw new IllegalArgumentException("Not a creation cursor: " + cursor);
+        try {
+            return new Created(Long.parseLong(cursor.substring(0,split)),UserRecord.idKey(cursor.substring(split + 1)));
+        } catch(NumberFormatException e) {
+            throw new IllegalArgumentException("Not a creation cursor: " + cursor);
+        }
+    }
+
+    /**
+     * Creation date and ID of a user. A null ID is before every ID with the same date.
+     */
+    private static class Created implements Comparable<Created> {
+        final long date;
+        final Object id;
+
+        Created(long date, Object id) {
+            this.date = date;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(Created o) {
+            if(date != o.date) return Long.compare(date,o.date);
+            if(id == null || o.id == null) return (id == null ? 0 : 1) - (o.id == null ? 0 : 1);
+            return UserRecord.compareIds(id,o.id);
+        }
+
+        String toCursor() {
+            return date + "/" + id;
+        }
+    }
+}
@@ -2,27 +2,61 @@ package Identity.Database;
 
 import Identity.Server.User;
 
+import java.nio.ByteBuffer;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.UUID;
 import java.util.logging.Logger;
 
 /**
- *Sqlite database Class
+ *Sqlite database Class, the default storage engine
+ *
+ * Writes go through the single writer connection, reads use the reader connections
+ * of the ConnectionManager.
+ *
+ * Schema version 2 (PRAGMA user_version) stores UUIDs as 16 byte blobs in a table clustered on the
+ * UUID, with a unique index on name and an index on stamp. Deleted users are kept as tombstones
+ * with only their UUID and stamp until purgeTombstones removes them. Older databases are migrated
+ * when they are opened.
  */
-public class Database {
+public class Database implements StorageEngine {
+    public static final int schemaVersion = 2;
+    private static final String createUsers = "CREATE TABLE users (uuid blob, name text, date date, passHash varChar(512), realName string, ipAddress string, stamp integer, deleted int, primary key (uuid)) WITHOUT ROWID;";
+    private static final String createNameIndex = "CREATE UNIQUE INDEX users_name ON users (name);"; //Tombstones have a null name, so they never collide
+    private static final String createStampIndex = "CREATE INDEX users_stamp ON users (stamp);";
 
-    Connection conn = null;
+    Connection conn = null;                 //The writer connection
+    ConnectionManager connections;
+    DatabaseConfig config;
     String url = "";
     Logger log;
 
+    //Prepared statements cached for batched writes, see applyChanges
+    private PreparedStatement insertUserStmt = null;
+    private PreparedStatement deleteUserStmt = null;
+    private PreparedStatement renameUserStmt = null;
+
+    //A tombstone keeps only the UUID and stamp, which is all a snapshot replay needs
+    private static final String deleteUserSql = "update users set deleted = 1, stamp = ?, name = null, date = null, passHash = null, realName = null, ipAddress = null where uuid = ?;";
+
     /**
      * Database constructor
      * @param url
      */
     public Database(String url) {
+        this(url,new DatabaseConfig());
+    }
+
+    /**
+     * Database constructor
+     * @param url
+     * @param config - sqlite settings
+     */
+    public Database(String url, DatabaseConfig config) {
         this.url = url;
+        this.config = config;
         log = Logger.getLogger("logger");
         log.setUseParentHandlers(false);
         connect();
@@ -32,13 +66,67 @@ public class Database {
      * Connects to the database
      */
     public void connect() {
+        connections = new ConnectionManager(url,config);
+        conn = connections.getWriter();
+        migrate();
+    }
+
+    /**
+     * Migrates a users table made by an older version to the current schema. Does nothing for a
+     * new database, setUp makes the current schema.
+     */
+    private void migrate() {
+        connections.lockWriter();
         try {
-            Class.forName("org.sqlite.JDBC");
-            conn = DriverManager.getConnection(url);
+            Statement stmt = conn.createStatement();
+            int version = stmt.executeQuery("PRAGMA user_version;").getInt(1);
+            boolean hasUsers = stmt.executeQuery("select count(*) from sqlite_master where type = 'table' and name = 'users';").getInt(1) > 0;
+            if(!hasUsers || version >= schemaVersion) {
+                stmt.close();
+                return;
+            }
+            log.info("Migrating the users table from schema version " + version + " to " + schemaVersion);
+            try {
+                conn.setAutoCommit(false);
+                stmt.execute("ALTER TABLE users RENAME TO users_v1;");
+                stmt.execute(createUsers);
+                stmt.execute(createNameIndex);
+                stmt.execute(createStampIndex);
+                //Ordered by stamp so if an old bug left two live users with one name, the newest keeps it
+                ResultSet rs = stmt.executeQuery("select * from users_v1 order by stamp;");
+                PreparedStatement insert = conn.prepareStatement("insert or replace into users values (?,?,?,?,?,?,?,?);");
+                int rows = 0;
+                while(rs.next()) {
+                    boolean deleted = rs.getInt("deleted") == 1;
+                    setUuid(insert,1,rs.getString("uuid"));
+                    insert.setString(2,deleted ? null : rs.getString("name"));
+                    insert.setObject(3,deleted ? null : rs.getObject("date"));
+                    insert.setString(4,deleted ? null : rs.getString("passHash"));
+                    insert.setString(5,deleted ? null : rs.getString("realName"));
+                    insert.setString(6,deleted ? null : rs.getString("ipAddress"));
+                    insert.setInt(7,rs.getInt("stamp"));
+                    insert.setInt(8,deleted ? 1 : 0);
+                    insert.addBatch();
+                    if(++rows % 10000 == 0) insert.executeBatch();
+                }
+                insert.executeBatch();
+                insert.close();
+                stmt.execute("DROP TABLE users_v1;");
+                stmt.execute("PRAGMA user_version = " + schemaVersion + ";");
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+            stmt.execute("PRAGMA auto_vacuum = INCREMENTAL;"); //Lets purgeTombstones give space back
+            stmt.execute("VACUUM;");
+            stmt.close();
         } catch (SQLException e) {
-            log.severe("Error in connect:\n" + e.getStackTrace());
-        } catch (ClassNotFoundException e) {
-            log.severe("Error in connect:\n" + e.getStackTrace());
+            log.severe("Error in migrate:\n" + e.toString());
+        } finally {
+            connections.unlockWriter();
         }
     }
 
@@ -48,18 +136,23 @@ public class Database {
      * returns true if setup was successful, false if setup failed.
      */
     public boolean setUp() {
-        String createUsers = "CREATE TABLE users (uuid text, name string, date date, passHash varChar(512), realName string, ipAddress string, stamp integer, deleted int, primary key (uuid));";
         String createTimeStamp = "CREATE TABLE serverinfo (serverID integer, commitstate int, primary key (serverID));";
         String insertFirstTimeStamp = "Insert into serverinfo values (-1,0);";
+        connections.lockWriter();
         try {
             Statement stmt = conn.createStatement();
             stmt.execute(createUsers);
+            stmt.execute(createNameIndex);
+            stmt.execute(createStampIndex);
             stmt.execute(createTimeStamp);
             stmt.execute(insertFirstTimeStamp);
+            stmt.execute("PRAGMA user_version = " + schemaVersion + ";");
             return true;
         } catch (SQLException e) {
             e.printStackTrace();
             return false;
+        } finally {
+            connections.unlockWriter();
         }
     }
 
@@ -67,13 +160,19 @@ public class Database {
      * Closes database handler
      */
     public void close() {
+        connections.lockWriter();
         try {
-            if (conn != null) {
-                conn.close();
+            if (insertUserStmt != null) {
+                insertUserStmt.close();
+                deleteUserStmt.close();
+                renameUserStmt.close();
             }
         } catch (SQLException e) {
             log.severe("Error in close:\n" + e.getStackTrace());
+        } finally {
+            connections.unlockWriter();
         }
+        connections.close();
     }
 
     /**
@@ -81,6 +180,7 @@ public class Database {
      * @return 1 if successful, -1 if not successful
      */
     public int setServerID(int serverID){
+        connections.lockWriter();
         try {
             PreparedStatement stmt = conn.prepareStatement("update serverinfo set serverID = ?;");
             stmt.setInt(1,serverID);
@@ -88,6 +188,8 @@ public class Database {
         } catch (SQLException e) {
             log.severe("Error in setServerID:\n" + e.getStackTrace());
             return -1;
+        } finally {
+            connections.unlockWriter();
         }
         return 1;
     }
@@ -98,13 +200,17 @@ public class Database {
      */
     public int getServerID(){
         Integer serverID = -1;
+        Connection reader = connections.borrowReader();
         try {
-            Statement statement = conn.createStatement();
+            Statement statement = reader.createStatement();
             ResultSet rs = statement.executeQuery("select serverID from serverinfo;");
             serverID = rs.getInt("serverID");
+            statement.close(); //An open statement would keep this reader on an old snapshot
         } catch (SQLException e) {
             e.printStackTrace();
             log.severe("Error in getServerID:\n" + e.getStackTrace());
+        } finally {
+            connections.returnReader(reader);
         }
         return serverID;
     }
@@ -115,6 +221,7 @@ public class Database {
      * @return 1 if successful, -1 if not successful
      */
     public int setCommitState(int state) {
+        connections.lockWriter();
         try {
             PreparedStatement stmt = conn.prepareStatement("update serverinfo set commitstate = ?;");
             stmt.setInt(1,state);
@@ -123,6 +230,8 @@ public class Database {
             e.printStackTrace();
             log.severe("Error in setServerID:\n" + e.getStackTrace());
             return -1;
+        } finally {
+            connections.unlockWriter();
         }
         return 1;
     }
@@ -133,13 +242,17 @@ public class Database {
      */
     public int getCommitState(){
         Integer commitState = -1;
+        Connection reader = connections.borrowReader();
         try {
-            Statement statement = conn.createStatement();
+            Statement statement = reader.createStatement();
             ResultSet rs = statement.executeQuery("select commitstate from serverinfo;");
             commitState = rs.getInt("commitstate");
+            statement.close();
         } catch (SQLException e) {
             e.printStackTrace();
             log.severe("Error in getServerID:\n" + e.getStackTrace());
+        } finally {
+            connections.returnReader(reader);
         }
         return commitState;
     }
@@ -150,12 +263,16 @@ public class Database {
      */
     public int getLogicalStamp(){
         Integer stamp = 0;
+        Connection reader = connections.borrowReader();
         try {
-            Statement statement = conn.createStatement();
+            Statement statement = reader.createStatement();
             ResultSet rs = statement.executeQuery("select max(stamp) from users;");
-            stamp = rs.getInt("stamp");
+            stamp = rs.getInt(1);
+            statement.close();
         } catch (SQLException e) {
             log.severe("Error in getLogicalStamp:\n" + e.getStackTrace());
+        } finally {
+            connections.returnReader(reader);
         }
         return stamp;
     }
@@ -167,19 +284,49 @@ public class Database {
      */
     public ArrayList<User> getUsers() {
         ArrayList<User> users = new ArrayList<User>();
+        Connection reader = connections.borrowReader();
         try {
-            Statement statement = conn.createStatement();
+            Statement statement = reader.createStatement();
             ResultSet rs = statement.executeQuery("select * from users;");
             while(rs.next()) {
                 if(rs.getInt("deleted") == 1) continue;
-                User u = new User(rs.getString("uuid"),rs.getString("name"),rs.getString("realName"),rs.getString("passHash"),rs.getString("ipAddress"));
-                u.setDate(rs.getTimestamp("date"));
-                u.setLstamp(rs.getInt("stamp"));
-                users.add(u);
+                users.add(readUser(rs));
 
             }
+            statement.close();
         } catch (SQLException e) {
             log.severe("Error in getUsers:\n" + e.getStackTrace());
+        } finally {
+            connections.returnReader(reader);
+        }
+        return users;
+    }
+
+    /**
+     * Gets every user changed after a lamport stamp. Used to bring a loaded snapshot up to date.
+     * @param stamp - only rows with a larger stamp are read
+     * @param deletedUuids - filled with the UUIDs of users deleted after the stamp
+     * @return users created or renamed after the stamp that are not deleted
+     */
+    public ArrayList<User> getUsersChangedSince(int stamp, ArrayList<String> deletedUuids) {
+        ArrayList<User> users = new ArrayList<User>();
+        Connection reader = connections.borrowReader();
+        try {
+            PreparedStatement stmt = reader.prepareStatement("select * from users where stamp > ? ;");
+            stmt.setInt(1,stamp);
+            ResultSet rs = stmt.executeQuery();
+            while(rs.next()) {
+                if(rs.getInt("deleted") == 1) {
+                    deletedUuids.add(getUuid(rs));
+                    continue;
+                }
+                users.add(readUser(rs));
+            }
+            stmt.close();
+        } catch (SQLException e) {
+            log.severe("Error in getUsersChangedSince:\n" + e.getStackTrace());
+        } finally {
+            connections.returnReader(reader);
         }
         return users;
     }
@@ -191,18 +338,20 @@ public class Database {
      */
     public User getUserByUUID(String uuid) {
         User user = null;
+        Connection reader = connections.borrowReader();
         try {
-            PreparedStatement stmt = conn.prepareStatement("select * from users where uuid = ? ;");
-            stmt.setString(1,uuid);
+            PreparedStatement stmt = reader.prepareStatement("select * from users where uuid = ? ;");
+            setUuid(stmt,1,uuid);
             ResultSet rs = stmt.executeQuery();
             while(rs.next()) {
-                if(rs.getInt("deleted") == 1) return user;
-                user = new User(rs.getString("uuid"),rs.getString("name"),rs.getString("realName"));
-                user.setLstamp(rs.getInt("stamp"));
-                user.setDate(rs.getTimestamp("date"));
+                if(rs.getInt("deleted") == 1) break;
+                user = readUser(rs);
             }
+            stmt.close();
         } catch (SQLException e) {
             log.severe("Error in getUserByUUID:\n" + e.getStackTrace());
+        } finally {
+            connections.returnReader(reader);
         }
         return user;
     }
@@ -214,17 +363,19 @@ public class Database {
      */
     public User getUserByName(String name) {
         User user = null;
+        Connection reader = connections.borrowReader();
         try {
-            PreparedStatement stmt = conn.prepareStatement("select * from users where name = ? ;");
+            PreparedStatement stmt = reader.prepareStatement("select * from users where name = ? ;"); //Tombstones have no name
             stmt.setString(1,name);
             ResultSet rs = stmt.executeQuery();
             while(rs.next()) {
-                user = new User(rs.getString("uuid"),rs.getString("name"),rs.getString("realName"));
-                user.setLstamp(rs.getInt("stamp"));
-                user.setDate(rs.getTimestamp("date"));
+                user = readUser(rs);
             }
+            stmt.close();
         } catch (SQLException e) {
             log.severe("Error in getUserByName:\n" + e.getStackTrace());
+        } finally {
+            connections.returnReader(reader);
         }
         return user;
     }
@@ -239,29 +390,25 @@ public class Database {
      * @param user
      * @return successCode
      */
-    public synchronized int createNewUser(User user) {
+    public int createNewUser(User user) {
         PreparedStatement stmt = null;
+        connections.lockWriter();
         try {
-            Date date = new Date();
+            Date date = (user.getDate() == null) ? new Date() : user.getDate();
             java.sql.Date sqlDate = new java.sql.Date(date.getTime());
 
-            stmt = conn.prepareStatement("select * from users where name = ? ;");
+            stmt = conn.prepareStatement("select 1 from users where name = ? ;");
             stmt.setString(1,user.getName());
 
-            ResultSet rs = stmt.executeQuery();//statement.executeQuery("select * from users where name = '" + username + "';");
+            ResultSet rs = stmt.executeQuery();
             //Checking if the user already exists
             if (rs.next()) {
-                if(rs.getInt("deleted") == 1) {
-                    stmt = conn.prepareStatement("delete from users where name = ?");
-                    stmt.setString(1,user.getName());
-                    stmt.execute();
-                } else {
-                    log.severe("Error in createNewUser: loginname is already taken\n");
-                    return -2; //The query should be empty and rs.next() should return false
-                }
+                log.severe("Error in createNewUser: loginname is already taken\n");
+                return -2; //The query should be empty and rs.next() should return false
             }
+            stmt.close();
             stmt = conn.prepareStatement("insert into users values (?,?,?,?,?,?,?,?);");
-            stmt.setString(1,user.getUuid());
+            setUuid(stmt,1,user.getUuid());
             stmt.setString(2,user.getName());
             stmt.setDate(3,sqlDate);
             stmt.setString(4,user.getPassHash());
@@ -275,6 +422,8 @@ public class Database {
             e.printStackTrace();
             log.severe("Error in createNewUser:\n" + e.toString());
             return -1;
+        } finally {
+            connections.unlockWriter();
         }
         return 1;
     }
@@ -289,16 +438,19 @@ public class Database {
      * @param user
      * @return success code
      */
-    public synchronized int deleteUser(User user) {
+    public int deleteUser(User user) {
+        connections.lockWriter();
         try {
             String uuid = user.getUuid();
-            PreparedStatement stmt = conn.prepareStatement("update users set deleted = 1, stamp = ? where uuid = ?;");
+            PreparedStatement stmt = conn.prepareStatement(deleteUserSql);
             stmt.setInt(1,user.getLstamp());
-            stmt.setString(2,uuid);
+            setUuid(stmt,2,uuid);
             stmt.execute();
         } catch (SQLException e) {
             log.severe("Error in deleteUser:\n" + e.getStackTrace());
             return -1;
+        } finally {
+            connections.unlockWriter();
         }
         return 1;
     }
@@ -315,34 +467,273 @@ public class Database {
     }
 
     /**
-     * Modifies a users login name.
+     * Modifies a users login name. A null newName gives up the login name without taking a new one.
      * @param UUID
      * @param newName
      * @return 1 if successful, -1 if sql error
      */
     public int changeUserName(String UUID, String newName, int lStamp) {
+        connections.lockWriter();
         try {
-            PreparedStatement stmt = conn.prepareStatement("update users set name = ?, stamp = ?, where uuid = ? ;");
+            PreparedStatement stmt = conn.prepareStatement("update users set name = ?, stamp = ? where uuid = ? ;");
             stmt.setString(1,newName);
             stmt.setInt(2,lStamp);
-            stmt.setString(3,UUID);
+            setUuid(stmt,3,UUID);
             stmt.execute();
         } catch (SQLException e) {
             log.severe("Error in changeUserName:\n" + e.getStackTrace());
             return -1;
+        } finally {
+            connections.unlockWriter();
         }
         return 1;
     }
 
+    /**
+     * Writes a list of changes as a few large transactions of about flushChunkSize changes each,
+     * split by DatabaseChange.chunk so that a user's login name is never given up in one transaction
+     * and taken again in the next.
+     * Consecutive changes of the same type are sent as one JDBC batch using cached prepared statements,
+     * so the order of the changes is kept. The writer lock is taken once per chunk, so other writes
+     * (like commit state updates) never wait for a whole dump.
+     * If a chunk fails it is rolled back and its changes are written one at a time instead, up to the first
+     * change that fails again.
+     *
+     * Unlike createNewUser, creates are not checked for a taken login name. The in memory database
+     * has already checked it, and the changes must be ordered by DatabaseChange.orderForUniqueNames.
+     * @param changes
+     * @return number of changes written from the start of the list, the rest were not written
+     */
+    public int applyChanges(List<DatabaseChange> changes) {
+        int written = 0;
+        for(List<DatabaseChange> chunk : DatabaseChange.chunk(changes,config.flushChunkSize)) {
+            int chunkWritten = applyChunk(chunk);
+            written += chunkWritten;
+            if(chunkWritten < chunk.size()) break;
+        }
+        return written;
+    }
+
+    /**
+     * Writes a chunk of changes in one transaction
+     * @param changes
+     * @return number of changes written from the start of the chunk
+     */
+    private int applyChunk(List<DatabaseChange> changes) {
+        connections.lockWriter();
+        try {
+            prepareBatchStatements();
+            conn.setAutoCommit(false);
+            DatabaseChange.Type batchType = null;
+            for(DatabaseChange change : changes) {
+                if(batchType != null && batchType != change.getType()) executeBatch(batchType);
+                batchType = change.getType();
+                addToBatch(change);
+            }
+            executeBatch(batchType);
+            conn.commit();
+            return changes.size();
+        } catch (SQLException e) {
+            log.severe("Error in applyChanges, writing changes one at a time:\n" + e.toString());
+            try {
+                conn.rollback();
+            } catch (SQLException e1) {
+                log.severe("Error in applyChanges rollback:\n" + e1.toString());
+            }
+            try {
+                conn.setAutoCommit(true);
+            } catch (SQLException e1) {
+                log.severe("Error in applyChanges:\n" + e1.toString());
+            }
+            for(int i = 0; i < changes.size(); i++) {
+                if(changes.get(i).apply(this) != 1) return i; //Later changes may depend on it, so they wait too
+            }
+            return changes.size();
+        } finally {
+            try {
+                conn.setAutoCommit(true);
+            } catch (SQLException e) {
+                log.severe("Error in applyChanges:\n" + e.toString());
+            }
+            connections.unlockWriter();
+        }
+    }
+
+    /**
+     * Prepares the statements used by applyChanges the first time they are needed
+     * @throws SQLException
+     */
+    private void prepareBatchStatements() throws SQLException {
+        if(insertUserStmt != null) return;
+        insertUserStmt = conn.prepareStatement("insert into users values (?,?,?,?,?,?,?,?);");
+        deleteUserStmt = conn.prepareStatement(deleteUserSql);
+        renameUserStmt = conn.prepareStatement("update users set name = ?, stamp = ? where uuid = ?;");
+    }
+
+    /**
+     * Adds a change to the batch of the statement for its type
+     * @param change
+     * @throws SQLException
+     */
+    private void addToBatch(DatabaseChange change) throws SQLException {
+        switch(change.getType()) {
+            case CREATE:
+                User user = change.getUser();
+                setUuid(insertUserStmt,1,user.getUuid());
+                insertUserStmt.setString(2,user.getName());
+                insertUserStmt.setDate(3,new java.sql.Date((user.getDate() == null ? new Date() : user.getDate()).getTime()));
+                insertUserStmt.setString(4,user.getPassHash());
+                insertUserStmt.setString(5,user.getRealname());
+                insertUserStmt.setString(6,user.getIpAddress());
+                insertUserStmt.setInt(7,user.getLstamp());
+                insertUserStmt.setInt(8,0); //Zero means the user is not deleted
+                insertUserStmt.addBatch();
+                break;
+            case DELETE:
+                deleteUserStmt.setInt(1,change.getLstamp());
+                setUuid(deleteUserStmt,2,change.getUuid());
+                deleteUserStmt.addBatch();
+                break;
+            case RENAME:
+                renameUserStmt.setString(1,change.getNewName());
+                renameUserStmt.setInt(2,change.getLstamp());
+                setUuid(renameUserStmt,3,change.getUuid());
+                renameUserStmt.addBatch();
+                break;
+        }
+    }
+
+    /**
+     * Executes the batch of the statement(s) for a change type
+     * @param type
+     * @throws SQLException
+     */
+    private void executeBatch(DatabaseChange.Type type) throws SQLException {
+        switch(type) {
+            case CREATE:
+                insertUserStmt.executeBatch();
+                break;
+            case DELETE:
+                deleteUserStmt.executeBatch();
+                break;
+            case RENAME:
+                renameUserStmt.executeBatch();
+                break;
+        }
+    }
+
+    /**
+     * Removes the tombstones of users deleted at or before a stamp, and gives the freed pages back
+     * to the file system
+     * @param horizon - newest stamp whose tombstones are no longer needed
+     * @return number of tombstones removed, or -1 on error
+     */
+    public int purgeTombstones(int horizon) {
+        connections.lockWriter();
+        try {
+            PreparedStatement stmt = conn.prepareStatement("delete from users where stamp <= ? and deleted = 1;");
+            stmt.setInt(1,horizon);
+            int purged = stmt.executeUpdate();
+            stmt.close();
+            if(purged > 0) {
+                Statement vacuum = conn.createStatement();
+                vacuum.executeUpdate("PRAGMA incremental_vacuum;"); //execute would only free the first page
+                vacuum.close();
+            }
+            return purged;
+        } catch (SQLException e) {
+            log.severe("Error in purgeTombstones:\n" + e.toString());
+            return -1;
+        } finally {
+            connections.unlockWriter();
+        }
+    }
+
+    /**
+     * @return size of the database in bytes, not counting the write-ahead log
+     */
+    public long getSize() {
+        long size = -1;
+        Connection reader = connections.borrowReader();
+        try {
+            Statement statement = reader.createStatement();
+            ResultSet rs = statement.executeQuery("select page_count * page_size from pragma_page_count(), pragma_page_size();");
+            size = rs.getLong(1);
+            statement.close();
+        } catch (SQLException e) {
+            log.severe("Error in getSize:\n" + e.toString());
+        } finally {
+            connections.returnReader(reader);
+        }
+        return size;
+    }
+
+    /**
+     * Reads the user in the current row
+     * @param rs
+     * @return User
+     * @throws SQLException
+     */
+    private static User readUser(ResultSet rs) throws SQLException {
+        User u = new User(getUuid(rs),rs.getString("name"),rs.getString("realName"),rs.getString("passHash"),rs.getString("ipAddress"));
+        u.setDate(rs.getTimestamp("date"));
+        u.setLstamp(rs.getInt("stamp"));
+        return u;
+    }
+
+    /**
+     * Binds a UUID as 16 bytes. A string that is not a standard UUID is bound as text, so it
+     * still comes back unchanged.
+     */
+    static void setUuid(PreparedStatement stmt, int index, String uuid) throws SQLException {
+        UUID parsed = parseUuid(uuid);
+        if(parsed == null) {
+            stmt.setString(index,uuid);
+            return;
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(16);
+        bytes.putLong(parsed.getMostSignificantBits());
+        bytes.putLong(parsed.getLeastSignificantBits());
+        stmt.setBytes(index,bytes.array());
+    }
+
+    /**
+     * Reads the UUID in the current row, written with setUuid
+     */
+    static String getUuid(ResultSet rs) throws SQLException {
+        Object uuid = rs.getObject("uuid");
+        if(uuid instanceof byte[] && ((byte[]) uuid).length == 16) {
+            ByteBuffer bytes = ByteBuffer.wrap((byte[]) uuid);
+            return new UUID(bytes.getLong(),bytes.getLong()).toString();
+        }
+        return uuid == null ? null : uuid.toString();
+    }
+
+    /**
+     * @return the UUID, or null if the string is not in the standard form (so it would not survive a round trip)
+     */
+    static UUID parseUuid(String s) {
+        if(s == null) return null;
+        try {
+            UUID uuid = UUID.fromString(s);
+            return uuid.toString().equals(s) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
     /**
      * Deletes all users in the database
      */
     public void deleteAllUsers() {
+        connections.lockWriter();
         try {
             Statement statement = conn.createStatement();
             statement.executeUpdate("delete * from users;");
         } catch (SQLException e) {
             log.severe("Error in deleteAllUsers:\n" + e.getStackTrace());
+        } finally {
+            connections.unlockWriter();
         }
     }
 
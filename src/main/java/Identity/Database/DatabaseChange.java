@@ -0,0 +1,181 @@
+package Identity.Database;
+
+import Identity.Server.User;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A change made to the in memory database that still has to be written to the sql database.
+ */
+public class DatabaseChange {
+    public enum Type {CREATE,DELETE,RENAME}
+    private Type type;
+    private User user;          //The created user (CREATE only)
+    private String uuid;
+    private String newName;     //RENAME only
+    private int lstamp;
+
+    /**
+     * A user was created
+     * @param user
+     */
+    public DatabaseChange(User user) {
+        this.type = Type.CREATE;
+        this.user = user;
+        this.uuid = user.getUuid();
+        this.lstamp = user.getLstamp();
+    }
+
+    /**
+     * A user was deleted
+     * @param uuid
+     * @param lstamp
+     */
+    public DatabaseChange(String uuid, int lstamp) {
+        this.type = Type.DELETE;
+        this.uuid = uuid;
+        this.lstamp = lstamp;
+    }
+
+    /**
+     * A user was renamed. A null newName only gives up the user's login name, see orderForUniqueNames.
+     * @param uuid
+     * @param newName
+     * @param lstamp
+     */
+    public DatabaseChange(String uuid, String newName, int lstamp) {
+        this.type = Type.RENAME;
+        this.uuid = uuid;
+        this.newName = newName;
+        this.lstamp = lstamp;
+    }
+
+    /**
+     * Writes this change to the storage engine on its own
+     * @param db
+     * @return success code of the engine call
+     */
+    public int apply(StorageEngine db) {
+        switch(type) {
+            case CREATE: return db.createNewUser(user);
+            case DELETE: return db.deleteUserByUUID(uuid,lstamp);
+            case RENAME: return db.changeUserName(uuid,newName,lstamp);
+        }
+        return -1;
+    }
+
+    /**
+     * Folds a list of changes into one change per user holding only that user's final state:
+     * a create followed by renames becomes one create with the final name, a user created and then
+     * deleted in the same list is dropped, several renames become the last one, and renames followed
+     * by a delete become the delete.
+     *
+     * Changes come out ordered by each user's last change. That is not enough for the unique name
+     * index when users swap names, so the result is written in the order from orderForUniqueNames.
+     * @param changes - changes in the order they were made
+     * @return the folded changes
+     */
+    public static List<DatabaseChange> coalesce(List<DatabaseChange> changes) {
+        LinkedHashMap<String,DatabaseChange> dirty = new LinkedHashMap<>(); //Final change for each touched user
+        for(DatabaseChange change : changes) {
+            DatabaseChange previous = dirty.remove(change.uuid); //Removed so the user moves to the end of the order
+            DatabaseChange folded = (previous == null) ? change : previous.foldWith(change);
+            if(folded != null) dirty.put(change.uuid,folded);
+        }
+        return new ArrayList<>(dirty.values());
+    }
+
+    /**
+     * Orders coalesced changes so that no change takes a login name before the change giving it up.
+     * Deletes come first, then every renamed user gives up its old login name, then the renames
+     * and creates take their names. Since the coalesced changes are one consistent state, the
+     * names taken are all free by then, even when users swap names.
+     * @param changes - coalesced changes, at most one per user
+     * @return the changes in the order to write them
+     */
+    public static List<DatabaseChange> orderForUniqueNames(List<DatabaseChange> changes) {
+        ArrayList<DatabaseChange> ordered = new ArrayList<>(changes.size() + 16);
+        ArrayList<DatabaseChange> renames = new ArrayList<>();
+        ArrayList<DatabaseChange> creates = new ArrayList<>();
+        for(DatabaseChange change : changes) {
+            switch(change.type) {
+                case DELETE: ordered.add(change); break;
+                case RENAME: renames.add(change); break;
+                case CREATE: creates.add(change); break;
+            }
+        }
+        for(DatabaseChange rename : renames) {
+            ordered.add(new DatabaseChange(rename.uuid,null,rename.lstamp));
+        }
+        ordered.addAll(renames);
+        ordered.addAll(creates);
+        return ordered;
+    }
+
+    /**
+     * Splits ordered changes into chunks of about chunkSize changes, each written in one transaction.
+     * The renames, from the first user giving up its login name to the last rename, always share one
+     * chunk. Committing only the first part would leave users stored without a name.
+     * @param changes - changes in the order from orderForUniqueNames
+     * @param chunkSize
+     * @return the chunks, in order
+     */
+    public static List<List<DatabaseChange>> chunk(List<DatabaseChange> changes, int chunkSize) {
+        int renamesStart = -1;
+        int renamesEnd = -1;
+        for(int i = 0; i < changes.size(); i++) {
+            if(changes.get(i).type == Type.RENAME) {
+                if(renamesStart == -1) renamesStart = i;
+                renamesEnd = i + 1;
+            }
+        }
+        ArrayList<List<DatabaseChange>> chunks = new ArrayList<>();
+        for(int start = 0; start < changes.size(); ) {
+            int end = Math.min(changes.size(),start + Math.max(1,chunkSize));
+            if(end > renamesStart && end < renamesEnd) end = renamesEnd;
+            chunks.add(changes.subList(start,end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Combines this change with a later change to the same user
+     * @param next
+     * @return the combined change, or null if the user never has to be written
+     */
+    private DatabaseChange foldWith(DatabaseChange next) {
+        if(type == Type.CREATE) {
+            if(next.type == Type.DELETE) return null; //Created and deleted before it was ever written
+            if(next.type == Type.RENAME) {
+                User renamed = new User(user);
+                renamed.setName(next.newName);
+                renamed.setLstamp(next.lstamp);
+                return new DatabaseChange(renamed);
+            }
+        }
+        return next; //Renames and deletes overwrite earlier renames
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public String getNewName() {
+        return newName;
+    }
+
+    public int getLstamp() {
+        return lstamp;
+    }
+}
@@ -0,0 +1,30 @@
+package Identity.Database;
+
+/**
+ * Settings for the storage engines and the write-behind layer in front of them.
+ * The defaults are used when a DatabaseManager or Database is made with only a url.
+ */
+public class DatabaseConfig {
+    //Write-behind
+    public int queueCapacity = 100000;                  //Most changes that can wait to be written
+    public WriteBehindQueue.FullPolicy fullPolicy = WriteBehindQueue.FullPolicy.BLOCK;
+    public boolean batchedFlush = true;                 //Write dumps as JDBC batches instead of one transaction per change
+    public int flushChunkSize = 1000;                   //Most changes written in one transaction, other writers wait at most one chunk
+    public long snapshotInterval = 5 * 60 * 1000;       //Milliseconds between binary snapshots of the users, 0 turns snapshots off
+    public boolean lazyLoad = false;                    //Load the users in the background instead of before the manager is made
+    public long tombstonePurgeInterval = 60 * 1000;     //Milliseconds between purges of tombstones older than the replication horizon, 0 for none
+    public boolean offHeapStore = false;                //Keep the users in direct memory instead of on the java heap
+    public long pageOrderMaxAge = 1000;                 //Milliseconds the UUID order used for paged listings is reused after a write
+
+    //Sqlite
+    public String synchronous = "NORMAL";               //PRAGMA synchronous: OFF, NORMAL or FULL. NORMAL is safe in WAL mode
+    public long mmapSize = 256L * 1024 * 1024;          //PRAGMA mmap_size in bytes, 0 turns memory mapping off
+    public int cacheSize = -16000;                      //PRAGMA cache_size, negative values are KiB instead of pages
+    public int readerConnections = 2;                   //Connections used for reads, 0 reads through the writer connection
+    public int busyTimeout = 5000;                      //Milliseconds a connection waits on a locked database
+
+    //Log engine
+    public long logSegmentSize = 64L * 1024 * 1024;     //Bytes written to a segment file before a new one is started
+    public long logMergeInterval = 60 * 1000;           //Milliseconds between merges of mostly dead segments, 0 for none
+    public double logMergeRatio = 0.5;                  //Fraction of a segment that must be dead before it is merged
+}
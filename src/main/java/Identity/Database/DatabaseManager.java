@@ -1,41 +1,223 @@
 package Identity.Database;
 
 import Identity.Server.User;
+import Identity.Server.UserPage;
 
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import java.util.logging.Logger;
 
 /**
  * Manages a database in memory, and periodically dumps the memory database
- * to a sql database. Makes use of lambda functions for dumping!
+ * to a sql database. Also periodically writes a binary snapshot of the memory
+ * database, which is loaded at start up instead of reading the whole sql database.
+ *
+ * With lazy loading the users are put in memory by a background thread. Until it is done, a lookup
+ * that misses in memory is answered by the sql database, and a write first loads the users it touches.
+ * Users touched while loading are remembered, so the loader never overwrites a newer change.
  */
 public class DatabaseManager {
-    private Hashtable<String,User> usersById;    //In memory database of users with user ID as key
-    private Hashtable<String,User> usersByName;  //In memory database of users with user name as key
-    private Database db;                         //Database on disk
-    private List<Runnable> databaseChanges;      //list of in memory changes that need to be dumped to disk
+    private UserStore users;                     //In memory database of users, indexed by user ID and user name
+    private StorageEngine db;                    //Database on disk, see StorageEngine.open
+    private WriteBehindQueue databaseChanges;    //Bounded queue of in memory changes that need to be dumped to disk
     private Timer dumper;                        //A timer task that dumps databaseChanges to the disk periodically
+    private DatabaseConfig config;
+    private final Object dumpLock = new Object(); //Only one dump runs at a time
+    private SnapshotFile snapshotFile;           //Null if snapshots are turned off
+    private Timer snapshotter;                   //A timer task that writes a snapshot periodically
+    private int highestStamp = 0;                //Lamport stamp of the latest change made in memory
+    private volatile int lastSnapshotStamp = -1;
+    private volatile int durableStamp = 0;       //Every change up to this stamp is in the storage engine, see getDurableStamp
+    private List<DatabaseChange> unwritten = new ArrayList<>(); //Ordered changes a dump could not write, written first by the next, only used holding dumpLock
+    private int unwrittenStamp = Integer.MAX_VALUE; //Lowest stamp of a change behind the unwritten ones, durableStamp stays below it
+    private int drainedStamp = 0;                //Newest stamp taken from the write-behind queue, only used holding dumpLock
+    private volatile IntSupplier replicationHorizon = () -> 0; //Stamp every server has applied, see purgeTombstones
+    private final Object snapshotLock = new Object(); //Only one snapshot is written at a time
+
+    private static final int loadChunkSize = 10000;  //Users put in memory per lock taken by the loader
+    private volatile boolean warm = false;           //True once every stored user is in memory
+    private Set<String> touchedIds = ConcurrentHashMap.newKeySet();   //Written while loading, only changed holding the manager lock
+    private Set<String> touchedNames = ConcurrentHashMap.newKeySet();
+    private volatile int loadTotal = 0;
+    private volatile int loaded = 0;
+    private volatile long loadMillis = 0;
+    private final long loadStart = System.currentTimeMillis();
+    private AtomicLong fallThroughLookups = new AtomicLong();
+    private final Logger log = Logger.getLogger("logger");
+
+    private volatile long writeEpoch = 0;           //Bumped after every change to the user store, see getListing
+    private final ConcurrentHashMap<Listing,CachedListing> listings = new ConcurrentHashMap<>();
+    private volatile PageOrder pageOrder = new PageOrder(-1,0,new UserRecord[0]);
+    public static final int maxPageSize = 10000;
+    private final ConcurrentSkipListSet<String> nameIndex = new ConcurrentSkipListSet<>(); //Login names in order, only changed holding the manager lock
+    public static final int maxSearchResults = 10000;
+    private final RealNameIndex realNames;               //Words of real names, only changed holding the manager lock
+    private final CreationIndex creationDates;           //Users in order of creation, only changed holding the manager lock
+
+    /**
+     * What a user listing holds for each user
+     */
+    public enum Listing {
+        NAMES,  //Login names
+        UUIDS,  //UUIDs
+        ALL     //User.publicString of each user
+    }
 
     /**
      * Constructs a database manager. Initializes a sql database, reads in
-     * users from the database into hashtables, and starts a timer that
+     * users from the database into the user store, and starts a timer that
      * periodically dumps changes to the database.
      * @param dbString
      */
     public DatabaseManager(String dbString) {
-        usersById = new Hashtable<String,User>();
-        usersByName = new Hashtable<String,User>();
-        databaseChanges = Collections.synchronizedList(new ArrayList<Runnable>());
-        db = new Database(dbString);
+        this(dbString,new DatabaseConfig());
+    }
 
-        //Putting any data stored in the database in memory
-        ArrayList<User> users = db.getUsers();
-        for(User u : users) {
-            usersById.put(u.getUuid(),u);
-            usersByName.put(u.getName(),u);
+    /**
+     * Constructs a database manager with the given database and write-behind settings.
+     * If config.lazyLoad is set, returns before the users are loaded.
+     * @param dbString - sqlite jdbc url, memory: for a MemoryEngine, or log: and a directory for a LogEngine
+     * @param config
+     */
+    public DatabaseManager(String dbString, DatabaseConfig config) {
+        this.config = config;
+        users = config.offHeapStore ? new OffHeapUserStore() : new HeapUserStore();
+        realNames = new RealNameIndex(id -> users.getById(id.toString()));
+        creationDates = new CreationIndex(id -> users.getById(id.toString()));
+        databaseChanges = new WriteBehindQueue(config.queueCapacity,config.fullPolicy,() -> dumper.schedule(new Dump(this),0));
+        db = StorageEngine.open(dbString,config);
+        String dbFile = dbString.substring(dbString.lastIndexOf(':') + 1);
+        if(config.snapshotInterval > 0 && !dbFile.isEmpty() && !dbString.contains(":memory:") && !(db instanceof MemoryEngine)) {
+            snapshotFile = new SnapshotFile(new File(dbFile + ".snapshot"));
+        }
+
+        if(config.lazyLoad) {
+            Thread loader = new Thread(this::loadUsers,"user-loader");
+            loader.setDaemon(true);
+            loader.start();
+        } else {
+            loadUsers();
         }
 
         dumper = new Timer();
         dumper.scheduleAtFixedRate(new Dump(this),0,5000);
+        if(config.tombstonePurgeInterval > 0) { //On the dump thread, so a purge never waits for a dump
+            dumper.scheduleAtFixedRate(new Purge(this),config.tombstonePurgeInterval,config.tombstonePurgeInterval);
+        }
+        if(snapshotFile != null) {
+            snapshotter = new Timer(true);
+            snapshotter.scheduleAtFixedRate(new Snapshot(this),config.snapshotInterval,config.snapshotInterval);
+        }
+    }
+
+    /**
+     * Puts the users stored on disk in memory, skipping any user that was changed in memory
+     * while loading. Marks the manager as warm when done.
+     */
+    private void loadUsers() {
+        List<UserRecord> stored = readStoredUsers();
+        loadTotal = stored.size();
+        for(int i = 0; i < stored.size(); i += loadChunkSize) {
+            int end = Math.min(stored.size(),i + loadChunkSize);
+            synchronized (this) {
+                for(UserRecord u : stored.subList(i,end)) {
+                    if(!touchedIds.isEmpty() && (touchedIds.contains(u.getUuid()) || touchedNames.contains(u.getName()))) continue; //Memory is newer
+                    if(users.add(u)) indexUser(u);
+                    highestStamp = Math.max(highestStamp,u.getLstamp());
+                }
+                writeEpoch++;
+            }
+            loaded = end;
+        }
+        synchronized (this) {
+            warm = true;
+            touchedIds.clear();
+            touchedNames.clear();
+        }
+        loadMillis = System.currentTimeMillis() - loadStart;
+    }
+
+    /**
+     * Reads the users stored on disk. If there is a snapshot it is read, and only the users
+     * changed after the snapshot are read from the sql database. Otherwise every user is read from
+     * the sql database.
+     * @return every stored user
+     */
+    private List<UserRecord> readStoredUsers() {
+        SnapshotFile.Snapshot snapshot = (snapshotFile == null) ? null : snapshotFile.read();
+        if(snapshot == null) {
+            ArrayList<User> stored = db.getUsers();
+            ArrayList<UserRecord> records = new ArrayList<>(stored.size());
+            for(int i = 0; i < stored.size(); i++) {
+                records.add(new UserRecord(stored.get(i)));
+                stored.set(i,null); //Let the full user go as soon as it is packed
+            }
+            return records;
+        }
+        LinkedHashMap<Object,UserRecord> byId = new LinkedHashMap<>();
+        for(UserRecord u : snapshot.users) {
+            byId.put(u.getId(),u);
+        }
+        snapshot.users = null;
+
+        //Replaying changes that are newer than the snapshot
+        ArrayList<String> deleted = new ArrayList<>();
+        ArrayList<User> changed = db.getUsersChangedSince(snapshot.stamp,deleted);
+        for(String uuid : deleted) {
+            byId.remove(UserRecord.idKey(uuid));
+        }
+        for(User u : changed) {
+            UserRecord record = new UserRecord(u);
+            byId.put(record.getId(),record);
+        }
+        synchronized (this) {
+            highestStamp = Math.max(highestStamp,snapshot.stamp);
+            lastSnapshotStamp = snapshot.stamp;
+        }
+        return new ArrayList<>(byId.values());
+    }
+
+    /**
+     * While loading, puts the user with the login name in memory if it is only on disk, and remembers
+     * the name and user so the loader leaves them alone. Must be called holding the manager lock.
+     * @param name
+     */
+    private void loadName(String name) {
+        if(warm || name == null || !touchedNames.add(name)) return;
+        UserRecord u = users.getByName(name);
+        if(u != null) {
+            touchedIds.add(u.getUuid());
+            return;
+        }
+        User stored = db.getUserByName(name);
+        if(stored != null && touchedIds.add(stored.getUuid())) { //If the user was already touched, memory is newer than the disk
+            UserRecord record = new UserRecord(stored);
+            if(users.add(record)) indexUser(record);
+            writeEpoch++;
+        }
+    }
+
+    /**
+     * Same as loadName, for a UUID. Must be called holding the manager lock.
+     * @param uuid
+     */
+    private void loadId(String uuid) {
+        if(warm || uuid == null || !touchedIds.add(uuid)) return;
+        UserRecord u = users.getById(uuid);
+        if(u != null) {
+            touchedNames.add(u.getName());
+            return;
+        }
+        User stored = db.getUserByUUID(uuid);
+        if(stored != null && touchedNames.add(stored.getName())) {
+            UserRecord record = new UserRecord(stored);
+            if(users.add(record)) indexUser(record);
+            writeEpoch++;
+        }
     }
 
     /**
@@ -94,11 +276,15 @@ public class DatabaseManager {
      * @return
      */
     public synchronized int createUser(User user) {
-        if(validNewUser(user)) {
-            usersById.put(user.getUuid(),user);
-            usersByName.put(user.getName(),user);
-            Runnable command = () -> db.createNewUser(user); //Add database change to command list
-            databaseChanges.add(command);
+        if(user.getDate() == null) user.setDate(new Date()); //The coordinator sets it, so every server has the same date
+        loadName(user.getName());
+        loadId(user.getUuid());
+        UserRecord record = new UserRecord(user);
+        if(users.add(record)) { //Fails if the login name or UUID is already taken
+            indexUser(record);
+            writeEpoch++;
+            highestStamp = Math.max(highestStamp,user.getLstamp());
+            databaseChanges.add(new DatabaseChange(user)); //Add database change to change list
             return 1;
         }
         return -1;
@@ -116,18 +302,20 @@ public class DatabaseManager {
      * @return
      */
     public synchronized int deleteUser(String loginName, String passwordHash,int lstamp) {
-        User user = usersByName.get(loginName);
+        loadName(loginName);
+        UserRecord user = users.getByName(loginName);
         if(user == null) {
             return -1;
         }
-        if(user.getPassHash() == null || user.getPassHash().equals("null") || user.getPassHash().equals(passwordHash)) {
-            User u = usersByName.get(loginName);
-            u.setLstamp(lstamp);
-            String uuid = u.getUuid();
-            usersByName.remove(loginName);
-            usersById.remove(uuid);
-            Runnable command = () -> db.deleteUserByUUID(uuid,lstamp);
-	        databaseChanges.add(command);
+        if(user.passwordMatches(passwordHash)) {
+            String uuid = user.getUuid();
+            users.remove(user);
+            nameIndex.remove(loginName);
+            realNames.remove(user);
+            creationDates.remove(user);
+            writeEpoch++;
+            highestStamp = Math.max(highestStamp,lstamp);
+            databaseChanges.add(new DatabaseChange(uuid,lstamp));
             return 1;
         } else {
             return -2; //Password did not match
@@ -140,7 +328,14 @@ public class DatabaseManager {
      * @return User
      */
     public User getUserByName(String name) {
-        return usersByName.get(name);
+        UserRecord u = users.getByName(name);
+        if(u != null || warm || touchedNames.contains(name)) return toUser(u);
+        fallThroughLookups.incrementAndGet();
+        User stored = db.getUserByName(name);
+        if(stored == null || warm || touchedIds.contains(stored.getUuid())) { //Changed in memory while we read the disk
+            return toUser(users.getByName(name));
+        }
+        return stored;
     }
 
     /**
@@ -149,7 +344,18 @@ public class DatabaseManager {
      * @return User
      */
     public User getUserByUUID(String UUID) {
-        return usersById.get(UUID);
+        UserRecord u = users.getById(UUID);
+        if(u != null || warm || touchedIds.contains(UUID)) return toUser(u);
+        fallThroughLookups.incrementAndGet();
+        User stored = db.getUserByUUID(UUID);
+        if(stored == null || warm || touchedIds.contains(UUID) || touchedNames.contains(stored.getName())) {
+            return toUser(users.getById(UUID));
+        }
+        return stored;
+    }
+
+    private static User toUser(UserRecord record) {
+        return (record == null) ? null : record.toUser();
     }
 
     /**
@@ -159,22 +365,26 @@ public class DatabaseManager {
      * 1    The user's login name was changed
      * -1   There was no user with that login name
      * -2   The passwords did not match (Invalid Password)
+     * -3   The new login name is already taken
      * @param old
      * @param newName
      * @param passwordHash
      * @return
      */
     public synchronized int changeUserName(String old, String newName, String passwordHash, int lStamp) {
-        User user = usersByName.get(old);
+        loadName(old);
+        loadName(newName);
+        UserRecord user = users.getByName(old);
         if(user == null) return -1;
-        if(user.getPassHash() == null || user.getPassHash().equals("null") || user.getPassHash().equals(passwordHash)) {
-            user.setName(newName); //This should be reflected in both hashtables
-            user.setLstamp(lStamp);
-            usersByName.remove(old); //The old name is no longer mapped to a user, so remove the name,user pair
-            usersByName.put(user.getName(),user); //Put the new name,user pair into the table
+        if(user.passwordMatches(passwordHash)) {
+            UserRecord renamed = user.renamed(newName,lStamp); //Stored users are never modified, so readers never see a half renamed user
+            if(!users.replace(user,renamed)) return -3; //The new name is checked and reserved in one step
+            nameIndex.add(newName);
+            if(!old.equals(newName)) nameIndex.remove(old);
+            writeEpoch++;
             String UUID = user.getUuid();
-            Runnable command = () -> db.changeUserName(UUID,newName,lStamp);
-            databaseChanges.add(command);
+            highestStamp = Math.max(highestStamp,lStamp);
+            databaseChanges.add(new DatabaseChange(UUID,newName,lStamp));
             return 1;
         } else {
             return -2;
@@ -182,46 +392,458 @@ public class DatabaseManager {
     }
 
     /**
-     * Gets all users in the database
+     * Gets all users in the database. While loading, only the users loaded so far.
      * @return list of all users
      */
     public ArrayList<User> getUsers() {
-        ArrayList<User> users = new ArrayList<>();
-        for(User u : usersByName.values()) {
-            users.add(u);
+        ArrayList<UserRecord> records = users.values();
+        ArrayList<User> all = new ArrayList<>(records.size());
+        for(UserRecord record : records) {
+            all.add(record.toUser());
         }
-        return users;
+        return all;
     }
 
     /**
-     * Checks that a users login name and UUID(we don't have to but why not?) are not taken.
-     * @param user
-     * @return true if user is valid
+     * Gets a listing of every user. A listing is built once per write epoch and shared by every caller
+     * until the next write, so repeated listings between writes cost nothing. Each user appears once,
+     * with the values of a single version of it, so a rename is never half seen.
+     * While loading, only the users loaded so far are listed.
+     * @param kind - what is listed for each user
+     * @return unmodifiable list, one entry per user
      */
-    public boolean validNewUser(User user) {
-        for(User u : usersById.values()) {
-            if(u.getUuid().equals(user.getUuid())) {
-                return false;
-            } else if (u.getName().equals(user.getName())) {
-                return false;
+    public List<String> getListing(Listing kind) {
+        long epoch = writeEpoch; //Read before the users, so a write made while building makes this listing stale
+        CachedListing cached = listings.get(kind);
+        if(cached != null && cached.epoch == epoch) return cached.entries;
+        ArrayList<UserRecord> records = users.values();
+        ArrayList<String> entries = new ArrayList<>(records.size());
+        for(UserRecord record : records) {
+            switch(kind) {
+                case NAMES: entries.add(record.getName()); break;
+                case UUIDS: entries.add(record.getUuid()); break;
+                case ALL:   entries.add(record.publicString()); break;
             }
         }
-        return true;
+        cached = new CachedListing(epoch,Collections.unmodifiableList(entries));
+        listings.merge(kind,cached,(old,built) -> old.epoch >= built.epoch ? old : built); //Never replace a newer listing
+        return cached.entries;
+    }
+
+    /**
+     * Gets one page of a listing of every user, in UUID order. The page starts after the cursor, so paging
+     * never lists a user twice or skips a user that exists for the whole listing, however many writes happen
+     * in between. A user created or deleted while paging may or may not be listed.
+     *
+     * The UUID order is sorted once and reused by every page until there has been a write and it is older than
+     * DatabaseConfig.pageOrderMaxAge. Each user on a page is read from the store again, so its values are current.
+     * @param kind - what is listed for each user
+     * @param cursor - the cursor of the previous page, null for the first page
+     * @param pageSize - most users on the page, at most maxPageSize
+     * @return the page, with a null cursor if it is the last one
+     */
+    public UserPage getPage(Listing kind, String cursor, int pageSize) {
+        pageSize = Math.max(1,Math.min(pageSize,maxPageSize));
+        UserRecord[] order = getPageOrder();
+        int start = 0;
+        if(cursor != null) { //Binary search for the first user after the cursor
+            Object after = UserRecord.idKey(cursor);
+            int low = 0, high = order.length;
+            while(low < high) {
+                int mid = (low + high) >>> 1;
+                if(UserRecord.compareIds(order[mid].getId(),after) <= 0) low = mid + 1;
+                else high = mid;
+            }
+            start = low;
+        }
+        ArrayList<String> entries = new ArrayList<>(Math.min(pageSize,order.length - start));
+        int i = start;
+        for(; i < order.length && entries.size() < pageSize; i++) {
+            UserRecord record = users.getById(order[i].getUuid());
+            if(record == null) continue; //Deleted since the order was sorted
+            switch(kind) {
+                case NAMES: entries.add(record.getName()); break;
+                case UUIDS: entries.add(record.getUuid()); break;
+                case ALL:   entries.add(record.publicString()); break;
+            }
+        }
+        return new UserPage(entries,(i < order.length) ? order[i - 1].getUuid() : null);
+    }
+
+    /**
+     * Finds login names in a range, in order. Takes O(log n + k) for n users and k results.
+     * While loading, only the users loaded so far are searched.
+     * @param from - first name in the range, inclusive
+     * @param to - end of the range, exclusive. Null for no end
+     * @param limit - most names returned, at most maxSearchResults
+     * @return the names, none if the range ends before it starts
+     */
+    public List<String> searchNames(String from, String to, int limit) {
+        if(to != null && from.compareTo(to) > 0) return new ArrayList<>();
+        limit = Math.max(0,Math.min(limit,maxSearchResults));
+        NavigableSet<String> range = (to == null) ? nameIndex.tailSet(from,true) : nameIndex.subSet(from,true,to,false);
+        ArrayList<String> names = new ArrayList<>(Math.min(limit,16));
+        for(String name : range) {
+            if(names.size() >= limit) break;
+            if(users.getByName(name) != null) names.add(name); //A rename adds the new name before removing the old one
+        }
+        return names;
+    }
+
+    /**
+     * Finds users by the words of their real names, see RealNameIndex.search.
+     * While loading, only the users loaded so far are searched.
+     * @param query - words that must all be in the real name, a word ending in * is a prefix
+     * @param limit - most users returned, at most maxSearchResults
+     * @return the users found
+     */
+    public ArrayList<User> searchRealNames(String query, int limit) {
+        List<UserRecord> found = realNames.search(query,Math.min(limit,maxSearchResults));
+        ArrayList<User> matches = new ArrayList<>(found.size());
+        for(UserRecord record : found) {
+            matches.add(record.toUser());
+        }
+        return matches;
+    }
+
+    /**
+     * Gets one chunk of the users created in a range of dates, oldest first. Takes no lock, so a scan of any
+     * size can run next to writes. See CreationIndex.scan.
+     * While loading, only the users loaded so far are scanned.
+     * @param from - first creation date in epoch milliseconds, inclusive
+     * @param to - last creation date in epoch milliseconds, exclusive
+     * @param cursor - the cursor of the previous chunk, null for the first chunk
+     * @param limit - most users in the chunk, at most maxPageSize
+     * @return audit strings of the users, and the cursor of the next chunk
+     * @throws IllegalArgumentException if the cursor is not a creation cursor
+     */
+    public UserPage getCreated(long from, long to, String cursor, int limit) {
+        return creationDates.scan(from,to,cursor,Math.min(limit,maxPageSize));
+    }
+
+    /**
+     * Adds a user that was just put in the user store to the search indexes. Must be called holding the manager lock.
+     */
+    private void indexUser(UserRecord user) {
+        nameIndex.add(user.getName());
+        realNames.add(user);
+        creationDates.add(user);
+    }
+
+    /**
+     * Removes a user that was just taken out of the user store from the search indexes. Must be called holding the manager lock.
+     */
+    private void unindexUser(UserRecord user) {
+        nameIndex.remove(user.getName());
+        realNames.remove(user);
+        creationDates.remove(user);
+    }
+
+    /**
+     * Finds login names starting with a prefix, in order
+     * @param prefix
+     * @param limit - most names returned, at most maxSearchResults
+     * @return the names
+     */
+    public List<String> searchNamePrefix(String prefix, int limit) {
+        return searchNames(prefix,prefixEnd(prefix),limit);
+    }
+
+    /**
+     * @return the first string after every string starting with the prefix, or null if there is none
+     */
+    static String prefixEnd(String prefix) {
+        for(int i = prefix.length() - 1; i >= 0; i--) {
+            char c = prefix.charAt(i);
+            if(c != Character.MAX_VALUE) return prefix.substring(0,i) + (char) (c + 1);
+        }
+        return null;
+    }
+
+    /**
+     * @return every user sorted by UUID, sorted again if it is stale
+     */
+    private UserRecord[] getPageOrder() {
+        long epoch = writeEpoch;
+        PageOrder current = pageOrder;
+        if(current.epoch == epoch || System.currentTimeMillis() - current.sortedAt < config.pageOrderMaxAge) {
+            return current.users;
+        }
+        synchronized (listings) { //One sort at a time, the others wait for it and reuse it
+            current = pageOrder;
+            if(current.epoch == epoch || System.currentTimeMillis() - current.sortedAt < config.pageOrderMaxAge) {
+                return current.users;
+            }
+            UserRecord[] sorted = users.values().toArray(new UserRecord[0]);
+            Arrays.sort(sorted,(a,b) -> UserRecord.compareIds(a.getId(),b.getId()));
+            pageOrder = new PageOrder(epoch,System.currentTimeMillis(),sorted);
+            return sorted;
+        }
+    }
+
+    /**
+     * How long a new write should wait before being admitted, so the write-behind queue can catch up
+     * @return delay in milliseconds, 0 unless the queue is filling up under the THROTTLE policy
+     */
+    public long getAdmissionDelay() {
+        return databaseChanges.admissionDelayMillis();
     }
 
     /**
-     * Makes all recent changes to database
+     * @return metrics for the write-behind queue
+     */
+    public WriteBehindQueue.Metrics getWriteBehindMetrics() {
+        return databaseChanges.getMetrics();
+    }
+
+    /**
+     * @return progress of loading the stored users in memory
+     */
+    public LoadMetrics getLoadMetrics() {
+        LoadMetrics metrics = new LoadMetrics();
+        metrics.warm = warm;
+        metrics.loaded = loaded;
+        metrics.total = loadTotal;
+        metrics.fallThroughLookups = fallThroughLookups.get();
+        metrics.loadMillis = warm ? loadMillis : System.currentTimeMillis() - loadStart;
+        return metrics;
+    }
+
+    /**
+     * Makes all recent changes to database. Changes the storage engine fails to write are tried again by the
+     * next dump, and durableStamp stays below them until then.
      */
     public void updateDatabase() {
-        while(databaseChanges.size() > 0) {
-            databaseChanges.get(0).run();
-            databaseChanges.remove(0);
+        synchronized (dumpLock) {
+            long start = System.nanoTime();
+            ArrayList<DatabaseChange> drained = new ArrayList<>();
+            int count = databaseChanges.drainTo(drained);
+            if(count == 0 && unwritten.isEmpty()) return;
+            List<DatabaseChange> changes = DatabaseChange.coalesce(drained); //Only the final state of each user is written
+            HashSet<String> failed = new HashSet<>();
+            for(DatabaseChange change : write(DatabaseChange.orderForUniqueNames(changes))) {
+                failed.add(change.getUuid());
+            }
+            for(DatabaseChange change : drained) {
+                drainedStamp = Math.max(drainedStamp,change.getLstamp());
+                if(failed.contains(change.getUuid())) unwrittenStamp = Math.min(unwrittenStamp,change.getLstamp());
+            }
+            durableStamp = Math.max(durableStamp,Math.min(drainedStamp,unwrittenStamp - 1));
+            databaseChanges.recordDump(count,changes.size(),System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Writes ordered changes to the storage engine after the ones an earlier dump could not write. Writing stops
+     * at the first change that fails, it and every change after it are kept for the next dump. Holds dumpLock.
+     * @param ordered - changes in the order from DatabaseChange.orderForUniqueNames
+     * @return the changes that were not written, empty if every change was
+     */
+    private List<DatabaseChange> write(List<DatabaseChange> ordered) {
+        ArrayList<DatabaseChange> all = new ArrayList<>(unwritten.size() + ordered.size());
+        all.addAll(unwritten);
+        all.addAll(ordered);
+        int written = 0;
+        if(config.batchedFlush) {
+            written = db.applyChanges(all);
+        } else {
+            while(written < all.size() && all.get(written).apply(db) == 1) written++;
+        }
+        if(written >= unwritten.size()) unwrittenStamp = Integer.MAX_VALUE; //The earlier dump's changes are stored now
+        unwritten = new ArrayList<>(all.subList(written,all.size()));
+        return unwritten;
+    }
+
+    /**
+     * Changes are queued in stamp order, so once a dump is written every change up to its newest stamp is stored.
+     * An action log only needs to keep actions after this stamp.
+     * @return stamp of the newest change written to the storage engine by this manager, 0 before the first dump
+     */
+    public int getDurableStamp() {
+        return durableStamp;
+    }
+
+    /**
+     * Sets where the stamp of the replication horizon comes from. Tombstones newer than the
+     * horizon are never purged.
+     * @param horizon
+     */
+    public void setReplicationHorizon(IntSupplier horizon) {
+        replicationHorizon = horizon;
+    }
+
+    /**
+     * Removes tombstones older than the replication horizon from the sql database. When snapshots are
+     * on, tombstones newer than the last snapshot are kept too, because loading that snapshot replays them.
+     * @return number of tombstones removed
+     */
+    public int purgeTombstones() {
+        int horizon = replicationHorizon.getAsInt();
+        if(snapshotFile != null) horizon = Math.min(horizon,lastSnapshotStamp);
+        if(horizon <= 0) return 0;
+        return db.purgeTombstones(horizon);
+    }
+
+    /**
+     * @return size of the sql database in bytes
+     */
+    public long getDatabaseSize() {
+        return db.getSize();
+    }
+
+    /**
+     * Writes a snapshot of the memory database, if anything changed since the last one.
+     * The changes in the snapshot are dumped to the sql database before the snapshot replaces
+     * the old one, so a snapshot never holds a change the sql database is missing.
+     * @return true if a snapshot was written or nothing changed, false if writing failed or snapshots are off
+     */
+    public boolean writeSnapshot() {
+        if(snapshotFile == null || !warm) return false; //A snapshot taken while loading would be missing users
+        synchronized (snapshotLock) {
+            ArrayList<UserRecord> snapshotUsers;
+            int stamp;
+            synchronized (this) { //No write can happen between reading the users and the stamp
+                stamp = highestStamp;
+                if(stamp == lastSnapshotStamp) return true;
+                snapshotUsers = users.values();
+            }
+            updateDatabase();
+            if(!snapshotFile.write(snapshotUsers,stamp)) return false;
+            lastSnapshotStamp = stamp;
+            return true;
+        }
+    }
+
+    /**
+     * Writes a snapshot of the memory database to a file, for a server that needs a copy of every user
+     * @param file
+     * @return stamp of the snapshot, every change up to it is in the file, or -1 if it could not be written
+     */
+    public int writeSnapshotTo(File file) {
+        ArrayList<UserRecord> snapshotUsers;
+        int stamp;
+        synchronized (this) { //No write can happen between reading the users and the stamp
+            stamp = highestStamp;
+            snapshotUsers = users.values();
+        }
+        return new SnapshotFile(file).write(snapshotUsers,stamp) ? stamp : -1;
+    }
+
+    /**
+     * Makes this manager hold exactly the users in a snapshot from another server, see writeSnapshotTo.
+     * Users that are not in the snapshot are deleted, users with another name are renamed and missing users
+     * are created. Lookups see the new users as soon as they are in memory, and the changes are then written to
+     * the storage engine in one batch instead of through the write-behind queue.
+     * A user's other values never change after it is created, so they are not compared.
+     * Waits for the stored users to be loaded first.
+     * @param file
+     * @return stamp of the snapshot, or -1 if it could not be read
+     */
+    public int installSnapshot(File file) {
+        SnapshotFile.Snapshot snapshot = new SnapshotFile(file).read();
+        if(snapshot == null) return -1;
+        while(!warm) { //A loader putting stored users in memory would undo the changes
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
         }
+        HashMap<Object,UserRecord> incoming = new HashMap<>(snapshot.users.size() * 4 / 3 + 1);
+        for(UserRecord u : snapshot.users) {
+            incoming.put(u.getId(),u);
+        }
+        snapshot.users = null;
+        ArrayList<DatabaseChange> changes = new ArrayList<>();
+        synchronized (this) {
+            ArrayList<UserRecord> renamed = new ArrayList<>();
+            for(UserRecord current : users.values()) {
+                UserRecord next = incoming.remove(current.getId());
+                if(next != null && next.getLstamp() == current.getLstamp() && Objects.equals(next.getName(),current.getName())) continue;
+                users.remove(current); //Every old name is given up before any new name is taken
+                unindexUser(current);
+                if(next == null) {
+                    changes.add(new DatabaseChange(current.getUuid(),snapshot.stamp));
+                } else {
+                    renamed.add(next);
+                }
+            }
+            for(UserRecord u : renamed) {
+                if(users.add(u)) indexUser(u);
+                changes.add(new DatabaseChange(u.getUuid(),u.getName(),u.getLstamp()));
+            }
+            for(UserRecord u : incoming.values()) {
+                if(users.add(u)) {
+                    indexUser(u);
+                    changes.add(new DatabaseChange(u.toUser()));
+                }
+            }
+            highestStamp = Math.max(highestStamp,snapshot.stamp);
+            writeEpoch++;
+        }
+        //Written after the lock is released, straight to the storage engine: a new server's changes are far more
+        //than the write-behind queue holds, and lookups are answered from memory meanwhile.
+        //The caller applies no other change until this returns.
+        updateDatabase(); //Changes made before the snapshot are written first
+        synchronized (dumpLock) {
+            if(write(DatabaseChange.orderForUniqueNames(changes)).isEmpty()) {
+                durableStamp = Math.max(durableStamp,snapshot.stamp);
+            } else { //Stored by a later dump
+                unwrittenStamp = Math.min(unwrittenStamp,durableStamp + 1);
+                drainedStamp = Math.max(drainedStamp,snapshot.stamp);
+            }
+        }
+        return snapshot.stamp;
     }
 
+    /**
+     * A listing and the write epoch it was built in
+     */
+    private static class CachedListing {
+        final long epoch;
+        final List<String> entries;
+
+        CachedListing(long epoch, List<String> entries) {
+            this.epoch = epoch;
+            this.entries = entries;
+        }
+    }
 
     /**
-     * Timer that periodically dumps changes to database
+     * Users sorted by UUID, and when they were sorted
+     */
+    private static class PageOrder {
+        final long epoch;
+        final long sortedAt;
+        final UserRecord[] users;
+
+        PageOrder(long epoch, long sortedAt, UserRecord[] users) {
+            this.epoch = epoch;
+            this.sortedAt = sortedAt;
+            this.users = users;
+        }
+    }
+
+    /**
+     * Progress of loading the stored users in memory
+     */
+    public static class LoadMetrics {
+        public boolean warm;                    //Every stored user is in memory
+        public int loaded;                      //Stored users put in memory so far
+        public int total;                       //Stored users to put in memory, 0 until they are read
+        public long fallThroughLookups;         //Lookups answered by the sql database while loading
+        public long loadMillis;                 //Time spent loading, so far if not warm
+
+        public String toString() {
+            return "[Load " + (warm ? "warm" : "loading") + ": " + loaded + "/" + total + " users in " + loadMillis + "ms"
+                    + " fall through lookups: " + fallThroughLookups + "]";
+        }
+    }
+
+    /**
+     * Timer that periodically dumps changes to database. An exception must not reach the timer: that would cancel
+     * it, and writers waiting on a full write-behind queue would wait forever.
      */
     public class Dump extends TimerTask {
 
@@ -232,7 +854,47 @@ public class DatabaseManager {
 
         @Override
         public void run() {
-            this.dm.updateDatabase();
+            try {
+                this.dm.updateDatabase();
+            } catch (RuntimeException e) {
+                log.severe("Error in dump, trying again with the next one:\n" + e.toString());
+            }
+        }
+    }
+
+    /**
+     * Timer that periodically purges old tombstones. Runs on the dump timer, so it keeps exceptions from it too.
+     */
+    public class Purge extends TimerTask {
+
+        public DatabaseManager dm;
+        public Purge(DatabaseManager dm) {
+            this.dm = dm;
+        }
+
+        @Override
+        public void run() {
+            try {
+                this.dm.purgeTombstones();
+            } catch (RuntimeException e) {
+                log.severe("Error in tombstone purge:\n" + e.toString());
+            }
+        }
+    }
+
+    /**
+     * Timer that periodically writes a snapshot
+     */
+    public class Snapshot extends TimerTask {
+
+        public DatabaseManager dm;
+        public Snapshot(DatabaseManager dm) {
+            this.dm = dm;
+        }
+
+        @Override
+        public void run() {
+            this.dm.writeSnapshot();
         }
     }
 
@@ -0,0 +1,109 @@
+package Identity.Database;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Concurrent in memory store of users on the java heap, indexed by UUID and by login name.
+ *
+ * Users are kept as compact UserRecords, keyed by their java.util.UUID.
+ * Reads never take a lock. Records are immutable, a rename puts a new copy of the user in place of the old one. The UUID table is the source of truth:
+ * a name only resolves to a user if the user stored under that user's UUID still has that name.
+ * That makes the UUID table update the single point where a create, rename or delete takes effect,
+ * so a reader can never see a user under both its old and new name.
+ *
+ * Writes must be serialized by the caller (DatabaseManager does this).
+ */
+public class HeapUserStore implements UserStore {
+    private ConcurrentHashMap<Object,UserRecord> usersById;    //Users with user ID as key, see UserRecord.idKey
+    private ConcurrentHashMap<String,UserRecord> usersByName;  //Users with login name as key
+
+    public HeapUserStore() {
+        usersById = new ConcurrentHashMap<>();
+        usersByName = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Gets a user by login name. Returns null if no user has that login name
+     * @param name
+     * @return UserRecord
+     */
+    public UserRecord getByName(String name) {
+        UserRecord user = usersByName.get(name);
+        if(user == null) return null;
+        UserRecord current = usersById.get(user.getId()); //The name entry may belong to a rename or delete in progress
+        return (current != null && current.getName().equals(name)) ? current : null;
+    }
+
+    /**
+     * Gets a user by UUID. Returns null if no user has that UUID
+     * @param uuid
+     * @return UserRecord
+     */
+    public UserRecord getById(String uuid) {
+        return usersById.get(UserRecord.idKey(uuid));
+    }
+
+    /**
+     * Adds a new user if its login name and UUID are both free. The name is reserved first, so two
+     * creates racing for the same name can never both succeed. The user becomes visible when it is put
+     * in the UUID table.
+     * @param user
+     * @return true if the user was added, false if the login name or UUID is taken
+     */
+    public boolean add(UserRecord user) {
+        if(usersById.containsKey(user.getId())) return false;
+        if(usersByName.putIfAbsent(user.getName(),user) != null) return false;
+        if(usersById.putIfAbsent(user.getId(),user) != null) {
+            usersByName.remove(user.getName(),user); //Give the name reservation back
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Replaces a stored user with an updated copy of it (same UUID, possibly a new login name).
+     * The new login name is reserved in the same step that checks it is free.
+     * @param old - The user currently in the store
+     * @param updated - The copy that replaces it
+     * @return true if the user was replaced, false if the new login name is taken or old is no longer stored
+     */
+    public boolean replace(UserRecord old, UserRecord updated) {
+        if(old.getName().equals(updated.getName())) {
+            if(!usersById.replace(updated.getId(),old,updated)) return false;
+            usersByName.replace(updated.getName(),old,updated);
+            return true;
+        }
+        if(usersByName.putIfAbsent(updated.getName(),updated) != null) return false;
+        if(!usersById.replace(updated.getId(),old,updated)) {
+            usersByName.remove(updated.getName(),updated); //Give the name reservation back
+            return false;
+        }
+        usersByName.remove(old.getName(),old);
+        return true;
+    }
+
+    /**
+     * Removes a user. The user disappears when it is removed from the UUID table.
+     * @param user
+     */
+    public void remove(UserRecord user) {
+        usersById.remove(user.getId(),user);
+        usersByName.remove(user.getName(),user);
+    }
+
+    /**
+     * Gets all users in the store
+     * @return list of all users
+     */
+    public ArrayList<UserRecord> values() {
+        return new ArrayList<>(usersById.values());
+    }
+
+    /**
+     * @return number of users in the store
+     */
+    public int size() {
+        return usersById.size();
+    }
+}
@@ -0,0 +1,725 @@
+package Identity.Database;
+
+import Identity.Server.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Log structured storage engine (Bitcask style). Every write is appended to the newest segment file
+ * of a directory, and an in memory key directory holds where the latest record of each user is.
+ * A rename or delete is a new record, nothing on disk is ever changed in place.
+ *
+ * Record format: CRC32 of the rest of the record, body length, then the body: type, stamp and the values.
+ * At start up every segment is read in order to rebuild the key directory. A record that is cut short
+ * or fails its CRC ends its segment: in the newest segment that is a write torn by a crash, and the
+ * segment is truncated there.
+ *
+ * When most of a sealed segment is old versions of users, its live records are copied to the newest
+ * segment and the file is deleted (a merge). Merges run on a background timer.
+ *
+ * Writes are durable once written to the file system, like sqlite's synchronous NORMAL. With synchronous
+ * FULL every write is also forced to disk.
+ *
+ * A purged tombstone stays on disk until a merge reaches it with no older segment left, since an older
+ * segment may still hold the user it deleted. Until then a restart brings it back and the next purge removes it again.
+ */
+public class LogEngine implements StorageEngine {
+    public static final String urlPrefix = "log:";
+    private static final byte userRecord = 1, tombstoneRecord = 2, serverInfoRecord = 3;
+    private static final int headerSize = 8;    //CRC and body length
+    private static final long noDate = Long.MIN_VALUE;
+
+    private final File directory;
+    private final DatabaseConfig config;
+    private final boolean forceWrites;
+    private Logger log;
+
+    private final TreeMap<Integer,Segment> segments = new TreeMap<>();
+    private Segment active;                                     //The segment written to
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);  //Records appended to the active segment but not written yet
+    private final HashMap<String,Entry> keys = new HashMap<>(); //Latest record of each user (or tombstone) by UUID
+    private final HashMap<String,String> uuidByName = new HashMap<>();
+    private final HashMap<String,Entry> purged = new HashMap<>();  //Purged tombstones still on disk
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); //Writes and merges hold the write lock
+    private int serverID = -1;
+    private int commitState = 0;
+    private Entry serverInfo = null;                            //Latest server info record
+    private int maxStamp = 0;
+    private Timer merger;
+    private long recoveryMillis;
+    private long truncatedBytes = 0;
+
+    /**
+     * A segment file
+     */
+    private static class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        long size;          //Bytes written, not counting pending records
+        long liveBytes;     //Bytes of records that are the latest of their user
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            channel = FileChannel.open(file.toPath(),StandardOpenOption.CREATE,StandardOpenOption.READ,StandardOpenOption.WRITE);
+            size = channel.size();
+        }
+    }
+
+    /**
+     * Where the latest record of a user is
+     */
+    private static class Entry {
+        int segment;
+        long offset;
+        int length;
+        int stamp;
+        String name;        //Null for a tombstone or a user without a login name
+        boolean deleted;
+
+        Entry(int segment, long offset, int length, int stamp, String name, boolean deleted) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.stamp = stamp;
+            this.name = name;
+            this.deleted = deleted;
+        }
+    }
+
+    /**
+     * Opens the log in a directory, creating it if needed, and reads every segment to rebuild the key directory
+     * @param directory
+     * @param config - synchronous, logSegmentSize, logMergeInterval and logMergeRatio are used
+     */
+    public LogEngine(File directory, DatabaseConfig config) {
+        this.directory = directory;
+        this.config = config;
+        forceWrites = config.synchronous.equalsIgnoreCase("FULL");
+        log = Logger.getLogger("logger");
+        log.setUseParentHandlers(false);
+        long start = System.currentTimeMillis();
+        try {
+            directory.mkdirs();
+            recover();
+            if(active == null) active = openSegment(1);
+        } catch (IOException e) {
+            log.severe("Error in LogEngine open:\n" + e.toString());
+        }
+        recoveryMillis = System.currentTimeMillis() - start;
+        if(config.logMergeInterval > 0) {
+            merger = new Timer("log-merger",true);
+            merger.scheduleAtFixedRate(new TimerTask() {
+                public void run() {
+                    merge();
+                }
+            },config.logMergeInterval,config.logMergeInterval);
+        }
+    }
+
+    /**
+     * Reads every segment in order, rebuilding the key directory
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".seg"));
+        if(files == null) return;
+        TreeMap<Integer,File> ordered = new TreeMap<>();
+        for(File file : files) {
+            try {
+                ordered.put(Integer.parseInt(file.getName().substring(0,file.getName().length() - 4)),file);
+            } catch (NumberFormatException e) {
+                log.severe("Error in LogEngine recovery: not a segment " + file);
+            }
+        }
+        for(Map.Entry<Integer,File> file : ordered.entrySet()) {
+            Segment segment = new Segment(file.getKey(),file.getValue());
+            segments.put(segment.id,segment);
+            long end = replay(segment);
+            if(end < segment.size) {
+                if(file.getKey().equals(ordered.lastKey())) {
+                    truncatedBytes = segment.size - end;
+                    log.severe("LogEngine recovery: truncating a torn write of " + truncatedBytes + " bytes in " + segment.file);
+                    segment.channel.truncate(end);
+                    segment.size = end;
+                } else {
+                    log.severe("Error in LogEngine recovery: corrupt record at " + end + " in " + segment.file + ", the rest of it is skipped");
+                }
+            }
+            active = segment;
+        }
+    }
+
+    /**
+     * Reads every record of a segment
+     * @return the offset after the last good record
+     */
+    private long replay(Segment segment) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        long position = 0;      //File offset of the start of the buffer
+        buffer.limit(0);
+        CRC32 crc = new CRC32();
+        while(true) {
+            if(buffer.remaining() < headerSize || buffer.remaining() < headerSize + buffer.getInt(buffer.position() + 4)) {
+                int needed = (buffer.remaining() < headerSize) ? headerSize : headerSize + buffer.getInt(buffer.position() + 4);
+                if(needed < headerSize || needed > config.logSegmentSize + headerSize) return position + buffer.position(); //Garbage length
+                position += buffer.position();
+                buffer.compact();
+                if(buffer.capacity() < needed) {
+                    ByteBuffer larger = ByteBuffer.allocate(needed);
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                }
+                while(buffer.position() < needed) {
+                    if(segment.channel.read(buffer,position + buffer.position()) <= 0) break;
+                }
+                buffer.flip();
+                if(buffer.remaining() < needed) return position; //Cut short
+            }
+            int start = buffer.position();
+            int storedCrc = buffer.getInt(start);
+            int length = buffer.getInt(start + 4);
+            crc.reset();
+            crc.update(buffer.array(),start + 4,length + 4);
+            if((int) crc.getValue() != storedCrc) return position + start;
+            buffer.position(start + headerSize);
+            apply(buffer,segment.id,position + start,headerSize + length);
+            buffer.position(start + headerSize + length);
+        }
+    }
+
+    /**
+     * Updates the key directory with a record
+     * @param body - positioned at the start of the body
+     */
+    private void apply(ByteBuffer body, int segment, long offset, int length) {
+        byte type = body.get();
+        int stamp = body.getInt();
+        if(type == serverInfoRecord) {
+            serverID = body.getInt();
+            commitState = body.getInt();
+            if(serverInfo != null) dead(serverInfo);
+            serverInfo = new Entry(segment,offset,length,stamp,null,false);
+            segments.get(segment).liveBytes += length;
+            return;
+        }
+        maxStamp = Math.max(maxStamp,stamp);
+        String uuid = readString(body);
+        String name = (type == userRecord) ? readString(body) : null;
+        put(uuid,new Entry(segment,offset,length,stamp,name,type == tombstoneRecord));
+    }
+
+    /**
+     * Makes an entry the latest record of a user
+     */
+    private void put(String uuid, Entry entry) {
+        Entry old = keys.put(uuid,entry);
+        if(old != null) {
+            dead(old);
+            if(old.name != null) uuidByName.remove(old.name,uuid);
+        }
+        Entry tombstone = purged.remove(uuid);
+        if(tombstone != null) dead(tombstone);
+        if(entry.name != null) uuidByName.put(entry.name,uuid);
+        segments.get(entry.segment).liveBytes += entry.length;
+    }
+
+    private void dead(Entry entry) {
+        Segment segment = segments.get(entry.segment);
+        if(segment != null) segment.liveBytes -= entry.length;
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        Segment segment = new Segment(id,new File(directory,String.format("%08d.seg",id)));
+        segments.put(id,segment);
+        return segment;
+    }
+
+    public boolean setUp() {
+        return directory.isDirectory();
+    }
+
+    public void close() {
+        if(merger != null) merger.cancel();
+        lock.writeLock().lock();
+        try {
+            flush();
+            for(Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        } catch (IOException e) {
+            log.severe("Error in LogEngine close:\n" + e.toString());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int setServerID(int serverID) {
+        return writeServerInfo(serverID,commitState);
+    }
+
+    public int getServerID() {
+        lock.readLock().lock();
+        try {
+            return serverID;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int setCommitState(int state) {
+        return writeServerInfo(serverID,state);
+    }
+
+    public int getCommitState() {
+        lock.readLock().lock();
+        try {
+            return commitState;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int writeServerInfo(int serverID, int state) {
+        lock.writeLock().lock();
+        try {
+            ByteBuffer body = body(serverInfoRecord,0,8);   //Not a user change, so it has no stamp
+            body.putInt(serverID);
+            body.putInt(state);
+            this.serverID = serverID;
+            this.commitState = state;
+            Entry entry = append(body);
+            if(serverInfo != null) dead(serverInfo);
+            serverInfo = entry;
+            active.liveBytes += entry.length;
+            flush();
+            return 1;
+        } catch (IOException e) {
+            log.severe("Error in LogEngine writeServerInfo:\n" + e.toString());
+            return -1;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int getLogicalStamp() {
+        lock.readLock().lock();
+        try {
+            return maxStamp;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public ArrayList<User> getUsers() {
+        return readUsers(Integer.MIN_VALUE,null);
+    }
+
+    public ArrayList<User> getUsersChangedSince(int stamp, ArrayList<String> deletedUuids) {
+        return readUsers(stamp,deletedUuids);
+    }
+
+    /**
+     * Reads every user with a stamp after a stamp, in file order so the disk is read front to back
+     * @param deletedUuids - filled with the UUIDs of tombstones after the stamp, null to skip them
+     */
+    private ArrayList<User> readUsers(int stamp, ArrayList<String> deletedUuids) {
+        ArrayList<User> users = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            ArrayList<Entry> entries = new ArrayList<>();
+            for(Map.Entry<String,Entry> key : keys.entrySet()) {
+                Entry entry = key.getValue();
+                if(entry.stamp <= stamp) continue;
+                if(entry.deleted) {
+                    if(deletedUuids != null) deletedUuids.add(key.getKey());
+                    continue;
+                }
+                entries.add(entry);
+            }
+            entries.sort((a, b) -> a.segment != b.segment ? Integer.compare(a.segment,b.segment) : Long.compare(a.offset,b.offset));
+            for(Entry entry : entries) {
+                users.add(readUser(entry));
+            }
+        } catch (IOException e) {
+            log.severe("Error in LogEngine getUsers:\n" + e.toString());
+        } finally {
+            lock.readLock().unlock();
+        }
+        return users;
+    }
+
+    public User getUserByUUID(String uuid) {
+        lock.readLock().lock();
+        try {
+            Entry entry = keys.get(uuid);
+            return (entry == null || entry.deleted) ? null : readUser(entry);
+        } catch (IOException e) {
+            log.severe("Error in LogEngine getUserByUUID:\n" + e.toString());
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public User getUserByName(String name) {
+        lock.readLock().lock();
+        try {
+            String uuid = uuidByName.get(name);
+            return (uuid == null) ? null : readUser(keys.get(uuid));
+        } catch (IOException e) {
+            log.severe("Error in LogEngine getUserByName:\n" + e.toString());
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int createNewUser(User user) {
+        lock.writeLock().lock();
+        try {
+            if(user.getName() != null && uuidByName.containsKey(user.getName())) return -2;
+            create(user);
+            flush();
+            return 1;
+        } catch (IOException e) {
+            log.severe("Error in LogEngine createNewUser:\n" + e.toString());
+            return -1;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int deleteUserByUUID(String uuid, int stamp) {
+        lock.writeLock().lock();
+        try {
+            delete(uuid,stamp);
+            flush();
+            return 1;
+        } catch (IOException e) {
+            log.severe("Error in LogEngine deleteUserByUUID:\n" + e.toString());
+            return -1;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int changeUserName(String uuid, String newName, int lStamp) {
+        lock.writeLock().lock();
+        try {
+            rename(uuid,newName,lStamp);
+            flush();
+            return 1;
+        } catch (IOException e) {
+            log.severe("Error in LogEngine changeUserName:\n" + e.toString());
+            return -1;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Appends every change and writes them together, forcing them to disk once if synchronous is FULL
+     */
+    public int applyChanges(List<DatabaseChange> changes) {
+        lock.writeLock().lock();
+        try {
+            for(DatabaseChange change : changes) {
+                switch(change.getType()) {
+                    case CREATE: create(change.getUser()); break;
+                    case DELETE: delete(change.getUuid(),change.getLstamp()); break;
+                    case RENAME: rename(change.getUuid(),change.getNewName(),change.getLstamp()); break;
+                }
+            }
+            flush();
+            return changes.size();
+        } catch (IOException e) { //None of them are known to be on disk, they are appended again
+            log.severe("Error in LogEngine applyChanges:\n" + e.toString());
+            return 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void create(User user) throws IOException {
+        Date date = (user.getDate() == null) ? new Date() : user.getDate();
+        append(user.getUuid(),user.getName(),user.getRealname(),user.getPassHash(),user.getIpAddress(),date.getTime(),user.getLstamp());
+    }
+
+    private void delete(String uuid, int stamp) throws IOException {
+        ByteBuffer body = body(tombstoneRecord,stamp,stringSize(uuid));
+        writeString(body,uuid);
+        put(uuid,withName(append(body),null,true));
+        maxStamp = Math.max(maxStamp,stamp);
+    }
+
+    /**
+     * Appends a copy of the user with the new name. Renaming a tombstone only changes its stamp,
+     * and renaming an unknown user does nothing, the same as the sql update
+     */
+    private void rename(String uuid, String newName, int stamp) throws IOException {
+        Entry entry = keys.get(uuid);
+        if(entry == null) return;
+        if(entry.deleted) {
+            delete(uuid,stamp);
+            return;
+        }
+        User user = readUser(entry);
+        append(uuid,newName,user.getRealname(),user.getPassHash(),user.getIpAddress(),
+                user.getDate() == null ? noDate : user.getDate().getTime(),stamp);
+    }
+
+    private void append(String uuid, String name, String realname, String passHash, String ip, long date, int stamp) throws IOException {
+        ByteBuffer body = body(userRecord,stamp,stringSize(uuid) + stringSize(name) + stringSize(realname) + stringSize(passHash) + stringSize(ip) + 8);
+        writeString(body,uuid);
+        writeString(body,name);
+        writeString(body,realname);
+        writeString(body,passHash);
+        writeString(body,ip);
+        body.putLong(date);
+        put(uuid,withName(append(body),name,false));
+        maxStamp = Math.max(maxStamp,stamp);
+    }
+
+    private static Entry withName(Entry entry, String name, boolean deleted) {
+        entry.name = name;
+        entry.deleted = deleted;
+        return entry;
+    }
+
+    /**
+     * @return a buffer for a record with room for the values, with the header skipped and the type and stamp written
+     */
+    private static ByteBuffer body(byte type, int stamp, int valuesSize) {
+        ByteBuffer record = ByteBuffer.allocate(headerSize + 5 + valuesSize);
+        record.position(headerSize);
+        record.put(type);
+        record.putInt(stamp);
+        return record;
+    }
+
+    /**
+     * Fills in the header of a record and appends it to the active segment, starting a new segment if it is full
+     * @param record - made by body, with every value written
+     * @return an entry for where the record is, not yet counted as live
+     */
+    private Entry append(ByteBuffer record) throws IOException {
+        int length = record.position();
+        record.putInt(4,length - headerSize);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(),4,length - 4);
+        record.putInt(0,(int) crc.getValue());
+        if(active.size + pending.position() + length > config.logSegmentSize && active.size + pending.position() > 0) {
+            flush();
+            active = openSegment(active.id + 1);
+        }
+        if(pending.remaining() < length) {
+            flush();
+            if(pending.capacity() < length) pending = ByteBuffer.allocate(length);
+        }
+        long offset = active.size + pending.position();
+        pending.put(record.array(),0,length);
+        return new Entry(active.id,offset,length,record.getInt(headerSize + 1),null,false);
+    }
+
+    /**
+     * Writes the pending records to the active segment
+     */
+    private void flush() throws IOException {
+        if(pending.position() == 0) return;
+        pending.flip();
+        while(pending.hasRemaining()) {
+            active.size += active.channel.write(pending,active.size);
+        }
+        pending.clear();
+        if(forceWrites) active.channel.force(false);
+    }
+
+    /**
+     * Reads the user in a record. Must hold the lock.
+     */
+    private User readUser(Entry entry) throws IOException {
+        if(entry.segment == active.id && entry.offset >= active.size) flush(); //Still pending, only during a write
+        ByteBuffer record = read(entry);
+        record.position(headerSize + 5);
+        User user = new User(readString(record),readString(record),readString(record),readString(record),readString(record));
+        long date = record.getLong();
+        if(date != noDate) user.setDate(new Date(date));
+        user.setLstamp(entry.stamp);
+        return user;
+    }
+
+    private ByteBuffer read(Entry entry) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(entry.length);
+        FileChannel channel = segments.get(entry.segment).channel;
+        while(record.hasRemaining()) {
+            if(channel.read(record,entry.offset + record.position()) < 0) throw new IOException("Record past the end of segment " + entry.segment);
+        }
+        record.flip();
+        return record;
+    }
+
+    public int purgeTombstones(int horizon) {
+        lock.writeLock().lock();
+        try {
+            int count = 0;
+            for(Iterator<Map.Entry<String,Entry>> entries = keys.entrySet().iterator(); entries.hasNext(); ) {
+                Map.Entry<String,Entry> key = entries.next();
+                Entry entry = key.getValue();
+                if(entry.deleted && entry.stamp <= horizon) {
+                    entries.remove();
+                    purged.put(key.getKey(),entry);
+                    count++;
+                }
+            }
+            if(count > 0) { //The newest stamp may have been purged, like max(stamp) in sql
+                maxStamp = 0;
+                for(Entry entry : keys.values()) {
+                    maxStamp = Math.max(maxStamp,entry.stamp);
+                }
+            }
+            return count;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Merges every sealed segment where at least logMergeRatio of the bytes are dead: its live records are
+     * copied to the active segment, which is forced to disk before the old file is deleted.
+     * Holds the write lock for one segment at a time.
+     * @return number of segments merged
+     */
+    public int merge() {
+        int merged = 0;
+        while(true) {
+            lock.writeLock().lock();
+            try {
+                Segment victim = null;
+                for(Segment segment : segments.values()) {
+                    if(segment == active) continue;
+                    if(segment.size == 0 || (segment.size - segment.liveBytes) >= config.logMergeRatio * segment.size) {
+                        victim = segment;
+                        break;
+                    }
+                }
+                if(victim == null) return merged;
+                mergeSegment(victim);
+                merged++;
+            } catch (IOException e) {
+                log.severe("Error in LogEngine merge:\n" + e.toString());
+                return merged;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private void mergeSegment(Segment victim) throws IOException {
+        ArrayList<Entry> live = new ArrayList<>();
+        for(Entry entry : keys.values()) {
+            if(entry.segment == victim.id) live.add(entry);
+        }
+        boolean oldest = victim.id == segments.firstKey();
+        for(Iterator<Entry> tombstones = purged.values().iterator(); tombstones.hasNext(); ) {
+            Entry entry = tombstones.next();
+            if(entry.segment != victim.id) continue;
+            if(oldest) {
+                tombstones.remove();    //Nothing older is left for it to hide
+                victim.liveBytes -= entry.length;
+            } else {
+                live.add(entry);
+            }
+        }
+        if(serverInfo != null && serverInfo.segment == victim.id) live.add(serverInfo);
+        live.sort((a, b) -> Long.compare(a.offset,b.offset));
+        for(Entry entry : live) {
+            ByteBuffer record = read(entry);
+            record.position(entry.length);
+            Entry moved = append(record);   //The same bytes, so the CRC still matches
+            victim.liveBytes -= entry.length;
+            entry.segment = moved.segment;
+            entry.offset = moved.offset;
+            segments.get(entry.segment).liveBytes += entry.length;
+        }
+        flush();
+        active.channel.force(false);        //The copies must be on disk before the only other copy is deleted
+        victim.channel.close();
+        segments.remove(victim.id);
+        if(!victim.file.delete()) log.severe("Error in LogEngine merge: could not delete " + victim.file);
+    }
+
+    /**
+     * @return total size of the segment files in bytes
+     */
+    public long getSize() {
+        lock.readLock().lock();
+        try {
+            long size = pending.position();
+            for(Segment segment : segments.values()) {
+                size += segment.size;
+            }
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of segment files
+     */
+    public int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return milliseconds it took to read the segments when the engine was opened
+     */
+    public long getRecoveryMillis() {
+        return recoveryMillis;
+    }
+
+    /**
+     * @return bytes of a torn write cut off the newest segment when the engine was opened
+     */
+    public long getTruncatedBytes() {
+        return truncatedBytes;
+    }
+
+    private static int stringSize(String s) {
+        return 4 + (s == null ? 0 : s.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    private static void writeString(ByteBuffer buffer, String s) {
+        if(s == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if(length < 0) return null;
+        String s = new String(buffer.array(),buffer.arrayOffset() + buffer.position(),length,StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+}
@@ -0,0 +1,172 @@
+package Identity.Database;
+
+import Identity.Server.User;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage engine that keeps everything in memory and loses it when the process exits.
+ * For tests, and for comparing the cost of the sqlite engine against no storage at all.
+ *
+ * Users are copied in and out, so a caller changing a User never changes what is stored.
+ */
+public class MemoryEngine implements StorageEngine {
+    public static final String urlPrefix = "memory:";
+
+    private final HashMap<String,Row> byUuid = new HashMap<>();     //Users and tombstones
+    private final HashMap<String,String> uuidByName = new HashMap<>();
+    private int serverID = -1;
+    private int commitState = 0;
+    private int maxStamp = 0;
+
+    /**
+     * A stored user, or a tombstone if the user is null
+     */
+    private static class Row {
+        User user;
+        int stamp;
+
+        Row(User user, int stamp) {
+            this.user = user;
+            this.stamp = stamp;
+        }
+    }
+
+    public boolean setUp() {
+        return true;
+    }
+
+    public void close() {
+    }
+
+    public synchronized int setServerID(int serverID) {
+        this.serverID = serverID;
+        return 1;
+    }
+
+    public synchronized int getServerID() {
+        return serverID;
+    }
+
+    public synchronized int setCommitState(int state) {
+        commitState = state;
+        return 1;
+    }
+
+    public synchronized int getCommitState() {
+        return commitState;
+    }
+
+    public synchronized int getLogicalStamp() {
+        return maxStamp;
+    }
+
+    public synchronized ArrayList<User> getUsers() {
+        ArrayList<User> users = new ArrayList<>(byUuid.size());
+        for(Row row : byUuid.values()) {
+            if(row.user != null) users.add(copy(row.user));
+        }
+        return users;
+    }
+
+    public synchronized ArrayList<User> getUsersChangedSince(int stamp, ArrayList<String> deletedUuids) {
+        ArrayList<User> users = new ArrayList<>();
+        for(Map.Entry<String,Row> entry : byUuid.entrySet()) {
+            Row row = entry.getValue();
+            if(row.stamp <= stamp) continue;
+            if(row.user == null) {
+                deletedUuids.add(entry.getKey());
+            } else {
+                users.add(copy(row.user));
+            }
+        }
+        return users;
+    }
+
+    public synchronized User getUserByUUID(String uuid) {
+        Row row = byUuid.get(uuid);
+        return (row == null || row.user == null) ? null : copy(row.user);
+    }
+
+    public synchronized User getUserByName(String name) {
+        String uuid = uuidByName.get(name);
+        return (uuid == null) ? null : getUserByUUID(uuid);
+    }
+
+    public synchronized int createNewUser(User user) {
+        if(user.getName() != null && uuidByName.containsKey(user.getName())) return -2;
+        Row old = byUuid.get(user.getUuid());
+        if(old != null && old.user != null && old.user.getName() != null) uuidByName.remove(old.user.getName());
+        User stored = copy(user);
+        if(stored.getDate() == null) stored.setDate(new Date());
+        byUuid.put(user.getUuid(),new Row(stored,user.getLstamp()));
+        maxStamp = Math.max(maxStamp,user.getLstamp());
+        if(user.getName() != null) uuidByName.put(user.getName(),user.getUuid());
+        return 1;
+    }
+
+    public synchronized int deleteUserByUUID(String uuid, int stamp) {
+        Row row = byUuid.get(uuid);
+        if(row != null && row.user != null && row.user.getName() != null) uuidByName.remove(row.user.getName(),uuid);
+        byUuid.put(uuid,new Row(null,stamp)); //Like the sqlite engine, a delete of an unknown user still leaves a tombstone
+        maxStamp = Math.max(maxStamp,stamp);
+        return 1;
+    }
+
+    public synchronized int changeUserName(String uuid, String newName, int lStamp) {
+        Row row = byUuid.get(uuid);
+        if(row == null) return 1; //Like an sql update of no rows
+        row.stamp = lStamp;
+        maxStamp = Math.max(maxStamp,lStamp);
+        if(row.user == null) return 1;
+        if(row.user.getName() != null) uuidByName.remove(row.user.getName(),uuid);
+        row.user.setName(newName);
+        row.user.setLstamp(lStamp);
+        if(newName != null) uuidByName.put(newName,uuid);
+        return 1;
+    }
+
+    public synchronized int applyChanges(List<DatabaseChange> changes) {
+        for(int i = 0; i < changes.size(); i++) {
+            if(changes.get(i).apply(this) != 1) return i;
+        }
+        return changes.size();
+    }
+
+    public synchronized int purgeTombstones(int horizon) {
+        int purged = 0;
+        for(Iterator<Row> rows = byUuid.values().iterator(); rows.hasNext(); ) {
+            Row row = rows.next();
+            if(row.user == null && row.stamp <= horizon) {
+                rows.remove();
+                purged++;
+            }
+        }
+        if(purged > 0) { //The newest row may have been purged, like max(stamp) in sql
+            maxStamp = 0;
+            for(Row row : byUuid.values()) {
+                maxStamp = Math.max(maxStamp,row.stamp);
+            }
+        }
+        return purged;
+    }
+
+    /**
+     * @return -1, nothing is stored in a file
+     */
+    public long getSize() {
+        return -1;
+    }
+
+    private static User copy(User user) {
+        User copy = new User(user.getUuid(),user.getName(),user.getRealname(),user.getPassHash(),user.getIpAddress());
+        copy.setDate(user.getDate());
+        copy.setLstamp(user.getLstamp());
+        return copy;
+    }
+}
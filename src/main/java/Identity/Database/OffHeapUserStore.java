@@ -0,0 +1,454 @@
+package Identity.Database;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Store of users kept outside the java heap, so a large store adds nothing for the garbage collector to trace.
+ *
+ * Users are encoded into direct ByteBuffer segments, appended one after another. A record is found by its
+ * address (segment number in the high 32 bits, offset in the low 32 bits). The UUID and login name indexes
+ * are open addressing hash tables of addresses with linear probing, also in direct buffers. A rename or
+ * delete marks the old record dead; a segment that is mostly dead has its live records moved to the end
+ * of the store and is then dropped.
+ *
+ * A read takes the read lock and decodes a new UserRecord, a write takes the write lock, so a reader never
+ * sees a half written change. Direct memory is limited by -XX:MaxDirectMemorySize (the heap size by default).
+ */
+public class OffHeapUserStore implements UserStore {
+    private static final long empty = 0, deleted = 1;    //Index slot values, no record has address 0 or 1
+    private static final int segmentHeader = 8;         //Unused start of each segment, so no record is at offset 0 or 1
+    private static final byte live = 1, dead = 0;
+    private static final byte standardUuid = 0, stringUuid = 1;
+
+    private final int segmentSize;
+    private ArrayList<Segment> segments = new ArrayList<>(); //Dropped segments are left as null, addresses are never reused
+    private Segment current;                                 //Segment new records are appended to
+    private Index byId;
+    private Index byName;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * A direct buffer records are appended to
+     */
+    private static class Segment {
+        ByteBuffer buffer;
+        int number;
+        int used = segmentHeader;       //Bytes written, records are appended here
+        int deadBytes = 0;              //Bytes of records that were renamed or deleted
+
+        Segment(int number, int size) {
+            this.number = number;
+            this.buffer = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    public OffHeapUserStore() {
+        this(16 * 1024 * 1024,1 << 16);
+    }
+
+    /**
+     * @param segmentSize - bytes per segment of records
+     * @param expectedUsers - initial index capacity, the indexes grow as needed
+     */
+    public OffHeapUserStore(int segmentSize, int expectedUsers) {
+        this.segmentSize = segmentSize;
+        byId = new Index(expectedUsers,true);
+        byName = new Index(expectedUsers,false);
+    }
+
+    public UserRecord getByName(String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            long address = byName.get(byName.find(name.hashCode(),nameBytes));
+            return address == empty ? null : decode(address);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public UserRecord getById(String uuid) {
+        Object id = UserRecord.idKey(uuid);
+        lock.readLock().lock();
+        try {
+            long address = byId.get(byId.find(id.hashCode(),id));
+            return address == empty ? null : decode(address);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean add(UserRecord user) {
+        byte[] nameBytes = user.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] record = encode(user,nameBytes);
+        lock.writeLock().lock();
+        try {
+            if(byId.get(byId.find(user.getId().hashCode(),user.getId())) != empty) return false;
+            if(byName.get(byName.find(user.getName().hashCode(),nameBytes)) != empty) return false;
+            long address = append(record);
+            byId.insert(user.getId().hashCode(),address);
+            byName.insert(user.getName().hashCode(),address);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces a stored user with an updated copy of it. Since a decoded record is a new object every time,
+     * old still counts as stored if the stored user has the same login name and stamp.
+     */
+    public boolean replace(UserRecord old, UserRecord updated) {
+        byte[] oldName = old.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] newName = updated.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] record = encode(updated,newName);
+        lock.writeLock().lock();
+        try {
+            int idSlot = byId.find(updated.getId().hashCode(),updated.getId());
+            long oldAddress = byId.get(idSlot);
+            if(oldAddress == empty || !isStored(oldAddress,oldName,old.getLstamp())) return false;
+            boolean sameName = old.getName().equals(updated.getName());
+            if(!sameName && byName.get(byName.find(updated.getName().hashCode(),newName)) != empty) return false;
+
+            long address = append(record);
+            byId.set(idSlot,address);
+            if(sameName) {
+                byName.set(byName.find(old.getName().hashCode(),oldName),address);
+            } else {
+                byName.remove(byName.find(old.getName().hashCode(),oldName));
+                byName.insert(updated.getName().hashCode(),address);
+            }
+            kill(oldAddress);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(UserRecord user) {
+        byte[] nameBytes = user.getName().getBytes(StandardCharsets.UTF_8);
+        lock.writeLock().lock();
+        try {
+            int idSlot = byId.find(user.getId().hashCode(),user.getId());
+            long address = byId.get(idSlot);
+            if(address == empty || !isStored(address,nameBytes,user.getLstamp())) return;
+            byId.remove(idSlot);
+            byName.remove(byName.find(user.getName().hashCode(),nameBytes));
+            kill(address);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public ArrayList<UserRecord> values() {
+        lock.readLock().lock();
+        try {
+            ArrayList<UserRecord> users = new ArrayList<>(byId.count);
+            for(int slot = 0; slot < byId.capacity; slot++) {
+                long address = byId.get(slot);
+                if(address != empty && address != deleted) users.add(decode(address));
+            }
+            return users;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return byId.count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return bytes of direct memory held by the records and indexes
+     */
+    public long getOffHeapBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = byId.table.capacity() + byName.table.capacity();
+            for(Segment segment : segments) {
+                if(segment != null) bytes += segment.buffer.capacity();
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //Records. Layout: int length, byte live, byte uuid tag, uuid (two longs, or int length and UTF-8),
+    //name, realname, ip address (int length and UTF-8, -1 for null), packed password hash (same), long date, int stamp
+
+    private static byte[] encode(UserRecord user, byte[] nameBytes) {
+        byte[] uuid = (user.getId() instanceof UUID) ? null : user.getUuid().getBytes(StandardCharsets.UTF_8);
+        byte[] realname = utf8(user.getRealname());
+        byte[] ipAddress = utf8(user.getIpAddress());
+        byte[] passHash = user.getPackedPassHash();
+        int length = 4 + 1 + 1 + (uuid == null ? 16 : 4 + uuid.length) + 4 + nameBytes.length
+                + 4 + length(realname) + 4 + length(ipAddress) + 4 + length(passHash) + 8 + 4;
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(length);
+        record.put(live);
+        if(uuid == null) {
+            UUID id = (UUID) user.getId();
+            record.put(standardUuid);
+            record.putLong(id.getMostSignificantBits());
+            record.putLong(id.getLeastSignificantBits());
+        } else {
+            record.put(stringUuid);
+            putBytes(record,uuid);
+        }
+        putBytes(record,nameBytes);
+        putBytes(record,realname);
+        putBytes(record,ipAddress);
+        putBytes(record,passHash);
+        record.putLong(user.getDate());
+        record.putInt(user.getLstamp());
+        return record.array();
+    }
+
+    private UserRecord decode(long address) {
+        ByteBuffer record = segments.get(segmentOf(address)).buffer.duplicate();
+        record.position(offsetOf(address) + 5);
+        Object id;
+        if(record.get() == standardUuid) {
+            id = new UUID(record.getLong(),record.getLong());
+        } else {
+            id = new String(getBytes(record),StandardCharsets.UTF_8);
+        }
+        String name = new String(getBytes(record),StandardCharsets.UTF_8);
+        String realname = string(getBytes(record));
+        String ipAddress = string(getBytes(record));
+        byte[] passHash = getBytes(record);
+        long date = record.getLong();
+        int lstamp = record.getInt();
+        return new UserRecord(id,name,realname,passHash,ipAddress,date,lstamp);
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static byte[] utf8(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] bytes) {
+        return bytes == null ? null : new String(bytes,StandardCharsets.UTF_8);
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes == null ? -1 : bytes.length);
+        if(bytes != null) buffer.put(bytes);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if(length < 0) return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static int segmentOf(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offsetOf(long address) {
+        return (int) address;
+    }
+
+    /**
+     * @return offset of the name length in the record at the address
+     */
+    private int nameOffset(ByteBuffer buffer, int offset) {
+        if(buffer.get(offset + 5) == standardUuid) return offset + 6 + 16;
+        return offset + 6 + 4 + buffer.getInt(offset + 6);
+    }
+
+    /**
+     * @return true if the record at the address has the login name and stamp
+     */
+    private boolean isStored(long address, byte[] name, int lstamp) {
+        ByteBuffer buffer = segments.get(segmentOf(address)).buffer;
+        int offset = offsetOf(address);
+        int length = buffer.getInt(offset);
+        return sameBytes(buffer,nameOffset(buffer,offset),name) && buffer.getInt(offset + length - 4) == lstamp;
+    }
+
+    /**
+     * @return true if the int length and bytes at the offset are the given bytes
+     */
+    private static boolean sameBytes(ByteBuffer buffer, int offset, byte[] bytes) {
+        if(buffer.getInt(offset) != bytes.length) return false;
+        for(int i = 0; i < bytes.length; i++) {
+            if(buffer.get(offset + 4 + i) != bytes[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes a record at the end of the store
+     * @return address of the record
+     */
+    private long append(byte[] record) {
+        if(current == null || current.used + record.length > current.buffer.capacity()) {
+            current = new Segment(segments.size(),Math.max(segmentSize,segmentHeader + record.length));
+            segments.add(current);
+        }
+        ByteBuffer buffer = current.buffer.duplicate();
+        buffer.position(current.used);
+        buffer.put(record);
+        long address = ((long) current.number << 32) | current.used;
+        current.used += record.length;
+        return address;
+    }
+
+    /**
+     * Marks a record dead, and compacts its segment if it is mostly dead
+     */
+    private void kill(long address) {
+        Segment segment = segments.get(segmentOf(address));
+        int offset = offsetOf(address);
+        segment.buffer.put(offset + 4,dead);
+        segment.deadBytes += segment.buffer.getInt(offset);
+        if(segment != current && segment.deadBytes > (segment.used - segmentHeader) / 2) {
+            compact(segment);
+        }
+    }
+
+    /**
+     * Moves the live records of a segment to the end of the store, then drops the segment
+     */
+    private void compact(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int offset = segmentHeader;
+        while(offset < segment.used) {
+            int length = buffer.getInt(offset);
+            if(buffer.get(offset + 4) == live) {
+                byte[] record = new byte[length];
+                ByteBuffer copy = buffer.duplicate();
+                copy.position(offset);
+                copy.get(record);
+                long address = append(record);
+                UserRecord user = decode(address); //The index slots still point at the old copy, which is still readable
+                byId.set(byId.find(user.getId().hashCode(),user.getId()),address);
+                byName.set(byName.find(user.getName().hashCode(),user.getName().getBytes(StandardCharsets.UTF_8)),address);
+            }
+            offset += length;
+        }
+        segments.set(segment.number,null); //The buffer is freed when it is garbage collected
+    }
+
+    /**
+     * Open addressing hash table of record addresses with linear probing. Keys are not stored, a slot is
+     * compared by reading the record it points to.
+     */
+    private class Index {
+        ByteBuffer table;
+        int capacity;
+        int count = 0;          //Slots holding an address
+        int removed = 0;        //Slots marked deleted
+        boolean byUuid;         //Keyed by UUID, otherwise by login name
+
+        Index(int expected, boolean byUuid) {
+            this.byUuid = byUuid;
+            allocate(expected);
+        }
+
+        private void allocate(int expected) {
+            capacity = Integer.highestOneBit(Math.max(16,expected * 2 - 1)) << 1; //At most half full
+            table = ByteBuffer.allocateDirect(capacity * 8);
+        }
+
+        long get(int slot) {
+            return table.getLong(slot * 8);
+        }
+
+        void set(int slot, long address) {
+            table.putLong(slot * 8,address);
+        }
+
+        private int start(int hash) {
+            hash ^= (hash >>> 16);
+            return (hash * 0x9E3779B9) & (capacity - 1);
+        }
+
+        /**
+         * @param key - a UUID key (java.util.UUID or String) or the UTF-8 bytes of a login name
+         * @return the slot holding the key, or an empty slot if it is not in the table
+         */
+        int find(int hash, Object key) {
+            int slot = start(hash);
+            while(true) {
+                long address = get(slot);
+                if(address == empty) return slot;
+                if(address != deleted && matches(address,key)) return slot;
+                slot = (slot + 1) & (capacity - 1);
+            }
+        }
+
+        private boolean matches(long address, Object key) {
+            ByteBuffer buffer = segments.get(segmentOf(address)).buffer;
+            int offset = offsetOf(address);
+            if(!byUuid) return sameBytes(buffer,nameOffset(buffer,offset),(byte[]) key);
+            if(key instanceof UUID) {
+                UUID uuid = (UUID) key;
+                return buffer.get(offset + 5) == standardUuid && buffer.getLong(offset + 6) == uuid.getMostSignificantBits()
+                        && buffer.getLong(offset + 14) == uuid.getLeastSignificantBits();
+            }
+            return buffer.get(offset + 5) == stringUuid && sameBytes(buffer,offset + 6,((String) key).getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Adds the address of a record whose key is not in the table
+         */
+        void insert(int hash, long address) {
+            if((count + removed + 1) * 4 > capacity * 3) { //Over three quarters full, counting deleted slots
+                rehash(count + 1);
+            }
+            int slot = start(hash);
+            while(get(slot) != empty && get(slot) != deleted) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            if(get(slot) == deleted) removed--;
+            set(slot,address);
+            count++;
+        }
+
+        void remove(int slot) {
+            if(get(slot) == empty) return;
+            set(slot,deleted);
+            count--;
+            removed++;
+        }
+
+        /**
+         * Moves every address to a new table sized for the given count, dropping deleted slots
+         */
+        private void rehash(int expected) {
+            ByteBuffer old = table;
+            int oldCapacity = capacity;
+            allocate(expected);
+            count = 0;
+            removed = 0;
+            for(int slot = 0; slot < oldCapacity; slot++) {
+                long address = old.getLong(slot * 8);
+                if(address == empty || address == deleted) continue;
+                insert(hashOf(address),address);
+            }
+        }
+
+        private int hashOf(long address) {
+            UserRecord user = decode(address);
+            return byUuid ? user.getId().hashCode() : user.getName().hashCode();
+        }
+    }
+}
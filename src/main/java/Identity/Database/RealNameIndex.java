@@ -0,0 +1,196 @@
+package Identity.Database;
+
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted index from the words of real names to the users that have them.
+ *
+ * Words are normalized before they are indexed or searched: accents are removed, letters are made lower case,
+ * and anything that is not a letter or digit separates words. So "José  O'Brien" is indexed as jose, o and brien.
+ * Words are kept in order, so a prefix finds its words in O(log n).
+ *
+ * A query is a list of terms that must all match. A term ending in * matches any word starting with it.
+ * Users are found from the most selective term, and are then checked against the other terms.
+ *
+ * Reads may run at any time. Writes must be serialized by the caller (DatabaseManager does this).
+ */
+public class RealNameIndex {
+    private static final Pattern accents = Pattern.compile("\\p{M}+");
+    private static final int prefixWordsCounted = 64; //Most words of a prefix counted when choosing the most selective term
+
+    private final ConcurrentSkipListMap<String,Set<Object>> words = new ConcurrentSkipListMap<>(); //Word to user IDs, see UserRecord.idKey
+    private final Function<Object,UserRecord> users;
+
+    /**
+     * @param users - gets the stored user with an ID, used to check users against the query
+     */
+    public RealNameIndex(Function<Object,UserRecord> users) {
+        this.users = users;
+    }
+
+    /**
+     * Indexes the real name of a user
+     * @param user
+     */
+    public void add(UserRecord user) {
+        for(String word : words(user.getRealname())) {
+            words.computeIfAbsent(word,w -> ConcurrentHashMap.newKeySet()).add(user.getId());
+        }
+    }
+
+    /**
+     * Removes a user from the index
+     * @param user
+     */
+    public void remove(UserRecord user) {
+        for(String word : words(user.getRealname())) {
+            Set<Object> ids = words.get(word);
+            if(ids == null) continue;
+            ids.remove(user.getId());
+            if(ids.isEmpty()) words.remove(word,ids); //Writes are serialized, so no user is added to it meanwhile
+        }
+    }
+
+    /**
+     * Finds the users whose real names match every term of a query
+     * @param query - terms separated by spaces, a term ending in * is a prefix. An AND between terms is allowed
+     * @param limit - most users returned
+     * @return the users found, in no particular order. Empty if the query has no terms
+     */
+    public List<UserRecord> search(String query, int limit) {
+        List<Term> terms = parse(query);
+        ArrayList<UserRecord> found = new ArrayList<>();
+        if(terms.isEmpty() || limit <= 0) return found;
+
+        Term rarest = terms.get(0);
+        for(Term term : terms) {
+            if(term.count() < rarest.count()) rarest = term;
+        }
+        HashSet<Object> seen = new HashSet<>();
+        for(Set<Object> ids : rarest.postings()) {
+            for(Object id : ids) {
+                if(rarest.prefix && !seen.add(id)) continue; //Has more than one word with the prefix
+                UserRecord user = users.apply(id);
+                if(user == null || !matches(user,terms)) continue; //Deleted, or does not match another term
+                found.add(user);
+                if(found.size() >= limit) return found;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return number of distinct words indexed
+     */
+    public int size() {
+        return words.size();
+    }
+
+    /**
+     * Splits a real name into normalized words
+     * @param realname - may be null
+     * @return the distinct words, in order of first appearance
+     */
+    static Collection<String> words(String realname) {
+        if(realname == null) return Collections.emptyList();
+        String normalized = normalize(realname);
+        ArrayList<String> found = new ArrayList<>(4);
+        int start = -1;
+        for(int i = 0; i <= normalized.length(); i++) {
+            boolean letter = i < normalized.length() && Character.isLetterOrDigit(normalized.charAt(i));
+            if(letter && start < 0) start = i;
+            if(!letter && start >= 0) {
+                String word = normalized.substring(start,i);
+                if(!found.contains(word)) found.add(word); //Names have few words
+                start = -1;
+            }
+        }
+        return found;
+    }
+
+    private static String normalize(String s) {
+        for(int i = 0; i < s.length(); i++) {
+            if(s.charAt(i) >= 0x80) { //Only names with accents need the slow way
+                return accents.matcher(Normalizer.normalize(s,Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ROOT);
+            }
+        }
+        return s.toLowerCase(Locale.ROOT);
+    }
+
+    private List<Term> parse(String query) {
+        ArrayList<Term> terms = new ArrayList<>();
+        if(query == null) return terms;
+        for(String part : query.trim().split("\\s+")) {
+            if(part.equals("AND")) continue;
+            boolean prefix = part.endsWith("*");
+            for(String word : words(part)) { //A term like o'brien is the two words o and brien
+                terms.add(new Term(word,prefix));
+            }
+        }
+        return terms;
+    }
+
+    private static boolean matches(UserRecord user, List<Term> terms) {
+        Collection<String> userWords = words(user.getRealname());
+        for(Term term : terms) {
+            boolean match = false;
+            for(String word : userWords) {
+                if(term.prefix ? word.startsWith(term.word) : word.equals(term.word)) {
+                    match = true;
+                    break;
+                }
+            }
+            if(!match) return false;
+        }
+        return true;
+    }
+
+    /**
+     * One term of a query
+     */
+    private class Term {
+        final String word;
+        final boolean prefix;
+        private long count = -1;
+
+        Term(String word, boolean prefix) {
+            this.word = word;
+            this.prefix = prefix;
+        }
+
+        /**
+         * @return the sets of IDs of users with a matching word
+         */
+        Collection<Set<Object>> postings() {
+            if(!prefix) {
+                Set<Object> ids = words.get(word);
+                return (ids == null) ? Collections.emptyList() : Collections.singletonList(ids);
+            }
+            String end = DatabaseManager.prefixEnd(word);
+            return ((end == null) ? words.tailMap(word,true) : words.subMap(word,true,end,false)).values();
+        }
+
+        /**
+         * @return number of users with a matching word. For a prefix with many words, only the first
+         * prefixWordsCounted words are counted, then it is taken to match every user
+         */
+        long count() {
+            if(count >= 0) return count;
+            count = 0;
+            int counted = 0;
+            for(Set<Object> ids : postings()) {
+                if(++counted > prefixWordsCounted) {
+                    count = Long.MAX_VALUE;
+                    break;
+                }
+                count += ids.size();
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package Identity.Database;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact binary snapshot of every user in memory, used to start the server without reading the
+ * whole users table.
+ *
+ * Format: magic, version, lamport stamp of the snapshot, user count, the users, and a CRC32 of
+ * everything before it. Users are written straight from their UserRecords: UUIDs as two longs,
+ * packed password hashes and dates as epoch milliseconds.
+ * A snapshot is written to a temporary file and renamed over the old one, so a crash while
+ * writing never leaves a half written snapshot behind.
+ */
+public class SnapshotFile {
+    private static final int magic = 0x49445353; //"IDSS"
+    private static final int version = 2;
+
+    private File file;
+    private Logger log;
+
+    /**
+     * The users and stamp read from a snapshot file
+     */
+    public static class Snapshot {
+        public int stamp;                   //Every change up to this stamp is in the snapshot
+        public ArrayList<UserRecord> users;
+    }
+
+    public SnapshotFile(File file) {
+        this.file = file;
+        log = Logger.getLogger("logger");
+        log.setUseParentHandlers(false);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes a snapshot
+     * @param users - every user at the time of the snapshot
+     * @param stamp - the lamport stamp of the last change included
+     * @return true if the snapshot was written
+     */
+    public boolean write(List<UserRecord> users, int stamp) {
+        File temp = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp),1 << 16))) {
+            DataOutputStream body = new DataOutputStream(new CheckedOutputStream(out,crc));
+            body.writeInt(magic);
+            body.writeInt(version);
+            body.writeInt(stamp);
+            body.writeInt(users.size());
+            for(UserRecord user : users) {
+                writeUser(body,user);
+            }
+            body.flush();
+            out.writeLong(crc.getValue());
+        } catch (IOException e) {
+            log.severe("Error in write snapshot:\n" + e.toString());
+            temp.delete();
+            return false;
+        }
+        try {
+            Files.move(temp.toPath(),file.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.severe("Error in write snapshot:\n" + e.toString());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the snapshot
+     * @return the snapshot, or null if there is no snapshot or it is damaged
+     */
+    public Snapshot read() {
+        if(!file.exists()) return null;
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),1 << 16))) {
+            DataInputStream body = new DataInputStream(new CheckedInputStream(in,crc));
+            if(body.readInt() != magic || body.readInt() != version) {
+                log.severe("Error in read snapshot: unknown format");
+                return null;
+            }
+            Snapshot snapshot = new Snapshot();
+            snapshot.stamp = body.readInt();
+            int count = body.readInt();
+            snapshot.users = new ArrayList<>(count);
+            for(int i = 0; i < count; i++) {
+                snapshot.users.add(readUser(body));
+            }
+            long expected = crc.getValue();
+            if(in.readLong() != expected) {
+                log.severe("Error in read snapshot: checksum does not match");
+                return null;
+            }
+            return snapshot;
+        } catch (IOException e) {
+            log.severe("Error in read snapshot:\n" + e.toString());
+            return null;
+        }
+    }
+
+    private static void writeUser(DataOutputStream out, UserRecord user) throws IOException {
+        if(user.getId() instanceof UUID) {
+            UUID uuid = (UUID) user.getId();
+            out.writeByte(0);
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+        } else {
+            out.writeByte(1); //Not a standard UUID, keep the string
+            out.writeUTF(user.getUuid());
+        }
+        out.writeUTF(user.getName());
+        writeNullable(out,user.getRealname());
+        byte[] passHash = user.getPackedPassHash();
+        out.writeShort(passHash == null ? -1 : passHash.length);
+        if(passHash != null) out.write(passHash);
+        writeNullable(out,user.getIpAddress());
+        out.writeLong(user.getDate());
+        out.writeInt(user.getLstamp());
+    }
+
+    private static UserRecord readUser(DataInputStream in) throws IOException {
+        Object id;
+        if(in.readByte() == 0) {
+            id = new UUID(in.readLong(),in.readLong());
+        } else {
+            id = in.readUTF();
+        }
+        String name = in.readUTF();
+        String realname = readNullable(in);
+        byte[] passHash = null;
+        int hashLength = in.readShort();
+        if(hashLength >= 0) {
+            passHash = new byte[hashLength];
+            in.readFully(passHash);
+        }
+        String ipAddress = readNullable(in);
+        long date = in.readLong();
+        int lstamp = in.readInt();
+        return new UserRecord(id,name,realname,passHash,ipAddress,date,lstamp);
+    }
+
+    private static void writeNullable(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if(s != null) out.writeUTF(s);
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,122 @@
+package Identity.Database;
+
+import Identity.Server.User;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Durable storage behind the DatabaseManager. Holds the users, with a tombstone for each deleted user
+ * until it is purged, and the server's ID and commit state.
+ *
+ * Writes come from one thread at a time: the DatabaseManager's dump thread, or the server for its ID and
+ * commit state. Reads may come from any thread.
+ *
+ * Success codes follow the sqlite engine (Database): 1 on success, negative on failure.
+ */
+public interface StorageEngine {
+
+    /**
+     * Opens the engine for a url. "memory:" opens a MemoryEngine, "log:" followed by a directory opens a LogEngine,
+     * anything else is a sqlite jdbc url.
+     * @param url
+     * @param config
+     * @return the engine
+     */
+    static StorageEngine open(String url, DatabaseConfig config) {
+        if(url.startsWith(MemoryEngine.urlPrefix)) return new MemoryEngine();
+        if(url.startsWith(LogEngine.urlPrefix)) return new LogEngine(new File(url.substring(LogEngine.urlPrefix.length())),config);
+        return new Database(url,config);
+    }
+
+    /**
+     * Creates what a new store needs (tables, files)
+     * @return true if successful
+     */
+    boolean setUp();
+
+    void close();
+
+    /**
+     * @return 1 if successful, -1 if not
+     */
+    int setServerID(int serverID);
+
+    /**
+     * @return serverID, or -1 if no previous serverID
+     */
+    int getServerID();
+
+    /**
+     * @return 1 if successful, -1 if not
+     */
+    int setCommitState(int state);
+
+    int getCommitState();
+
+    /**
+     * @return largest stamp of any stored user or tombstone, 0 if there are none
+     */
+    int getLogicalStamp();
+
+    /**
+     * @return every user that is not deleted
+     */
+    ArrayList<User> getUsers();
+
+    /**
+     * Gets every user changed after a lamport stamp. Used to bring a loaded snapshot up to date.
+     * @param stamp - only users with a larger stamp are read
+     * @param deletedUuids - filled with the UUIDs of users deleted after the stamp
+     * @return users created or renamed after the stamp that are not deleted
+     */
+    ArrayList<User> getUsersChangedSince(int stamp, ArrayList<String> deletedUuids);
+
+    /**
+     * @return the user, or null if there is no user with the UUID
+     */
+    User getUserByUUID(String uuid);
+
+    /**
+     * @return the user, or null if there is no user with the login name
+     */
+    User getUserByName(String name);
+
+    /**
+     * @return 1 if the user was added, -1 on error, -2 if the login name is taken
+     */
+    int createNewUser(User user);
+
+    /**
+     * Replaces a user with a tombstone holding its UUID and the stamp
+     * @return 1 if successful, -1 on error
+     */
+    int deleteUserByUUID(String uuid, int stamp);
+
+    /**
+     * Changes a login name. A null newName gives up the login name without taking a new one.
+     * @return 1 if successful, -1 on error
+     */
+    int changeUserName(String uuid, String newName, int lStamp);
+
+    /**
+     * Writes a list of changes, in order. Creates are not checked for a taken login name, the changes
+     * must be ordered by DatabaseChange.orderForUniqueNames. Writing stops at the first change that fails.
+     * @param changes
+     * @return number of changes written from the start of the list, the rest were not written
+     */
+    int applyChanges(List<DatabaseChange> changes);
+
+    /**
+     * Removes the tombstones of users deleted at or before a stamp
+     * @param horizon - newest stamp whose tombstones are no longer needed
+     * @return number of tombstones removed, or -1 on error
+     */
+    int purgeTombstones(int horizon);
+
+    /**
+     * @return size of the store in bytes, or -1 if it is not known
+     */
+    long getSize();
+}
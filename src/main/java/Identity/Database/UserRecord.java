@@ -0,0 +1,209 @@
+package Identity.Database;
+
+import Identity.Server.User;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact, immutable form of a user kept in memory. A User is only made from it when one has to be
+ * returned to a client.
+ *
+ * The UUID is kept as a java.util.UUID (two longs), which is also the key of the UUID table, the date as
+ * epoch milliseconds, and ip addresses are shared between users. The password hash is the upper case hex
+ * string made by SHA2.trySHA, which is packed two characters per byte. Any other hash is kept as UTF-8 bytes,
+ * so every hash comes back exactly as it was given.
+ */
+public class UserRecord {
+    private static final long noDate = Long.MIN_VALUE;
+    private static final byte evenHex = 0, oddHex = 1, utf8 = 2; //First byte of a packed password hash
+    private static final ConcurrentHashMap<String,String> ipAddresses = new ConcurrentHashMap<>();
+    private static final byte[] noPassword = packHash("null");
+
+    private final Object id;            //A java.util.UUID, or the string if it is not a standard UUID
+    private final String name;
+    private final String realname;
+    private final byte[] passHash;      //Packed, see packHash
+    private final String ipAddress;     //Shared with every other user with the same address
+    private final long date;
+    private final int lstamp;
+
+    /**
+     * Makes the compact form of a user
+     * @param user
+     */
+    public UserRecord(User user) {
+        this(idKey(user.getUuid()),user.getName(),user.getRealname(),packHash(user.getPassHash()),user.getIpAddress(),
+                user.getDate() == null ? noDate : user.getDate().getTime(),user.getLstamp());
+    }
+
+    UserRecord(Object id, String name, String realname, byte[] passHash, String ipAddress, long date, int lstamp) {
+        this.id = id;
+        this.name = name;
+        this.realname = realname;
+        this.passHash = passHash;
+        this.ipAddress = (ipAddress == null) ? null : ipAddresses.computeIfAbsent(ipAddress,ip -> ip);
+        this.date = date;
+        this.lstamp = lstamp;
+    }
+
+    /**
+     * @return a copy with a new login name and stamp
+     */
+    public UserRecord renamed(String newName, int newLstamp) {
+        return new UserRecord(id,newName,realname,passHash,ipAddress,date,newLstamp);
+    }
+
+    /**
+     * Makes a User with the same values
+     * @return User
+     */
+    public User toUser() {
+        User user = new User(getUuid(),name,realname,unpackHash(passHash),ipAddress);
+        if(date != noDate) user.setDate(new Date(date));
+        user.setLstamp(lstamp);
+        return user;
+    }
+
+    /**
+     * Same as User.publicString, without making a User
+     * @return the login name and UUID
+     */
+    public String publicString() {
+        return "[Login name: " + name + " UUID: " + getUuid() + "]";
+    }
+
+    /**
+     * Same as User.auditString, without making a User
+     * @return the login name, UUID, creation date and stamp
+     */
+    public String auditString() {
+        return "[Login name: " + name + " UUID: " + getUuid() + " Created: " + (date == noDate ? "UNAVAILABLE" : Instant.ofEpochMilli(date))
+                + " Stamp: " + lstamp + "]";
+    }
+
+    /**
+     * Checks a password hash the same way for every user: a user without a password (null or "null")
+     * matches any hash.
+     * @param hash
+     * @return true if the hash is allowed to change this user
+     */
+    public boolean passwordMatches(String hash) {
+        if(passHash == null || Arrays.equals(passHash,noPassword)) return true;
+        return Arrays.equals(passHash,packHash(hash)); //Packing is one to one, so the packed forms can be compared
+    }
+
+    /**
+     * @return the key of this user in the UUID table
+     */
+    Object getId() {
+        return id;
+    }
+
+    public String getUuid() {
+        return id.toString();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getRealname() {
+        return realname;
+    }
+
+    public String getPassHash() {
+        return unpackHash(passHash);
+    }
+
+    byte[] getPackedPassHash() {
+        return passHash;
+    }
+
+    public String getIpAddress() {
+        return ipAddress;
+    }
+
+    /**
+     * @return the date in epoch milliseconds, or Long.MIN_VALUE if there is none
+     */
+    public long getDate() {
+        return date;
+    }
+
+    public int getLstamp() {
+        return lstamp;
+    }
+
+    /**
+     * @return the key of a UUID in the UUID table: a java.util.UUID, or the string itself if it is not in
+     * the standard form (so it would not survive a round trip)
+     */
+    static Object idKey(String uuid) {
+        UUID parsed = Database.parseUuid(uuid);
+        return (parsed == null) ? uuid : parsed;
+    }
+
+    /**
+     * Orders user IDs the same way as their strings. The string of a java.util.UUID is fixed width hex of
+     * its two longs, so two of them compare as unsigned longs without making the strings.
+     * @return negative, zero or positive as a is before, the same as or after b
+     */
+    static int compareIds(Object a, Object b) {
+        if(a instanceof UUID && b instanceof UUID) {
+            UUID x = (UUID) a, y = (UUID) b;
+            int c = Long.compareUnsigned(x.getMostSignificantBits(),y.getMostSignificantBits());
+            return (c != 0) ? c : Long.compareUnsigned(x.getLeastSignificantBits(),y.getLeastSignificantBits());
+        }
+        return a.toString().compareTo(b.toString());
+    }
+
+    /**
+     * Packs a password hash. An upper case hex string takes half a byte per character.
+     * @param hash
+     * @return packed hash, or null for a null hash
+     */
+    static byte[] packHash(String hash) {
+        if(hash == null) return null;
+        boolean hex = true;
+        for(int i = 0; i < hash.length() && hex; i++) {
+            char c = hash.charAt(i);
+            hex = (c >= '0' && c <= '9') || (c >= 'A' && c <= 'F');
+        }
+        if(!hex) {
+            byte[] bytes = hash.getBytes(StandardCharsets.UTF_8);
+            byte[] packed = new byte[bytes.length + 1];
+            packed[0] = utf8;
+            System.arraycopy(bytes,0,packed,1,bytes.length);
+            return packed;
+        }
+        byte[] packed = new byte[1 + (hash.length() + 1) / 2];
+        packed[0] = (hash.length() % 2 == 0) ? evenHex : oddHex;
+        for(int i = 0; i < hash.length(); i++) {
+            int nibble = Character.digit(hash.charAt(i),16);
+            packed[1 + i / 2] |= (i % 2 == 0) ? nibble << 4 : nibble;
+        }
+        return packed;
+    }
+
+    /**
+     * @param packed - a hash packed by packHash
+     * @return the hash as it was given to packHash
+     */
+    static String unpackHash(byte[] packed) {
+        if(packed == null) return null;
+        if(packed[0] == utf8) return new String(packed,1,packed.length - 1,StandardCharsets.UTF_8);
+        int length = (packed.length - 1) * 2 - (packed[0] == oddHex ? 1 : 0);
+        char[] hash = new char[length];
+        for(int i = 0; i < length; i++) {
+            int b = packed[1 + i / 2];
+            int nibble = (i % 2 == 0) ? (b >> 4) & 0xF : b & 0xF;
+            hash[i] = Character.toUpperCase(Character.forDigit(nibble,16));
+        }
+        return new String(hash);
+    }
+}
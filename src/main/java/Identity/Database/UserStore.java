@@ -0,0 +1,58 @@
+package Identity.Database;
+
+import java.util.ArrayList;
+
+/**
+ * In memory store of users, indexed by UUID and by login name.
+ *
+ * Reads may run at any time. Writes must be serialized by the caller (DatabaseManager does this).
+ * A rename or delete takes effect in one step, so a reader never sees a user under both its old and new name.
+ */
+public interface UserStore {
+
+    /**
+     * Gets a user by login name
+     * @param name
+     * @return the user, or null if no user has that login name
+     */
+    UserRecord getByName(String name);
+
+    /**
+     * Gets a user by UUID
+     * @param uuid
+     * @return the user, or null if no user has that UUID
+     */
+    UserRecord getById(String uuid);
+
+    /**
+     * Adds a new user if its login name and UUID are both free
+     * @param user
+     * @return true if the user was added, false if the login name or UUID is taken
+     */
+    boolean add(UserRecord user);
+
+    /**
+     * Replaces a stored user with an updated copy of it (same UUID, possibly a new login name)
+     * @param old - The user currently in the store
+     * @param updated - The copy that replaces it
+     * @return true if the user was replaced, false if the new login name is taken or old is no longer stored
+     */
+    boolean replace(UserRecord old, UserRecord updated);
+
+    /**
+     * Removes a user, if it is still stored
+     * @param user
+     */
+    void remove(UserRecord user);
+
+    /**
+     * Gets all users in the store
+     * @return list of all users
+     */
+    ArrayList<UserRecord> values();
+
+    /**
+     * @return number of users in the store
+     */
+    int size();
+}
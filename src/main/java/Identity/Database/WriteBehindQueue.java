@@ -0,0 +1,162 @@
+package Identity.Database;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded queue of changes waiting to be written to the sql database.
+ *
+ * When the queue is full, adding a change blocks until the dumper has made room. With the THROTTLE
+ * policy the server also slows down admission of new writes as the queue fills up, so writers are
+ * rarely blocked while holding locks. Once the queue is half full the dumper is asked to dump early.
+ */
+public class WriteBehindQueue {
+    public enum FullPolicy {BLOCK,THROTTLE}
+
+    private static final long maxThrottleMillis = 100;     //Admission delay when the queue is full
+
+    private ArrayBlockingQueue<DatabaseChange> changes;
+    private int capacity;
+    private FullPolicy policy;
+    private Runnable earlyDump;                             //Asks the dumper to dump now
+    private AtomicBoolean earlyDumpRequested = new AtomicBoolean(false);
+
+    //Metrics
+    private LongAdder enqueued = new LongAdder();
+    private LongAdder drained = new LongAdder();
+    private LongAdder enqueueWaitNanos = new LongAdder();
+    private AtomicLong maxEnqueueWaitNanos = new AtomicLong();
+    private volatile long lastDumpSize = 0;
+    private volatile long lastDumpWritten = 0;
+    private volatile long lastDumpNanos = 0;
+
+    /**
+     * @param capacity - The most changes that can wait to be written
+     * @param policy - What to do when the queue fills up
+     * @param earlyDump - Called when the queue is half full, it should start a dump soon
+     */
+    public WriteBehindQueue(int capacity, FullPolicy policy, Runnable earlyDump) {
+        this.changes = new ArrayBlockingQueue<>(capacity);
+        this.capacity = capacity;
+        this.policy = policy;
+        this.earlyDump = earlyDump;
+    }
+
+    /**
+     * Adds a change, blocking while the queue is full
+     * @param change
+     */
+    public void add(DatabaseChange change) {
+        if(!changes.offer(change)) {
+            requestEarlyDump();
+            long start = System.nanoTime();
+            boolean added = false;
+            boolean interrupted = false;
+            while(!added) {
+                try {
+                    changes.put(change);
+                    added = true;
+                } catch (InterruptedException e) {
+                    interrupted = true; //Keep the change, it is already in memory
+                }
+            }
+            if(interrupted) Thread.currentThread().interrupt();
+            long waited = System.nanoTime() - start;
+            enqueueWaitNanos.add(waited);
+            maxEnqueueWaitNanos.accumulateAndGet(waited,Math::max);
+        }
+        enqueued.increment();
+        if(changes.size() >= capacity / 2) requestEarlyDump();
+    }
+
+    /**
+     * Moves every waiting change into a list
+     * @param list
+     * @return number of changes moved
+     */
+    public int drainTo(List<DatabaseChange> list) {
+        earlyDumpRequested.set(false);
+        int count = changes.drainTo(list);
+        drained.add(count);
+        return count;
+    }
+
+    /**
+     * Records how long a dump took, used to report the drain rate
+     * @param size - number of changes drained
+     * @param written - number of changes left to write after coalescing
+     * @param nanos - time it took to write them
+     */
+    public void recordDump(int size, int written, long nanos) {
+        lastDumpSize = size;
+        lastDumpWritten = written;
+        lastDumpNanos = nanos;
+    }
+
+    /**
+     * How long a new write should wait before it is admitted. Always 0 with the BLOCK policy.
+     * With THROTTLE it grows from 0 at half full to maxThrottleMillis when the queue is full.
+     * @return delay in milliseconds
+     */
+    public long admissionDelayMillis() {
+        if(policy != FullPolicy.THROTTLE) return 0;
+        int depth = changes.size();
+        if(depth < capacity / 2) return 0;
+        return maxThrottleMillis * (depth - capacity / 2) / Math.max(1,capacity - capacity / 2);
+    }
+
+    public int size() {
+        return changes.size();
+    }
+
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    /**
+     * @return the current queue metrics
+     */
+    public Metrics getMetrics() {
+        Metrics m = new Metrics();
+        m.depth = changes.size();
+        m.capacity = capacity;
+        m.enqueued = enqueued.sum();
+        m.drained = drained.sum();
+        m.totalEnqueueWaitMillis = enqueueWaitNanos.sum() / 1000000;
+        m.maxEnqueueWaitMillis = maxEnqueueWaitNanos.get() / 1000000;
+        m.lastDumpSize = lastDumpSize;
+        m.lastDumpWritten = lastDumpWritten;
+        m.lastDumpMillis = lastDumpNanos / 1000000;
+        m.drainRate = lastDumpNanos == 0 ? 0 : (long)(lastDumpSize / (lastDumpNanos / 1e9));
+        return m;
+    }
+
+    private void requestEarlyDump() {
+        if(earlyDump != null && earlyDumpRequested.compareAndSet(false,true)) earlyDump.run();
+    }
+
+    /**
+     * Snapshot of the queue metrics
+     */
+    public static class Metrics {
+        public int depth;                       //Changes waiting to be written
+        public int capacity;
+        public long enqueued;                   //Changes added since start up
+        public long drained;                    //Changes taken by the dumper since start up
+        public long totalEnqueueWaitMillis;     //Time writers spent blocked on a full queue
+        public long maxEnqueueWaitMillis;
+        public long lastDumpSize;
+        public long lastDumpWritten;            //Changes left after coalescing changes to the same user
+        public long lastDumpMillis;
+        public long drainRate;                  //Changes per second written by the last dump
+
+        public String toString() {
+            return "[Write-behind depth: " + depth + "/" + capacity + " enqueued: " + enqueued + " drained: " + drained
+                    + " enqueue wait: " + totalEnqueueWaitMillis + "ms (max " + maxEnqueueWaitMillis + "ms)"
+                    + " last dump: " + lastDumpSize + " (" + lastDumpWritten + " written) in " + lastDumpMillis + "ms drain rate: " + drainRate + "/s]";
+        }
+    }
+}
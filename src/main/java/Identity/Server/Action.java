@@ -54,7 +54,37 @@ public class Action implements Serializable {
         return -1;
     }
 
+    /**
+     * Checks if this action's change is already in a database, so it is not made twice when the action log
+     * is replayed after a crash. Actions must be checked and executed in stamp order.
+     * @param dm
+     * @return true if the database has the change, or a later change to the same user
+     */
+    public boolean isAppliedIn(DatabaseManager dm) {
+        if(this.type == CREATE) {
+            return dm.getUserByUUID(this.user.getUuid()) != null; //If it was deleted since, the delete is replayed after it
+        }
+        if(this.type == UPDATE && this.newName != null) {
+            User renamed = dm.getUserByName(this.newName);
+            return renamed != null && renamed.getLstamp() >= this.lamportStamp;
+        }
+        User current = dm.getUserByName(this.user.getName()); //A delete, or a rename that gives up the login name
+        return current == null || current.getLstamp() >= this.lamportStamp; //Gone, or the name belongs to a newer user
+    }
+
     public int getStamp() {
         return this.lamportStamp;
     }
+
+    public Type getType() {
+        return this.type;
+    }
+
+    public User getUser() {
+        return this.user;
+    }
+
+    public String getNewName() {
+        return this.newName;
+    }
 }
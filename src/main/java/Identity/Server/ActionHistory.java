@@ -0,0 +1,99 @@
+package Identity.Server;
+
+import java.util.ArrayList;
+
+/**
+ * The most recently committed actions, kept in memory to bring lagging servers up to date.
+ *
+ * A ring buffer of a fixed number of actions in stamp order, with their stamps in a separate array so the first
+ * action after a stamp is found by binary search. When the buffer is full the oldest action is dropped, and a
+ * server that still needs it is told so with a HistoryTruncatedException instead of getting a list with a gap.
+ */
+public class ActionHistory {
+    private final Action[] actions;
+    private final int[] stamps;
+    private int head = 0;                   //Index of the oldest action
+    private int size = 0;
+    private int truncatedUpTo;              //Newest stamp whose action may be missing
+
+    /**
+     * @param capacity - most actions kept
+     * @param truncatedUpTo - newest stamp whose action is not going to be added, the stamp the history starts after
+     */
+    public ActionHistory(int capacity, int truncatedUpTo) {
+        actions = new Action[Math.max(1,capacity)];
+        stamps = new int[actions.length];
+        this.truncatedUpTo = truncatedUpTo;
+    }
+
+    /**
+     * Adds a committed action. Actions commit in stamp order, so an action with a stamp at or before the newest
+     * one is already here and is not added twice.
+     * @param action
+     * @return true if the action was added
+     */
+    public synchronized boolean add(Action action) {
+        if(size > 0 && action.getStamp() <= stamps[index(size - 1)]) return false;
+        if(action.getStamp() <= truncatedUpTo) return false;
+        if(size == actions.length) {
+            truncatedUpTo = stamps[head];
+            actions[head] = null;
+            head = index(1);
+            size--;
+        }
+        int i = index(size);
+        actions[i] = action;
+        stamps[i] = action.getStamp();
+        size++;
+        return true;
+    }
+
+    /**
+     * Gets every action after a stamp, oldest first
+     * @param stamp - stamp of the last action the caller has
+     * @return the actions, empty if the caller is up to date
+     * @throws HistoryTruncatedException if an action after the stamp was dropped
+     */
+    public synchronized ArrayList<Action> since(int stamp) throws HistoryTruncatedException {
+        if(stamp < truncatedUpTo) throw new HistoryTruncatedException(stamp,truncatedUpTo);
+        int low = 0, high = size; //First position with a larger stamp
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(stamps[index(mid)] <= stamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        ArrayList<Action> after = new ArrayList<>(size - low);
+        for(int i = low; i < size; i++) {
+            after.add(actions[index(i)]);
+        }
+        return after;
+    }
+
+    /**
+     * @return number of actions kept
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return newest stamp whose action may have been dropped
+     */
+    public synchronized int getTruncatedUpTo() {
+        return truncatedUpTo;
+    }
+
+    /**
+     * @return stamp of the newest action, or the truncated stamp if there are none
+     */
+    public synchronized int getNewestStamp() {
+        return (size == 0) ? truncatedUpTo : stamps[index(size - 1)];
+    }
+
+    private int index(int position) {
+        return (head + position) % actions.length;
+    }
+}
@@ -0,0 +1,359 @@
+package Identity.Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Log on disk of every committed action, written when the action commits and replayed when the server starts.
+ * The database manager only writes changes to the storage engine every few seconds, so without this log a crash
+ * loses the actions committed since the last dump.
+ *
+ * The log is a directory of segment files of a fixed size, each memory mapped. An action is copied into the
+ * newest segment as a record: CRC32 of the rest of the record, body length, then the body. Once copied it
+ * survives the process being killed. Surviving a crash of the machine needs the segment forced to disk: with a
+ * sync interval of 0 every append waits for a force, and appends that arrive while a force is running share the
+ * next one. Otherwise a background thread forces the newest segment every interval.
+ *
+ * Segments whose actions every server has applied and the storage engine holds are deleted, see truncate.
+ */
+public class ActionLog {
+    public static final int defaultSegmentSize = 16 * 1024 * 1024;
+    static final int headerSize = 8;            //CRC and body length
+    private static final long noDate = Long.MIN_VALUE;
+
+    private final File directory;
+    private final int segmentSize;
+    private final TreeMap<Integer,Segment> segments = new TreeMap<>();
+    private Segment active;                     //The segment appended to, the only one kept mapped
+    private long appended = 0;                  //Bytes appended since the log was opened
+    private long synced = 0;                    //Bytes appended that are forced to disk
+    private long syncs = 0;
+    private final Object syncLock = new Object(); //One force at a time, appends waiting on it share the next one
+    private Timer syncer;
+    private List<Action> recovered = new ArrayList<>();
+    private long corruptSegments = 0;
+
+    /**
+     * A segment file, and the stamps of the actions in it
+     */
+    private static class Segment {
+        final int id;
+        final File file;
+        MappedByteBuffer map;   //Null once sealed
+        int position;           //Where the next record goes
+        int firstStamp = Integer.MAX_VALUE;
+        int lastStamp = Integer.MIN_VALUE;
+
+        Segment(int id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+
+        void map(int size) throws IOException {
+            try(FileChannel channel = FileChannel.open(file.toPath(),StandardOpenOption.CREATE,StandardOpenOption.READ,StandardOpenOption.WRITE)) {
+                map = channel.map(FileChannel.MapMode.READ_WRITE,0,Math.max(size,channel.size()));
+            }
+        }
+
+        void add(int stamp) {
+            firstStamp = Math.min(firstStamp,stamp);
+            lastStamp = Math.max(lastStamp,stamp);
+        }
+    }
+
+    /**
+     * Opens the log in a directory, creating it if needed, and reads the actions in it
+     * @param directory
+     * @param segmentSize - bytes of each segment file
+     * @param syncInterval - milliseconds between forces to disk, 0 to force before every append returns
+     * @throws IOException if the log could not be opened
+     */
+    public ActionLog(File directory, int segmentSize, long syncInterval) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if(!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Could not create " + directory);
+        recover();
+        if(active == null) roll(1);
+        if(syncInterval > 0) {
+            syncer = new Timer("action-log-sync",true);
+            syncer.scheduleAtFixedRate(new TimerTask() {
+                public void run() {
+                    sync();
+                }
+            },syncInterval,syncInterval);
+        }
+    }
+
+    /**
+     * Reads every segment in order. A record that is cut short or fails its CRC ends its segment. In the newest
+     * segment that is an append torn by a crash, and everything after it is zeroed so it is appended over.
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".alog"));
+        if(files == null) return;
+        TreeMap<Integer,File> ordered = new TreeMap<>();
+        for(File file : files) {
+            try {
+                ordered.put(Integer.parseInt(file.getName().substring(0,file.getName().length() - 5)),file);
+            } catch (NumberFormatException e) {
+                //Not a segment
+            }
+        }
+        for(Map.Entry<Integer,File> file : ordered.entrySet()) {
+            Segment segment = new Segment(file.getKey(),file.getValue());
+            segment.map(0);
+            MappedByteBuffer map = segment.map;
+            int position = 0;
+            CRC32 crc = new CRC32();
+            byte[] body = new byte[0];
+            while(position + headerSize <= map.capacity()) {
+                int storedCrc = map.getInt(position);
+                int length = map.getInt(position + 4);
+                if(length <= 0 || position + headerSize + length > map.capacity()) break;
+                if(body.length < length + 4) body = new byte[length + 4];
+                map.position(position + 4);
+                map.get(body,0,length + 4);     //The length and the body, what the CRC covers
+                crc.reset();
+                crc.update(body,0,length + 4);
+                if((int) crc.getValue() != storedCrc) break;
+                Action action = decode(ByteBuffer.wrap(body,4,length));
+                recovered.add(action);
+                segment.add(action.getStamp());
+                position += headerSize + length;
+            }
+            segment.position = position;
+            boolean newest = file.getKey().equals(ordered.lastKey());
+            if(newest) {
+                for(int i = position; i < map.capacity(); i++) {
+                    if(map.get(i) != 0) map.put(i,(byte) 0);
+                }
+                active = segment;
+            } else {
+                if(position + headerSize <= map.capacity() && map.getInt(position + 4) != 0) corruptSegments++;
+                segment.map = null;
+            }
+            segments.put(segment.id,segment);
+        }
+    }
+
+    /**
+     * Gives the actions read when the log was opened, in the order they were appended, and forgets them
+     * @return the actions
+     */
+    public List<Action> recoveredActions() {
+        List<Action> actions = recovered;
+        recovered = new ArrayList<>();
+        return actions;
+    }
+
+    /**
+     * Appends an action. With a sync interval of 0, returns once the action is forced to disk.
+     * @param action
+     * @throws IOException if the action could not be written
+     */
+    public void append(Action action) throws IOException {
+        long end = write(action);
+        if(syncer == null) sync(end);
+    }
+
+    /**
+     * Appends a batch of actions, in order. With a sync interval of 0, the log is forced once for the whole batch.
+     * @param actions
+     * @throws IOException if an action could not be written, the actions before it are appended
+     */
+    public void append(List<Action> actions) throws IOException {
+        long end = 0;
+        for(Action action : actions) {
+            end = write(action);
+        }
+        if(syncer == null) sync(end);
+    }
+
+    /**
+     * @return bytes appended up to the end of the action
+     */
+    private long write(Action action) throws IOException {
+        byte[] record = encode(action);
+        if(record.length > segmentSize) throw new IOException("Action " + action.getStamp() + " is larger than a segment");
+        synchronized (this) {
+            if(active.position + record.length > active.map.capacity()) {
+                active.map.force();     //Sealed segments are always on disk
+                active.map = null;
+                roll(active.id + 1);
+            }
+            active.map.position(active.position);
+            active.map.put(record);
+            active.position += record.length;
+            active.add(action.getStamp());
+            appended += record.length;
+            return appended;
+        }
+    }
+
+    /**
+     * Forces everything appended so far to disk
+     */
+    public void sync() {
+        long end;
+        synchronized (this) {
+            end = appended;
+        }
+        sync(end);
+    }
+
+    /**
+     * Forces the log to disk, unless a force that another append started already covered the end
+     * @param end - bytes appended that must be on disk
+     */
+    private void sync(long end) {
+        synchronized (syncLock) {
+            if(synced >= end) return;
+            MappedByteBuffer map;
+            long target;
+            synchronized (this) {
+                map = active.map;
+                target = appended;
+            }
+            if(map != null) map.force();    //Null if closed, earlier segments were forced when sealed
+            synced = target;
+            syncs++;
+        }
+    }
+
+    private void roll(int id) throws IOException {
+        Segment segment = new Segment(id,new File(directory,String.format("%08d.alog",id)));
+        segment.map(segmentSize);
+        segments.put(id,segment);
+        active = segment;
+    }
+
+    /**
+     * Deletes the oldest segments whose actions are all at or before a stamp. The newest segment is always kept.
+     * @param horizon - newest stamp no longer needed: every server has applied it and the storage engine holds it
+     * @return number of segments deleted
+     */
+    public synchronized int truncate(int horizon) {
+        int deleted = 0;
+        while(segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            if(oldest.lastStamp > horizon) break;
+            segments.remove(oldest.id);
+            oldest.file.delete();
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Forces the log to disk and stops the background syncs
+     */
+    public void close() {
+        if(syncer != null) syncer.cancel();
+        sync();
+        synchronized (this) {
+            active.map = null;
+        }
+    }
+
+    /**
+     * @return stamp of the oldest action kept, or -1 if the log is empty
+     */
+    public synchronized int getFirstStamp() {
+        for(Segment segment : segments.values()) {
+            if(segment.firstStamp != Integer.MAX_VALUE) return segment.firstStamp;
+        }
+        return -1;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return number of forces to disk so far
+     */
+    public long getSyncCount() {
+        synchronized (syncLock) {
+            return syncs;
+        }
+    }
+
+    /**
+     * @return number of older segments found with a bad record when the log was opened
+     */
+    public long getCorruptSegments() {
+        return corruptSegments;
+    }
+
+    /**
+     * Record format, after the header: type, stamp, the user's UUID, name, real name, password hash, ip address
+     * and creation date, then the new name of an update
+     */
+    static byte[] encode(Action action) {
+        User user = action.getUser();
+        byte[][] strings = {bytes(user.getUuid()),bytes(user.getName()),bytes(user.getRealname()),
+                bytes(user.getPassHash()),bytes(user.getIpAddress()),bytes(action.getNewName())};
+        int length = 1 + 4 + 8;
+        for(byte[] s : strings) {
+            length += 4 + (s == null ? 0 : s.length);
+        }
+        ByteBuffer record = ByteBuffer.allocate(headerSize + length);
+        record.position(4);
+        record.putInt(length);
+        record.put((byte) action.getType().ordinal());
+        record.putInt(action.getStamp());
+        for(int i = 0; i < 5; i++) {
+            putString(record,strings[i]);
+        }
+        record.putLong(user.getDate() == null ? noDate : user.getDate().getTime());
+        putString(record,strings[5]);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(),4,length + 4);
+        record.putInt(0,(int) crc.getValue());
+        return record.array();
+    }
+
+    static Action decode(ByteBuffer body) {
+        Action.Type type = Action.Type.values()[body.get()];
+        int stamp = body.getInt();
+        User user = new User(getString(body),getString(body),getString(body),getString(body),getString(body));
+        long date = body.getLong();
+        if(date != noDate) user.setDate(new Date(date));
+        String newName = getString(body);
+        return (type == Action.Type.UPDATE) ? new Action(stamp,type,user,newName) : new Action(stamp,type,user);
+    }
+
+    private static byte[] bytes(String s) {
+        return (s == null) ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] s) {
+        if(s == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        buffer.putInt(s.length);
+        buffer.put(s);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if(length < 0) return null;
+        String s = new String(buffer.array(),buffer.arrayOffset() + buffer.position(),length,StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+}
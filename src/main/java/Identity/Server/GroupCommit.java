@@ -0,0 +1,236 @@
+package Identity.Server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.function.IntSupplier;
+
+/**
+ * Collects the writes of concurrent clients into batches, and commits each batch in one two phase commit round.
+ *
+ * A write goes through stages connected by bounded queues:
+ *  - the client's own thread checks and hashes it, so that work is done in parallel
+ *  - submit stamps it and queues it, one write at a time, so a batch is always a run of consecutive stamps
+ *  - the replicate stage takes the writes that queued up while the last round ran, up to maxBatch, waits up to
+ *    lingerMillis for more if the batch is not full, and runs the vote and commit round on the other servers
+ *  - the apply stage records and executes the batch here, and gives each client the result code of its write
+ * When staged, replicating a batch overlaps with applying the one before it. Otherwise one thread does both.
+ * A client waits in submit when the queue into the replicate stage is full.
+ */
+public class GroupCommit {
+    private static final int queuedBatches = 4;     //Batches that can wait for each stage
+
+    private final int maxBatch;
+    private final long lingerMillis;
+    private final boolean staged;
+    private final IntSupplier stamps;
+    private final Replicate replicate;
+    private final Apply apply;
+    private final ArrayBlockingQueue<Write> submitted;
+    private final ArrayBlockingQueue<List<Write>> replicated = new ArrayBlockingQueue<>(queuedBatches);
+    private final AtomicLong rounds = new AtomicLong();
+    private final AtomicLong committed = new AtomicLong();
+
+    /**
+     * Commits a batch of actions on the other servers
+     */
+    public interface Replicate {
+        /**
+         * @param actions - in stamp order
+         * @throws PartitionedException if the batch could not be committed
+         */
+        void replicate(List<Action> actions) throws PartitionedException;
+    }
+
+    /**
+     * Makes a committed batch of actions on this server
+     */
+    public interface Apply {
+        /**
+         * @param actions - in stamp order
+         * @return the result code of each action, in the same order
+         */
+        int[] apply(List<Action> actions);
+    }
+
+    /**
+     * A submitted write, and its result once its batch is applied
+     */
+    private static class Write {
+        final Action action;
+        final CountDownLatch done = new CountDownLatch(1);
+        int result;
+        PartitionedException failure;
+
+        Write(Action action) {
+            this.action = action;
+        }
+    }
+
+    /**
+     * @param maxBatch - most writes committed in one round
+     * @param lingerMillis - how long a batch that is not full waits for more writes, 0 takes only the writes already waiting
+     * @param staged - replicate a batch while the one before it is applied, instead of one after the other
+     * @param stamps - gives the next lamport stamp
+     * @param replicate - commits a batch on the other servers
+     * @param apply - makes a committed batch on this server
+     */
+    public GroupCommit(int maxBatch, long lingerMillis, boolean staged, IntSupplier stamps, Replicate replicate, Apply apply) {
+        this.maxBatch = Math.max(1,maxBatch);
+        this.lingerMillis = lingerMillis;
+        this.staged = staged;
+        this.stamps = stamps;
+        this.replicate = replicate;
+        this.apply = apply;
+        this.submitted = new ArrayBlockingQueue<>(this.maxBatch * queuedBatches);
+        startStage(this::replicateBatches,"group-commit-replicate");
+        if(staged) startStage(this::applyBatches,"group-commit-apply");
+    }
+
+    private static void startStage(Runnable stage, String name) {
+        Thread thread = new Thread(stage,name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stamps a write, and waits until the batch it is in is committed and applied
+     * @param makeAction - makes the action for the write, given its stamp
+     * @return result code of the write
+     * @throws PartitionedException if the batch could not be committed
+     */
+    public int submit(IntFunction<Action> makeAction) throws PartitionedException {
+        Write write;
+        boolean interrupted = false;
+        synchronized (this) { //Queued in stamp order
+            write = new Write(makeAction.apply(stamps.getAsInt()));
+            while(true) {
+                try {
+                    submitted.put(write);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true; //The write is already stamped, it has to be committed or aborted with a batch
+                }
+            }
+        }
+        while(true) {
+            try {
+                write.done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) Thread.currentThread().interrupt();
+        if(write.failure != null) throw write.failure;
+        return write.result;
+    }
+
+    private void replicateBatches() {
+        while(true) {
+            ArrayList<Write> batch = new ArrayList<>(maxBatch);
+            try {
+                batch.add(submitted.take());
+                submitted.drainTo(batch,maxBatch - batch.size());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+                while(batch.size() < maxBatch && lingerMillis > 0) {
+                    Write write = submitted.poll(deadline - System.nanoTime(),TimeUnit.NANOSECONDS);
+                    if(write == null) break;
+                    batch.add(write);
+                    submitted.drainTo(batch,maxBatch - batch.size());
+                }
+            } catch (InterruptedException e) {
+                if(batch.isEmpty()) continue;
+            }
+            if(!replicate(batch)) continue;
+            if(!staged) {
+                apply(batch);
+                continue;
+            }
+            while(true) {
+                try {
+                    replicated.put(batch);
+                    break;
+                } catch (InterruptedException e) {
+                    //The batch is committed on the other servers, it has to be applied here
+                }
+            }
+        }
+    }
+
+    private void applyBatches() {
+        while(true) {
+            try {
+                apply(replicated.take());
+            } catch (InterruptedException e) {
+                //Nothing taken
+            }
+        }
+    }
+
+    /**
+     * @return false if the batch was not committed, its writes are then answered with the failure
+     */
+    private boolean replicate(List<Write> batch) {
+        PartitionedException failure;
+        try {
+            replicate.replicate(actions(batch));
+            return true;
+        } catch (PartitionedException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new PartitionedException("Unable to complete this request: " + e);
+        }
+        rounds.incrementAndGet();
+        for(Write write : batch) {
+            write.failure = failure;
+            write.done.countDown();
+        }
+        return false;
+    }
+
+    private void apply(List<Write> batch) {
+        try {
+            int[] results = apply.apply(actions(batch));
+            for(int i = 0; i < batch.size(); i++) {
+                batch.get(i).result = results[i];
+            }
+            committed.addAndGet(batch.size());
+        } catch (RuntimeException e) { //Committed on the other servers, but the clients can not be told it was made here
+            PartitionedException failure = new PartitionedException("Unable to complete this request: " + e);
+            for(Write write : batch) {
+                write.failure = failure;
+            }
+        }
+        rounds.incrementAndGet();
+        for(Write write : batch) {
+            write.done.countDown();
+        }
+    }
+
+    private static List<Action> actions(List<Write> batch) {
+        ArrayList<Action> actions = new ArrayList<>(batch.size());
+        for(Write write : batch) {
+            actions.add(write.action);
+        }
+        return actions;
+    }
+
+    /**
+     * @return commit rounds finished so far
+     */
+    public long getRounds() {
+        return rounds.get();
+    }
+
+    /**
+     * @return writes committed and applied so far
+     */
+    public long getCommitted() {
+        return committed.get();
+    }
+}
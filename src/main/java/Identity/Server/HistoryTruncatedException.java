@@ -0,0 +1,21 @@
+package Identity.Server;
+
+/**
+ * Thrown when a server asks for actions the action history no longer has. The server is too far behind
+ * to catch up from actions and needs a copy of every user instead.
+ */
+public class HistoryTruncatedException extends Exception {
+    private final int truncatedUpTo;
+
+    public HistoryTruncatedException(int requested, int truncatedUpTo) {
+        super("Actions after stamp " + requested + " were dropped from the history, it only has actions after stamp " + truncatedUpTo);
+        this.truncatedUpTo = truncatedUpTo;
+    }
+
+    /**
+     * @return newest stamp whose action may be missing
+     */
+    public int getTruncatedUpTo() {
+        return truncatedUpTo;
+    }
+}
@@ -1,7 +1,11 @@
 package Identity.Server;
 
 //Command line args
+import Identity.Database.DatabaseConfig;
 import Identity.Database.DatabaseManager;
+import Identity.Database.LogEngine;
+import Identity.Database.MemoryEngine;
+import Identity.Database.WriteBehindQueue;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
@@ -9,6 +13,7 @@ import org.kohsuke.args4j.Option;
 
 import javax.rmi.ssl.SslRMIClientSocketFactory;
 import javax.rmi.ssl.SslRMIServerSocketFactory;
+import java.io.File;
 import java.io.IOException;
 import java.lang.Thread;
 import java.net.*;
@@ -18,6 +23,7 @@ import java.rmi.server.*;
 import java.rmi.registry.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.function.IntFunction;
 
 import static Identity.Client.SHA2.trySHA;
 import static Identity.Server.CommitState.State.*;
@@ -46,6 +52,50 @@ public class IdServer implements IdentityServerClusterInterface
     private String debugServerHost = null;
     @Option(name="--dbsp",usage="--dbsp")
     private int debugServerPort = -1;
+    @Option(name="--flushmode",usage="--flushmode batch|single")
+    private String flushMode = "batch";
+    @Option(name="--queuecapacity",usage="--queuecapacity <max changes waiting to be written to the database>")
+    private int queueCapacity = new DatabaseConfig().queueCapacity;
+    @Option(name="--queuefull",usage="--queuefull block|throttle")
+    private String queueFullPolicy = "block";
+    @Option(name="--sqlsync",usage="--sqlsync off|normal|full")
+    private String sqlSynchronous = new DatabaseConfig().synchronous;
+    @Option(name="--sqlmmap",usage="--sqlmmap <bytes of the database file to memory map>")
+    private long sqlMmapSize = new DatabaseConfig().mmapSize;
+    @Option(name="--sqlcache",usage="--sqlcache <sqlite cache_size, negative values are KiB>")
+    private int sqlCacheSize = new DatabaseConfig().cacheSize;
+    @Option(name="--sqlreaders",usage="--sqlreaders <number of reader connections>")
+    private int sqlReaders = new DatabaseConfig().readerConnections;
+    @Option(name="--snapshotinterval",usage="--snapshotinterval <seconds between snapshots, 0 for none>")
+    private long snapshotInterval = new DatabaseConfig().snapshotInterval / 1000;
+    @Option(name="--tombstonepurge",usage="--tombstonepurge <milliseconds between purges of tombstones every server has applied, 0 for none>")
+    private long tombstonePurgeInterval = new DatabaseConfig().tombstonePurgeInterval;
+    @Option(name="--lazyload",usage="--lazyload")
+    private boolean lazyLoad;
+    @Option(name="--offheap",usage="--offheap")
+    private boolean offHeapStore;
+    @Option(name="--engine",usage="--engine sqlite|memory|log")
+    private String engine = "sqlite";
+    @Option(name="--historysize",usage="--historysize <most committed actions kept in memory for lagging servers>")
+    private int historySize = 100000;
+    @Option(name="--actionlogsync",usage="--actionlogsync <milliseconds between forcing the action log to disk, 0 forces every commit>")
+    private long actionLogSync = 0;
+    @Option(name="--actionlogsegment",usage="--actionlogsegment <bytes in each action log segment>")
+    private int actionLogSegmentSize = ActionLog.defaultSegmentSize;
+    @Option(name="--actionlogretention",usage="--actionlogretention <milliseconds between deleting action log segments no one needs>")
+    private long actionLogRetentionDelay = 60000;
+    @Option(name="--fanout",usage="--fanout parallel|serial")
+    private String fanOutMode = "parallel";
+    @Option(name="--committimeout",usage="--committimeout <milliseconds a vote or commit round waits for the other servers>")
+    private long commitTimeout = 3000;
+    @Option(name="--batchsize",usage="--batchsize <most writes committed in one two phase commit round>")
+    private int batchSize = 256;
+    @Option(name="--batchlinger",usage="--batchlinger <milliseconds a write batch that is not full waits for more writes>")
+    private long batchLinger = 0;
+    @Option(name="--pipeline",usage="--pipeline staged|serial")
+    private String pipelineMode = "staged";
+    @Option(name="--replication",usage="--replication 2pc|quorum")
+    private String replicationMode = "2pc";
 
     @Argument     // receives other command line parameters than options
     private List<String> arguments = new ArrayList<String>();
@@ -53,9 +103,15 @@ public class IdServer implements IdentityServerClusterInterface
     private int serverId;                                           //This servers ID
     private CommitState currentCommitState = new CommitState();
     private List<ServerInfo> liveServerInfo;                        //Server info for each server in the KnownServers.txt file
-    private List<Action> actionHistory;                             //A list of recently committed actions
+    private ActionHistory actionHistory;                            //Recently committed actions, in stamp order
+    private ActionLog actionLog;                                    //Committed actions on disk, null for the memory engine
+    private StateTransferServer stateTransferServer;                //Sends copies of every user to new and lagging servers
+    private ReplicaFanOut fanOut;                                   //Sends vote requests and commits to every live server at once
+    private GroupCommit groupCommit;                                //Commits concurrent writes in batches, one round per batch
+    private QuorumNode quorumNode;                                  //Replicates writes by majority quorum instead, null with two phase commit
+    private int quorumReplayedStamp;                                //Actions up to here may already be applied when the quorum log gives them back
     private int lStamp;                                             //current lamport timestamp
-    private int lastSynchronization = -1;                           //The last known synchronization with other servers
+    private volatile int lastSynchronization = -1;                  //The last known synchronization with other servers
     private ServerInfo coordinator;                                 //Server Information for the coordinator
     private ServerInfo myInfo;                                      //Server Information for this server
     private boolean amCoordinator;                                  //Set true if this server is the coordinator, otherwise false
@@ -68,7 +124,10 @@ public class IdServer implements IdentityServerClusterInterface
     private String eventChannel = "event";
 
     private static int heartBeatDelay = 2000;                       //Amount of time in milliseconds between each heart beat
-    private Action actionForCommit;                                 //The current action that is the candidate for commiting
+    private static int metricsDelay = 5000;                         //Amount of time in milliseconds between each metrics log
+    private static int stateTransferAttempts = 3;                   //Times a state transfer is tried before giving up
+    private volatile ArrayList<Action> actionsForCommit;            //The current batch of actions that is the candidate for commiting
+    private Timer commitListenerTimer = new Timer(true);            //Runs the checks for vote requests that were never committed
 
     /**
      * main method
@@ -96,18 +155,27 @@ public class IdServer implements IdentityServerClusterInterface
      */
     public IdServer(String[] args) {
         run(args); //Parses command line arguments
+        fanOut = new ReplicaFanOut(!fanOutMode.equals("serial"));
+        if(!replicationMode.equals("quorum")) {
+            groupCommit = new GroupCommit(batchSize,batchLinger,!pipelineMode.equals("serial"),this::nextLamportTime,this::replicateRound,this::applyRound);
+        }
 
         //Setting up DataBase
-        if(dbFileName == null) {
+        if(engine.equals("memory")) {
+            databaseUrl = MemoryEngine.urlPrefix; //Nothing survives a restart
+        } else if(engine.equals("log")) {
+            databaseUrl = LogEngine.urlPrefix + ((dbFileName == null) ? "identity-" + this.registryPort + ".log" : dbFileName);
+        } else if(dbFileName == null) {
             databaseUrl = databaseUrlPrefix + "identity-" + this.registryPort + ".db";
         } else {
             databaseUrl = databaseUrlPrefix + dbFileName;
         }
-        dm = new DatabaseManager(databaseUrl);
+        dm = new DatabaseManager(databaseUrl,getDatabaseConfig());
         if(dbFileName == null) dm.setUp(); //A null dbFileName indicates that the database has never been setup
+        dm.setReplicationHorizon(() -> lastSynchronization); //Every action up to here is applied, older tombstones can go
+        stateTransferServer = new StateTransferServer(dm,System.getProperty("java.rmi.server.hostname","127.0.0.1")); //Where the other servers reach this one, see setMyInfo
 
         liveServerInfo = Collections.synchronizedList(new ArrayList<>());
-        actionHistory = Collections.synchronizedList(new ArrayList<>());
 
         //Getting values from the database
         lastSynchronization = dm.getLogicalStamp(); //Get the last known synchronization from the database
@@ -127,7 +195,121 @@ public class IdServer implements IdentityServerClusterInterface
             log.log(verboseChannel,"Verbose set");
         }
 
-        getKnownServers();
+        openActionLog();
+        startMetricsLog();
+        if(replicationMode.equals("quorum")) {
+            startQuorum();
+        } else {
+            getKnownServers();
+        }
+    }
+
+    /**
+     * Opens the action log and replays it: every action in it is put back in the action history, and the actions
+     * the storage engine was missing when the server stopped are executed again
+     */
+    private void openActionLog() {
+        actionHistory = new ActionHistory(historySize,lastSynchronization); //Older actions are only in the database
+        if(engine.equals("memory")) return; //Nothing else survives a restart either
+        File directory = new File((dbFileName == null) ? "actions-" + this.registryPort : dbFileName + ".actions");
+        try {
+            actionLog = new ActionLog(directory,actionLogSegmentSize,actionLogSync);
+        } catch (IOException e) {
+            log.log(eventChannel,"Could not open the action log, committed actions are only stored by the database: " + e);
+            return;
+        }
+        List<Action> recovered = actionLog.recoveredActions();
+        if(!recovered.isEmpty()) actionHistory = new ActionHistory(historySize,recovered.get(0).getStamp() - 1); //Segments before it were deleted
+        int replayed = 0;
+        for(Action action : recovered) {
+            actionHistory.add(action);
+            if(!action.isAppliedIn(dm)) {
+                action.execute(dm);
+                replayed++;
+            }
+            lastSynchronization = Math.max(lastSynchronization,action.getStamp());
+        }
+        lStamp = lastSynchronization;
+        log.log(verboseChannel,"Action log: " + actionHistory.size() + " actions read, " + replayed + " replayed");
+        if(actionLog.getCorruptSegments() > 0) log.log(eventChannel,"Action log has " + actionLog.getCorruptSegments() + " damaged segments");
+        startActionLogRetention();
+    }
+
+    /**
+     * Writes a committed action to the action log and the action history. Called before the action is executed.
+     * @param action
+     */
+    private void recordAction(Action action) {
+        actionHistory.add(action);
+        if(actionLog == null) return;
+        try {
+            actionLog.append(action);
+        } catch (IOException e) {
+            log.log(eventChannel,"Could not write action " + action.getStamp() + " to the action log: " + e);
+        }
+    }
+
+    /**
+     * Writes a committed batch of actions to the action log and the action history, forcing the log once.
+     * Called before the actions are executed.
+     * @param actions - in stamp order
+     */
+    private void recordActions(List<Action> actions) {
+        for(Action action : actions) {
+            actionHistory.add(action);
+        }
+        if(actionLog == null) return;
+        try {
+            actionLog.append(actions);
+        } catch (IOException e) {
+            log.log(eventChannel,"Could not write actions " + actions.get(0).getStamp() + " to "
+                    + actions.get(actions.size() - 1).getStamp() + " to the action log: " + e);
+        }
+    }
+
+    /**
+     * Deletes the action log segments every live server has applied and the storage engine holds,
+     * every actionLogRetentionDelay milliseconds
+     */
+    private void startActionLogRetention() {
+        Timer timer = new Timer(true);
+        class ActionLogRetention extends TimerTask {
+
+            @Override
+            public void run() {
+                int horizon = dm.getDurableStamp();
+                for(ServerInfo server : new ArrayList<>(liveServerInfo)) {
+                    try {
+                        horizon = Math.min(horizon,server.getRemObj().getLastSynchronizedTime());
+                    } catch (RemoteException | NullPointerException e) {
+                        //Not reachable, it catches up some other way when it comes back
+                    }
+                }
+                int deleted = actionLog.truncate(horizon);
+                if(deleted > 0) log.log(verboseChannel,getTimeStamp() + "Deleted " + deleted + " action log segments up to stamp " + horizon);
+            }
+        }
+        timer.scheduleAtFixedRate(new ActionLogRetention(), actionLogRetentionDelay, actionLogRetentionDelay);
+    }
+
+    /**
+     * Builds the database settings from the command line arguments
+     * @return database settings
+     */
+    private DatabaseConfig getDatabaseConfig() {
+        DatabaseConfig config = new DatabaseConfig();
+        config.batchedFlush = !flushMode.equals("single");
+        config.queueCapacity = queueCapacity;
+        config.fullPolicy = queueFullPolicy.equals("throttle") ? WriteBehindQueue.FullPolicy.THROTTLE : WriteBehindQueue.FullPolicy.BLOCK;
+        config.synchronous = sqlSynchronous.toUpperCase();
+        config.mmapSize = sqlMmapSize;
+        config.cacheSize = sqlCacheSize;
+        config.readerConnections = sqlReaders;
+        config.snapshotInterval = snapshotInterval * 1000;
+        config.tombstonePurgeInterval = tombstonePurgeInterval;
+        config.lazyLoad = lazyLoad;
+        config.offHeapStore = offHeapStore;
+        return config;
     }
 
     /**
@@ -158,13 +340,14 @@ public class IdServer implements IdentityServerClusterInterface
      * =======================================
      */
     @Override
-    public synchronized User create(String loginName, String realName, String password) throws RemoteException, PartitionedException {
+    public User create(String loginName, String realName, String password) throws RemoteException, PartitionedException {
         log.log(verboseChannel,getTimeStamp() + "attempting to create new user: " + loginName);
         if(!amCoordinator) {
             log.log(verboseChannel,"Forwarding request to coordinator");
-            return coordinator.getRemObj().create(loginName,realName,password);
+            return coordinatorObject().create(loginName,realName,password);
         }
-        if(currentCommitState.getCurrentState() == READY) throw new PartitionedException("The network is partitioned");
+        if(quorumNode == null && currentCommitState.getCurrentState() == READY) throw new PartitionedException("The network is partitioned");
+        throttleWrites();
         String passwordHash = null;
         if(password != null){passwordHash = trySHA(password);} //Hash it twice, because our database could be compromised.
         String ip = "Could not be determined";
@@ -173,18 +356,10 @@ public class IdServer implements IdentityServerClusterInterface
         } catch (ServerNotActiveException e) {
             e.printStackTrace();
         }
-        int lTimeStamp = nextLamportTime();
         User user = new User(UUID.randomUUID().toString(),loginName,realName,passwordHash,ip);
-        user.setLstamp(lTimeStamp);
-        Action action = new Action(lTimeStamp, CREATE,user);
-
-        if(startTwoPhaseCommitPhaseOne(action) == -1){
-            throw new PartitionedException("The system is partitioned. Unable to complete this request.");
-        } //Unable to commit action
-        User retUser = (dm.createUser(user) == 1) ? user : null;
-        actionHistory.add(action);
-        twoPhaseCommitPhaseTwo(action);
-        return retUser;
+        user.setDate(new Date()); //Sent with the action, so every server indexes the same creation date
+        int successCode = commitWrite(lTimeStamp -> new Action(lTimeStamp, CREATE,user)); //The action stamps the user
+        return (successCode == 1) ? user : null;
     }
 
     @Override
@@ -205,73 +380,111 @@ public class IdServer implements IdentityServerClusterInterface
     }
 
     @Override
-    public synchronized int modify(String oldLoginName, String newLoginName, String password) throws RemoteException, PartitionedException {
+    public int modify(String oldLoginName, String newLoginName, String password) throws RemoteException, PartitionedException {
         log.log(verboseChannel,getTimeStamp() + " Modifying " + oldLoginName + " to " + newLoginName);
         if(!amCoordinator) {
             log.log(verboseChannel,"Forwarding request to coordinator");
-            return coordinator.getRemObj().modify(oldLoginName,newLoginName,password);
+            return coordinatorObject().modify(oldLoginName,newLoginName,password);
         }
+        throttleWrites();
         String psswd = (password == null) ? null : trySHA(password);
-        int lTimeStamp = nextLamportTime();
         User user = new User(null,oldLoginName,null,psswd,null);
-        user.setLstamp(lTimeStamp);
-        Action action = new Action(lTimeStamp,UPDATE,user,newLoginName);
-        if(startTwoPhaseCommitPhaseOne(action) == -1){
-            throw new PartitionedException("The system is partitioned. Unable to complete this request.");
-        } //Unable to commit action
-        int successCode = dm.changeUserName(oldLoginName,newLoginName,psswd,lTimeStamp);
-        actionHistory.add(action);
-        twoPhaseCommitPhaseTwo(action);
-        return successCode;
+        return commitWrite(lTimeStamp -> new Action(lTimeStamp,UPDATE,user,newLoginName));
     }
 
     @Override
-    public synchronized int delete(String loginName, String password) throws RemoteException, PartitionedException {
+    public int delete(String loginName, String password) throws RemoteException, PartitionedException {
         log.log(verboseChannel,getTimeStamp() + " Deleting " + loginName);
         if(!amCoordinator) {
             log.log(verboseChannel,"Forwarding request to coordinator");
-            return coordinator.getRemObj().delete(loginName,password);
+            return coordinatorObject().delete(loginName,password);
         }
-        int lTimeStamp = nextLamportTime();
+        throttleWrites();
         String passwordHash = (password == null) ? null : trySHA(password);
         User user = new User(null,loginName,null,passwordHash,null);
-        Action action = new Action(lTimeStamp,DELETE,user);
-        if(startTwoPhaseCommitPhaseOne(action) == -1){
-            throw new PartitionedException("The system is partitioned. Unable to complete this request.");
-        } //Unable to commit action
-        int successCode = dm.deleteUser(loginName,passwordHash,lTimeStamp);
-        actionHistory.add(action);
-        twoPhaseCommitPhaseTwo(action);
-        return successCode;
+        return commitWrite(lTimeStamp -> new Action(lTimeStamp,DELETE,user));
+    }
+
+    /**
+     * Commits a write through the quorum, or in a two phase commit round of groupCommit
+     * @param makeAction - makes the action for the write, given its stamp
+     * @return result code of the write
+     * @throws PartitionedException if it could not be committed
+     */
+    private int commitWrite(IntFunction<Action> makeAction) throws PartitionedException {
+        return (quorumNode != null) ? quorumNode.propose(makeAction) : groupCommit.submit(makeAction);
+    }
+
+    /**
+     * @return the coordinator's remote object, to forward a write to
+     * @throws PartitionedException if there is no coordinator
+     */
+    private IdentityServerClusterInterface coordinatorObject() throws RemoteException, PartitionedException {
+        ServerInfo server = coordinator;
+        if(server == null) throw new PartitionedException("No coordinator is known. Unable to complete this request.");
+        return (quorumNode != null) ? connected(server) : server.getRemObj();
     }
 
     @Override
     public List<String> get(String option) throws RemoteException {
-        ArrayList<String> strings = new ArrayList<String>();
-        ArrayList<User> users = dm.getUsers();
+        List<String> strings;
         if(option.equals("users")) {
-            for(User u : users) {
-                String name = u.getName();
-                strings.add(name);
-            }
+            strings = dm.getListing(DatabaseManager.Listing.NAMES);
         } else if(option.equals("uuids")) {
-            for(User u : users) {
-                String uuid = u.getUuid();
-                strings.add(uuid);
-            }
+            strings = dm.getListing(DatabaseManager.Listing.UUIDS);
         } else if(option.equals("all")) {
-            for(User u : users) {
-                String info = u.publicString();
-                strings.add(info);
-            }
+            strings = dm.getListing(DatabaseManager.Listing.ALL);
+        } else {
+            return null;
+        }
+        log.log(verboseChannel,getTimeStamp() + " Listing " + option + ": " + strings.size() + " users");
+        return strings; //Shared between callers until the next write, and never modified
+    }
+
+    @Override
+    public UserPage get(String option, String cursor, int pageSize) throws RemoteException {
+        DatabaseManager.Listing kind;
+        if(option.equals("users")) {
+            kind = DatabaseManager.Listing.NAMES;
+        } else if(option.equals("uuids")) {
+            kind = DatabaseManager.Listing.UUIDS;
+        } else if(option.equals("all")) {
+            kind = DatabaseManager.Listing.ALL;
         } else {
             return null;
         }
-        System.out.println(strings);
-        for(String s : strings) {
-            System.out.println(s);
+        UserPage page = dm.getPage(kind,cursor,pageSize);
+        log.log(verboseChannel,getTimeStamp() + " Listing " + option + " after " + cursor + ": " + page.getEntries().size() + " users");
+        return page;
+    }
+
+    @Override
+    public List<String> search(String from, String to, int limit) throws RemoteException {
+        log.log(verboseChannel,getTimeStamp() + " Searching " + from + (to == null ? "*" : " to " + to));
+        if(from == null) return null;
+        try {
+            return (to == null) ? dm.searchNamePrefix(from,limit) : dm.searchNames(from,to,limit);
+        } catch(IllegalArgumentException e) {
+            log.log(verboseChannel,e.getMessage());
+            return new ArrayList<>();
         }
-        return strings;
+    }
+
+    @Override
+    public UserPage getCreated(long from, long to, String cursor, int limit) throws RemoteException {
+        log.log(verboseChannel,getTimeStamp() + " Listing users created from " + from + " to " + to + " after " + cursor);
+        try {
+            return dm.getCreated(from,to,cursor,limit);
+        } catch(IllegalArgumentException e) {
+            log.log(verboseChannel,e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public List<User> searchRealNames(String query, int limit) throws RemoteException {
+        log.log(verboseChannel,getTimeStamp() + " Searching real names for " + query);
+        return dm.searchRealNames(query,limit);
     }
 
     @Override
@@ -332,6 +545,9 @@ public class IdServer implements IdentityServerClusterInterface
                         synchronizeActions(server.getRemObj().getActions(lastSynchronization));
                     }
                 } catch (RemoteException e) {
+                } catch (HistoryTruncatedException e) {
+                    log.log(verboseChannel,"ELECTION: too far behind " + server + " to catch up from its actions: " + e.getMessage());
+                    transferState(server);
                 }
             }
         }
@@ -397,25 +613,71 @@ public class IdServer implements IdentityServerClusterInterface
     public int synchronizeActions(List<Action> actionHistory) throws RemoteException {
         if (actionHistory.isEmpty()) return 0;
         for(int i = 0; i < actionHistory.size(); i++) {
-            if(actionHistory.get(i).getStamp() > lastSynchronization) actionHistory.get(i).execute(dm);
+            if(actionHistory.get(i).getStamp() > lastSynchronization) {
+                recordAction(actionHistory.get(i));
+                actionHistory.get(i).execute(dm);
+            }
         }
         lastSynchronization = actionHistory.get(actionHistory.size() - 1).getStamp();
         return 0;
     }
 
     @Override
-    public ArrayList<Action> getActions(int lastSyncTime) throws RemoteException {
-        int lastSyncIndex = -1;
-        for(Action action : actionHistory){
-            if(action.getStamp() == lastSyncTime){
-                lastSyncIndex = actionHistory.indexOf(action);
-            }
+    public ArrayList<Action> getActions(int lastSyncTime) throws RemoteException, HistoryTruncatedException {
+        return actionHistory.since(lastSyncTime);
+    }
+
+    @Override
+    public StateTransfer startStateTransfer() throws RemoteException {
+        try {
+            StateTransfer transfer = stateTransferServer.offer();
+            log.log(verboseChannel,getTimeStamp() + "STATE TRANSFER: offering " + transfer.getLength() + " bytes at stamp " + transfer.getStamp());
+            return transfer;
+        } catch (IOException e) {
+            throw new RemoteException("Could not start a state transfer",e);
         }
-        if(lastSyncIndex == -1){
-            throw new RemoteException();
+    }
+
+    /**
+     * Replaces every user with a copy of another server's users, then executes the actions committed since the
+     * copy was made. Used when this server is new, or too far behind to catch up from actions.
+     * @param source - the server to copy
+     * @return true if this server caught up with the source
+     */
+    private boolean transferState(ServerInfo source) {
+        for(int attempt = 1; attempt <= stateTransferAttempts; attempt++) {
+            File file = null;
+            try {
+                long start = System.currentTimeMillis();
+                StateTransfer transfer = source.getRemObj().startStateTransfer();
+                file = File.createTempFile("state-transfer",".snapshot");
+                transfer.fetch(source.getHostIpAddress(),file);
+                int stamp = dm.installSnapshot(file);
+                if(stamp < 0) {
+                    log.log(verboseChannel,"STATE TRANSFER: attempt " + attempt + " received a damaged snapshot");
+                    continue;
+                }
+                actionHistory = new ActionHistory(historySize,stamp); //Actions before the snapshot are not known here
+                int caughtUp = 0;
+                for(Action action : source.getRemObj().getActions(stamp)) {
+                    recordAction(action);
+                    if(!action.isAppliedIn(dm)) action.execute(dm); //A commit may have arrived during the transfer
+                    stamp = Math.max(stamp,action.getStamp());
+                    caughtUp++;
+                }
+                setLamportTime(stamp);
+                lastSynchronization = stamp;
+                log.log(eventChannel,"State transfer from " + source + ": " + transfer.getLength() + " bytes at stamp " + transfer.getStamp()
+                        + " and " + caughtUp + " actions after it in " + (System.currentTimeMillis() - start) + "ms");
+                return true;
+            } catch (IOException | HistoryTruncatedException e) { //RemoteException is an IOException
+                log.log(verboseChannel,"STATE TRANSFER: attempt " + attempt + " failed: " + e);
+            } finally {
+                if(file != null) file.delete();
+            }
         }
-        int lastIndex = actionHistory.size() - 1;
-        return new ArrayList<Action>(actionHistory.subList(lastSyncIndex, lastIndex));
+        log.log(eventChannel,"State transfer from " + source + " failed, this server is missing users");
+        return false;
     }
 
     @Override
@@ -447,17 +709,18 @@ public class IdServer implements IdentityServerClusterInterface
     }
 
     @Override
-    public int voteRequest(Action actionForCommit) throws RemoteException {
+    public int voteRequest(ArrayList<Action> actionsForCommit) throws RemoteException {
         if(amCoordinator){
             System.out.println("Non coordinator called vote request on the coordinator.");
             runElection();
         }
-        log.log(verboseChannel, "Vote request received for action: " + actionForCommit.getStamp());
+        int lastStamp = actionsForCommit.get(actionsForCommit.size() - 1).getStamp();
+        log.log(verboseChannel, "Vote request received for actions: " + actionsForCommit.get(0).getStamp() + " to " + lastStamp);
 
-        this.actionForCommit = actionForCommit;
+        this.actionsForCommit = actionsForCommit;
         currentCommitState.setCurrentState(READY);
         dm.setCommitState(CommitState.stateToInt(READY));
-        abortIfNoResponse(actionForCommit.getStamp());
+        abortIfNoResponse(lastStamp);
         return currentCommitState.getCurrentState() == READY ? 1 : -1;
     }
 
@@ -466,61 +729,123 @@ public class IdServer implements IdentityServerClusterInterface
         log.log(verboseChannel, "Abort message recieved");
         currentCommitState.setCurrentState(ABORT);
         dm.setCommitState(CommitState.stateToInt(ABORT));
-        actionForCommit = null;
+        actionsForCommit = null;
         return 1;
     }
 
     @Override
     public void commit() throws RemoteException {
-        log.log(verboseChannel, "Commiting action: " + actionForCommit.getStamp());
-        actionHistory.add(actionForCommit);
-        actionForCommit.execute(dm);
-        lStamp = actionForCommit.getStamp();
+        ArrayList<Action> actions = actionsForCommit;
+        log.log(verboseChannel, "Commiting " + actions.size() + " actions up to: " + actions.get(actions.size() - 1).getStamp());
+        recordActions(actions);
+        for(Action action : actions) {
+            action.execute(dm);
+        }
+        lStamp = actions.get(actions.size() - 1).getStamp();
         lastSynchronization = lStamp;
-        actionForCommit = null;
+        actionsForCommit = null;
         currentCommitState.setCurrentState(COMMIT);
         dm.setCommitState(CommitState.stateToInt(COMMIT));
     }
 
     /**
-     * Initiates a two phase commit
-     * @param currentActionRequest - The action that is currently a candidate for being committed
+     * Commits a batch of writes from groupCommit on every live server, in one two phase commit round
+     * @param actions - in stamp order
+     * @throws PartitionedException if the batch could not be committed
+     */
+    private void replicateRound(List<Action> actions) throws PartitionedException {
+        ArrayList<Action> batch = new ArrayList<>(actions);
+        if(startTwoPhaseCommitPhaseOne(batch) == -1){
+            throw new PartitionedException("The system is partitioned. Unable to complete this request.");
+        } //Unable to commit actions
+        twoPhaseCommitPhaseTwo(batch);
+    }
+
+    /**
+     * Executes a batch of writes here once every live server has committed it. Runs while the next batch is
+     * replicated, so a replica may apply a batch before the coordinator does.
+     * @param actions - in stamp order
+     * @return the success code of each action
+     */
+    private int[] applyRound(List<Action> actions) {
+        recordActions(actions);
+        int[] successCodes = new int[actions.size()];
+        for(int i = 0; i < actions.size(); i++) {
+            successCodes[i] = actions.get(i).execute(dm);
+        }
+        lastSynchronization = Math.max(lastSynchronization,actions.get(actions.size() - 1).getStamp()); //Every live server holds the round
+        return successCodes;
+    }
+
+    @Override
+    public QuorumNode.AppendResult appendEntries(QuorumNode.AppendRequest request) throws RemoteException {
+        if(quorumNode == null) throw new RemoteException("Not replicating by quorum");
+        try {
+            return quorumNode.appendEntries(request);
+        } catch (IOException e) {
+            log.log(eventChannel,"Could not write the quorum log: " + e);
+            throw new RemoteException("Could not write the quorum log",e);
+        }
+    }
+
+    @Override
+    public QuorumNode.VoteResult requestVote(QuorumNode.VoteRequest request) throws RemoteException {
+        if(quorumNode == null) throw new RemoteException("Not replicating by quorum");
+        try {
+            return quorumNode.requestVote(request);
+        } catch (IOException e) {
+            log.log(eventChannel,"Could not write the quorum log: " + e);
+            throw new RemoteException("Could not write the quorum log",e);
+        }
+    }
+
+    /**
+     * Executes a batch of writes the quorum committed, on every server in log order. After a restart the quorum
+     * log gives back actions the action log already replayed, those are skipped.
+     * @param actions - in stamp order
+     * @return the success code of each action
+     */
+    private int[] applyQuorumRound(List<Action> actions) {
+        ArrayList<Action> fresh = new ArrayList<>(actions.size());
+        boolean[] replayed = new boolean[actions.size()];
+        for(int i = 0; i < actions.size(); i++) {
+            Action action = actions.get(i);
+            replayed[i] = action.getStamp() <= quorumReplayedStamp && action.isAppliedIn(dm);
+            if(!replayed[i]) fresh.add(action);
+        }
+        if(!fresh.isEmpty()) recordActions(fresh);
+        int[] successCodes = new int[actions.size()];
+        for(int i = 0; i < actions.size(); i++) {
+            successCodes[i] = replayed[i] ? 1 : actions.get(i).execute(dm);
+        }
+        lStamp = Math.max(lStamp,actions.get(actions.size() - 1).getStamp());
+        lastSynchronization = lStamp;
+        return successCodes;
+    }
+
+    /**
+     * Initiates a two phase commit. Every live server is asked to vote at once, and the actions are aborted
+     * if any server votes no or does not vote within commitTimeout milliseconds.
+     * @param currentActionRequests - The batch of actions that is currently a candidate for being committed
      * @return 1 if successful, -1 not successful
      */
-    private int startTwoPhaseCommitPhaseOne(Action currentActionRequest){
+    private int startTwoPhaseCommitPhaseOne(ArrayList<Action> currentActionRequests){
         currentCommitState.setCurrentState(INIT);
         dm.setCommitState(CommitState.stateToInt(INIT));
-        try {
-            log.log(verboseChannel, "Two Phase Commit initiated for action: " + currentActionRequest.getStamp());
-            //Setting all servers to READY
-            for(ServerInfo server : liveServerInfo){
-                if(server.getRemObj().voteRequest(currentActionRequest) == -1){
-                    log.log(verboseChannel, "Bad state received from " + server.toString());
-                    currentCommitState.setCurrentState(ABORT);
-                    dm.setCommitState(CommitState.stateToInt(ABORT));
-                    for (ServerInfo s: liveServerInfo) {
-                        try {
-                            s.getRemObj().abort();
-                        } catch (RemoteException e1) {
-                            log.log(verboseChannel, "Problem sending abort message.");
-                        }
-                        return -1; //Abort message sent
-                    }
-                }
-            }
-        } catch (RemoteException e) {
-            log.log(verboseChannel, "Not everyone is ready. Aborting vote request.");
-            currentCommitState.setCurrentState(ABORT);
-            dm.setCommitState(CommitState.stateToInt(ABORT));
-            for (ServerInfo server : liveServerInfo){
-                System.out.println(server.toString());
-            }
-            for (ServerInfo server: liveServerInfo) {
-                try {
-                    server.getRemObj().abort();
-                } catch (RemoteException e1) {
-                    log.log(verboseChannel, "Problem sending abort message.");
-                }
+        log.log(verboseChannel, "Two Phase Commit initiated for " + currentActionRequests.size() + " actions up to: "
+                + currentActionRequests.get(currentActionRequests.size() - 1).getStamp());
+        //Setting all servers to READY
+        List<ServerInfo> servers = new ArrayList<>(liveServerInfo);
+        List<Integer> votes = fanOut.call(servers, server -> server.voteRequest(currentActionRequests), commitTimeout);
+        for(int i = 0; i < servers.size(); i++) {
+            Integer vote = votes.get(i);
+            if(vote == null || vote == -1) {
+                log.log(verboseChannel, ((vote == null) ? "No vote in time from " : "Bad state received from ") + servers.get(i).toString());
+                log.log(verboseChannel, "Not everyone is ready. Aborting vote request.");
+                currentCommitState.setCurrentState(ABORT);
+                dm.setCommitState(CommitState.stateToInt(ABORT));
+                List<Integer> aborted = fanOut.call(servers, server -> server.abort(), commitTimeout);
+                if(aborted.contains(null)) log.log(verboseChannel, "Problem sending abort message.");
                 return -1; //Abort message sent
             }
         }
@@ -531,36 +856,37 @@ public class IdServer implements IdentityServerClusterInterface
     }
 
     /**
-     *Commits the action that was voted on during twoPhaseCommitPhaseOne
-     * @param currentActionRequest - The action that needs to be committed
+     *Commits the actions that were voted on during twoPhaseCommitPhaseOne, on every live server at once
+     * @param currentActionRequests - The actions that need to be committed
      */
-    private void twoPhaseCommitPhaseTwo(Action currentActionRequest) {
+    private void twoPhaseCommitPhaseTwo(ArrayList<Action> currentActionRequests) {
         //Sending commit to all servers
-        log.log(verboseChannel, "Commiting action: " + currentActionRequest.getStamp());
-        try {
-            for (ServerInfo server : liveServerInfo){
-                log.log(verboseChannel, "Sending commit for action: " + currentActionRequest.getStamp());
-                server.getRemObj().commit();
-            }
-        } catch (RemoteException e) {
-            log.log(verboseChannel, "Problem with committing action to backup servers.");
+        int lastStamp = currentActionRequests.get(currentActionRequests.size() - 1).getStamp();
+        log.log(verboseChannel, "Commiting actions up to: " + lastStamp);
+        List<ServerInfo> servers = new ArrayList<>(liveServerInfo);
+        List<Integer> committed = fanOut.call(servers, server -> {
+            server.commit();
+            return 1;
+        }, commitTimeout);
+        for(int i = 0; i < servers.size(); i++) {
+            if(committed.get(i) == null) log.log(verboseChannel, "Problem with committing actions to " + servers.get(i).toString());
         }
-        lStamp = currentActionRequest.getStamp();
-        log.log(verboseChannel, "Commit made for action: " + currentActionRequest.getStamp());
+        log.log(verboseChannel, "Commit made for actions up to: " + lastStamp); //lStamp is already past it, writes waiting for the next round are stamped
     }
 
     /**
      * A thread to run and make a decision if no commit message is received from the coordinator
      * after receiving a vote request
-     * @param actionlStamp - The logical time stamp of the request
+     * @param actionlStamp - The logical time stamp of the last action in the batch
      */
     private void abortIfNoResponse(int actionlStamp) {
-        Timer timer = new Timer();
         class CommitListener extends TimerTask {
 
             @Override
             public void run() {
                     while(currentCommitState.getCurrentState() == READY){
+                        ArrayList<Action> pending = actionsForCommit;
+                        if(pending == null || pending.get(pending.size() - 1).getStamp() != actionlStamp) return; //Committed, aborted or replaced by a newer vote request
                         log.log(verboseChannel, "No commit message recieved for action: " + actionlStamp);
                         log.log(verboseChannel, "Asking other servers for state information.");
 
@@ -574,8 +900,10 @@ public class IdServer implements IdentityServerClusterInterface
                                     log.log(verboseChannel, "Executing action: " + actionlStamp);
                                     currentCommitState.setCurrentState(INIT);
                                     dm.setCommitState(CommitState.stateToInt(INIT));
-                                    actionHistory.add(actionForCommit);
-                                    actionForCommit.execute(dm);
+                                    recordActions(pending);
+                                    for(Action action : pending) {
+                                        action.execute(dm);
+                                    }
                                     setLamportTime(actionlStamp);
                                     return;
                                 } else if(serverState == CommitState.State.ABORT | serverState == INIT){
@@ -592,7 +920,7 @@ public class IdServer implements IdentityServerClusterInterface
             }
         }
         CommitListener cl = new CommitListener();
-        timer.schedule(cl, 5000); //Schedules timer.run() after a scheduled amount of time
+        commitListenerTimer.schedule(cl, 5000); //Schedules timer.run() after a scheduled amount of time
     }
 
     /**
@@ -650,6 +978,35 @@ public class IdServer implements IdentityServerClusterInterface
         timer.scheduleAtFixedRate(hb, 0, heartBeatDelay); //Schedules timer.run() to execute periodically
     }
 
+    /**
+     * Slows down admission of a new write while the database write-behind queue is filling up
+     */
+    private void throttleWrites() {
+        long delay = dm.getAdmissionDelay();
+        if(delay <= 0) return;
+        log.log(verboseChannel,"Write-behind queue is filling up, delaying write by " + delay + "ms");
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Logs server metrics on the verbose channel every metricsDelay milliseconds
+     */
+    private void startMetricsLog() {
+        Timer timer = new Timer(true);
+        class MetricsLog extends TimerTask {
+
+            @Override
+            public void run() {
+                log.log(verboseChannel,getTimeStamp() + dm.getWriteBehindMetrics() + " " + dm.getLoadMetrics());
+            }
+        }
+        timer.scheduleAtFixedRate(new MetricsLog(), metricsDelay, metricsDelay);
+    }
+
     /**
      * Gets a remote object from a server
      * @param server The server info where the remote object will be
@@ -730,6 +1087,98 @@ public class IdServer implements IdentityServerClusterInterface
         return remObj.getCoordinatorInfo();
     }
 
+    /**
+     * Joins the servers listed in KnownServers.txt as a fixed group that commits writes by majority quorum,
+     * instead of electing a coordinator with the bully algorithm and running two phase commits. Each server
+     * is known in the group by its registry port, and the leader of the group is the coordinator.
+     */
+    private void startQuorum() {
+        setRmiTimeout(1000);
+        setMyInfo();
+        ServerAddressParser fileParser = new ServerAddressParser("KnownServers.txt");
+        liveServerInfo = Collections.synchronizedList(fileParser.getServerInfo());
+        liveServerInfo.remove(myInfo);
+        HashMap<Integer,QuorumNode.Peer> peers = new HashMap<>();
+        for(ServerInfo server : liveServerInfo) {
+            peers.put(server.getRegistryPort(),new RmiPeer(server));
+        }
+        QuorumNode.Config config = new QuorumNode.Config();
+        config.proposalTimeout = commitTimeout;
+        config.maxBatch = batchSize;
+        quorumReplayedStamp = lastSynchronization;
+        try {
+            QuorumNode.Storage storage = engine.equals("memory") ? new QuorumNode.MemoryStorage()
+                    : new QuorumLog(new File((dbFileName == null) ? "quorum-" + this.registryPort + ".log" : dbFileName + ".quorum"));
+            quorumNode = new QuorumNode(registryPort,peers,storage,lastSynchronization,this::applyQuorumRound,this::leaderChanged,config);
+        } catch (IOException e) {
+            log.log(eventChannel,"Could not open the quorum log: " + e);
+            System.exit(1);
+        }
+        bind();
+        quorumNode.start();
+        log.log(verboseChannel,"Replicating by quorum with " + peers.size() + " other servers. My server info: " + myInfo);
+    }
+
+    /**
+     * Makes the quorum's leader the coordinator, writes sent to other servers are forwarded to it
+     * @param leaderId - registry port of the leader, -1 while there is none
+     */
+    private void leaderChanged(int leaderId) {
+        ServerInfo leader = (leaderId == registryPort) ? myInfo : null;
+        for(ServerInfo server : new ArrayList<>(liveServerInfo)) {
+            if(server.getRegistryPort() == leaderId) leader = server;
+        }
+        coordinator = leader;
+        amCoordinator = leader == myInfo;
+        log.log(verboseChannel,getTimeStamp() + ((leader == null) ? "No leader" : "Leader is " + leader));
+    }
+
+    /**
+     * @return the server's remote object, looked up if there is none yet
+     */
+    private IdentityServerClusterInterface connected(ServerInfo server) throws RemoteException {
+        try {
+            return server.getRemObj();
+        } catch (RemoteException e) {
+            try {
+                return getRemoteObject(server);
+            } catch (NotBoundException notBound) {
+                throw new RemoteException("Not bound: " + server,notBound);
+            }
+        }
+    }
+
+    /**
+     * Another server in the quorum, looked up again after a call to it fails
+     */
+    private class RmiPeer implements QuorumNode.Peer {
+        private final ServerInfo server;
+
+        RmiPeer(ServerInfo server) {
+            this.server = server;
+        }
+
+        @Override
+        public QuorumNode.AppendResult appendEntries(QuorumNode.AppendRequest request) throws IOException {
+            try {
+                return connected(server).appendEntries(request);
+            } catch (RemoteException e) {
+                server.setRemObj(null);
+                throw e;
+            }
+        }
+
+        @Override
+        public QuorumNode.VoteResult requestVote(QuorumNode.VoteRequest request) throws IOException {
+            try {
+                return connected(server).requestVote(request);
+            } catch (RemoteException e) {
+                server.setRemObj(null);
+                throw e;
+            }
+        }
+    }
+
     /**
      * Gets the remote objects from the servers listed in KnownServers.txt
      */
@@ -772,6 +1221,7 @@ public class IdServer implements IdentityServerClusterInterface
                 myInfo.setServerId(serverId);
                 log.log(verboseChannel,"My server info " + myInfo);
                 startHeartBeat();
+                transferState(coordinator); //Get the users from before we joined
             } else{ //You have lost connection/died and need to reconnect
                 log.log(verboseChannel, "Rejoining cluster");
                 bind();
@@ -792,10 +1242,16 @@ public class IdServer implements IdentityServerClusterInterface
                     }
 
                     //Make sure we are up to date on actions
-                    ArrayList<Action> neededActions = coordinator.getRemObj().getActions(lStamp);
-                    for (Action action : neededActions){
-                        action.execute(dm);
-                        lStamp = action.getStamp();
+                    try {
+                        ArrayList<Action> neededActions = coordinator.getRemObj().getActions(lStamp);
+                        for (Action action : neededActions){
+                            recordAction(action);
+                            action.execute(dm);
+                            lStamp = action.getStamp();
+                        }
+                    } catch (HistoryTruncatedException e) {
+                        log.log(verboseChannel,"Too far behind the coordinator to catch up from its actions: " + e.getMessage());
+                        transferState(coordinator);
                     }
                 }
             }
@@ -848,7 +1304,11 @@ public class IdServer implements IdentityServerClusterInterface
      */
     public void shutDownGracefully(String goodByeMessage) {
         System.err.println(goodByeMessage);
+        if(quorumNode != null) quorumNode.close();
         dm.updateDatabase();
+        dm.writeSnapshot();
+        if(actionLog != null) actionLog.close();
+        stateTransferServer.close();
     }
 
 }
@@ -56,10 +56,19 @@ public interface IdentityServerClusterInterface extends IdentityServerInterface
     /**
      * Gets Actions that have not been recorded by a server
      * @param lastSyncTime - The last known sync time of the server calling the method
-     * @return An ArrayList of actions that the callee needs to be up to date
+     * @return An ArrayList of the actions after lastSyncTime, oldest first, that the callee needs to be up to date
      * @throws RemoteException
+     * @throws HistoryTruncatedException if some of those actions are no longer kept
      */
-    ArrayList<Action> getActions(int lastSyncTime) throws RemoteException;
+    ArrayList<Action> getActions(int lastSyncTime) throws RemoteException, HistoryTruncatedException;
+
+    /**
+     * Writes a snapshot of every user for a server that is new or too far behind to catch up from actions.
+     * The snapshot is fetched over a side channel, then the actions after its stamp with getActions.
+     * @return how to fetch the snapshot
+     * @throws RemoteException if the snapshot could not be written
+     */
+    StateTransfer startStateTransfer() throws RemoteException;
 
     /**
      * Returns the last known synchronized time
@@ -72,8 +81,14 @@ public interface IdentityServerClusterInterface extends IdentityServerInterface
      * TWo phase commit methods
      */
     CommitState.State getCommitState() throws RemoteException;
-    int voteRequest(Action actionToCommit) throws RemoteException;
+    int voteRequest(ArrayList<Action> actionsToCommit) throws RemoteException;
     int abort() throws RemoteException;
     void commit() throws RemoteException;
 
+    /**
+     * Majority quorum methods, see QuorumNode
+     */
+    QuorumNode.AppendResult appendEntries(QuorumNode.AppendRequest request) throws RemoteException;
+    QuorumNode.VoteResult requestVote(QuorumNode.VoteRequest request) throws RemoteException;
+
 }
@@ -54,7 +54,8 @@ public interface IdentityServerInterface extends Remote {
      *the server changes the name (note that the UUID does not ever change, once it has been
      *assigned). If the new login name is taken, then the server returns an error.
      *
-     * @return
+     * @return 1 if changed, -1 if no user has the old login name, -2 if the password is wrong,
+     * -3 if the new login name is taken
      * @throws RemoteException
      */
     int modify(String oldLoginName, String newLoginName, String password) throws RemoteException, PartitionedException;
@@ -80,6 +81,60 @@ public interface IdentityServerInterface extends Remote {
      */
      List<String> get(String option) throws RemoteException;
 
+    /**
+     * --get users|uuids|all, one page at a time
+     * Same listing as get(String), in UUID order. Start with a null cursor, and pass the cursor of each page
+     * to get the next one until a page has a null cursor. Writes made while paging never make a user
+     * appear twice or be skipped.
+     *
+     * @param option - users, uuids or all
+     * @param cursor - cursor of the previous page, null for the first page
+     * @param pageSize - most users on the page
+     * @return the page, or null if the option is not known
+     * @throws RemoteException
+     */
+     UserPage get(String option, String cursor, int pageSize) throws RemoteException;
+
+    /**
+     * --search <prefix> | --search <from> <to>
+     * Finds login names, in order. With a null to, finds the names starting with from.
+     * Otherwise finds the names from from (inclusive) to to (exclusive).
+     *
+     * @param from - prefix, or start of the range
+     * @param to - end of the range, or null for a prefix search
+     * @param limit - most names returned
+     * @return the login names found
+     * @throws RemoteException
+     */
+     List<String> search(String from, String to, int limit) throws RemoteException;
+
+    /**
+     * --find <words>
+     * Finds users by the words of their real names. Case and accents are ignored. Every word must match,
+     * and a word ending in * matches any word starting with it.
+     *
+     * @param query - the words, separated by spaces
+     * @param limit - most users returned
+     * @return the users found
+     * @throws RemoteException
+     */
+     List<User> searchRealNames(String query, int limit) throws RemoteException;
+
+    /**
+     * --created <from> <to>
+     * Lists the users created in a range of dates, oldest first, a chunk at a time. Each entry has the login name,
+     * UUID, creation date and stamp of a user (see User.auditString). Start with a null cursor, and pass the
+     * cursor of each chunk to get the next one until a chunk has a null cursor.
+     *
+     * @param from - first creation date in epoch milliseconds, inclusive
+     * @param to - last creation date in epoch milliseconds, exclusive
+     * @param cursor - cursor of the previous chunk, null for the first chunk
+     * @param limit - most users in the chunk
+     * @return the chunk, or null if the cursor is not valid
+     * @throws RemoteException
+     */
+     UserPage getCreated(long from, long to, String cursor, int limit) throws RemoteException;
+
     /**
      * This method returns the coordinators connection info (ipaddress, port). It can be used
      * if a client wants to talk directly to the coordinator to limit communication delay.
@@ -0,0 +1,176 @@
+package Identity.Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Stores a server's term, vote and quorum log in one file, forced to disk before each method returns.
+ *
+ * The file is a series of records, each the CRC32 of the rest of the record, body length, then the body: a term
+ * and vote, a run of entries that replaces the stored entries from its first index on, or the base of a
+ * compacted log. Loading replays them in order, and cuts off a record torn by a crash. Compacting rewrites
+ * the file with only the term, the base and the entries after it.
+ */
+public class QuorumLog implements QuorumNode.Storage {
+    private static final int headerSize = 8;    //CRC and body length
+    private static final byte termRecord = 0;
+    private static final byte entriesRecord = 1;
+    private static final byte baseRecord = 2;
+
+    private final File file;
+    private FileChannel channel;
+    private int term;
+    private int votedFor = -1;
+
+    /**
+     * @param file - created if it does not exist
+     */
+    public QuorumLog(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(),StandardOpenOption.CREATE,StandardOpenOption.READ,StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public synchronized QuorumNode.Saved load() throws IOException {
+        QuorumNode.Saved saved = new QuorumNode.Saved();
+        ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        int end = 0;
+        while(log.remaining() >= headerSize) {
+            int crc = log.getInt();
+            int length = log.getInt();
+            if(length <= 0 || length > log.remaining()) break;
+            CRC32 check = new CRC32();
+            check.update(log.array(),log.position() - 4,length + 4);
+            if((int) check.getValue() != crc) break;
+            ByteBuffer body = ByteBuffer.wrap(log.array(),log.position(),length);
+            log.position(log.position() + length);
+            if(!replay(body,saved)) break;
+            end = log.position();
+        }
+        if(end < channel.size()) channel.truncate(end); //A torn record from a crash, it was never acknowledged
+        channel.position(end);
+        term = saved.term;
+        votedFor = saved.votedFor;
+        return saved;
+    }
+
+    /**
+     * @return false if the record does not follow from the ones before it
+     */
+    private static boolean replay(ByteBuffer body, QuorumNode.Saved saved) {
+        byte type = body.get();
+        if(type == termRecord) {
+            saved.term = body.getInt();
+            saved.votedFor = body.getInt();
+        } else if(type == baseRecord) {
+            saved.baseIndex = body.getInt();
+            saved.baseTerm = body.getInt();
+            saved.entries.clear();
+        } else if(type == entriesRecord) {
+            int position = body.getInt() - saved.baseIndex - 1;
+            if(position < 0 || position > saved.entries.size()) return false;
+            saved.entries.subList(position,saved.entries.size()).clear();
+            int count = body.getInt();
+            for(int i = 0; i < count; i++) {
+                int entryTerm = body.getInt();
+                int length = body.getInt();
+                QuorumNode.Entry entry;
+                if(length < 0) {
+                    entry = new QuorumNode.Entry(entryTerm,null);
+                } else { //An action log record, its own header is skipped
+                    entry = new QuorumNode.Entry(entryTerm,ActionLog.decode(ByteBuffer.wrap(body.array(),
+                            body.position() + ActionLog.headerSize,length - ActionLog.headerSize)));
+                    body.position(body.position() + length);
+                }
+                saved.entries.add(entry);
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void saveTerm(int term, int votedFor) throws IOException {
+        ByteBuffer body = ByteBuffer.allocate(9);
+        body.put(termRecord).putInt(term).putInt(votedFor);
+        write(channel,body.array());
+        channel.force(false);
+        this.term = term;
+        this.votedFor = votedFor;
+    }
+
+    @Override
+    public synchronized void append(int from, List<QuorumNode.Entry> entries) throws IOException {
+        write(channel,entries(from,entries));
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void compact(int baseIndex, int baseTerm, List<QuorumNode.Entry> kept) throws IOException {
+        File compacted = new File(file.getPath() + ".compact");
+        try(FileChannel out = FileChannel.open(compacted.toPath(),StandardOpenOption.CREATE,StandardOpenOption.WRITE,StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(out,ByteBuffer.allocate(9).put(termRecord).putInt(term).putInt(votedFor).array());
+            write(out,ByteBuffer.allocate(9).put(baseRecord).putInt(baseIndex).putInt(baseTerm).array());
+            if(!kept.isEmpty()) write(out,entries(baseIndex + 1,kept));
+            out.force(true);
+        }
+        channel.close();
+        Files.move(compacted.toPath(),file.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file.toPath(),StandardOpenOption.READ,StandardOpenOption.WRITE);
+        channel.position(channel.size());
+    }
+
+    private static byte[] entries(int from, List<QuorumNode.Entry> entries) {
+        ArrayList<byte[]> actions = new ArrayList<>(entries.size());
+        int length = 1 + 4 + 4;
+        for(QuorumNode.Entry entry : entries) {
+            byte[] action = (entry.action == null) ? null : ActionLog.encode(entry.action);
+            actions.add(action);
+            length += 4 + 4 + (action == null ? 0 : action.length);
+        }
+        ByteBuffer body = ByteBuffer.allocate(length);
+        body.put(entriesRecord).putInt(from).putInt(entries.size());
+        for(int i = 0; i < entries.size(); i++) {
+            byte[] action = actions.get(i);
+            body.putInt(entries.get(i).term);
+            body.putInt(action == null ? -1 : action.length);
+            if(action != null) body.put(action);
+        }
+        return body.array();
+    }
+
+    /**
+     * Writes a record with the body at the channel's position
+     */
+    private static void write(FileChannel channel, byte[] body) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(headerSize + body.length);
+        record.position(4);
+        record.putInt(body.length);
+        record.put(body);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(),4,body.length + 4);
+        record.putInt(0,(int) crc.getValue());
+        record.flip();
+        while(record.hasRemaining()) {
+            channel.write(record);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //Everything written was already forced
+        }
+    }
+}
@@ -0,0 +1,891 @@
+package Identity.Server;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * One server's part in replicating actions to a fixed group of servers by majority quorum, with leader terms and
+ * log matching (the Raft protocol), instead of bully elections and two phase commits with every live server.
+ *
+ * Every server keeps a log of entries, each an action and the term of the leader that added it. The leader
+ * stamps a write, appends it to its log and sends new entries to each other server from a thread of its own.
+ * A server only accepts entries if its log holds the entry before them with the same term, and drops any
+ * entries of its own that disagree with them, so its log matches the leader's up to the last entry accepted.
+ * An entry is committed once a majority of the servers, the leader included, have written it to storage, and
+ * every server applies committed entries in log order. A slow or unreachable server only delays its own copy.
+ *
+ * A server that hears from no leader for an election timeout starts an election for the next term. A server
+ * votes at most once a term, and only for a candidate whose log is at least as up to date as its own, so a new
+ * leader holds every committed entry. A leader that sees a higher term steps down, and the writes waiting on it
+ * fail. Its entries may still be committed by the next leader.
+ *
+ * Entries every server holds and that are applied here are dropped from the log, see Config.compactAfter.
+ * A server that stays down keeps the log from being compacted.
+ */
+public class QuorumNode {
+    public enum Role {FOLLOWER, CANDIDATE, LEADER}
+
+    private final int id;
+    private final Map<Integer,Peer> peers;
+    private final Storage storage;
+    private final Apply apply;
+    private final LeaderListener listener;
+    private final Config config;
+    private final int majority;
+    private final int commitAcks;
+    private final Random random = new Random();
+    private final Object storageLock = new Object();   //Entries are written to storage in log order, one writer at a time
+    private final ExecutorService voteRequests;
+
+    //Guarded by this
+    private int currentTerm;
+    private int votedFor;
+    private Role role = Role.FOLLOWER;
+    private int leaderId = -1;
+    private final ArrayList<Entry> entries = new ArrayList<>();  //Entries after baseIndex
+    private int baseIndex;                                       //Last entry dropped from the log
+    private int baseTerm;
+    private int persistedIndex;                                  //Last entry written to storage
+    private int logVersion;                                      //Changed when entries are dropped because they disagree with the leader
+    private int commitIndex;
+    private int lastApplied;
+    private int highestStamp;
+    private int votes;
+    private long electionDeadline;
+    private int leaderSafeIndex;                                 //Entries every server holds, as last told by the leader
+    private final HashMap<Integer,Integer> nextIndex = new HashMap<>();
+    private final HashMap<Integer,Integer> matchIndex = new HashMap<>();
+    private final HashMap<Integer,Proposal> proposals = new HashMap<>();
+    private boolean closed;
+
+    /**
+     * Settings, in milliseconds where they are times
+     */
+    public static class Config {
+        public long electionTimeout = 1000;     //Without hearing from a leader before an election, randomized up to twice this
+        public long heartbeatInterval = 100;    //Between appends from the leader to a server when there is nothing new
+        public int maxBatch = 512;              //Most entries sent in one append, or applied at once
+        public long proposalTimeout = 3000;     //A write waits this long to be committed before it fails
+        public int compactAfter = 10000;        //Entries every server holds before they are dropped from the log
+        public int requiredAcks = 0;            //Servers that must hold an entry before it commits, 0 for a majority.
+                                                //More than a majority is for comparison, any slow server then delays every write
+    }
+
+    /**
+     * An action and the term of the leader that added it to the log
+     */
+    public static class Entry implements Serializable {
+        public final int term;
+        public final Action action;             //Null for the entry a new leader adds to commit the entries before it
+
+        public Entry(int term, Action action) {
+            this.term = term;
+            this.action = action;
+        }
+    }
+
+    /**
+     * Entries from the leader, to go after the entry at prevIndex
+     */
+    public static class AppendRequest implements Serializable {
+        public final int term;
+        public final int leaderId;
+        public final int prevIndex;
+        public final int prevTerm;
+        public final ArrayList<Entry> entries;
+        public final int leaderCommit;
+        public final int safeIndex;             //Entries every server holds, they can be dropped once applied
+
+        public AppendRequest(int term, int leaderId, int prevIndex, int prevTerm, ArrayList<Entry> entries, int leaderCommit, int safeIndex) {
+            this.term = term;
+            this.leaderId = leaderId;
+            this.prevIndex = prevIndex;
+            this.prevTerm = prevTerm;
+            this.entries = entries;
+            this.leaderCommit = leaderCommit;
+            this.safeIndex = safeIndex;
+        }
+    }
+
+    public static class AppendResult implements Serializable {
+        public final int term;
+        public final boolean success;
+        public final int index;                 //The last entry that matches the leader's, or the next one to send if not a success
+
+        public AppendResult(int term, boolean success, int index) {
+            this.term = term;
+            this.success = success;
+            this.index = index;
+        }
+    }
+
+    public static class VoteRequest implements Serializable {
+        public final int term;
+        public final int candidateId;
+        public final int lastIndex;
+        public final int lastTerm;
+
+        public VoteRequest(int term, int candidateId, int lastIndex, int lastTerm) {
+            this.term = term;
+            this.candidateId = candidateId;
+            this.lastIndex = lastIndex;
+            this.lastTerm = lastTerm;
+        }
+    }
+
+    public static class VoteResult implements Serializable {
+        public final int term;
+        public final boolean granted;
+
+        public VoteResult(int term, boolean granted) {
+            this.term = term;
+            this.granted = granted;
+        }
+    }
+
+    /**
+     * Another server in the group
+     */
+    public interface Peer {
+        AppendResult appendEntries(AppendRequest request) throws IOException;
+        VoteResult requestVote(VoteRequest request) throws IOException;
+    }
+
+    /**
+     * Executes committed actions on this server
+     */
+    public interface Apply {
+        /**
+         * @param actions - in log order
+         * @return the result code of each action, in the same order
+         */
+        int[] apply(List<Action> actions);
+    }
+
+    public interface LeaderListener {
+        /**
+         * @param leaderId - the new leader, -1 while there is none
+         */
+        void leaderChanged(int leaderId);
+    }
+
+    /**
+     * Where a server keeps its term, vote and log. Each method returns once its change survives a crash.
+     */
+    public interface Storage {
+        /**
+         * @return what was stored before the server stopped
+         */
+        Saved load() throws IOException;
+        void saveTerm(int term, int votedFor) throws IOException;
+
+        /**
+         * @param from - index of the first entry, it and every stored entry after it are replaced
+         */
+        void append(int from, List<Entry> entries) throws IOException;
+
+        /**
+         * Drops the entries up to baseIndex
+         * @param kept - the stored entries after baseIndex
+         */
+        void compact(int baseIndex, int baseTerm, List<Entry> kept) throws IOException;
+        void close();
+    }
+
+    public static class Saved {
+        public int term;
+        public int votedFor = -1;
+        public int baseIndex;
+        public int baseTerm;
+        public final ArrayList<Entry> entries = new ArrayList<>();
+    }
+
+    /**
+     * Keeps the log in memory, it only survives the node being closed and made again
+     */
+    public static class MemoryStorage implements Storage {
+        private final Saved saved = new Saved();
+
+        @Override
+        public synchronized Saved load() {
+            Saved copy = new Saved();
+            copy.term = saved.term;
+            copy.votedFor = saved.votedFor;
+            copy.baseIndex = saved.baseIndex;
+            copy.baseTerm = saved.baseTerm;
+            copy.entries.addAll(saved.entries);
+            return copy;
+        }
+
+        @Override
+        public synchronized void saveTerm(int term, int votedFor) {
+            saved.term = term;
+            saved.votedFor = votedFor;
+        }
+
+        @Override
+        public synchronized void append(int from, List<Entry> entries) {
+            int position = from - saved.baseIndex - 1;
+            saved.entries.subList(position,saved.entries.size()).clear();
+            saved.entries.addAll(entries);
+        }
+
+        @Override
+        public synchronized void compact(int baseIndex, int baseTerm, List<Entry> kept) {
+            saved.baseIndex = baseIndex;
+            saved.baseTerm = baseTerm;
+            saved.entries.clear();
+            saved.entries.addAll(kept);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * A write waiting for its entry to be applied
+     */
+    private static class Proposal {
+        final int term;
+        final CountDownLatch done = new CountDownLatch(1);
+        int result;
+        PartitionedException failure;
+
+        Proposal(int term) {
+            this.term = term;
+        }
+
+        void fail(String message) {
+            failure = new PartitionedException(message);
+            done.countDown();
+        }
+    }
+
+    /**
+     * @param id - this server, unique in the group
+     * @param peers - every other server in the group, by id
+     * @param storage - loaded here, entries after its base are applied again once committed
+     * @param initialStamp - the newest stamp this server has applied, writes are stamped after it
+     * @param apply - executes committed actions
+     * @param listener - told when the leader changes, may be null
+     * @param config
+     * @throws IOException if the storage could not be loaded
+     */
+    public QuorumNode(int id, Map<Integer,Peer> peers, Storage storage, int initialStamp, Apply apply,
+                      LeaderListener listener, Config config) throws IOException {
+        this.id = id;
+        this.peers = new HashMap<>(peers);
+        this.storage = storage;
+        this.apply = apply;
+        this.listener = listener;
+        this.config = config;
+        int servers = peers.size() + 1;
+        this.majority = servers / 2 + 1;
+        this.commitAcks = (config.requiredAcks > 0) ? Math.min(config.requiredAcks,servers) : majority;
+        this.voteRequests = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable,"quorum-vote-" + id);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Saved saved = storage.load();
+        currentTerm = saved.term;
+        votedFor = saved.votedFor;
+        baseIndex = saved.baseIndex;
+        baseTerm = saved.baseTerm;
+        entries.addAll(saved.entries);
+        persistedIndex = lastIndex();
+        commitIndex = baseIndex;     //Entries up to the base were applied before they were dropped
+        lastApplied = baseIndex;
+        highestStamp = initialStamp;
+        for(Entry entry : entries) {
+            if(entry.action != null) highestStamp = Math.max(highestStamp,entry.action.getStamp());
+        }
+        electionDeadline = nextElectionDeadline();
+    }
+
+    /**
+     * Starts the election timer and the threads that write, send and apply entries
+     */
+    public void start() {
+        startThread(this::runElections,"quorum-election-" + id);
+        startThread(this::persistLeaderEntries,"quorum-persist-" + id);
+        startThread(this::applyCommitted,"quorum-apply-" + id);
+        for(Map.Entry<Integer,Peer> peer : peers.entrySet()) {
+            startThread(() -> replicate(peer.getKey(),peer.getValue()),"quorum-replicate-" + id + "-" + peer.getKey());
+        }
+    }
+
+    private static void startThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable,name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the threads and fails the writes still waiting
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            failProposals("The server is shutting down");
+            notifyAll();
+        }
+        voteRequests.shutdownNow();
+        synchronized (storageLock) {
+            storage.close();
+        }
+    }
+
+    /**
+     * Stamps a write, adds it to the leader's log, and waits until it is committed and applied here
+     * @param makeAction - makes the action for the write, given its stamp
+     * @return result code of the write
+     * @throws PartitionedException if this server is not the leader, or the write was not committed within
+     *  Config.proposalTimeout, or leadership changed before it was. Then it may or may not be committed later.
+     */
+    public int propose(IntFunction<Action> makeAction) throws PartitionedException {
+        Proposal proposal;
+        int index;
+        synchronized (this) {
+            if(role != Role.LEADER) throw new PartitionedException("Not the leader. Unable to complete this request.");
+            Action action = makeAction.apply(++highestStamp);
+            entries.add(new Entry(currentTerm,action));
+            index = lastIndex();
+            proposal = new Proposal(currentTerm);
+            proposals.put(index,proposal);
+            notifyAll(); //The entry is written here and sent to the other servers at once
+        }
+        boolean interrupted = false;
+        boolean done = false;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.proposalTimeout);
+        while(!done) {
+            try {
+                done = proposal.done.await(deadline - System.nanoTime(),TimeUnit.NANOSECONDS);
+                if(!done) break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) Thread.currentThread().interrupt();
+        if(!done) {
+            synchronized (this) {
+                proposals.remove(index);
+            }
+            throw new PartitionedException("Not committed by a majority of the servers in time. The system may be partitioned.");
+        }
+        if(proposal.failure != null) throw proposal.failure;
+        return proposal.result;
+    }
+
+    /**
+     * Handles entries from a leader
+     * @throws IOException if they could not be written to storage
+     */
+    public AppendResult appendEntries(AppendRequest request) throws IOException {
+        int match;
+        synchronized (this) {
+            if(request.term < currentTerm) return new AppendResult(currentTerm,false,lastIndex() + 1);
+            if(request.term > currentTerm) newTerm(request.term);
+            follow(request.leaderId);
+            electionDeadline = nextElectionDeadline();
+            if(request.prevIndex > lastIndex()) return new AppendResult(currentTerm,false,lastIndex() + 1);
+            int index = request.prevIndex;
+            int skip = 0;
+            if(index < baseIndex) { //Committed entries, the same as the leader's
+                skip = baseIndex - index;
+                index = baseIndex;
+            } else if(termAt(index) != request.prevTerm) { //Go back past every entry of the disagreeing term at once
+                int conflictTerm = termAt(index);
+                while(index - 1 > baseIndex && termAt(index - 1) == conflictTerm) index--;
+                return new AppendResult(currentTerm,false,index);
+            }
+            for(int i = skip; i < request.entries.size(); i++) {
+                Entry entry = request.entries.get(i);
+                index++;
+                if(index <= lastIndex()) {
+                    if(termAt(index) == entry.term) continue; //Already here
+                    truncateFrom(index);
+                }
+                entries.add(entry);
+                if(entry.action != null) highestStamp = Math.max(highestStamp,entry.action.getStamp());
+            }
+            match = Math.max(request.prevIndex + request.entries.size(),baseIndex);
+        }
+        synchronized (storageLock) {
+            persist();
+        }
+        synchronized (this) {
+            if(request.term != currentTerm) return new AppendResult(currentTerm,false,lastIndex() + 1);
+            int commit = Math.min(request.leaderCommit,match);
+            if(commit > commitIndex) {
+                commitIndex = commit;
+                notifyAll();
+            }
+            leaderSafeIndex = Math.max(leaderSafeIndex,request.safeIndex);
+            return new AppendResult(currentTerm,true,match);
+        }
+    }
+
+    /**
+     * Handles a candidate's request for this server's vote
+     * @throws IOException if the vote could not be written to storage, it is not given then
+     */
+    public synchronized VoteResult requestVote(VoteRequest request) throws IOException {
+        if(request.term > currentTerm) {
+            newTerm(request.term);
+            follow(-1);
+        }
+        boolean upToDate = request.lastTerm > lastTerm() || (request.lastTerm == lastTerm() && request.lastIndex >= lastIndex());
+        boolean granted = request.term == currentTerm && upToDate && (votedFor == -1 || votedFor == request.candidateId);
+        if(granted) {
+            if(votedFor != request.candidateId) {
+                storage.saveTerm(currentTerm,request.candidateId);
+                votedFor = request.candidateId;
+            }
+            electionDeadline = nextElectionDeadline();
+        }
+        return new VoteResult(currentTerm,granted);
+    }
+
+    /**
+     * Starts an election whenever the election timeout passes without a leader
+     */
+    private void runElections() {
+        long tick = Math.max(1,config.electionTimeout / 10);
+        while(true) {
+            VoteRequest request = null;
+            synchronized (this) {
+                if(closed) return;
+                if(role != Role.LEADER && System.currentTimeMillis() >= electionDeadline) {
+                    try {
+                        request = startElection();
+                    } catch (IOException e) { //Can not vote for itself, try again next timeout
+                        electionDeadline = nextElectionDeadline();
+                    }
+                }
+            }
+            if(request != null) requestVotes(request);
+            try {
+                Thread.sleep(tick);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Votes for itself in the next term
+     * @return the request for the other servers' votes, null if this server won alone
+     */
+    private VoteRequest startElection() throws IOException {
+        storage.saveTerm(currentTerm + 1,id);
+        currentTerm++;
+        votedFor = id;
+        role = Role.CANDIDATE;
+        setLeader(-1);
+        failProposals("Leadership changed. The write may or may not be made.");
+        votes = 1;
+        electionDeadline = nextElectionDeadline();
+        if(votes >= majority) {
+            becomeLeader();
+            return null;
+        }
+        return new VoteRequest(currentTerm,id,lastIndex(),lastTerm());
+    }
+
+    private void requestVotes(VoteRequest request) {
+        for(Peer peer : peers.values()) {
+            try {
+                voteRequests.execute(() -> {
+                    VoteResult result;
+                    try {
+                        result = peer.requestVote(request);
+                    } catch (IOException e) {
+                        return; //No vote
+                    }
+                    synchronized (QuorumNode.this) {
+                        if(result.term > currentTerm) {
+                            stepDown(result.term);
+                        } else if(result.granted && role == Role.CANDIDATE && currentTerm == request.term && ++votes == majority) {
+                            becomeLeader();
+                        }
+                    }
+                });
+            } catch (RuntimeException e) { //Closed
+                return;
+            }
+        }
+    }
+
+    private void becomeLeader() {
+        role = Role.LEADER;
+        for(int peer : peers.keySet()) {
+            nextIndex.put(peer,lastIndex() + 1);
+            matchIndex.put(peer,0);
+        }
+        entries.add(new Entry(currentTerm,null)); //Entries of earlier terms commit with the first entry of this one
+        setLeader(id);
+        notifyAll();
+    }
+
+    /**
+     * Sends new entries to one server, or an empty append every heartbeat interval so it knows there is a leader.
+     * One append at a time, so a slow server only holds up its own thread.
+     */
+    private void replicate(int peerId, Peer peer) {
+        long lastExchange = 0;  //Heartbeats count from the last answer, so a slow server's next append carries new entries
+        while(true) {
+            AppendRequest request;
+            synchronized (this) {
+                while(true) {
+                    if(closed) return;
+                    long wait = 0;
+                    if(role == Role.LEADER) {
+                        if(nextIndex.get(peerId) <= lastIndex()) break;
+                        wait = config.heartbeatInterval - (System.currentTimeMillis() - lastExchange);
+                        if(wait <= 0) break;
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                int next = Math.max(nextIndex.get(peerId),baseIndex + 1);
+                int to = Math.min(lastIndex(),next + config.maxBatch - 1);
+                ArrayList<Entry> batch = new ArrayList<>(entries.subList(next - baseIndex - 1,to - baseIndex));
+                request = new AppendRequest(currentTerm,id,next - 1,termAt(next - 1),batch,commitIndex,matchedByAll());
+            }
+            AppendResult result = null;
+            try {
+                result = peer.appendEntries(request);
+            } catch (IOException e) {
+                //Down or unreachable, tried again after a heartbeat interval
+            }
+            lastExchange = System.currentTimeMillis();
+            boolean backOff = result == null;
+            if(result != null) synchronized (this) {
+                if(result.term > currentTerm) {
+                    stepDown(result.term);
+                } else if(role == Role.LEADER && currentTerm == request.term) {
+                    if(result.success) {
+                        int match = Math.max(matchIndex.get(peerId),result.index);
+                        matchIndex.put(peerId,match);
+                        nextIndex.put(peerId,match + 1);
+                        advanceCommit();
+                    } else {
+                        nextIndex.put(peerId,Math.max(1,Math.min(request.prevIndex,result.index)));
+                        backOff = request.prevIndex <= baseIndex; //It needs entries that were dropped, it can not catch up from this log
+                    }
+                }
+            }
+            if(backOff) {
+                try {
+                    Thread.sleep(config.heartbeatInterval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the leader's new entries to its own storage. Entries that arrive while a write runs go in the next one.
+     */
+    private void persistLeaderEntries() {
+        while(true) {
+            synchronized (this) {
+                while(!closed && !(role == Role.LEADER && persistedIndex < lastIndex())) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if(closed) return;
+            }
+            try {
+                synchronized (storageLock) {
+                    persist();
+                }
+            } catch (IOException e) { //Without its own copy the leader can not count itself, let another server lead
+                synchronized (this) {
+                    if(role == Role.LEADER) {
+                        role = Role.FOLLOWER;
+                        setLeader(-1);
+                        failProposals("Could not write the log: " + e);
+                    }
+                }
+                continue;
+            }
+            synchronized (this) {
+                advanceCommit();
+            }
+        }
+    }
+
+    /**
+     * Writes the entries after persistedIndex to storage. Called holding storageLock.
+     */
+    private void persist() throws IOException {
+        int from;
+        int version;
+        List<Entry> pending;
+        synchronized (this) {
+            from = persistedIndex + 1;
+            if(from > lastIndex()) return;
+            pending = new ArrayList<>(entries.subList(from - baseIndex - 1,entries.size()));
+            version = logVersion;
+        }
+        storage.append(from,pending);
+        synchronized (this) {
+            if(version == logVersion) persistedIndex = Math.max(persistedIndex,from + pending.size() - 1); //Otherwise written again from the change
+        }
+    }
+
+    /**
+     * Commits the newest entry of this term that enough servers hold
+     */
+    private void advanceCommit() {
+        if(role != Role.LEADER) return;
+        for(int n = lastIndex(); n > commitIndex && termAt(n) == currentTerm; n--) {
+            int acks = (persistedIndex >= n) ? 1 : 0;
+            for(int match : matchIndex.values()) {
+                if(match >= n) acks++;
+            }
+            if(acks >= commitAcks) {
+                commitIndex = n;
+                notifyAll();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Applies committed entries in log order, and gives each waiting write its result
+     */
+    private void applyCommitted() {
+        while(true) {
+            int from;
+            List<Entry> batch;
+            synchronized (this) {
+                while(!closed && lastApplied >= commitIndex) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if(closed) return;
+                from = lastApplied + 1;
+                int to = Math.min(commitIndex,lastApplied + config.maxBatch);
+                batch = new ArrayList<>(entries.subList(from - baseIndex - 1,to - baseIndex));
+            }
+            ArrayList<Action> actions = new ArrayList<>(batch.size());
+            for(Entry entry : batch) {
+                if(entry.action != null) actions.add(entry.action);
+            }
+            int[] results = null;
+            String failure = null;
+            try {
+                results = actions.isEmpty() ? new int[0] : apply.apply(actions);
+            } catch (RuntimeException e) { //Committed, but the writer can not be told it was made here
+                failure = "Unable to complete this request: " + e;
+            }
+            synchronized (this) {
+                int a = 0;
+                for(int i = 0; i < batch.size(); i++) {
+                    Entry entry = batch.get(i);
+                    Proposal proposal = proposals.remove(from + i);
+                    if(entry.action != null) a++;
+                    if(proposal == null) continue;
+                    if(proposal.term != entry.term) { //Another leader's entry took its place
+                        proposal.fail("Leadership changed. The write was not made.");
+                    } else if(failure != null) {
+                        proposal.fail(failure);
+                    } else {
+                        proposal.result = results[a - 1];
+                        proposal.done.countDown();
+                    }
+                }
+                lastApplied = from + batch.size() - 1;
+            }
+            compact();
+        }
+    }
+
+    /**
+     * Drops the entries that every server holds and that are applied here, once there are Config.compactAfter of them
+     */
+    private void compact() {
+        synchronized (storageLock) {
+            int index;
+            int term;
+            List<Entry> kept;
+            synchronized (this) {
+                int safe = (role == Role.LEADER) ? matchedByAll() : leaderSafeIndex;
+                index = Math.min(Math.min(lastApplied,persistedIndex),safe);
+                if(index - baseIndex < config.compactAfter) return;
+                term = termAt(index);
+                entries.subList(0,index - baseIndex).clear();
+                baseIndex = index;
+                baseTerm = term;
+                kept = new ArrayList<>(entries.subList(0,persistedIndex - baseIndex));
+            }
+            try {
+                storage.compact(index,term,kept);
+            } catch (IOException e) {
+                //The stored log still has every entry
+            }
+        }
+    }
+
+    /**
+     * @return the last entry every server holds, as far as the leader knows
+     */
+    private int matchedByAll() {
+        int matched = persistedIndex;
+        for(int match : matchIndex.values()) {
+            matched = Math.min(matched,match);
+        }
+        return matched;
+    }
+
+    private void newTerm(int term) throws IOException {
+        storage.saveTerm(term,-1);
+        currentTerm = term;
+        votedFor = -1;
+    }
+
+    /**
+     * Follows a newer term seen in an answer
+     */
+    private void stepDown(int term) {
+        try {
+            newTerm(term);
+        } catch (IOException e) {
+            //Stays in its term, the other servers do not need its vote to elect a leader
+        }
+        follow(-1);
+    }
+
+    /**
+     * Becomes a follower of the leader, -1 if not known yet
+     */
+    private void follow(int leader) {
+        if(role != Role.FOLLOWER) {
+            role = Role.FOLLOWER;
+            failProposals("Leadership changed. The write may or may not be made.");
+            notifyAll();
+        }
+        setLeader(leader);
+    }
+
+    private void setLeader(int leader) {
+        if(leaderId == leader) return;
+        leaderId = leader;
+        if(listener != null) listener.leaderChanged(leader);
+    }
+
+    /**
+     * Drops the entries from index on, they disagree with the leader's
+     */
+    private void truncateFrom(int index) {
+        entries.subList(index - baseIndex - 1,entries.size()).clear();
+        persistedIndex = Math.min(persistedIndex,index - 1);
+        logVersion++;
+    }
+
+    private void failProposals(String message) {
+        for(Proposal proposal : proposals.values()) {
+            proposal.fail(message);
+        }
+        proposals.clear();
+    }
+
+    private long nextElectionDeadline() {
+        return System.currentTimeMillis() + config.electionTimeout + (long) (random.nextDouble() * config.electionTimeout);
+    }
+
+    private int lastIndex() {
+        return baseIndex + entries.size();
+    }
+
+    private int lastTerm() {
+        return termAt(lastIndex());
+    }
+
+    /**
+     * @return term of the entry at index, -1 if it is not in the log
+     */
+    private int termAt(int index) {
+        if(index == baseIndex) return baseTerm;
+        if(index < baseIndex || index > lastIndex()) return -1;
+        return entries.get(index - baseIndex - 1).term;
+    }
+
+    public synchronized boolean isLeader() {
+        return role == Role.LEADER;
+    }
+
+    public synchronized Role getRole() {
+        return role;
+    }
+
+    /**
+     * @return the current leader, -1 if none is known
+     */
+    public synchronized int getLeaderId() {
+        return leaderId;
+    }
+
+    public synchronized int getTerm() {
+        return currentTerm;
+    }
+
+    public synchronized int getCommitIndex() {
+        return commitIndex;
+    }
+
+    public synchronized int getLastIndex() {
+        return lastIndex();
+    }
+
+    /**
+     * @return the last entry dropped from the log
+     */
+    public synchronized int getBaseIndex() {
+        return baseIndex;
+    }
+
+    /**
+     * @return the actions in the log from index on, for checking that servers agree
+     */
+    public synchronized List<Action> getActions(int index) {
+        ArrayList<Action> actions = new ArrayList<>();
+        for(int i = Math.max(index,baseIndex + 1); i <= lastIndex(); i++) {
+            Action action = entries.get(i - baseIndex - 1).action;
+            if(action != null) actions.add(action);
+        }
+        return Collections.unmodifiableList(actions);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Quorum " + role + " term " + currentTerm + " leader " + leaderId + " log " + baseIndex + "-" + lastIndex()
+                + " committed " + commitIndex + " applied " + lastApplied;
+    }
+}
@@ -0,0 +1,89 @@
+package Identity.Server;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Makes the same remote call on many servers at once, and waits for the answers until a deadline.
+ *
+ * Each server has its own sender thread, so the calls to one server are made in the order they were sent
+ * (a vote request never overtakes the commit before it) while the servers are called at the same time.
+ * A call that misses the deadline is not cancelled, it is still made after the round, in order.
+ */
+public class ReplicaFanOut {
+    private static final long senderIdleTime = 60;  //Seconds before an idle sender thread stops
+
+    private final boolean parallel;
+    private final ConcurrentHashMap<ServerInfo,ThreadPoolExecutor> senders = new ConcurrentHashMap<>();
+
+    /**
+     * A remote call to make on one server
+     */
+    public interface RemoteCall<T> {
+        T call(IdentityServerClusterInterface server) throws RemoteException;
+    }
+
+    /**
+     * @param parallel - false calls the servers one after another in the calling thread, without a deadline
+     */
+    public ReplicaFanOut(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Makes a call on every server
+     * @param servers
+     * @param call
+     * @param timeoutMillis - how long the whole round waits for answers
+     * @return the answers in the order of the servers, null for a server that failed or did not answer in time
+     */
+    public <T> List<T> call(List<ServerInfo> servers, RemoteCall<T> call, long timeoutMillis) {
+        ArrayList<T> answers = new ArrayList<>(servers.size());
+        if(!parallel) {
+            for(ServerInfo server : servers) {
+                try {
+                    answers.add(call.call(server.getRemObj()));
+                } catch (RemoteException e) {
+                    answers.add(null);
+                }
+            }
+            return answers;
+        }
+        ArrayList<Future<T>> futures = new ArrayList<>(servers.size());
+        for(ServerInfo server : servers) {
+            futures.add(sender(server).submit(() -> call.call(server.getRemObj())));
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for(Future<T> future : futures) {
+            try {
+                answers.add(future.get(Math.max(0,deadline - System.nanoTime()),TimeUnit.NANOSECONDS));
+            } catch (ExecutionException | TimeoutException e) {
+                answers.add(null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                answers.add(null);
+            }
+        }
+        return answers;
+    }
+
+    private ThreadPoolExecutor sender(ServerInfo server) {
+        return senders.computeIfAbsent(server,s -> {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1,1,senderIdleTime,TimeUnit.SECONDS,new LinkedBlockingQueue<>(),r -> {
+                Thread thread = new Thread(r,"fan-out-" + s.getRegistryPort());
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        });
+    }
+}
@@ -70,4 +70,9 @@ public class ServerInfo implements Serializable {
         ServerInfo serverToCompare = (ServerInfo) o;
         return this.getHostIpAddress().equals(serverToCompare.getHostIpAddress()) & (this.getRegistryPort() == serverToCompare.getRegistryPort());
     }
+
+    @Override
+    public int hashCode() {
+        return hostIpAddress.hashCode() * 31 + registryPort;
+    }
 }
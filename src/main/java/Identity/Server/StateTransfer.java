@@ -0,0 +1,81 @@
+package Identity.Server;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A snapshot of every user that a server has ready for another server, and how to fetch it.
+ * Given out over RMI by startStateTransfer. The snapshot itself is sent over TLS on the port here, to the server
+ * that sends the token first.
+ */
+public class StateTransfer implements Serializable {
+    public static final int bufferSize = 64 * 1024;        //Bytes copied per read and write of the snapshot
+
+    private final int port;
+    private final long token;
+    private final int stamp;
+    private final long length;
+
+    public StateTransfer(int port, long token, int stamp, long length) {
+        this.port = port;
+        this.token = token;
+        this.stamp = stamp;
+        this.length = length;
+    }
+
+    /**
+     * Fetches the snapshot into a file
+     * @param host - host of the server that started the transfer
+     * @param file - where the snapshot is written
+     * @throws IOException if the connection fails, stalls, or ends before the whole snapshot is received
+     */
+    public void fetch(String host, File file) throws IOException {
+        try(Socket socket = SSLSocketFactory.getDefault().createSocket();
+            OutputStream out = new FileOutputStream(file)) {
+            socket.connect(new InetSocketAddress(host,port),StateTransferServer.readTimeout);
+            socket.setSoTimeout(StateTransferServer.readTimeout);
+            DataOutputStream header = new DataOutputStream(socket.getOutputStream());
+            header.writeLong(token);
+            header.flush();
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[bufferSize];
+            long received = 0;
+            while(received < length) {
+                int read = in.read(buffer,0,(int) Math.min(buffer.length,length - received));
+                if(read < 0) throw new IOException("State transfer ended after " + received + " of " + length + " bytes");
+                out.write(buffer,0,read);
+                received += read;
+            }
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public long getToken() {
+        return token;
+    }
+
+    /**
+     * @return stamp of the snapshot, every change up to it is in the snapshot
+     */
+    public int getStamp() {
+        return stamp;
+    }
+
+    /**
+     * @return bytes of the snapshot
+     */
+    public long getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,157 @@
+package Identity.Server;
+
+import Identity.Database.DatabaseManager;
+
+import javax.net.ssl.SSLServerSocketFactory;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sends snapshots of every user to servers that are new or too far behind to catch up from actions.
+ *
+ * A snapshot is written to a file when a server asks for one, and offered under a random token handed out over
+ * RMI. The server connects to the side channel port, sends the token, and the file is streamed back. The side
+ * channel listens only on the RMI host and uses TLS with the same keystores as RMI, since a snapshot holds
+ * password hashes and addresses. The server then asks for the actions after the snapshot's stamp, see
+ * IdServer.transferState.
+ */
+public class StateTransferServer {
+    private static final long offerTimeout = 10 * 60 * 1000;   //Milliseconds an offered snapshot waits to be fetched
+    static final int readTimeout = 30 * 1000;                  //Milliseconds either end waits for the other to send
+
+    private final DatabaseManager dm;
+    private final String host;
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentHashMap<Long,Offer> offers = new ConcurrentHashMap<>();
+    private ServerSocket server;
+    private volatile long bytesSent = 0;
+
+    /**
+     * A snapshot waiting to be fetched
+     */
+    private static class Offer {
+        final File file;
+        final long offeredAt;
+
+        Offer(File file, long offeredAt) {
+            this.file = file;
+            this.offeredAt = offeredAt;
+        }
+    }
+
+    /**
+     * @param dm - the users to send
+     * @param host - address the side channel listens on, the one RMI is exported on
+     */
+    public StateTransferServer(DatabaseManager dm, String host) {
+        this.dm = dm;
+        this.host = host;
+    }
+
+    /**
+     * Writes a snapshot and offers it. Starts the side channel the first time.
+     * @return how to fetch the snapshot
+     * @throws IOException if the snapshot could not be written or the side channel could not be opened
+     */
+    public synchronized StateTransfer offer() throws IOException {
+        if(server == null) start();
+        expireOffers();
+        File file = File.createTempFile("state-transfer",".snapshot");
+        int stamp = dm.writeSnapshotTo(file);
+        if(stamp < 0) {
+            file.delete();
+            throw new IOException("Could not write a snapshot for the state transfer");
+        }
+        long token = random.nextLong();
+        offers.put(token,new Offer(file,System.currentTimeMillis()));
+        return new StateTransfer(server.getLocalPort(),token,stamp,file.length());
+    }
+
+    private void start() throws IOException {
+        server = SSLServerSocketFactory.getDefault().createServerSocket(0,50,InetAddress.getByName(host));
+        Thread acceptor = new Thread(() -> {
+            while(!server.isClosed()) {
+                try {
+                    Socket client = server.accept();
+                    Thread sender = new Thread(() -> send(client),"state-transfer-send");
+                    sender.setDaemon(true);
+                    sender.start();
+                } catch (IOException e) {
+                    return; //Closed
+                }
+            }
+        },"state-transfer-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Sends the snapshot offered under the token the client sends first, then deletes it
+     */
+    private void send(Socket client) {
+        try(Socket socket = client) {
+            socket.setSoTimeout(readTimeout); //A client that never sends its token does not hold a thread
+            Offer offer = offers.remove(new DataInputStream(socket.getInputStream()).readLong());
+            if(offer == null) return; //Unknown token, or already fetched
+            try(InputStream in = Files.newInputStream(offer.file.toPath())) {
+                OutputStream out = socket.getOutputStream();
+                byte[] buffer = new byte[StateTransfer.bufferSize];
+                long sent = 0;
+                for(int read = in.read(buffer); read > 0; read = in.read(buffer)) {
+                    out.write(buffer,0,read);
+                    sent += read;
+                }
+                out.flush();
+                bytesSent += sent;
+            } finally {
+                offer.file.delete();
+            }
+        } catch (IOException e) {
+            //The other server gives up and asks again
+        }
+    }
+
+    private void expireOffers() {
+        long now = System.currentTimeMillis();
+        for(Iterator<Map.Entry<Long,Offer>> it = offers.entrySet().iterator(); it.hasNext(); ) {
+            Offer offer = it.next().getValue();
+            if(now - offer.offeredAt > offerTimeout) {
+                it.remove();
+                offer.file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return bytes of snapshots sent so far
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Stops the side channel and deletes the snapshots that were never fetched
+     */
+    public synchronized void close() {
+        try {
+            if(server != null) server.close();
+        } catch (IOException e) {
+            //Already closed
+        }
+        for(Offer offer : offers.values()) {
+            offer.file.delete();
+        }
+        offers.clear();
+    }
+}
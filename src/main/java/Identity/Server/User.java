@@ -64,6 +64,20 @@ public class User implements Serializable {
         this.ipAddress = ipAddress;
     }
 
+    /**
+     * Copies every value of another user
+     * @param other
+     */
+    public User(User other) {
+        this.uuid = other.uuid;
+        this.name = other.name;
+        this.date = other.date;
+        this.passHash = other.passHash;
+        this.ipAddress = other.ipAddress;
+        this.realname = other.realname;
+        this.lstamp = other.lstamp;
+    }
+
     public int getLstamp() {
         return lstamp;
     }
@@ -143,4 +157,13 @@ public class User implements Serializable {
 
     }
 
+    /**
+     * String with username, UUID, creation date (ISO-8601, UTC) and the stamp of the last change
+     * @return string describing user for audit reports
+     */
+    public String auditString() {
+        return "[Login name: " + this.name + " UUID: " + this.uuid + " Created: " + (this.date == null ? "UNAVAILABLE" : this.date.toInstant())
+                + " Stamp: " + this.lstamp + "]";
+    }
+
 }
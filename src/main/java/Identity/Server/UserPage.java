@@ -0,0 +1,38 @@
+package Identity.Server;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * One page of a user listing, see IdentityServerInterface.get(String, String, int).
+ * Users are listed in UUID order, and the cursor is the UUID of the last user on the page.
+ */
+public class UserPage implements Serializable {
+    private static final long serialVersionUID = 4310468127653212301L;
+    private List<String> entries;
+    private String cursor;
+
+    /**
+     * @param entries - the listing of each user on the page
+     * @param cursor - where the next page starts, null if this is the last page
+     */
+    public UserPage(List<String> entries, String cursor) {
+        this.entries = entries;
+        this.cursor = cursor;
+    }
+
+    public List<String> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the cursor to pass to get the next page, or null if there are no more users
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+    public boolean isLast() {
+        return cursor == null;
+    }
+}